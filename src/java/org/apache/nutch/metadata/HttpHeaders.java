@@ -42,6 +42,8 @@ public interface HttpHeaders {
   
   public final static String CONTENT_TYPE = "Content-Type";
   
+  public final static String ETAG = "ETag";
+  
   public final static String LAST_MODIFIED = "Last-Modified";
   
   public final static String LOCATION = "Location";
@@ -17,53 +17,79 @@
 
 package org.apache.nutch.parse;
 
-import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-
 import org.apache.hadoop.conf.Configuration;
-import org.apache.oro.text.regex.MatchResult;
-import org.apache.oro.text.regex.Pattern;
-import org.apache.oro.text.regex.PatternCompiler;
-import org.apache.oro.text.regex.PatternMatcher;
-import org.apache.oro.text.regex.PatternMatcherInput;
-import org.apache.oro.text.regex.Perl5Compiler;
-import org.apache.oro.text.regex.Perl5Matcher;
 
 /**
  * Extractor to extract {@link org.apache.nutch.parse.Outlink}s 
- * / URLs from plain text using Regular Expressions.
- * 
- * @see <a
- *      href="http://wiki.java.net/bin/view/Javapedia/RegularExpressions">Comparison
- *      of different regexp-Implementations </a>
- * @see <a href="http://regex.info/java.html">Overview about Java Regexp APIs
- *      </a>
+ * / URLs from plain text.
+ *
+ * <p>URLs are those matched by {@link #URL_PATTERN}, found by a scanner
+ * that reads the text once, with precomputed character classes, instead of
+ * a backtracking regular expression matcher: the time it takes is linear
+ * in the length of the text, whatever the text. The extractor has no
+ * state, and can be used by several threads at once.
  * 
  * @author Stephan Strittmatter - http://www.sybit.de
  * @version 1.0
  * @since 0.7
  */
 public class OutlinkExtractor {
-  private static final Log LOG = LogFactory.getLog(OutlinkExtractor.class);
 
   /**
-   * Regex pattern to get URLs within a plain text.
+   * Regex pattern of the URLs within a plain text, matched with the
+   * leftmost, greedy semantics of Perl.
    * 
    * @see <a
    *      href="http://www.truerwords.net/articles/ut/urlactivation.html">http://www.truerwords.net/articles/ut/urlactivation.html
    *      </a>
    */
-  private static final String URL_PATTERN = 
+  static final String URL_PATTERN = 
     "([A-Za-z][A-Za-z0-9+.-]{1,120}:[A-Za-z0-9/](([A-Za-z0-9$_.+!*,;/?:@&~=-])|%[A-Fa-f0-9]{2}){1,333}(#([a-zA-Z0-9][a-zA-Z0-9$_.+!*,;/?:@&~=%-]{0,1000}))?)";
 
+  // bounds of the repetitions of URL_PATTERN
+  private static final int MAX_SCHEME = 121;
+  private static final int MAX_PATH = 333;
+  private static final int MAX_FRAGMENT = 1000;
+
+  // character classes of URL_PATTERN, for ASCII characters
+  private static final boolean[] ALPHA = new boolean[128];
+  private static final boolean[] ALNUM = new boolean[128];
+  private static final boolean[] SCHEME = new boolean[128];
+  private static final boolean[] PATH_START = new boolean[128];
+  private static final boolean[] PATH = new boolean[128];
+  private static final boolean[] HEX = new boolean[128];
+  private static final boolean[] FRAGMENT = new boolean[128];
+
+  private static void set(boolean[] chars, String ranges, String others) {
+    for (int i = 0; i < ranges.length(); i += 2) {
+      for (char c = ranges.charAt(i); c <= ranges.charAt(i + 1); c++) {
+        chars[c] = true;
+      }
+    }
+    for (int i = 0; i < others.length(); i++) {
+      chars[others.charAt(i)] = true;
+    }
+  }
+
+  static {
+    set(ALPHA, "AZaz", "");
+    set(ALNUM, "AZaz09", "");
+    set(SCHEME, "AZaz09", "+.-");
+    set(PATH_START, "AZaz09", "/");
+    set(PATH, "AZaz09", "$_.+!*,;/?:@&~=-");
+    set(HEX, "AFaf09", "");
+    set(FRAGMENT, "AZaz09", "$_.+!*,;/?:@&~=%-");
+  }
+
+  private static boolean is(boolean[] chars, char c) {
+    return c < 128 && chars[c];
+  }
+
   /**
    * Extracts <code>Outlink</code> from given plain text.
-   * Applying this method to non-plain-text can result in extremely lengthy
-   * runtimes for parasitic cases (postscript is a known example).
    * @param plainText  the plain text from wich URLs should be extracted.
    * 
    * @return Array of <code>Outlink</code>s within found in plainText
@@ -82,160 +108,78 @@ public class OutlinkExtractor {
    * @return Array of <code>Outlink</code>s within found in plainText
    */
   public static Outlink[] getOutlinks(final String plainText, String anchor, Configuration conf) {
-    long start = System.currentTimeMillis();
+    if (plainText == null) {
+      return new Outlink[0];
+    }
     final List<Outlink> outlinks = new ArrayList<Outlink>();
-
-    try {
-      final PatternCompiler cp = new Perl5Compiler();
-      final Pattern pattern = cp.compile(URL_PATTERN,
-          Perl5Compiler.CASE_INSENSITIVE_MASK | Perl5Compiler.READ_ONLY_MASK
-              | Perl5Compiler.MULTILINE_MASK);
-      final PatternMatcher matcher = new Perl5Matcher();
-
-      final PatternMatcherInput input = new PatternMatcherInput(plainText);
-
-      MatchResult result;
-      String url;
-
-      //loop the matches
-      while (matcher.contains(input, pattern)) {
-        // if this is taking too long, stop matching
-        //   (SHOULD really check cpu time used so that heavily loaded systems
-        //   do not unnecessarily hit this limit.)
-        if (System.currentTimeMillis() - start >= 60000L) {
-          if (LOG.isWarnEnabled()) {
-            LOG.warn("Time limit exceeded for getOutLinks");
-          }
-          break;
-        }
-        result = matcher.getMatch();
-        url = result.group(0);
-        outlinks.add(new Outlink(url, anchor));
+    int from = 0;
+    int colon = plainText.indexOf(':');
+    while (colon >= 0) {
+      final int start = getSchemeStart(plainText, from, colon);
+      final int end = start < 0 ? -1 : getUrlEnd(plainText, colon + 1);
+      if (end < 0) {
+        colon = plainText.indexOf(':', colon + 1);
+      } else {
+        outlinks.add(new Outlink(plainText.substring(start, end), anchor));
+        from = end;
+        colon = plainText.indexOf(':', end);
       }
-    } catch (Exception ex) {
-      // if the matcher fails (perhaps a malformed URL) we just log it and move on
-      if (LOG.isErrorEnabled()) { LOG.error("getOutlinks", ex); }
-    }
-
-    final Outlink[] retval;
-
-    //create array of the Outlinks
-    if (outlinks != null && outlinks.size() > 0) {
-      retval = outlinks.toArray(new Outlink[0]);
-    } else {
-      retval = new Outlink[0];
     }
-
-    return retval;
+    return outlinks.toArray(new Outlink[outlinks.size()]);
   }
-  
 
   /**
-   * Extracts outlinks from a plain text. <br />
-   * This Method takes the Jakarta Regexp API.
-   * 
-   * @param plainText
-   * 
-   * @return Array of <code>Outlink</code> s within found in plainText
-   * @deprecated only for tests
+   * Returns the leftmost start, not before <code>from</code>, of a scheme
+   * ending at <code>colon</code>, or -1.
    */
-  private Outlink[] getOutlinksJakartaRegexpImpl(final String plainText) {
-
-    throw new UnsupportedOperationException(
-        "Implementation commented out. Please uncomment to use it.");
-
-    // final List outlinks = new ArrayList();
-    // String url;
-    // Outlink link;
-    //
-    // RE re = new RE(URL_PATTERN);
-    //
-    // int pos = 0;
-    //
-    // while (re.match(plainText, pos)) {
-    //
-    // url = re.getParen(0);
-    //
-    // if (LOG.isTraceEnabled()) {
-    //   LOG.trace("Extracted url: " + url);
-    // }
-    //
-    // try {
-    //
-    // link = new Outlink(url, null);
-    // outlinks.add(link);
-    //
-    // } catch (MalformedURLException ex) {
-    // // if it is a malformed URL we just throw it away and continue with
-    // // extraction.
-    // if (LOG.isErrorEnabled()) { LOG.error("getOutlinks", ex); }
-    // }
-    //
-    // pos = re.getParenEnd(0);
-    // }
-    //
-    // final Outlink[] retval;
-    //
-    // if (pos > 0) {
-    // retval = (Outlink[]) outlinks.toArray(new Outlink[0]);
-    // } else {
-    // retval = new Outlink[0];
-    // }
-    //
-    // return retval;
-
+  private static int getSchemeStart(String text, int from, int colon) {
+    final int min = Math.max(from, colon - MAX_SCHEME);
+    int start = colon;
+    while (start > min && is(SCHEME, text.charAt(start - 1))) {
+      start--;
+    }
+    // a scheme starts with a letter, followed by at least one character
+    while (start < colon - 1 && !is(ALPHA, text.charAt(start))) {
+      start++;
+    }
+    return start < colon - 1 ? start : -1;
   }
 
   /**
-   * Extracts outlinks from a plain text.
-   * </p>
-   * This Method takes the JDK5 Regexp API.
-   * 
-   * @param plainText
-   * 
-   * @return Array of <code>Outlink</code> s within found in plainText
-   * @deprecated only for tests
+   * Returns the end of the part of a URL after the colon of its scheme,
+   * starting at <code>pos</code>, or -1 if there is none.
    */
-  private Outlink[] getOutlinksJDK5Impl(final String plainText) {
-
-    throw new UnsupportedOperationException(
-        "Implementation commented out. Please uncomment to use it.");
-
-    // final List outlinks = new ArrayList();
-    // String url;
-    // Outlink link;
-    //
-    // final Pattern urlPattern = Pattern.compile(URL_PATTERN);
-    // final RE re = new RE(urlPattern);
-    //
-    // int pos = 0;
-    //
-    // while (re.match(plainText, pos)) {
-    //
-    // url = re.getParen(0);
-    //
-    // try {
-    //
-    // link = new Outlink(url, null);
-    // outlinks.add(link);
-    // } catch (MalformedURLException ex) {
-    // // if it is a malformed URL we just throw it away and continue with
-    // // extraction.
-    // if (LOG.isErrorEnabled()) { LOG.error("getOutlinks", ex); }
-    // }
-    //
-    // pos = re.getParenEnd(0);
-    // }
-    //
-    // final Outlink[] retval;
-    //
-    // if (pos > 0) {
-    // retval = (Outlink[]) outlinks.toArray(new Outlink[0]);
-    // } else {
-    // retval = new Outlink[0];
-    // }
-    //
-    // return retval;
+  private static int getUrlEnd(String text, int pos) {
+    final int length = text.length();
+    if (pos >= length || !is(PATH_START, text.charAt(pos))) {
+      return -1;
+    }
+    pos++;
+    int count = 0;
+    while (count < MAX_PATH && pos < length) {
+      final char c = text.charAt(pos);
+      if (is(PATH, c)) {
+        pos++;
+      } else if (c == '%' && pos + 2 < length
+                 && is(HEX, text.charAt(pos + 1))
+                 && is(HEX, text.charAt(pos + 2))) {
+        pos += 3;
+      } else {
+        break;
+      }
+      count++;
+    }
+    if (count == 0) {
+      return -1;
+    }
+    if (pos + 1 < length && text.charAt(pos) == '#'
+        && is(ALNUM, text.charAt(pos + 1))) {
+      pos += 2;
+      final int max = Math.min(length, pos + MAX_FRAGMENT);
+      while (pos < max && is(FRAGMENT, text.charAt(pos))) {
+        pos++;
+      }
+    }
+    return pos;
   }
- 
 }
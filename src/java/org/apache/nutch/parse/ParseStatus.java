@@ -81,6 +81,17 @@ public class ParseStatus implements Writable {
    * by errors at protocol stage.
    */
   public static final short FAILED_MISSING_CONTENT    = 205;
+  /** Parsing failed. The parser took longer than allowed, and was cancelled.
+   */
+  public static final short FAILED_TIMEOUT            = 206;
+  /** Parsing failed. The parser allocated more memory than allowed, or ran
+   * out of memory, and was cancelled.
+   */
+  public static final short FAILED_MEMORY_LIMIT       = 207;
+  /** Parsing failed. No thread was left to run the parser, as the threads
+   * of cancelled parsers did not stop.
+   */
+  public static final short FAILED_NO_THREAD          = 208;
 
 
   public static final ParseStatus STATUS_NOTPARSED = new ParseStatus(NOTPARSED);
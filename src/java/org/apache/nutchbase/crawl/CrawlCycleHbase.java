@@ -0,0 +1,387 @@
+package org.apache.nutchbase.crawl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.io.BatchUpdate;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.io.RowResult;
+import org.apache.hadoop.hbase.mapred.TableInputFormat;
+import org.apache.hadoop.hbase.mapred.TableOutputFormat;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapRunnable;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.StringUtils;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.nutch.crawl.Inlink;
+import org.apache.nutch.parse.Outlink;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.nutch.util.NutchJob;
+import org.apache.nutchbase.fetcher.FetcherHbase;
+import org.apache.nutchbase.fetcher.ParserPool;
+import org.apache.nutchbase.parse.ParseExecutor;
+import org.apache.nutchbase.parse.ParseTable;
+import org.apache.nutchbase.parse.ParseUtilHbase;
+import org.apache.nutchbase.util.hbase.BatchTable;
+import org.apache.nutchbase.util.hbase.BatchTableInputFormat;
+import org.apache.nutchbase.util.hbase.ColumnCompression;
+import org.apache.nutchbase.util.hbase.DueTable;
+import org.apache.nutchbase.util.hbase.HostTable;
+import org.apache.nutchbase.util.hbase.RowPart;
+import org.apache.nutchbase.util.hbase.RowReader;
+import org.apache.nutchbase.util.hbase.TableColumns;
+import org.apache.nutchbase.util.hbase.TableUtil;
+
+/**
+ * Runs a whole crawl round on the webtable. After generation, fetching,
+ * parsing and updating are done in a single job: fetched pages are parsed
+ * in-process by the fetcher threads and the reducer writes both the fetched
+ * rows and the inlinks of their outlinks, so neither <code>content:</code>
+ * nor the generate/parse/update marks have to be read back from the table.
+ * The rows that only get inlinks or a redirect are read by the reducer, as
+ * UpdateTable does with <code>-delta</code>, so that existing rows are not
+ * re-initialized. Inlinks are added to the stored ones.
+ */
+public class CrawlCycleHbase
+extends Configured
+implements MapRunnable<ImmutableBytesWritable, RowResult,
+                       ImmutableBytesWritable, RowPart>,
+           Reducer<ImmutableBytesWritable, RowPart,
+                   ImmutableBytesWritable, BatchUpdate>,
+           Tool {
+
+  public static final Log LOG = LogFactory.getLog(CrawlCycleHbase.class);
+
+  /** A row that is not fetched, waiting for its batch to be read. */
+  private static class PendingRow {
+    final ImmutableBytesWritable key;
+    final List<Inlink> inlinks = new ArrayList<Inlink>();
+    boolean redirectDiscovered;
+    String reprUrl;
+
+    PendingRow(ImmutableBytesWritable key) {
+      this.key = key;
+    }
+  }
+
+  private JobConf job;
+  private UpdateTable updater;
+  private ColumnCompression compression;
+  private int batchSize;
+  private RowReader reader;
+  private final List<PendingRow> pending = new ArrayList<PendingRow>();
+  private OutputCollector<ImmutableBytesWritable, BatchUpdate> output;
+
+  /**
+   * Wraps the map output of {@link FetcherHbase}. Every fetched row is
+   * parsed in the fetcher thread that outputs it and is marked for update.
+   * For each outlink of the row, a row holding a single inlink is emitted
+   * for the link target.
+   */
+  private static class ParsingOutputCollector
+  implements OutputCollector<ImmutableBytesWritable, RowPart> {
+    private final OutputCollector<ImmutableBytesWritable, RowPart> output;
+    private final ThreadLocal<ParseUtilHbase> parseUtil;
+
+    public ParsingOutputCollector(final JobConf job,
+        OutputCollector<ImmutableBytesWritable, RowPart> output) {
+      this.output = output;
+      // every fetcher thread may need a parser thread of the executor
+      ParseExecutor.setMinThreads(job, job.getInt("fetcher.threads.fetch", 10));
+      // parsers need not be thread-safe, so each thread has its own
+      this.parseUtil = new ThreadLocal<ParseUtilHbase>() {
+        @Override
+        protected ParseUtilHbase initialValue() {
+          return new ParseUtilHbase(job, false);
+        }
+      };
+    }
+
+    public void collect(ImmutableBytesWritable key, RowPart row)
+    throws IOException {
+      if (!row.hasColumn(TableColumns.STATUS)) {
+        // a redirect target discovered by the fetcher
+        output.collect(key, row);
+        return;
+      }
+
+      final String url = TableUtil.unreverseUrl(Bytes.toString(key.get()));
+      if (row.hasMeta(FetcherHbase.TMP_PARSE_MARK)
+          && row.getStatus() == CrawlDatumHbase.STATUS_FETCHED) {
+        try {
+          final RowPart redirectRow = parseUtil.get().process(url, row);
+          if (redirectRow != null) {
+            output.collect(new ImmutableBytesWritable(redirectRow.getRowId()),
+                           redirectRow);
+          }
+        } catch (final Exception e) {
+          LOG.warn("Error parsing: " + url + ": "
+              + StringUtils.stringifyException(e));
+        }
+      }
+      // there is no separate parse step, so every fetched row is updated
+      row.putMeta(ParseTable.TMP_UPDATE_MARK, TableUtil.YES_VAL);
+      output.collect(key, row);
+
+      for (final Outlink outlink : row.getOutlinks()) {
+        try {
+          final String reversedOut = TableUtil.reverseUrl(outlink.getToUrl());
+          final RowPart linkRow = new RowPart(reversedOut.getBytes());
+          linkRow.addInlink(new Inlink(url, outlink.getAnchor()));
+          output.collect(new ImmutableBytesWritable(linkRow.getRowId()),
+                         linkRow);
+        } catch (final Exception e) {
+          LOG.info("Exception thrown by url: " + outlink.getToUrl(), e);
+        }
+      }
+    }
+  }
+
+  public void configure(JobConf job) {
+    this.job = job;
+    updater = new UpdateTable();
+    updater.configure(job);
+    compression = ColumnCompression.get(job);
+    batchSize = job.getInt(UpdateTable.DELTA_BATCH_SIZE, 500);
+  }
+
+  public void close() throws IOException {
+    try {
+      if (!pending.isEmpty()) {
+        flush();
+      }
+    } finally {
+      if (reader != null) {
+        reader.close();
+      }
+      updater.close();
+    }
+  }
+
+  public void run(RecordReader<ImmutableBytesWritable, RowResult> input,
+      OutputCollector<ImmutableBytesWritable, RowPart> output,
+      Reporter reporter) throws IOException {
+    // parse in the fetcher threads, before the hand-off to the writer thread
+    final FetcherHbase fetcher = new FetcherHbase() {
+      @Override
+      protected OutputCollector<ImmutableBytesWritable, RowPart>
+      getThreadOutput(OutputCollector<ImmutableBytesWritable, RowPart> out) {
+        return new ParsingOutputCollector(job, out);
+      }
+    };
+    fetcher.setConf(job);
+    fetcher.run(input, output, reporter);
+  }
+
+  public void reduce(ImmutableBytesWritable key, Iterator<RowPart> values,
+      OutputCollector<ImmutableBytesWritable, BatchUpdate> output,
+      Reporter reporter) throws IOException {
+    this.output = output;
+    RowPart row = null;
+    final PendingRow pendingRow =
+      new PendingRow(new ImmutableBytesWritable(key));
+
+    while (values.hasNext()) {
+      final RowPart value = values.next();
+      if (value.hasColumn(TableColumns.STATUS)) { // the fetched row itself
+        // values are reused by the framework
+        row = WritableUtils.clone(value, job);
+      } else {
+        pendingRow.inlinks.addAll(value.getInlinks());
+        if (value.hasMeta(FetcherHbase.REDIRECT_DISCOVERED)) {
+          pendingRow.redirectDiscovered = true;
+          if (value.hasColumn(TableColumns.REPR_URL)) {
+            pendingRow.reprUrl = value.getReprUrl();
+          }
+        }
+      }
+    }
+
+    if (row != null) {
+      row = updater.updateRow(key, row, pendingRow.inlinks);
+      if (row != null) {
+        output.collect(key, row.makeBatchUpdate(compression));
+      }
+      return;
+    }
+
+    // only inlinks or a redirect: the row has to be read
+    pending.add(pendingRow);
+    if (pending.size() >= batchSize) {
+      flush();
+      reporter.progress();
+    }
+  }
+
+  /**
+   * Returns the stored rows of <code>keys</code>, in the same order, with
+   * <code>null</code> for the rows that do not exist.
+   */
+  protected RowResult[] getRows(List<ImmutableBytesWritable> keys)
+  throws IOException {
+    if (reader == null) {
+      reader = new RowReader(job, job.get(TableOutputFormat.OUTPUT_TABLE),
+          UpdateTable.DeltaUpdateMapReduce.ROW_COLUMNS,
+          job.getInt(UpdateTable.DELTA_THREADS, 10));
+    }
+    return reader.getRows(keys);
+  }
+
+  /** Reads the pending rows and writes their updates. */
+  private void flush() throws IOException {
+    final List<ImmutableBytesWritable> keys =
+      new ArrayList<ImmutableBytesWritable>(pending.size());
+    for (final PendingRow pendingRow : pending) {
+      keys.add(pendingRow.key);
+    }
+    final RowResult[] rows = getRows(keys);
+
+    for (int i = 0; i < pending.size(); i++) {
+      final PendingRow pendingRow = pending.get(i);
+      RowPart row = rows[i] == null ? null : new RowPart(rows[i]);
+      if (pendingRow.redirectDiscovered) {
+        if (row == null) {
+          row = new RowPart(pendingRow.key.get());
+          row.putMeta(FetcherHbase.REDIRECT_DISCOVERED, TableUtil.YES_VAL);
+        }
+        if (pendingRow.reprUrl != null) {
+          row.setReprUrl(pendingRow.reprUrl);
+        }
+      }
+      row = updater.updateRow(pendingRow.key, row, pendingRow.inlinks);
+      if (row != null) {
+        output.collect(pendingRow.key, row.makeBatchUpdate(compression));
+      }
+    }
+    pending.clear();
+  }
+
+  /**
+   * Runs one crawl round: generates up to <code>topN</code> urls, then
+   * fetches, parses and updates them in a single job.
+   */
+  public void crawl(String table, long topN, int threads, boolean filter)
+  throws IOException {
+    LOG.info("CrawlCycleHbase: starting");
+    LOG.info("CrawlCycleHbase: table: " + table);
+
+    final GeneratorHbase generator = new GeneratorHbase();
+    generator.setConf(getConf());
+    final String batchId =
+      generator.generate(table, topN, System.currentTimeMillis(), filter);
+
+    final JobConf job = new NutchJob(getConf());
+    job.setJobName("crawl-cycle " + table);
+    if (DueTable.isEnabled(job)) {
+      DueTable.createTable(new HBaseConfiguration(job),
+                           DueTable.getTableName(job, table));
+    }
+    // robots rules and host health, as FetcherHbase keeps them
+    HostTable.setUpJob(job, table);
+
+    if (threads > 0) {
+      job.setInt("fetcher.threads.fetch", threads);
+    }
+    // pages are parsed by ParsingOutputCollector, not by the parser pool
+    job.setBoolean(ParserPool.PARSE, false);
+
+    // for politeness, don't permit parallel execution of a single task
+    job.setSpeculativeExecution(false);
+
+    job.setInputFormat(TableInputFormat.class);
+    job.setMapOutputKeyClass(ImmutableBytesWritable.class);
+    job.setMapOutputValueClass(RowPart.class);
+    job.setMapRunnerClass(CrawlCycleHbase.class);
+    FileInputFormat.addInputPaths(job, table);
+    job.set(TableInputFormat.COLUMN_LIST, getColumns(job));
+    if (batchId != null) {
+      BatchTableInputFormat.setBatch(job, batchId);
+    }
+
+    job.setOutputFormat(TableOutputFormat.class);
+    job.setReducerClass(CrawlCycleHbase.class);
+    job.set(TableOutputFormat.OUTPUT_TABLE, table);
+    job.setOutputKeyClass(ImmutableBytesWritable.class);
+    job.setOutputValueClass(BatchUpdate.class);
+
+    JobClient.runJob(job);
+
+    if (batchId != null) {
+      BatchTable.deleteBatch(new HBaseConfiguration(job),
+          BatchTable.getTableName(job, table), batchId);
+    }
+
+    LOG.info("CrawlCycleHbase: done");
+  }
+
+  private static String getColumns(JobConf job) {
+    final Set<String> columnSet = new HashSet<String>();
+    columnSet.addAll(FetcherHbase.getColumnSet(job));
+    columnSet.addAll(ParseTable.getColumnSet(job));
+    columnSet.addAll(UpdateTable.getColumnSet());
+    // inlinks are added to the stored ones, see reduce
+    columnSet.remove(TableColumns.INLINKS_STR);
+    return TableUtil.getColumns(columnSet);
+  }
+
+  public int run(String[] args) throws Exception {
+    final String usage = "Usage: CrawlCycleHbase <webtable> [-topN N] " +
+      "[-threads n] [-rounds n] [-noFilter]";
+
+    if (args.length < 1) {
+      System.err.println(usage);
+      return -1;
+    }
+
+    final String table = args[0];
+    long topN = Long.MAX_VALUE;
+    int threads = -1;
+    int rounds = 1;
+    boolean filter = true;
+
+    for (int i = 1; i < args.length; i++) {
+      if ("-topN".equals(args[i])) {
+        topN = Long.parseLong(args[++i]);
+      } else if ("-threads".equals(args[i])) {
+        threads = Integer.parseInt(args[++i]);
+      } else if ("-rounds".equals(args[i])) {
+        rounds = Integer.parseInt(args[++i]);
+      } else if ("-noFilter".equals(args[i])) {
+        filter = false;
+      }
+    }
+
+    try {
+      for (int i = 0; i < rounds; i++) {
+        LOG.info("CrawlCycleHbase: round " + (i + 1) + " of " + rounds);
+        crawl(table, topN, threads, filter);
+      }
+      return 0;
+    } catch (final Exception e) {
+      LOG.fatal("CrawlCycleHbase: " + StringUtils.stringifyException(e));
+      return -1;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    final int res = ToolRunner.run(NutchConfiguration.create(),
+        new CrawlCycleHbase(), args);
+    System.exit(res);
+  }
+}
@@ -3,18 +3,25 @@ package org.apache.nutchbase.crawl;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.io.BatchUpdate;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.io.RowResult;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Writables;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.hadoop.io.WritableComparator;
@@ -22,6 +29,7 @@ import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Partitioner;
+import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.Tool;
@@ -31,6 +39,10 @@ import org.apache.nutch.net.URLFilters;
 import org.apache.nutch.net.URLNormalizers;
 import org.apache.nutch.util.NutchConfiguration;
 import org.apache.nutch.util.NutchJob;
+import org.apache.nutchbase.util.hbase.BatchTable;
+import org.apache.nutchbase.util.hbase.DueTable;
+import org.apache.nutchbase.util.hbase.DueTableInputFormat;
+import org.apache.nutchbase.util.hbase.HostTable;
 import org.apache.nutchbase.util.hbase.RowPart;
 import org.apache.nutchbase.util.hbase.TableColumns;
 import org.apache.nutchbase.util.hbase.TableMapReduce;
@@ -44,6 +56,11 @@ implements Tool {
   private static final String CRAWL_TOP_N = "crawl.topN";
   private static final String CRAWL_GEN_CUR_TIME = "crawl.gen.curTime";
   private static final String CRAWL_RANDOM_SEED = "generate.partition.seed";
+  private static final String GENERATE_MAP_BUFFER = "generate.map.buffer.size";
+  private static final String GENERATE_FETCH_PARTITIONS =
+    "generate.fetch.partitions";
+  private static final String GENERATE_MAX_HOST_ERROR_RATE =
+    "generate.host.max.error.rate";
   
   private static final Set<String> COLUMNS = new HashSet<String>();
   
@@ -105,6 +122,109 @@ implements Tool {
                               new SelectorEntryHbaseComparator());
   }
   
+  /** A row selected by a mapper, waiting to be output. */
+  static class Candidate implements Comparable<Candidate> {
+    final SelectorEntryHbase entry;
+    final RowPart row;
+    CandidateHeap hostHeap;
+    CandidateHeap partitionHeap;
+    boolean evicted;
+
+    Candidate(SelectorEntryHbase entry, RowPart row) {
+      this.entry = entry;
+      this.row = row;
+    }
+
+    public int compareTo(Candidate c) {
+      return Float.compare(entry.score, c.entry.score);
+    }
+  }
+
+  /**
+   * Lowest scoring candidates first. Evicted candidates are only marked,
+   * and dropped when they reach the head of the queue.
+   */
+  static class CandidateHeap {
+    final PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+    final long max;
+    long live;
+
+    CandidateHeap(long max) {
+      this.max = max;
+    }
+
+    boolean isFull() {
+      return live >= max;
+    }
+
+    Candidate peekLive() {
+      while (!queue.isEmpty() && queue.peek().evicted) {
+        queue.poll();
+      }
+      return queue.peek();
+    }
+
+    /** True if <code>c</code> would make it into this heap. */
+    boolean accepts(Candidate c) {
+      if (max <= 0) {
+        return false;
+      }
+      if (!isFull()) {
+        return true;
+      }
+      Candidate lowest = peekLive();
+      return lowest != null && lowest.entry.score < c.entry.score;
+    }
+  }
+
+  /**
+   * Returns the number of rows each reducer may select for
+   * <code>topN</code>, rounded up so that a topN smaller than the number
+   * of reducers still selects rows.
+   */
+  static long getLimit(long topN, int numReduceTasks) {
+    if (topN == Long.MAX_VALUE) {
+      return Long.MAX_VALUE;
+    }
+    return (topN + numReduceTasks - 1) / numReduceTasks;
+  }
+
+  /**
+   * Keeps the best <code>generate.max.per.host</code> rows of each host,
+   * as the mappers do, for the rows of a single spill.
+   */
+  public static class GeneratorCombiner
+  implements Reducer<SelectorEntryHbase, RowPart, SelectorEntryHbase, RowPart> {
+    private long maxPerHost;
+    private String prevReversedHost = "";
+    private long hostCount;
+
+    public void configure(JobConf job) {
+      maxPerHost = job.getInt(GENERATE_MAX_PER_HOST, -1);
+      if (maxPerHost < 0) {
+        maxPerHost = Long.MAX_VALUE;
+      }
+    }
+
+    public void reduce(SelectorEntryHbase key, Iterator<RowPart> values,
+        OutputCollector<SelectorEntryHbase, RowPart> output,
+        Reporter reporter) throws IOException {
+      if (!key.reversedHost.equals(prevReversedHost)) { // new host
+        hostCount = 0;
+        prevReversedHost = key.reversedHost;
+      }
+      while (values.hasNext() && hostCount < maxPerHost) {
+        output.collect(key, values.next());
+        hostCount++;
+      }
+    }
+
+    public void close() {
+      prevReversedHost = "";
+      hostCount = 0;
+    }
+  }
+
   public static class GeneratorMapReduce
   extends TableMapReduce<SelectorEntryHbase, RowPart>
   implements Partitioner<SelectorEntryHbase, RowPart> {
@@ -120,6 +240,27 @@ implements Tool {
     private boolean filter;
     private String prevReversedHost = "";
     private FetchScheduleHbase schedule;
+    private boolean batchIndex;
+    private String batchId;
+    private String batchTableName;
+    private HTable batchTable;
+    private JobConf job;
+    private int partition;
+    private int numFetchPartitions;
+    private long[] fetchPartitionUrls;
+    private long[] fetchPartitionHosts;
+    private int fetchPartition = -1;
+    private int numPartitions;
+    private boolean selectOnMap;
+    private int bufferSize;
+    private int buffered;
+    private Map<String, CandidateHeap> hostHeaps;
+    private CandidateHeap[] partitionHeaps;
+    private OutputCollector<SelectorEntryHbase, RowPart> output;
+    private HostTable hostTable;
+    private float maxHostErrorRate;
+    private String checkedHost;
+    private boolean checkedHostHealthy;
 
     @Override
     public void map(ImmutableBytesWritable key, RowResult rowResult,
@@ -149,11 +290,95 @@ implements Tool {
         return;
       }
       
+      String reversedHost = TableUtil.getReversedHost(reversedUrl);
+      if (hostTable != null && !isHealthy(reversedHost)) {
+        reporter.incrCounter("Generator", "UNHEALTHY_HOST", 1);
+        return;
+      }
+
       float score = row.getScore();
-      SelectorEntryHbase entry =
-        new SelectorEntryHbase(TableUtil.getReversedHost(reversedUrl), score);
-      output.collect(entry, row);
+      SelectorEntryHbase entry = new SelectorEntryHbase(reversedHost, score);
+      if (!selectOnMap) {
+        output.collect(entry, row);
+        return;
+      }
+
+      // rowResult is reused by the record reader
+      RowResult copy = new RowResult();
+      Writables.copyWritable(rowResult, copy);
+      this.output = output;
+      select(new Candidate(entry, new RowPart(copy)));
+    }
+
+    /**
+     * Keeps <code>c</code> if it is one of the best maxPerHost rows of its
+     * host and one of the best <code>limit</code> rows of its partition
+     * seen so far, as no reducer selects more than that.
+     */
+    private void select(Candidate c) throws IOException {
+      CandidateHeap hostHeap = hostHeaps.get(c.entry.reversedHost);
+      if (hostHeap == null) {
+        hostHeap = new CandidateHeap(maxPerHost);
+        hostHeaps.put(c.entry.reversedHost, hostHeap);
+      }
+      CandidateHeap partitionHeap = null;
+      if (partitionHeaps != null) {
+        int p = getPartition(c.entry, c.row, numPartitions);
+        partitionHeap = partitionHeaps[p];
+        if (partitionHeap == null) {
+          partitionHeap = new CandidateHeap(limit);
+          partitionHeaps[p] = partitionHeap;
+        }
+      }
+      if (!hostHeap.accepts(c)
+          || (partitionHeap != null && !partitionHeap.accepts(c))) {
+        return;
+      }
+
+      if (hostHeap.isFull()) {
+        evict(hostHeap.peekLive());
+      }
+      // hosts are partitioned together, so the eviction above may have
+      // made room in the partition already
+      if (partitionHeap != null && partitionHeap.isFull()) {
+        evict(partitionHeap.peekLive());
+      }
 
+      c.hostHeap = hostHeap;
+      hostHeap.queue.add(c);
+      hostHeap.live++;
+      if (partitionHeap != null) {
+        c.partitionHeap = partitionHeap;
+        partitionHeap.queue.add(c);
+        partitionHeap.live++;
+      }
+      if (++buffered >= bufferSize) {
+        // out of room: send what we have, reducers still enforce limits
+        flush();
+      }
+    }
+
+    private static void evict(Candidate c) {
+      c.evicted = true;
+      c.hostHeap.live--;
+      if (c.partitionHeap != null) {
+        c.partitionHeap.live--;
+      }
+    }
+
+    private void flush() throws IOException {
+      for (CandidateHeap hostHeap : hostHeaps.values()) {
+        for (Candidate c : hostHeap.queue) {
+          if (!c.evicted) {
+            output.collect(c.entry, c.row);
+          }
+        }
+      }
+      hostHeaps.clear();
+      if (partitionHeaps != null) {
+        Arrays.fill(partitionHeaps, null);
+      }
+      buffered = 0;
     }
 
     @Override
@@ -164,10 +389,11 @@ implements Tool {
       if (!key.reversedHost.equals(prevReversedHost)) { // new host
         hostCount = 0;
         prevReversedHost = key.reversedHost;
+        fetchPartition = -1;
       }
 
       while (values.hasNext()) {
-        if (count >= limit || hostCount > maxPerHost) {
+        if (count >= limit || hostCount >= maxPerHost) {
           return;
         }
         RowPart row = values.next();
@@ -175,15 +401,82 @@ implements Tool {
           new ImmutableBytesWritable(row.getRowId());
         row.putMeta(TMP_FETCH_MARK, TableUtil.YES_VAL);
         output.collect(outKey, row.makeBatchUpdate());
+        if (batchIndex) {
+          addToBatch(row.getRowId());
+        }
         hostCount++;
         count++;
       }
     }  
 
+    /**
+     * Returns false if the host table says that the host failed too many
+     * of its recent fetches. Rows are read in key order, so the answer is
+     * kept for the following rows of the same host.
+     */
+    private boolean isHealthy(String reversedHost) throws IOException {
+      if (!reversedHost.equals(checkedHost)) {
+        checkedHost = reversedHost;
+        checkedHostHealthy =
+          hostTable.getHostInfo(reversedHost).isHealthy(maxHostErrorRate);
+      }
+      return checkedHostHealthy;
+    }
+
+    /**
+     * Returns the fetch partition with the fewest urls (and then the
+     * fewest hosts) so far. Each reducer starts looking at a different
+     * partition, so that ties are spread over partitions.
+     */
+    private int nextFetchPartition() {
+      int best = -1;
+      for (int i = 0; i < numFetchPartitions; i++) {
+        int p = (partition + i) % numFetchPartitions;
+        if (best < 0 || fetchPartitionUrls[p] < fetchPartitionUrls[best]
+            || (fetchPartitionUrls[p] == fetchPartitionUrls[best]
+                && fetchPartitionHosts[p] < fetchPartitionHosts[best])) {
+          best = p;
+        }
+      }
+      return best;
+    }
+
+    /**
+     * Adds a row to the batch index. All rows of a host go to the same
+     * fetch partition, so that a single fetcher task is polite to it.
+     */
+    private void addToBatch(byte[] rowId) throws IOException {
+      if (fetchPartition < 0) { // first row of a host
+        fetchPartition = nextFetchPartition();
+        fetchPartitionHosts[fetchPartition]++;
+      }
+      fetchPartitionUrls[fetchPartition]++;
+      if (batchTable == null) {
+        batchTable = new HTable(new HBaseConfiguration(job), batchTableName);
+        batchTable.setAutoFlush(false);
+      }
+      BatchUpdate bu = new BatchUpdate(BatchTable.makeKey(batchId, fetchPartition,
+                                                          Bytes.toString(rowId)));
+      bu.put(BatchTable.URL, TableUtil.YES_VAL);
+      batchTable.commit(bu);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (output != null) {
+        flush();
+      }
+      if (batchTable != null) {
+        batchTable.flushCommits();
+      }
+    }
+
     public void configure(JobConf job) {
+      this.job = job;
       seed = job.getInt(CRAWL_RANDOM_SEED, 0);
       curTime = job.getLong(CRAWL_GEN_CUR_TIME, System.currentTimeMillis());
-      limit = job.getLong(CRAWL_TOP_N,Long.MAX_VALUE)/job.getNumReduceTasks();
+      limit = getLimit(job.getLong(CRAWL_TOP_N, Long.MAX_VALUE),
+                       job.getNumReduceTasks());
       maxPerHost = job.getInt(GENERATE_MAX_PER_HOST, -1);
       if (maxPerHost < 0) {
         maxPerHost = Long.MAX_VALUE;
@@ -192,6 +485,34 @@ implements Tool {
       normalizers = new URLNormalizers(job, URLNormalizers.SCOPE_GENERATE_HOST_COUNT);
       filter = job.getBoolean(CRAWL_GENERATE_FILTER, true);
       schedule = FetchScheduleFactoryHbase.getFetchSchedule(job);
+      batchIndex = job.getBoolean(BatchTable.BATCH_INDEX, false);
+      batchId = job.get(BatchTable.BATCH_ID);
+      batchTableName = job.get(BatchTable.BATCH_TABLE);
+      partition = job.getInt("mapred.task.partition", 0);
+      numPartitions = job.getNumReduceTasks();
+      numFetchPartitions = job.getInt(GENERATE_FETCH_PARTITIONS, -1);
+      if (numFetchPartitions <= 0) {
+        numFetchPartitions = numPartitions;
+      }
+      fetchPartitionUrls = new long[numFetchPartitions];
+      fetchPartitionHosts = new long[numFetchPartitions];
+      bufferSize = job.getInt(GENERATE_MAP_BUFFER, 100000);
+      boolean hasTopN = job.getLong(CRAWL_TOP_N, Long.MAX_VALUE) != Long.MAX_VALUE;
+      selectOnMap = maxPerHost != Long.MAX_VALUE || hasTopN;
+      maxHostErrorRate = job.getFloat(GENERATE_MAX_HOST_ERROR_RATE, -1f);
+      if (maxHostErrorRate >= 0) {
+        try {
+          hostTable = HostTable.get(job);
+        } catch (IOException e) {
+          throw new RuntimeException("Couldn't open host table", e);
+        }
+      }
+      if (selectOnMap) {
+        hostHeaps = new HashMap<String, CandidateHeap>();
+        if (hasTopN) {
+          partitionHeaps = new CandidateHeap[numPartitions];
+        }
+      }
     }
 
     public int getPartition(SelectorEntryHbase key, RowPart value,
@@ -207,8 +528,10 @@ implements Tool {
   
   /**
    * Mark URLs ready for fetching.
+   * @return id of the generated batch if {@link BatchTable#BATCH_INDEX}
+   * is set, <code>null</code> otherwise
    * */
-  public void generate(String table, long topN, long curTime, boolean filter)
+  public String generate(String table, long topN, long curTime, boolean filter)
   throws IOException {    
  
     LOG.info("GeneratorHbase: Selecting best-scoring urls due for fetch.");
@@ -227,22 +550,41 @@ implements Tool {
     job.setBoolean(CRAWL_GENERATE_FILTER, filter);
     job.setInt(CRAWL_RANDOM_SEED, new Random().nextInt());
 
+    String batchId = null;
+    if (job.getBoolean(BatchTable.BATCH_INDEX, false)) {
+      batchId = BatchTable.newBatchId(curTime);
+      String batchTableName = BatchTable.getTableName(job, table);
+      BatchTable.createTable(new HBaseConfiguration(job), batchTableName);
+      job.set(BatchTable.BATCH_ID, batchId);
+      job.set(BatchTable.BATCH_TABLE, batchTableName);
+      LOG.info("GeneratorHbase: batch id: " + batchId);
+    }
+
     TableMapReduce.initJob(table, TableUtil.getColumns(COLUMNS), 
                            GeneratorMapReduce.class,
                            SelectorEntryHbase.class,
                            RowPart.class,
                            job);
+    if (job.getFloat(GENERATE_MAX_HOST_ERROR_RATE, -1f) >= 0) {
+      HostTable.setUpJob(job, table);
+    }
+    if (DueTable.isEnabled(job)) {
+      // only read the rows that the due index lists up to curTime
+      DueTableInputFormat.setDueTime(job, curTime);
+    }
     
     job.setPartitionerClass(GeneratorMapReduce.class);
+    job.setCombinerClass(GeneratorCombiner.class);
     
     JobClient.runJob(job);
     
     LOG.info("GeneratorHbase: done");
+    return batchId;
   }
 
   public int run(String[] args) throws Exception {
     if (args.length < 1) {
-      System.out.println("Usage: GeneratorHbase <webtable> [-topN N] [-noFilter]");
+      System.out.println("Usage: GeneratorHbase <webtable> [-topN N] [-noFilter] [-batchIndex]");
       return -1;
     }
     
@@ -256,11 +598,16 @@ implements Tool {
         topN = Long.parseLong(args[++i]);
       } else if ("-noFilter".equals(args[i])) {
         filter = false;
+      } else if ("-batchIndex".equals(args[i])) {
+        getConf().setBoolean(BatchTable.BATCH_INDEX, true);
       }
     }
     
     try {
-      generate(table, topN, curTime, filter);
+      String batchId = generate(table, topN, curTime, filter);
+      if (batchId != null) {
+        System.out.println(batchId);
+      }
       return 0;
     } catch (Exception e) {
       LOG.fatal("GeneratorHbase: " + StringUtils.stringifyException(e));
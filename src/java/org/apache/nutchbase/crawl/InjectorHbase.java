@@ -3,27 +3,35 @@ package org.apache.nutchbase.crawl;
 import java.io.IOException;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Random;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Scanner;
 import org.apache.hadoop.hbase.io.BatchUpdate;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.io.RowResult;
+import org.apache.hadoop.hbase.mapred.TableOutputFormat;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.io.BooleanWritable;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.lib.NullOutputFormat;
+import org.apache.hadoop.mapred.lib.TotalOrderPartitioner;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
@@ -32,11 +40,14 @@ import org.apache.nutch.net.URLNormalizers;
 import org.apache.nutch.util.LogUtil;
 import org.apache.nutch.util.NutchConfiguration;
 import org.apache.nutch.util.NutchJob;
+import org.apache.nutchbase.util.hbase.DueTable;
 import org.apache.nutchbase.util.hbase.ImmutableRowPart;
 import org.apache.nutchbase.util.hbase.RowPart;
+import org.apache.nutchbase.util.hbase.SeedKeySampler;
 import org.apache.nutchbase.util.hbase.TableColumns;
 import org.apache.nutchbase.util.hbase.TableMapReduce;
 import org.apache.nutchbase.util.hbase.TableUtil;
+import org.apache.nutchbase.util.hbase.WebTableCreator;
 
 public class InjectorHbase
 extends TableMapReduce<ImmutableBytesWritable, BooleanWritable>
@@ -61,6 +72,8 @@ implements Tool {
   private float scoreInjected;
   private long curTime;
   private ImmutableRowPart row = new ImmutableRowPart();
+  private JobConf job;
+  private DueTable dueTable;
 
   public static class UrlMapperHbase 
   implements Mapper<LongWritable, Text, Text, Text> {
@@ -111,6 +124,95 @@ implements Tool {
 
   }
 
+  /**
+   * Bulk inject mapper: outputs the reversed urls of the seeds, which are
+   * then sorted and range partitioned.
+   */
+  public static class BulkUrlMapper
+  implements Mapper<LongWritable, Text, Text, NullWritable> {
+    private URLNormalizers urlNormalizers;
+    private URLFilters filters;
+
+    public void map(LongWritable key, Text value,
+        OutputCollector<Text, NullWritable> output, Reporter reporter)
+    throws IOException {
+      String url = value.toString().trim();
+      if (url.length() == 0 || url.startsWith("#")) {
+        return;
+      }
+      try {
+        url = urlNormalizers.normalize(url, URLNormalizers.SCOPE_INJECT);
+        url = filters.filter(url);
+        if (url == null) {
+          return;
+        }
+        output.collect(new Text(TableUtil.reverseUrl(url)),
+                       NullWritable.get());
+      } catch (Exception e) {
+        LOG.warn("Skipping " + url + ":" + e);
+      }
+    }
+
+    public void configure(JobConf job) {
+      urlNormalizers = new URLNormalizers(job, URLNormalizers.SCOPE_INJECT);
+      filters = new URLFilters(job);
+    }
+
+    public void close() throws IOException { }
+  }
+
+  /**
+   * Bulk inject reducer: writes a new row for each url. Each reducer gets
+   * a sorted range of keys, so its writes go to few regions at a time.
+   */
+  public static class BulkInjectReducer
+  implements Reducer<Text, NullWritable, ImmutableBytesWritable, BatchUpdate> {
+    private int interval;
+    private float scoreInjected;
+    private long curTime;
+    private JobConf job;
+    private DueTable dueTable;
+
+    public void reduce(Text key, Iterator<NullWritable> values,
+        OutputCollector<ImmutableBytesWritable, BatchUpdate> output,
+        Reporter reporter) throws IOException {
+      byte[] rowId = Bytes.toBytes(key.toString());
+      RowPart row = new RowPart(rowId);
+      initRow(row, curTime, interval, scoreInjected);
+      if (DueTable.isEnabled(job)) {
+        if (dueTable == null) {
+          dueTable = new DueTable(job, job.get(TableOutputFormat.OUTPUT_TABLE));
+        }
+        dueTable.update(rowId, -1L, curTime);
+      }
+      output.collect(new ImmutableBytesWritable(rowId), row.makeBatchUpdate());
+    }
+
+    public void configure(JobConf job) {
+      this.job = job;
+      interval = job.getInt("db.fetch.interval.default", 2592000);
+      scoreInjected = job.getFloat("db.score.injected", 1.0f);
+      curTime = job.getLong("injector.current.time", System.currentTimeMillis());
+    }
+
+    public void close() throws IOException {
+      if (dueTable != null) {
+        dueTable.flush();
+      }
+    }
+  }
+
+  private static void initRow(RowPart row, long curTime, int interval,
+                              float scoreInjected) {
+    row.setStatus(CrawlDatumHbase.STATUS_UNFETCHED);
+    row.setFetchTime(curTime);
+    row.setFetchInterval(interval);
+    row.setScore(scoreInjected);
+    row.setPagerank(0.0f);
+    row.setVotes(0.0f);
+    row.setRetriesSinceFetch(0);
+  }
+
   @Override
   public void map(ImmutableBytesWritable key, RowResult rowResult,
       OutputCollector<ImmutableBytesWritable, BooleanWritable> output,
@@ -126,6 +228,7 @@ implements Tool {
   }
 
   public void configure(JobConf job) {
+    this.job = job;
     interval = job.getInt("db.fetch.interval.default", 2592000);
     scoreInjected = job.getFloat("db.score.injected", 1.0f);
     curTime = job.getLong("injector.current.time", System.currentTimeMillis());
@@ -143,18 +246,25 @@ implements Tool {
     row.deleteMeta(INJECT_KEY_STR);
 
     if (!isOld) {
-      row.setStatus(CrawlDatumHbase.STATUS_UNFETCHED);
-      row.setFetchTime(curTime);
-      row.setFetchInterval(interval);
-      row.setScore(scoreInjected);
-      row.setPagerank(0.0f);
-      row.setVotes(0.0f);
-      row.setRetriesSinceFetch(0);
+      initRow(row, curTime, interval, scoreInjected);
+      if (DueTable.isEnabled(job)) {
+        if (dueTable == null) {
+          dueTable = new DueTable(job, job.get(TableOutputFormat.OUTPUT_TABLE));
+        }
+        dueTable.update(row.getRowId(), -1L, curTime);
+      }
     }
 
     output.collect(key, row.makeBatchUpdate());
   }
 
+  @Override
+  public void close() throws IOException {
+    if (dueTable != null) {
+      dueTable.flush();
+    }
+  }
+
   public void inject(String table, Path urlDir) throws IOException {
 
     LOG.info("InjectorHbase: starting");
@@ -173,6 +283,10 @@ implements Tool {
     job = new NutchJob(getConf());
 
     job.setJobName("inject-hbase-p2 " + urlDir);
+    if (DueTable.isEnabled(job)) {
+      DueTable.createTable(new HBaseConfiguration(job),
+                           DueTable.getTableName(job, table));
+    }
     TableMapReduce.initJob(table, 
         TableUtil.getColumns(COLUMNS),
         InjectorHbase.class,
@@ -184,12 +298,101 @@ implements Tool {
     LOG.info("InjectorHbase: done");
   }
 
+  /** Returns true if some row of the web table has a status. */
+  private static boolean hasRows(HTable table) throws IOException {
+    Scanner scanner = table.getScanner(new byte[][] { TableColumns.STATUS });
+    try {
+      return scanner.next() != null;
+    } finally {
+      scanner.close();
+    }
+  }
+
+  /**
+   * Injects seeds in a single sorted job, for bootstrapping a crawl with a
+   * large seed list. Rows are written without checking whether they exist
+   * already, so this refuses to run on a web table that has rows. Reducers
+   * get key ranges that follow the regions of the table if it has been
+   * split (see {@link WebTableCreator}), or ranges sampled from the seeds
+   * otherwise.
+   */
+  public void bulkInject(String table, Path urlDir) throws IOException {
+    LOG.info("InjectorHbase: starting bulk inject");
+    LOG.info("InjectorHbase: urlDir: " + urlDir);
+
+    JobConf job = new NutchJob(getConf());
+    job.setJobName("inject-hbase-bulk " + urlDir);
+    job.setLong("injector.current.time", System.currentTimeMillis());
+    HBaseConfiguration hbaseConf = new HBaseConfiguration(job);
+    HTable htable = new HTable(hbaseConf, table);
+    if (hasRows(htable)) {
+      throw new IOException("Table " + table + " is not empty, bulk inject"
+          + " would reset its existing rows; inject without -bulk instead");
+    }
+    if (DueTable.isEnabled(job)) {
+      DueTable.createTable(hbaseConf, DueTable.getTableName(job, table));
+    }
+
+    byte[][] splitKeys;
+    byte[][] startKeys = htable.getStartKeys();
+    if (startKeys.length > 1) {
+      // the first region starts with the empty key
+      splitKeys = new byte[startKeys.length - 1][];
+      System.arraycopy(startKeys, 1, splitKeys, 0, splitKeys.length);
+    } else {
+      splitKeys = SeedKeySampler.getSplitKeys(job, urlDir,
+                                              job.getNumReduceTasks());
+    }
+    LOG.info("InjectorHbase: " + (splitKeys.length + 1) + " key ranges");
+
+    Path partitionFile = new Path(job.get("hadoop.tmp.dir"),
+        "inject-partitions-" + Integer.toString(new Random().nextInt(
+        Integer.MAX_VALUE)));
+    FileSystem fs = partitionFile.getFileSystem(job);
+    SequenceFile.Writer writer = SequenceFile.createWriter(fs, job,
+        partitionFile, Text.class, NullWritable.class);
+    try {
+      for (byte[] splitKey : splitKeys) {
+        writer.append(new Text(Bytes.toString(splitKey)), NullWritable.get());
+      }
+    } finally {
+      writer.close();
+    }
+
+    FileInputFormat.addInputPath(job, urlDir);
+    job.setMapperClass(BulkUrlMapper.class);
+    job.setMapOutputKeyClass(Text.class);
+    job.setMapOutputValueClass(NullWritable.class);
+    job.setNumReduceTasks(splitKeys.length + 1);
+    job.setPartitionerClass(TotalOrderPartitioner.class);
+    TotalOrderPartitioner.setPartitionFile(job, partitionFile);
+    job.setReducerClass(BulkInjectReducer.class);
+    job.setOutputFormat(TableOutputFormat.class);
+    job.set(TableOutputFormat.OUTPUT_TABLE, table);
+    job.setOutputKeyClass(ImmutableBytesWritable.class);
+    job.setOutputValueClass(BatchUpdate.class);
+
+    try {
+      JobClient.runJob(job);
+    } finally {
+      fs.delete(partitionFile, false);
+    }
+
+    LOG.info("InjectorHbase: done");
+  }
+
   public int run(String[] args) throws Exception {
     if (args.length < 2) {
-      System.err.println("Usage: InjectorHbase <webtable> <url_dir>");
+      System.err.println("Usage: InjectorHbase <webtable> <url_dir> [-bulk]");
+      System.err.println("\t-bulk\tinject in a single sorted job, into an"
+                         + " empty webtable only");
       return -1;
     }
     try {
+      if (args.length > 2 && "-bulk".equals(args[2])) {
+        bulkInject(args[0], new Path(args[1]));
+        return 0;
+      }
       inject(args[0], new Path(args[1]));
       return 0;
     } catch (Exception e) {
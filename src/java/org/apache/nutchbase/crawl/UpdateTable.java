@@ -10,10 +10,13 @@ import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.io.BatchUpdate;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.io.RowResult;
+import org.apache.hadoop.hbase.mapred.TableOutputFormat;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
@@ -31,8 +34,12 @@ import org.apache.nutch.util.NutchConfiguration;
 import org.apache.nutch.util.NutchJob;
 import org.apache.nutchbase.fetcher.FetcherHbase;
 import org.apache.nutchbase.parse.ParseTable;
+import org.apache.nutchbase.util.hbase.BatchTable;
+import org.apache.nutchbase.util.hbase.BatchTableInputFormat;
+import org.apache.nutchbase.util.hbase.DueTable;
 import org.apache.nutchbase.util.hbase.ImmutableRowPart;
 import org.apache.nutchbase.util.hbase.RowPart;
+import org.apache.nutchbase.util.hbase.RowReader;
 import org.apache.nutchbase.util.hbase.TableColumns;
 import org.apache.nutchbase.util.hbase.TableMapReduce;
 import org.apache.nutchbase.util.hbase.TableUtil;
@@ -47,6 +54,9 @@ implements Tool {
 
   private static final String ALL = "db.update.all";
 
+  static final String DELTA_BATCH_SIZE = "db.update.delta.batch.size";
+  static final String DELTA_THREADS = "db.update.delta.threads";
+
   static {
     COLUMNS.add(TableColumns.OUTLINKS_STR);
     COLUMNS.add(TableColumns.INLINKS_STR);
@@ -61,6 +71,148 @@ implements Tool {
     COLUMNS.add(TableColumns.PREV_SIGNATURE_STR);
   }
 
+  /**
+   * Returns the columns that have to be read to update a row.
+   */
+  public static Set<String> getColumnSet() {
+    return COLUMNS;
+  }
+
+  /**
+   * A lighter alternative to the default update. Mappers do not shuffle
+   * the rows marked for update, only their keys and one compact
+   * (target, source, anchor) record per outlink. Reducers read the rows
+   * they update from the table in batches, using parallel point reads, and
+   * add the new inlinks to <code>inlinks:</code> instead of rewriting the
+   * whole family. Rows that already exist are never re-initialized.
+   * Inlinks from pages that no longer link to a row are not removed in
+   * this mode.
+   */
+  public static class DeltaUpdateMapReduce
+  extends TableMapReduce<ImmutableBytesWritable, NutchWritable> {
+
+    private static final NutchWritable MARKED =
+      new NutchWritable(NullWritable.get());
+
+    /** Columns of a row read for its update. Inlinks are not read, so
+     * that new ones are added to the stored ones. */
+    static final Set<String> ROW_COLUMNS =
+      new HashSet<String>(COLUMNS);
+
+    static {
+      ROW_COLUMNS.remove(TableColumns.OUTLINKS_STR);
+      ROW_COLUMNS.remove(TableColumns.INLINKS_STR);
+    }
+
+    /** A row waiting for its batch to be read. */
+    private static class PendingRow {
+      final ImmutableBytesWritable key;
+      final List<Inlink> inlinks = new ArrayList<Inlink>();
+
+      PendingRow(ImmutableBytesWritable key) {
+        this.key = key;
+      }
+    }
+
+    private UpdateTable updater;
+    private boolean updateAll;
+    private int batchSize;
+    private RowReader reader;
+    private final List<PendingRow> pending = new ArrayList<PendingRow>();
+    private OutputCollector<ImmutableBytesWritable, BatchUpdate> output;
+
+    @Override
+    public void configure(final JobConf job) {
+      updater = new UpdateTable();
+      updater.configure(job);
+      updateAll = job.getBoolean(ALL, false);
+      batchSize = job.getInt(DELTA_BATCH_SIZE, 500);
+      reader = new RowReader(job, job.get(TableOutputFormat.OUTPUT_TABLE),
+                             ROW_COLUMNS, job.getInt(DELTA_THREADS, 10));
+    }
+
+    @Override
+    public void map(ImmutableBytesWritable key, RowResult rowResult,
+        OutputCollector<ImmutableBytesWritable, NutchWritable> output,
+        Reporter reporter)
+    throws IOException {
+      ImmutableRowPart row = new ImmutableRowPart(rowResult);
+
+      if (!updateAll && !row.hasMeta(ParseTable.TMP_UPDATE_MARK)) {
+        return;
+      }
+
+      output.collect(key, MARKED);
+
+      String url = TableUtil.unreverseUrl(Bytes.toString(key.get()));
+      for (Outlink outlink : row.getOutlinks()) {
+        try {
+          String reversedOut = TableUtil.reverseUrl(outlink.getToUrl());
+          ImmutableBytesWritable outKey =
+            new ImmutableBytesWritable(reversedOut.getBytes());
+          output.collect(outKey,
+              new NutchWritable(new Inlink(url, outlink.getAnchor())));
+        } catch (Exception e) {
+          LOG.info("Exception thrown by url: " + outlink.getToUrl(), e);
+        }
+      }
+    }
+
+    @Override
+    public void reduce(ImmutableBytesWritable key,
+        Iterator<NutchWritable> values,
+        OutputCollector<ImmutableBytesWritable, BatchUpdate> output,
+        Reporter reporter) throws IOException {
+      this.output = output;
+
+      PendingRow pendingRow = new PendingRow(new ImmutableBytesWritable(key));
+      while (values.hasNext()) {
+        Writable val = values.next().get();
+        if (val instanceof Inlink) {
+          pendingRow.inlinks.add((Inlink) val);
+        }
+      }
+      pending.add(pendingRow);
+
+      if (pending.size() >= batchSize) {
+        flush();
+        reporter.progress();
+      }
+    }
+
+    /** Reads the pending rows in parallel and writes their updates. */
+    private void flush() throws IOException {
+      List<ImmutableBytesWritable> keys =
+        new ArrayList<ImmutableBytesWritable>(pending.size());
+      for (PendingRow pendingRow : pending) {
+        keys.add(pendingRow.key);
+      }
+      RowResult[] rows = reader.getRows(keys);
+
+      for (int i = 0; i < pending.size(); i++) {
+        PendingRow pendingRow = pending.get(i);
+        RowPart row = rows[i] == null ? null : new RowPart(rows[i]);
+        row = updater.updateRow(pendingRow.key, row, pendingRow.inlinks);
+        if (row != null) {
+          output.collect(pendingRow.key, row.makeBatchUpdate());
+        }
+      }
+      pending.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        if (!pending.isEmpty()) {
+          flush();
+        }
+      } finally {
+        reader.close();
+        updater.close();
+      }
+    }
+  }
+
   private int retryMax;
   private boolean additionsAllowed;
   private int maxInterval;
@@ -68,15 +220,27 @@ implements Tool {
   private FetchScheduleHbase schedule;
   private List<Inlink> inlinks = new ArrayList<Inlink>();
   private boolean updateAll;
+  private JobConf job;
+  private boolean dueIndex;
+  private DueTable dueTable;
 
   @Override
   public void configure(JobConf job) {
+    this.job = job;
     retryMax = job.getInt("db.fetch.retry.max", 3);
     additionsAllowed = job.getBoolean(CrawlDb.CRAWLDB_ADDITIONS_ALLOWED, true);
     scoreInjected = job.getFloat("db.score.injected", 1.0f);
     maxInterval = job.getInt("db.fetch.interval.max", 0 );
     updateAll = job.getBoolean("db.update.all", false);
     schedule = FetchScheduleFactoryHbase.getFetchSchedule(job);
+    dueIndex = DueTable.isEnabled(job);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (dueTable != null) {
+      dueTable.flush();
+    }
   }
 
   @Override
@@ -133,6 +297,25 @@ implements Tool {
         inlinks.add(anchor);
       }
     }
+    RowPart row = updateRow(key,
+        rowResult == null ? null : new RowPart(rowResult), inlinks);
+    if (row != null) {
+      output.collect(key, row.makeBatchUpdate());
+    }
+  }
+
+  /**
+   * Updates the fetch schedule, status and inlinks of a single row and
+   * clears the temporary crawl markers.
+   *
+   * @param key Row key (reversed url)
+   * @param row Current row, or <code>null</code> if this is a newly
+   * discovered url
+   * @param inlinks Inlinks collected for this url in this round
+   * @return Updated row, or <code>null</code> if nothing should be written
+   */
+  public RowPart updateRow(ImmutableBytesWritable key, RowPart row,
+      List<Inlink> inlinks) throws IOException {
     String url;
     try {
       url = TableUtil.unreverseUrl(Bytes.toString(key.get()));
@@ -140,20 +323,22 @@ implements Tool {
       // this can happen because a newly discovered malformed link
       // may slip by url filters
       // TODO: Find a better solution
-      return;
+      return null;
     }
 
-    RowPart row;
-    if (rowResult == null) { // new row
+    // the fetch time the row is currently indexed with in the due table
+    long indexedFetchTime = -1L;
+    boolean reindex = true;
+
+    if (row == null) { // new row
       if (!additionsAllowed) {
-        return;
+        return null;
       }
       row = new RowPart(key.get());
       schedule.initializeSchedule(url, row);
       row.setStatus(CrawlDatumHbase.STATUS_UNFETCHED);
       row.setScore(scoreInjected);
     } else {
-      row = new RowPart(rowResult);
       if (row.hasMeta(FetcherHbase.REDIRECT_DISCOVERED) && !row.hasColumn(TableColumns.STATUS)) {
         // this row is marked during fetch as the destination of a redirect
         // but does not contain anything else, so we initialize it.
@@ -161,6 +346,8 @@ implements Tool {
         row.setStatus(CrawlDatumHbase.STATUS_UNFETCHED);
         row.setScore(scoreInjected);
       } else if (row.hasMeta(ParseTable.TMP_UPDATE_MARK)) { // marked for update
+        // fetcher moved the scheduled fetch time to prevFetch:
+        indexedFetchTime = row.getPrevFetchTime();
         byte status = row.getStatus();
         switch (status) {
         case CrawlDatumHbase.STATUS_FETCHED:         // succesful fetch
@@ -168,11 +355,16 @@ implements Tool {
         case CrawlDatumHbase.STATUS_REDIR_PERM:
         case CrawlDatumHbase.STATUS_NOTMODIFIED:     // successful fetch, notmodified
           int modified = FetchSchedule.STATUS_UNKNOWN;
+          byte[] prevSig = null;
+          byte[] signature = null;
           if (status == CrawlDatumHbase.STATUS_NOTMODIFIED) {
+            // the server said so, and the page was not parsed again: the
+            // signatures are the ones of earlier fetches
             modified = FetchSchedule.STATUS_NOTMODIFIED;
+          } else {
+            prevSig = row.getPrevSignature();
+            signature = row.getSignature();
           }
-          byte[] prevSig = row.getPrevSignature();
-          byte[] signature = row.getSignature();
           if (prevSig != null && signature != null) {
             if (SignatureComparator._compare(prevSig, signature) != 0) {
               modified = FetchSchedule.STATUS_MODIFIED;
@@ -201,7 +393,18 @@ implements Tool {
           schedule.setPageGoneSchedule(url, row, 0L, 0L, row.getFetchTime());
           break;
         }
+      } else {
+        // fetch time is unchanged, but an update of the whole table
+        // (re)builds the index
+        reindex = updateAll;
+      }
+    }
+
+    if (dueIndex && reindex && row.hasColumn(TableColumns.FETCH_TIME)) {
+      if (dueTable == null) {
+        dueTable = new DueTable(job, job.get(TableOutputFormat.OUTPUT_TABLE));
       }
+      dueTable.update(row.getRowId(), indexedFetchTime, row.getFetchTime());
     }
 
     row.deleteAllInlinks();
@@ -215,10 +418,17 @@ implements Tool {
     row.deleteMeta(FetcherHbase.TMP_PARSE_MARK);
     row.deleteMeta(ParseTable.TMP_UPDATE_MARK);
 
-    output.collect(key, row.makeBatchUpdate());
+    return row;
   }
 
-  private void updateTable(String table, boolean updateAll) throws IOException {
+  /**
+   * Updates the table with the results of the last round.
+   * @param batchId if not null (and <code>updateAll</code> is false), only
+   * the rows of this batch are read through the batch index, which is
+   * deleted afterwards
+   */
+  private void updateTable(String table, boolean updateAll, String batchId,
+      boolean delta) throws IOException {
     LOG.info("UpdateTable: starting");
     LOG.info("UpdateTable: table: " + table);
     if (updateAll && LOG.isWarnEnabled())
@@ -226,29 +436,55 @@ implements Tool {
     JobConf job = new NutchJob(getConf());
     job.setBoolean(ALL, updateAll);
     job.setJobName("update-table " + table);
-    TableMapReduce.initJob(table, TableUtil.getColumns(COLUMNS), 
-        UpdateTable.class, ImmutableBytesWritable.class, 
-        NutchWritable.class, job);
+    if (DueTable.isEnabled(job)) {
+      DueTable.createTable(new HBaseConfiguration(job),
+                           DueTable.getTableName(job, table));
+    }
+    if (delta) {
+      Set<String> columns = new HashSet<String>(COLUMNS);
+      columns.remove(TableColumns.INLINKS_STR);
+      TableMapReduce.initJob(table, TableUtil.getColumns(columns), 
+          DeltaUpdateMapReduce.class, ImmutableBytesWritable.class, 
+          NutchWritable.class, job);
+    } else {
+      TableMapReduce.initJob(table, TableUtil.getColumns(COLUMNS), 
+          UpdateTable.class, ImmutableBytesWritable.class, 
+          NutchWritable.class, job);
+    }
+    if (batchId != null && !updateAll) {
+      BatchTableInputFormat.setBatch(job, batchId);
+    }
 
     JobClient.runJob(job);
 
+    if (batchId != null) {
+      BatchTable.deleteBatch(new HBaseConfiguration(job),
+          BatchTable.getTableName(job, table), batchId);
+    }
+
     LOG.info("UpdateTable: done");
   }
 
   public int run(String[] args) throws Exception {
-    String usage = "Usage: UpdateTable <webtable> [-all]";
+    String usage = "Usage: UpdateTable <webtable> [-all] [-batch id] [-delta]";
 
     if (args.length < 1) {
       System.err.println(usage);
       System.exit(-1);
     }
     boolean updateAll = false;
+    String batchId = null;
+    boolean delta = false;
 
     for (int i = 1; i < args.length; i++) {
       if ("-all".equals(args[i]))
         updateAll = true;
+      else if ("-batch".equals(args[i]))
+        batchId = args[++i];
+      else if ("-delta".equals(args[i]))
+        delta = true;
     } 
-    updateTable(args[0], updateAll);
+    updateTable(args[0], updateAll, batchId, delta);
     return 0;
   }
 
@@ -0,0 +1,214 @@
+package org.apache.nutchbase.fetcher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * Hands records over to a writer thread, so that the threads that produce
+ * them do not serialize them, nor contend for the lock of the underlying
+ * collector. The writer takes the records from a bounded queue in batches.
+ * When the queue is full, producers block until the writer catches up;
+ * the time they spend blocked shows how much output holds them back.
+ *
+ * <p>A single writer is used, as the collector of a map task serializes
+ * records under a single lock anyway. Errors of the writer, including
+ * runtime exceptions and errors of the underlying collector, stop it and
+ * are thrown, as IOExceptions, by the next call to
+ * {@link #collect(Object, Object)}, including calls waiting for room, and
+ * by {@link #close()}. Records must not be changed once collected.
+ */
+public class AsyncOutputCollector<K, V> implements OutputCollector<K, V> {
+
+  public static final Log LOG = LogFactory.getLog(AsyncOutputCollector.class);
+
+  /** Maximum number of records waiting to be written. */
+  public static final String QUEUE_SIZE = "fetcher.output.queue.size";
+
+  /** Maximum number of records written at once. */
+  public static final String BATCH_SIZE = "fetcher.output.batch.size";
+
+  private static class Record<K, V> {
+    final K key;
+    final V value;
+
+    Record(K key, V value) {
+      this.key = key;
+      this.value = value;
+    }
+  }
+
+  private final OutputCollector<K, V> out;
+  private final BlockingQueue<Record<K, V>> queue;
+  private final int capacity;
+  private final int batchSize;
+  private final Thread writer;
+
+  private volatile boolean closed;
+  private volatile IOException error;
+
+  private final AtomicLong collected = new AtomicLong();
+  private final AtomicLong blocked = new AtomicLong();
+  private final AtomicLong blockedTime = new AtomicLong();
+  private volatile long written;
+  private volatile long batches;
+  private volatile long writeTime;
+  private volatile int maxDepth;
+
+  public AsyncOutputCollector(OutputCollector<K, V> out, Configuration conf) {
+    this.out = out;
+    capacity = Math.max(conf.getInt(QUEUE_SIZE, 200), 1);
+    batchSize = Math.max(conf.getInt(BATCH_SIZE, 50), 1);
+    queue = new ArrayBlockingQueue<Record<K, V>>(capacity);
+    writer = new Thread() {
+      @Override
+      public void run() {
+        write();
+      }
+    };
+    writer.setDaemon(true);
+    writer.setName("FetcherOutput");
+    writer.start();
+  }
+
+  /** Queues a record, waiting while the queue is full. */
+  public void collect(K key, V value) throws IOException {
+    checkError();
+    if (closed) {
+      throw new IOException("Output is closed");
+    }
+    final Record<K, V> record = new Record<K, V>(key, value);
+    if (!queue.offer(record)) {
+      blocked.incrementAndGet();
+      final long start = System.nanoTime();
+      try {
+        while (!queue.offer(record, 100, TimeUnit.MILLISECONDS)) {
+          checkError();
+        }
+      } catch (final InterruptedException e) {
+        throw new IOException("Interrupted while waiting for output");
+      } finally {
+        blockedTime.addAndGet(System.nanoTime() - start);
+      }
+    }
+    collected.incrementAndGet();
+    final int depth = queue.size();
+    if (depth > maxDepth) {
+      maxDepth = depth;          // racy, good enough for a statistic
+    }
+  }
+
+  private void checkError() throws IOException {
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  private void write() {
+    final List<Record<K, V>> batch = new ArrayList<Record<K, V>>(batchSize);
+    try {
+      while (true) {
+        final Record<K, V> first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          if (closed && queue.isEmpty()) {
+            return;
+          }
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch, batchSize - 1);
+        final long start = System.nanoTime();
+        for (final Record<K, V> record : batch) {
+          out.collect(record.key, record.value);
+        }
+        writeTime += System.nanoTime() - start;
+        written += batch.size();
+        batches++;
+        batch.clear();
+      }
+    } catch (final IOException e) {
+      LOG.fatal("Output failed: " + e);
+      error = e;
+    } catch (final InterruptedException e) {
+      error = new IOException("Output interrupted");
+    } catch (final Throwable t) {
+      LOG.fatal("Output failed: " + StringUtils.stringifyException(t));
+      final IOException e = new IOException("Output failed: " + t);
+      e.initCause(t);
+      error = e;
+    } finally {
+      // unblock the producers, the records are lost anyway
+      queue.clear();
+    }
+  }
+
+  /** Writes the queued records and stops the writer. */
+  public void close() throws IOException {
+    closed = true;
+    try {
+      writer.join();
+    } catch (final InterruptedException e) {
+      throw new IOException("Interrupted while closing output");
+    }
+    checkError();
+  }
+
+  /** Returns the number of records waiting to be written. */
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  public int getMaxQueueDepth() {
+    return maxDepth;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public long getCollectedCount() {
+    return collected.get();
+  }
+
+  public long getWrittenCount() {
+    return written;
+  }
+
+  public long getBatchCount() {
+    return batches;
+  }
+
+  /** Returns the number of times a producer found the queue full. */
+  public long getBlockedCount() {
+    return blocked.get();
+  }
+
+  /** Returns the total time producers waited for room, in milliseconds. */
+  public long getBlockedTime() {
+    return blockedTime.get() / 1000000L;
+  }
+
+  /** Returns the total time spent writing records to the underlying
+   * collector, in milliseconds. */
+  public long getWriteTime() {
+    return writeTime / 1000000L;
+  }
+
+  @Override
+  public String toString() {
+    return "output: queue=" + getQueueDepth() + "/" + capacity
+      + ", maxQueue=" + maxDepth + ", written=" + written
+      + ", batches=" + batches + ", writeTime=" + getWriteTime()
+      + "ms, blocked=" + getBlockedCount() + " (" + getBlockedTime() + "ms)";
+  }
+}
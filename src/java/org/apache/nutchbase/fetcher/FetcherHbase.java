@@ -2,9 +2,11 @@ package org.apache.nutchbase.fetcher;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.UnknownHostException;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -12,13 +14,19 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.io.BatchUpdate;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.io.RowResult;
@@ -50,8 +58,12 @@ import org.apache.nutch.util.NutchJob;
 import org.apache.nutch.util.URLUtil;
 import org.apache.nutchbase.crawl.CrawlDatumHbase;
 import org.apache.nutchbase.crawl.GeneratorHbase;
+import org.apache.nutchbase.parse.ParseTable;
 import org.apache.nutchbase.protocol.ProtocolFactoryHbase;
 import org.apache.nutchbase.protocol.ProtocolHbase;
+import org.apache.nutchbase.util.hbase.BatchTableInputFormat;
+import org.apache.nutchbase.util.hbase.ColumnCompression;
+import org.apache.nutchbase.util.hbase.HostTable;
 import org.apache.nutchbase.util.hbase.RowPart;
 import org.apache.nutchbase.util.hbase.TableColumns;
 import org.apache.nutchbase.util.hbase.TableUtil;
@@ -79,10 +91,11 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
   }
 
   private OutputCollector<ImmutableBytesWritable, RowPart> output;
+  private AsyncOutputCollector<ImmutableBytesWritable, RowPart> asyncOutput;
+  private ParserPool parserPool;
   private Reporter reporter;
 
   private final AtomicInteger activeThreads = new AtomicInteger(0);
-  private final AtomicInteger spinWaiting = new AtomicInteger(0);
 
   private final long start = System.currentTimeMillis(); // start time of fetcher run
   private final AtomicLong lastRequestStart = new AtomicLong(start);
@@ -93,6 +106,8 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
 
   private FetchItemQueues fetchQueues;
   private QueueFeeder feeder;
+  private HostTable hostTable;
+  private ColumnCompression compression;
 
   /**
    * This class described the item to be fetched.
@@ -115,10 +130,10 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
 
     /** Create an item. Queue id will be created based on <code>byIP</code>
      * argument, either as a protocol + hostname pair, or protocol + IP
-     * address pair.
+     * address pair (resolved with <code>resolver</code>).
      */
     public static FetchItem create(ImmutableBytesWritable key, RowPart row,
-        String url, boolean byIP) {
+        String url, boolean byIP, HostResolver resolver) {
       String queueID;
       URL u = null;
       try {
@@ -131,7 +146,7 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
       String host;
       if (byIP) {
         try {
-          final InetAddress addr = InetAddress.getByName(u.getHost());
+          final InetAddress addr = resolver.resolve(u.getHost());
           host = addr.getHostAddress();
         } catch (final UnknownHostException e) {
           // unable to resolve it, so don't fall back to host name
@@ -155,22 +170,31 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
   /**
    * This class handles FetchItems which come from the same host ID (be it
    * a proto/hostname or proto/IP pair). It also keeps track of requests in
-   * progress and elapsed time between requests.
+   * progress and elapsed time between requests. Its state is guarded by the
+   * lock of the {@link FetchItemQueues} it belongs to.
    */
   private static class FetchItemQueue {
-    List<FetchItem> queue = Collections.synchronizedList(new LinkedList<FetchItem>());
-    Set<FetchItem>  inProgress = Collections.synchronizedSet(new HashSet<FetchItem>());
-    AtomicLong nextFetchTime = new AtomicLong();
+    List<FetchItem> queue = new LinkedList<FetchItem>();
+    Set<FetchItem>  inProgress = new HashSet<FetchItem>();
+    long nextFetchTime;
     long crawlDelay;
     long minCrawlDelay;
     int maxThreads;
     Configuration conf;
-
-    public FetchItemQueue(Configuration conf, int maxThreads, long crawlDelay, long minCrawlDelay) {
+    /** Unique id, breaks ties between queues with the same fetch time. */
+    final long seq;
+    /** True if this queue is in the schedule of its FetchItemQueues. */
+    boolean scheduled;
+    /** Adaptive settings of the host, null if they are fixed. */
+    PolitenessController.HostState politeness;
+
+    public FetchItemQueue(Configuration conf, int maxThreads, long crawlDelay,
+        long minCrawlDelay, long seq) {
       this.conf = conf;
       this.maxThreads = maxThreads;
       this.crawlDelay = crawlDelay;
       this.minCrawlDelay = minCrawlDelay;
+      this.seq = seq;
       // ready to start
       setEndTime(System.currentTimeMillis() - crawlDelay);
     }
@@ -183,6 +207,12 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
       return inProgress.size();
     }
 
+    /** Returns true if an item of this queue may be fetched once its
+     * next fetch time has come. */
+    public boolean isEligible() {
+      return queue.size() > 0 && inProgress.size() < maxThreads;
+    }
+
     public void finishFetchItem(FetchItem it, boolean asap) {
       if (it != null) {
         inProgress.remove(it);
@@ -190,6 +220,27 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
       }
     }
 
+    /** Adapts <code>maxThreads</code> and <code>crawlDelay</code> to the
+     * outcome of a fetch. */
+    public void recordFetch(PolitenessController controller, boolean error,
+        long time) {
+      if (politeness != null && controller.record(politeness, error, time)) {
+        maxThreads = politeness.getThreads();
+        crawlDelay = politeness.getDelay();
+      }
+    }
+
+    public void setCrawlDelay(PolitenessController controller,
+        long crawlDelay) {
+      if (politeness != null) {
+        controller.setCrawlDelay(politeness, crawlDelay);
+        maxThreads = politeness.getThreads();
+        this.crawlDelay = politeness.getDelay();
+      } else {
+        this.crawlDelay = crawlDelay;
+      }
+    }
+
     public void addFetchItem(FetchItem it) {
       if (it == null) return;
       queue.add(it);
@@ -200,27 +251,23 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
       inProgress.add(it);
     }
 
+    /** Moves the first item of the queue to the items in progress. Only
+     * call this if the queue is eligible and its fetch time has come. */
     public FetchItem getFetchItem() {
-      if (inProgress.size() >= maxThreads) return null;
-      final long now = System.currentTimeMillis();
-      if (nextFetchTime.get() > now) return null;
-      FetchItem it = null;
-      if (queue.size() == 0) return null;
-      try {
-        it = queue.remove(0);
-        inProgress.add(it);
-      } catch (final Exception e) {
-        LOG.error("Cannot remove FetchItem from queue or cannot add it to inProgress queue", e);
-      }
+      final FetchItem it = queue.remove(0);
+      inProgress.add(it);
       return it;
     }
 
-    public synchronized void dump() {
+    public void dump() {
       LOG.info("  maxThreads    = " + maxThreads);
       LOG.info("  inProgress    = " + inProgress.size());
       LOG.info("  crawlDelay    = " + crawlDelay);
       LOG.info("  minCrawlDelay = " + minCrawlDelay);
-      LOG.info("  nextFetchTime = " + nextFetchTime.get());
+      LOG.info("  nextFetchTime = " + nextFetchTime);
+      if (politeness != null) {
+        LOG.info("  politeness    = " + politeness);
+      }
       LOG.info("  now           = " + System.currentTimeMillis());
       for (int i = 0; i < queue.size(); i++) {
         final FetchItem it = queue.get(i);
@@ -234,33 +281,73 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
 
     private void setEndTime(long endTime, boolean asap) {
       if (!asap)
-        nextFetchTime.set(endTime + (maxThreads > 1 ? minCrawlDelay : crawlDelay));
+        nextFetchTime = endTime + (maxThreads > 1 ? minCrawlDelay : crawlDelay);
       else
-        nextFetchTime.set(endTime);
+        nextFetchTime = endTime;
     }
   }
 
+  /** Orders queues by their next fetch time. */
+  private static final Comparator<FetchItemQueue> BY_FETCH_TIME =
+    new Comparator<FetchItemQueue>() {
+    public int compare(FetchItemQueue q1, FetchItemQueue q2) {
+      if (q1.nextFetchTime != q2.nextFetchTime) {
+        return q1.nextFetchTime < q2.nextFetchTime ? -1 : 1;
+      }
+      return q1.seq < q2.seq ? -1 : (q1.seq == q2.seq ? 0 : 1);
+    }
+  };
+
   /**
    * Convenience class - a collection of queues that keeps track of the total
    * number of items, and provides items eligible for fetching from any queue.
+   *
+   * <p>Queues that have items and a free thread slot are kept in a schedule
+   * ordered by their next fetch time, so finding the next item does not
+   * depend on the number of queues. Fetcher threads block in
+   * {@link #getFetchItem()} until the first queue of the schedule is due:
+   * as in a delay queue, one thread (the leader) waits for the due time and
+   * the others wait until they are signalled. The feeder blocks in
+   * {@link #awaitCapacity(int)} until items are taken.
    */
   private static class FetchItemQueues {
     public static final String DEFAULT_ID = "default";
     Map<String, FetchItemQueue> queues = new HashMap<String, FetchItemQueue>();
+    SortedSet<FetchItemQueue> schedule =
+      new TreeSet<FetchItemQueue>(BY_FETCH_TIME);
     AtomicInteger totalSize = new AtomicInteger(0);
     int maxThreads;
     boolean byIP;
+    HostResolver resolver;
+    PolitenessController politeness;
     long crawlDelay;
     long minCrawlDelay;
     Configuration conf;
 
+    private final ReentrantLock lock = new ReentrantLock();
+    /** Signalled when the first queue of the schedule may have changed. */
+    private final Condition itemReady = lock.newCondition();
+    /** Signalled when items are taken from the queues. */
+    private final Condition notFull = lock.newCondition();
+    /** The thread waiting for the first queue of the schedule to be due. */
+    private Thread leader;
+    private boolean feederFinished;
+    private long queueSeq;
+    private int waiting;
+
     public FetchItemQueues(Configuration conf) {
       this.conf = conf;
       this.maxThreads = conf.getInt("fetcher.threads.per.host", 1);
       // backward-compatible default setting
       this.byIP = conf.getBoolean("fetcher.threads.per.host.by.ip", false);
+      if (byIP) {
+        this.resolver = HostResolver.get(conf);
+      }
       this.crawlDelay = (long) (conf.getFloat("fetcher.server.delay", 1.0f) * 1000);
       this.minCrawlDelay = (long) (conf.getFloat("fetcher.server.min.delay", 0.0f) * 1000);
+      if (PolitenessController.isEnabled(conf)) {
+        this.politeness = new PolitenessController(conf);
+      }
     }
 
     public int getTotalSize() {
@@ -268,19 +355,50 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
     }
 
     public int getQueueCount() {
-      return queues.size();
+      lock.lock();
+      try {
+        return queues.size();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /** Returns the number of fetcher threads waiting for an item. */
+    public int getWaitingCount() {
+      lock.lock();
+      try {
+        return waiting;
+      } finally {
+        lock.unlock();
+      }
     }
 
     public void addFetchItem(ImmutableBytesWritable key, RowPart row,
         String url) {
-      final FetchItem it = FetchItem.create(key, row, url, byIP);
+      final FetchItem it = FetchItem.create(key, row, url, byIP, resolver);
       if (it != null) addFetchItem(it);
     }
 
+    /** Starts resolving the host of <code>url</code>, if queues are by IP. */
+    public void prefetch(String url) {
+      if (!byIP) return;
+      try {
+        resolver.prefetch(new URL(url).getHost());
+      } catch (final MalformedURLException e) {
+        // reported when the item is added
+      }
+    }
+
     public void addFetchItem(FetchItem it) {
-      final FetchItemQueue fiq = getFetchItemQueue(it.queueID);
-      fiq.addFetchItem(it);
-      totalSize.incrementAndGet();
+      lock.lock();
+      try {
+        final FetchItemQueue fiq = getFetchItemQueue(it.queueID);
+        fiq.addFetchItem(it);
+        totalSize.incrementAndGet();
+        reschedule(fiq);
+      } finally {
+        lock.unlock();
+      }
     }
 
     public void finishFetchItem(FetchItem it) {
@@ -288,50 +406,194 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
     }
 
     public void finishFetchItem(FetchItem it, boolean asap) {
-      final FetchItemQueue fiq = queues.get(it.queueID);
-      if (fiq == null) {
-        LOG.warn("Attempting to finish item from unknown queue: " + it);
-        return;
+      finishFetchItem(it, asap, null, 0L);
+    }
+
+    /**
+     * Finishes a fetched item, and adapts the politeness settings of its
+     * queue to the outcome of the fetch.
+     * @param time Time taken by the fetch, in milliseconds
+     */
+    public void finishFetchItem(FetchItem it, ProtocolStatus status,
+        long time) {
+      finishFetchItem(it, false, status, time);
+    }
+
+    private void finishFetchItem(FetchItem it, boolean asap,
+        ProtocolStatus status, long time) {
+      lock.lock();
+      try {
+        final FetchItemQueue fiq = queues.get(it.queueID);
+        if (fiq == null) {
+          LOG.warn("Attempting to finish item from unknown queue: " + it);
+          return;
+        }
+        if (fiq.scheduled) {
+          // the fetch time is part of the ordering, remove before changing it
+          schedule.remove(fiq);
+          fiq.scheduled = false;
+        }
+        if (politeness != null && status != null && isHostAnswer(status)) {
+          fiq.recordFetch(politeness, isHostError(status), time);
+        }
+        fiq.finishFetchItem(it, asap);
+        if (fiq.getQueueSize() == 0 && fiq.getInProgressSize() == 0) {
+          // reap empty queues
+          queues.remove(it.queueID);
+          return;
+        }
+        reschedule(fiq);
+      } finally {
+        lock.unlock();
       }
-      fiq.finishFetchItem(it, asap);
     }
 
-    public synchronized FetchItemQueue getFetchItemQueue(String id) {
-      FetchItemQueue fiq = queues.get(id);
-      if (fiq == null) {
-        // initialize queue
-        fiq = new FetchItemQueue(conf, maxThreads, crawlDelay, minCrawlDelay);
-        queues.put(id, fiq);
+    public FetchItemQueue getFetchItemQueue(String id) {
+      lock.lock();
+      try {
+        FetchItemQueue fiq = queues.get(id);
+        if (fiq == null) {
+          // initialize queue
+          fiq = new FetchItemQueue(conf, maxThreads, crawlDelay, minCrawlDelay,
+                                   queueSeq++);
+          if (politeness != null) {
+            fiq.politeness = politeness.newHostState(maxThreads, crawlDelay);
+            fiq.maxThreads = fiq.politeness.getThreads();
+          }
+          queues.put(id, fiq);
+        }
+        return fiq;
+      } finally {
+        lock.unlock();
       }
-      return fiq;
     }
 
-    public synchronized FetchItem getFetchItem() {
-      final Iterator<Map.Entry<String, FetchItemQueue>> it =
-        queues.entrySet().iterator();
-      while (it.hasNext()) {
-        final FetchItemQueue fiq = it.next().getValue();
-        // reap empty queues
-        if (fiq.getQueueSize() == 0 && fiq.getInProgressSize() == 0) {
-          it.remove();
-          continue;
+    /** Applies the robots Crawl-Delay of the host of <code>it</code>. */
+    public void setCrawlDelay(FetchItem it, long crawlDelay) {
+      lock.lock();
+      try {
+        getFetchItemQueue(it.queueID).setCrawlDelay(politeness, crawlDelay);
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /** Adds <code>fiq</code> to the schedule if it is eligible and not
+     * scheduled yet. Must be called with the lock held. */
+    private void reschedule(FetchItemQueue fiq) {
+      if (fiq.scheduled || !fiq.isEligible()) {
+        return;
+      }
+      schedule.add(fiq);
+      fiq.scheduled = true;
+      if (schedule.first() == fiq) {
+        // the leader is waiting for a later time
+        leader = null;
+        itemReady.signal();
+      }
+    }
+
+    /**
+     * Returns the next item that may be fetched, waiting until one is due.
+     * Returns null once the feeder is finished and all items are taken.
+     */
+    public FetchItem getFetchItem() throws InterruptedException {
+      lock.lockInterruptibly();
+      try {
+        while (true) {
+          if (schedule.isEmpty()) {
+            if (feederFinished && totalSize.get() == 0) {
+              return null;
+            }
+            waiting++;
+            try {
+              itemReady.await();
+            } finally {
+              waiting--;
+            }
+            continue;
+          }
+          final FetchItemQueue fiq = schedule.first();
+          final long delay = fiq.nextFetchTime - System.currentTimeMillis();
+          if (delay <= 0) {
+            schedule.remove(fiq);
+            fiq.scheduled = false;
+            final FetchItem it = fiq.getFetchItem();
+            totalSize.decrementAndGet();
+            // still eligible if more threads are allowed per host
+            reschedule(fiq);
+            notFull.signal();
+            if (feederFinished && totalSize.get() == 0) {
+              // wake up the threads that wait for items
+              itemReady.signalAll();
+            }
+            return it;
+          }
+          waiting++;
+          try {
+            if (leader != null) {
+              itemReady.await();
+            } else {
+              final Thread thisThread = Thread.currentThread();
+              leader = thisThread;
+              try {
+                itemReady.await(delay, TimeUnit.MILLISECONDS);
+              } finally {
+                if (leader == thisThread) {
+                  leader = null;
+                }
+              }
+            }
+          } finally {
+            waiting--;
+          }
         }
-        final FetchItem fit = fiq.getFetchItem();
-        if (fit != null) {
-          totalSize.decrementAndGet();
+      } finally {
+        if (leader == null && !schedule.isEmpty()) {
+          itemReady.signal();
+        }
+        lock.unlock();
+      }
+    }
 
-          return fit;
+    /**
+     * Waits until the queues hold fewer than <code>size</code> items, and
+     * returns the number of items that may be added.
+     */
+    public int awaitCapacity(int size) throws InterruptedException {
+      lock.lockInterruptibly();
+      try {
+        while (totalSize.get() >= size) {
+          notFull.await();
         }
+        return size - totalSize.get();
+      } finally {
+        lock.unlock();
       }
-      return null;
     }
 
-    public synchronized void dump() {
-      for (final String id : queues.keySet()) {
-        final FetchItemQueue fiq = queues.get(id);
-        if (fiq.getQueueSize() == 0) continue;
-        LOG.info("* queue: " + id);
-        fiq.dump();
+    /** Tells the fetcher threads that no more items will be fed. */
+    public void setFeederFinished() {
+      lock.lock();
+      try {
+        feederFinished = true;
+        itemReady.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    public void dump() {
+      lock.lock();
+      try {
+        for (final String id : queues.keySet()) {
+          final FetchItemQueue fiq = queues.get(id);
+          if (fiq.getQueueSize() == 0) continue;
+          LOG.info("* queue: " + id);
+          fiq.dump();
+        }
+      } finally {
+        lock.unlock();
       }
     }
   }
@@ -359,41 +621,52 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
       boolean hasMore = true;
       int cnt = 0;
 
-      while (hasMore) {
-        int feed = size - queues.getTotalSize();
-        if (feed <= 0) {
-          // queues are full - spin-wait until they have some free space
-          try {
-            LOG.info("-feeder : spin-waiting while queues are full (size=" + size + ", queues.getTotalSize()=" + queues.getTotalSize() );
-            Thread.sleep(1000);
-          } catch (final Exception e) {};
-          continue;
-        } else {
-          LOG.info("-feeding " + feed + " input urls ...");
+      try {
+        final List<ImmutableBytesWritable> keys =
+          new ArrayList<ImmutableBytesWritable>();
+        final List<RowPart> rows = new ArrayList<RowPart>();
+        final List<String> urls = new ArrayList<String>();
+        while (hasMore) {
+          // block until the queues have some free space
+          int feed = queues.awaitCapacity(size);
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("-feeding " + feed + " input urls ...");
+          }
+          // read a batch, so that its hosts are resolved in parallel
           while (feed > 0 && hasMore) {
-            try {
-              final ImmutableBytesWritable key = new ImmutableBytesWritable();
-              final RowResult rowResult = new RowResult();
-              hasMore = reader.next(key, rowResult);
-              if (hasMore) {
-                final RowPart row = new RowPart(rowResult);
-                if (!row.hasMeta(GeneratorHbase.TMP_FETCH_MARK)) {
-                  // not marked by generate for fetching
-                  continue;
-                }
-                final String url = TableUtil.unreverseUrl(Bytes.toString(key.get()));
-                queues.addFetchItem(key, row, url);
-                cnt++;
-                feed--;
+            final ImmutableBytesWritable key = new ImmutableBytesWritable();
+            final RowResult rowResult = new RowResult();
+            hasMore = reader.next(key, rowResult);
+            if (hasMore) {
+              final RowPart row = new RowPart(rowResult);
+              if (!row.hasMeta(GeneratorHbase.TMP_FETCH_MARK)) {
+                // not marked by generate for fetching
+                continue;
               }
-            } catch (final IOException e) {
-              LOG.fatal("QueueFeeder error reading input, record " + cnt, e);
-              return;
+              final String url = TableUtil.unreverseUrl(Bytes.toString(key.get()));
+              queues.prefetch(url);
+              keys.add(key);
+              rows.add(row);
+              urls.add(url);
+              feed--;
             }
           }
+          for (int i = 0; i < keys.size(); i++) {
+            queues.addFetchItem(keys.get(i), rows.get(i), urls.get(i));
+            cnt++;
+          }
+          keys.clear();
+          rows.clear();
+          urls.clear();
         }
+        LOG.info("QueueFeeder finished: total " + cnt + " records.");
+      } catch (final IOException e) {
+        LOG.fatal("QueueFeeder error reading input, record " + cnt, e);
+      } catch (final InterruptedException e) {
+        LOG.warn("QueueFeeder interrupted, record " + cnt);
+      } finally {
+        queues.setFeederFinished();
       }
-      LOG.info("QueueFeeder finished: total " + cnt + " records.");
     }
   }
 
@@ -431,22 +704,11 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
       try {
 
         while (true) {
+          // blocks until an item is due
           fit = fetchQueues.getFetchItem();
-          // LOG.info("getFetchItem : " + fit);
           if (fit == null) {
-            if (feeder.isAlive() || fetchQueues.getTotalSize() > 0) {
-              LOG.debug(getName() + " fetchQueues.getFetchItem() was null, spin-waiting ...");
-              // spin-wait.
-              spinWaiting.incrementAndGet();
-              try {
-                Thread.sleep(500);
-              } catch (final Exception e) {}
-              spinWaiting.decrementAndGet();
-              continue;
-            } else {
-              // all done, finish this thread
-              return;
-            }
+            // all done, finish this thread
+            return;
           }
           lastRequestStart.set(System.currentTimeMillis());
           if (!fit.row.hasColumn(TableColumns.REPR_URL)) {
@@ -485,15 +747,17 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
                   output(fit, null, ProtocolStatus.STATUS_ROBOTS_DENIED, CrawlDatumHbase.STATUS_GONE);
                   continue;
                 } else {
-                  final FetchItemQueue fiq = fetchQueues.getFetchItemQueue(fit.queueID);
-                  fiq.crawlDelay = rules.getCrawlDelay();
+                  fetchQueues.setCrawlDelay(fit, rules.getCrawlDelay());
                 }
               }
+              final long fetchStart = System.currentTimeMillis();
               final ProtocolOutput output = protocol.getProtocolOutput(fit.url, fit.row);
               final ProtocolStatus status = output.getStatus();
               final Content content = output.getContent();
+              final long fetchTime = System.currentTimeMillis() - fetchStart;
               // unblock queue
-              fetchQueues.finishFetchItem(fit);
+              fetchQueues.finishFetchItem(fit, status, fetchTime);
+              recordFetch(fit, status, fetchTime);
 
               switch(status.getCode()) {
 
@@ -605,6 +869,20 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
 
     }
 
+    /** Adds a fetch to the health of the host in the host table. */
+    private void recordFetch(FetchItem fit, ProtocolStatus status, long time) {
+      if (hostTable == null || !isHostAnswer(status)) {
+        return;
+      }
+      try {
+        hostTable.recordFetch(
+            TableUtil.getReversedHost(Bytes.toString(fit.key.get())),
+            isHostError(status), time);
+      } catch (final IOException e) {
+        LOG.warn("Couldn't update host table: " + e);
+      }
+    }
+
     private void logError(String url, String message) {
       if (LOG.isInfoEnabled()) {
         LOG.info("fetch of " + url + " failed with: " + message);
@@ -630,6 +908,10 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
           if (status == CrawlDatumHbase.STATUS_FETCHED)
             fit.row.putMeta(TMP_PARSE_MARK, TableUtil.YES_VAL);
         }  
+        if (status == CrawlDatumHbase.STATUS_NOTMODIFIED) {
+          // content, text and outlinks are unchanged, nothing to parse
+          fit.row.putMeta(ParseTable.TMP_UPDATE_MARK, TableUtil.YES_VAL);
+        }
         output.collect(fit.key, fit.row);
       } catch (final IOException e) {
         e.printStackTrace(LogUtil.getFatalStream(LOG));
@@ -639,6 +921,19 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
 
   }
 
+  /** Returns false if the host was not asked, e.g. because it was busy. */
+  private static boolean isHostAnswer(ProtocolStatus status) {
+    final int code = status.getCode();
+    return code != ProtocolStatus.WOULDBLOCK && code != ProtocolStatus.BLOCKED;
+  }
+
+  /** Returns true if the fetch failed because of the host: an exception,
+   * a server error or a timeout. */
+  private static boolean isHostError(ProtocolStatus status) {
+    final int code = status.getCode();
+    return code == ProtocolStatus.EXCEPTION || code == ProtocolStatus.RETRY;
+  }
+
   private void updateStatus(int bytesInPage) throws IOException {
     pages.incrementAndGet();
     bytes.addAndGet(bytesInPage);
@@ -651,15 +946,52 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
     pages+" pages, "+errors+" errors, "
     + Math.round(((float)pages.get()*10)/elapsed)/10.0+" pages/s, "
     + Math.round(((((float)bytes.get())*8)/1024)/elapsed)+" kb/s, ";
+    status += "output queue " + asyncOutput.getQueueDepth() + "/"
+      + asyncOutput.getCapacity() + ", output blocked "
+      + asyncOutput.getBlockedTime() / 1000 + "s, ";
+    if (parserPool != null) {
+      status += "parse queue " + parserPool.getQueueDepth() + "/"
+        + parserPool.getCapacity() + ", parse blocked "
+        + parserPool.getBlockedTime() / 1000 + "s, ";
+    }
+    final PolitenessController politeness = fetchQueues.politeness;
+    if (politeness != null) {
+      status += "threads/host +" + politeness.getRaisedCount()
+        + "/-" + politeness.getLoweredCount() + ", delay +"
+        + politeness.getSlowedDownCount() + "/-" + politeness.getSpedUpCount();
+    }
     reporter.setStatus(status);
   }
 
+  /**
+   * Returns the collector the fetcher threads output to, given the one that
+   * hands their output over to the writer thread (through the parser pool,
+   * if the fetcher parses). Work done by the returned collector runs in the
+   * fetcher threads, concurrently. This implementation returns
+   * <code>out</code>.
+   */
+  protected OutputCollector<ImmutableBytesWritable, RowPart> getThreadOutput(
+      OutputCollector<ImmutableBytesWritable, RowPart> out) {
+    return out;
+  }
+
   public void run(RecordReader<ImmutableBytesWritable, RowResult> input,
       OutputCollector<ImmutableBytesWritable, RowPart> output,
       Reporter reporter) throws IOException {
-    this.output = output;
+    // fetcher threads hand their output over to a writer thread
+    this.asyncOutput =
+      new AsyncOutputCollector<ImmutableBytesWritable, RowPart>(output, getConf());
+    this.output = asyncOutput;
+    if (ParserPool.isEnabled(getConf())) {
+      // fetched pages are parsed on their way to the writer thread
+      this.parserPool = new ParserPool(asyncOutput, getConf());
+      this.output = parserPool;
+      LOG.info("Fetcher: parser threads: " + parserPool.getThreadCount());
+    }
+    this.output = getThreadOutput(this.output);
     this.reporter = reporter;
     this.fetchQueues = new FetchItemQueues(getConf());
+    this.hostTable = HostTable.get(getConf());
     final int threadCount = getConf().getInt("fetcher.threads.fetch", 10);
     LOG.info("Fetcher: threads: " + threadCount);
 
@@ -683,8 +1015,21 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
       } catch (final InterruptedException e) {}
 
       reportStatus();
-      LOG.info("-activeThreads=" + activeThreads + ", spinWaiting=" + spinWaiting.get()
+      LOG.info("-activeThreads=" + activeThreads + ", waiting=" + fetchQueues.getWaitingCount()
           + ", fetchQueues= " + fetchQueues.getQueueCount() +", fetchQueues.totalSize=" + fetchQueues.getTotalSize());
+      if (fetchQueues.resolver != null) {
+        LOG.info("-" + fetchQueues.resolver);
+      }
+      if (hostTable != null) {
+        LOG.info("-" + hostTable);
+      }
+      if (fetchQueues.politeness != null) {
+        LOG.info("-" + fetchQueues.politeness);
+      }
+      if (parserPool != null) {
+        LOG.info("-" + parserPool);
+      }
+      LOG.info("-" + asyncOutput);
 
       if (/* !feeder.isAlive() && */ fetchQueues.getTotalSize() < 20) {
           fetchQueues.dump();
@@ -694,15 +1039,58 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
         if (LOG.isWarnEnabled()) {
           LOG.warn("Aborting with "+activeThreads+" hung threads.");
         }
-        return;
+        break;
       }
 
     } while (activeThreads.get() > 0);
     LOG.info("-activeThreads=" + activeThreads);
+    if (parserPool != null) {
+      parserPool.close();
+      LOG.info("-" + parserPool);
+      reporter.incrCounter("FetcherParse", "parsed",
+                           parserPool.getParsedCount());
+      reporter.incrCounter("FetcherParse", "failed",
+                           parserPool.getFailedCount());
+      reporter.incrCounter("FetcherParse", "parse ms",
+                           parserPool.getParseTime());
+      reporter.incrCounter("FetcherParse", "blocked",
+                           parserPool.getBlockedCount());
+      reporter.incrCounter("FetcherParse", "blocked ms",
+                           parserPool.getBlockedTime());
+    }
+    asyncOutput.close();
+    LOG.info("-" + asyncOutput);
+    reporter.incrCounter("FetcherOutput", "records",
+                         asyncOutput.getWrittenCount());
+    reporter.incrCounter("FetcherOutput", "batches",
+                         asyncOutput.getBatchCount());
+    reporter.incrCounter("FetcherOutput", "write ms",
+                         asyncOutput.getWriteTime());
+    reporter.incrCounter("FetcherOutput", "blocked",
+                         asyncOutput.getBlockedCount());
+    reporter.incrCounter("FetcherOutput", "blocked ms",
+                         asyncOutput.getBlockedTime());
+    reporter.incrCounter("FetcherOutput", "max queue depth",
+                         asyncOutput.getMaxQueueDepth());
+    if (hostTable != null) {
+      hostTable.flush();
+    }
+    final PolitenessController politeness = fetchQueues.politeness;
+    if (politeness != null) {
+      reporter.incrCounter("FetcherPoliteness", "threads raised",
+                           politeness.getRaisedCount());
+      reporter.incrCounter("FetcherPoliteness", "threads lowered",
+                           politeness.getLoweredCount());
+      reporter.incrCounter("FetcherPoliteness", "delay raised",
+                           politeness.getSlowedDownCount());
+      reporter.incrCounter("FetcherPoliteness", "delay lowered",
+                           politeness.getSpedUpCount());
+    }
 
   }
 
   public void configure(JobConf job) {
+    compression = ColumnCompression.get(job);
   }
 
   public void close() throws IOException {
@@ -715,11 +1103,21 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
       final RowPart row = values.next();
       // remove the fetch-mark  
       row.deleteMeta(GeneratorHbase.TMP_FETCH_MARK);
-      output.collect(key, row.makeBatchUpdate());
+      output.collect(key, row.makeBatchUpdate(compression));
     }
   }
 
   public void fetch(String table, int threads)
+  throws IOException {
+    fetch(table, threads, null);
+  }
+
+  /**
+   * Fetches the rows marked by the generator.
+   * @param batchId if not null, only the rows of this batch are read
+   * through the batch index
+   */
+  public void fetch(String table, int threads, String batchId)
   throws IOException {
 
     LOG.info("FetcherHbase: starting");
@@ -740,12 +1138,17 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
     job.setMapOutputValueClass(RowPart.class);
     job.setMapRunnerClass(FetcherHbase.class);
     FileInputFormat.addInputPaths(job, table);
-    job.set(TableInputFormat.COLUMN_LIST, getColumnsList(job));
+    job.set(TableInputFormat.COLUMN_LIST,
+            TableUtil.getColumns(getColumnSet(job)));
+    if (batchId != null) {
+      BatchTableInputFormat.setBatch(job, batchId);
+    }
 
     job.setOutputFormat(TableOutputFormat.class);
     job.setReducerClass(FetcherHbase.class);
     job.set(TableOutputFormat.OUTPUT_TABLE, table);
     job.setOutputKeyClass(ImmutableBytesWritable.class);
+    HostTable.setUpJob(job, table);
     job.setOutputValueClass(BatchUpdate.class);
 
     JobClient.runJob(job);
@@ -753,17 +1156,25 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
     LOG.info("FetcherHbase: done");
   }
 
-  private static final String getColumnsList(JobConf job) {
+  /**
+   * Returns the columns that have to be read to fetch a generated row,
+   * and to parse it if the fetcher parses.
+   */
+  public static Set<String> getColumnSet(JobConf job) {
     final Set<String> columnSet = new HashSet<String>(COLUMNS);
 
     final ProtocolFactoryHbase protocolFactory = new ProtocolFactoryHbase(job);
     columnSet.addAll(protocolFactory.getColumnSet());
+    if (ParserPool.isEnabled(job)) {
+      columnSet.addAll(ParseTable.getColumnSet(job));
+    }
 
-    return TableUtil.getColumns(columnSet);
+    return columnSet;
   }
 
   public int run(String[] args) throws Exception {
-    final String usage = "Usage: FetcherHbase <webtable> [-threads n]";
+    final String usage = "Usage: FetcherHbase <webtable> [-threads n] " +
+      "[-batch id] [-parse [-noContent]]";
 
     if (args.length < 1) {
       System.err.println(usage);
@@ -773,13 +1184,21 @@ implements MapRunnable<ImmutableBytesWritable, RowResult,
     final String table = args[0];
 
     int threads = -1;
-
-    if (args.length == 3 && args[1].equals("-threads")) {
-      // found -threads option
-      threads =  Integer.parseInt(args[2]);
+    String batchId = null;
+
+    for (int i = 1; i < args.length; i++) {
+      if ("-threads".equals(args[i])) {
+        threads =  Integer.parseInt(args[++i]);
+      } else if ("-batch".equals(args[i])) {
+        batchId = args[++i];
+      } else if ("-parse".equals(args[i])) {
+        getConf().setBoolean(ParserPool.PARSE, true);
+      } else if ("-noContent".equals(args[i])) {
+        getConf().setBoolean(ParserPool.STORE_CONTENT, false);
+      }
     }
 
-    fetch(table, threads);              // run the Fetcher
+    fetch(table, threads, batchId);     // run the Fetcher
 
     return 0;
   }
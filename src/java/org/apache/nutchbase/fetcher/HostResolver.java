@@ -0,0 +1,237 @@
+package org.apache.nutchbase.fetcher;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.nutch.util.ObjectCache;
+
+/**
+ * Resolves host names on a pool of threads, with a bounded cache of the
+ * results. Failed lookups are cached too, for a shorter time. Callers can
+ * {@link #prefetch(String)} the hosts they will need, so that their lookups
+ * run in parallel, and later calls to {@link #resolve(String)} find them
+ * cached or in flight. Concurrent requests for the same host share a single
+ * lookup.
+ *
+ * <p>There is one instance per configuration, see
+ * {@link #get(Configuration)}, so the fetcher and the protocol plugins
+ * share the cache.
+ */
+public class HostResolver {
+
+  public static final Log LOG = LogFactory.getLog(HostResolver.class);
+
+  public static final String RESOLVER_CLASS = "resolver.class";
+  public static final String CACHE_SIZE = "resolver.cache.size";
+  public static final String CACHE_TTL = "resolver.cache.ttl";
+  public static final String NEGATIVE_TTL = "resolver.cache.negative.ttl";
+  public static final String THREADS = "resolver.threads";
+  public static final String TIMEOUT = "resolver.timeout";
+
+  /** A lookup, in flight or done. */
+  private static class Entry {
+    volatile Future<InetAddress> future;
+    /** Expiry time, set when the lookup is done. */
+    volatile long expires = Long.MAX_VALUE;
+  }
+
+  private final Resolver resolver;
+  private final Map<String, Entry> cache;
+  private final ExecutorService pool;
+  private final long ttl;
+  private final long negativeTtl;
+  private final long timeout;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong negativeHits = new AtomicLong();
+  private final AtomicLong lookups = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong lookupTime = new AtomicLong();
+
+  public HostResolver(Configuration conf) {
+    final Class<?> resolverClass =
+      conf.getClass(RESOLVER_CLASS, Resolver.SystemResolver.class);
+    resolver = (Resolver) ReflectionUtils.newInstance(resolverClass, conf);
+    final int cacheSize = conf.getInt(CACHE_SIZE, 100000);
+    cache = new LinkedHashMap<String, Entry>(1024, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > cacheSize;
+      }
+    };
+    ttl = conf.getLong(CACHE_TTL, 300000L);
+    negativeTtl = conf.getLong(NEGATIVE_TTL, 60000L);
+    timeout = conf.getLong(TIMEOUT, 10000L);
+
+    final AtomicInteger threadCount = new AtomicInteger();
+    pool = Executors.newFixedThreadPool(conf.getInt(THREADS, 10),
+        new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        final Thread t = new Thread(r, "HostResolver"
+                                    + threadCount.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /** Returns the resolver of <code>conf</code>, creating it if needed. */
+  public static HostResolver get(Configuration conf) {
+    final ObjectCache objectCache = ObjectCache.get(conf);
+    synchronized (objectCache) {
+      final String cacheId = HostResolver.class.getName();
+      HostResolver hostResolver = (HostResolver) objectCache.getObject(cacheId);
+      if (hostResolver == null) {
+        hostResolver = new HostResolver(conf);
+        objectCache.setObject(cacheId, hostResolver);
+      }
+      return hostResolver;
+    }
+  }
+
+  /** Starts looking up <code>host</code> if it is not cached. */
+  public void prefetch(String host) {
+    getEntry(host, false);
+  }
+
+  /**
+   * Returns the address of <code>host</code>, waiting for its lookup if it
+   * is not cached.
+   * @throws UnknownHostException if the host can not be resolved, now or
+   * recently
+   */
+  public InetAddress resolve(String host) throws UnknownHostException {
+    final Entry entry = getEntry(host, true);
+    try {
+      return entry.future.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (final ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof UnknownHostException) {
+        throw (UnknownHostException) cause;
+      }
+      throw new UnknownHostException(host + ": " + cause);
+    } catch (final TimeoutException e) {
+      // the lookup goes on and its result will be cached
+      throw new UnknownHostException(host + ": lookup timed out");
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new UnknownHostException(host + ": interrupted");
+    }
+  }
+
+  private Entry getEntry(final String host, boolean count) {
+    final long now = System.currentTimeMillis();
+    synchronized (cache) {
+      final Entry entry = cache.get(host);
+      if (entry != null && entry.expires > now) {
+        if (count) {
+          if (!entry.future.isDone()) {
+            misses.incrementAndGet();         // prefetched, still in flight
+          } else if (isNegative(entry)) {
+            negativeHits.incrementAndGet();
+          } else {
+            hits.incrementAndGet();
+          }
+        }
+        return entry;
+      }
+      if (count) {
+        misses.incrementAndGet();
+      }
+      final Entry newEntry = new Entry();
+      newEntry.future = pool.submit(new Callable<InetAddress>() {
+        public InetAddress call() throws Exception {
+          return lookup(host, newEntry);
+        }
+      });
+      cache.put(host, newEntry);
+      return newEntry;
+    }
+  }
+
+  private InetAddress lookup(String host, Entry entry)
+  throws UnknownHostException {
+    final long start = System.currentTimeMillis();
+    lookups.incrementAndGet();
+    try {
+      final InetAddress addr = resolver.resolve(host);
+      entry.expires = start + ttl;
+      return addr;
+    } catch (final UnknownHostException e) {
+      failures.incrementAndGet();
+      entry.expires = start + negativeTtl;
+      throw e;
+    } catch (final RuntimeException e) {
+      failures.incrementAndGet();
+      entry.expires = start + negativeTtl;
+      throw e;
+    } finally {
+      lookupTime.addAndGet(System.currentTimeMillis() - start);
+    }
+  }
+
+  private static boolean isNegative(Entry entry) {
+    try {
+      entry.future.get();
+      return false;
+    } catch (final Exception e) {
+      return true;
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getNegativeHits() {
+    return negativeHits.get();
+  }
+
+  public long getLookups() {
+    return lookups.get();
+  }
+
+  public long getFailures() {
+    return failures.get();
+  }
+
+  /** Returns the mean time of a lookup, in milliseconds. */
+  public double getMeanLookupTime() {
+    final long n = lookups.get();
+    return n == 0 ? 0.0 : (double) lookupTime.get() / n;
+  }
+
+  public int getCacheSize() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  public String toString() {
+    return "dns: " + hits + " hits, " + negativeHits + " negative hits, "
+      + misses + " misses, " + lookups + " lookups (" + failures
+      + " failed, " + Math.round(getMeanLookupTime()) + " ms mean)";
+  }
+}
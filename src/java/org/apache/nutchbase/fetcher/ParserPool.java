@@ -0,0 +1,273 @@
+package org.apache.nutchbase.fetcher;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.util.StringUtils;
+import org.apache.nutchbase.crawl.CrawlDatumHbase;
+import org.apache.nutchbase.parse.ParseExecutor;
+import org.apache.nutchbase.parse.ParseUtilHbase;
+import org.apache.nutchbase.util.hbase.RowPart;
+import org.apache.nutchbase.util.hbase.TableColumns;
+import org.apache.nutchbase.util.hbase.TableUtil;
+
+/**
+ * Parses fetched rows in a pool of parser threads of the fetcher task, so
+ * that pages do not have to go through a separate parse job. Rows marked
+ * with {@link FetcherHbase#TMP_PARSE_MARK} are parsed with
+ * {@link ParseUtilHbase} and written together with their text, title,
+ * outlinks, parse status and signature; other rows are passed through.
+ *
+ * <p>The rows wait for a parser in a bounded queue; when it is full, fetcher
+ * threads block until a parser is free. A parsed row loses its parse mark
+ * and, unless content is stored, its content. A row whose parse threw an
+ * exception keeps both, so that {@link org.apache.nutchbase.parse.ParseTable}
+ * can try again. Errors of the underlying collector are thrown by the next
+ * call to {@link #collect(ImmutableBytesWritable, RowPart)} and by
+ * {@link #close()}.
+ */
+public class ParserPool
+implements OutputCollector<ImmutableBytesWritable, RowPart> {
+
+  public static final Log LOG = LogFactory.getLog(ParserPool.class);
+
+  /** If true, the fetcher parses the pages it fetches. */
+  public static final String PARSE = "fetcher.parse.inline";
+
+  /** Number of parser threads. */
+  public static final String THREADS = "fetcher.parse.threads";
+
+  /** Maximum number of fetched rows waiting for a parser. */
+  public static final String QUEUE_SIZE = "fetcher.parse.queue.size";
+
+  /** If false, the content of parsed rows is not written. */
+  public static final String STORE_CONTENT = "fetcher.store.content";
+
+  private static class Record {
+    final ImmutableBytesWritable key;
+    final RowPart row;
+
+    Record(ImmutableBytesWritable key, RowPart row) {
+      this.key = key;
+      this.row = row;
+    }
+  }
+
+  private final Configuration conf;
+  private final OutputCollector<ImmutableBytesWritable, RowPart> out;
+  private final BlockingQueue<Record> queue;
+  private final int capacity;
+  private final boolean storeContent;
+  private final Thread[] parsers;
+
+  private volatile boolean closed;
+  private volatile IOException error;
+
+  private final AtomicLong parsed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong passed = new AtomicLong();
+  private final AtomicLong parseTime = new AtomicLong();
+  private final AtomicLong blocked = new AtomicLong();
+  private final AtomicLong blockedTime = new AtomicLong();
+
+  public ParserPool(OutputCollector<ImmutableBytesWritable, RowPart> out,
+      Configuration conf) {
+    this.conf = conf;
+    this.out = out;
+    capacity = Math.max(conf.getInt(QUEUE_SIZE, 100), 1);
+    storeContent = conf.getBoolean(STORE_CONTENT, true);
+    queue = new ArrayBlockingQueue<Record>(capacity);
+    parsers = new Thread[Math.max(conf.getInt(THREADS, 2), 1)];
+    // every parser thread may need a parser thread of the executor
+    ParseExecutor.setMinThreads(conf, parsers.length);
+    for (int i = 0; i < parsers.length; i++) {
+      parsers[i] = new Thread() {
+        @Override
+        public void run() {
+          parse();
+        }
+      };
+      parsers[i].setDaemon(true);
+      parsers[i].setName("FetcherParser" + i);
+      parsers[i].start();
+    }
+  }
+
+  public static boolean isEnabled(Configuration conf) {
+    return conf.getBoolean(PARSE, false);
+  }
+
+  /** Returns true if the fetcher should parse this row. */
+  private static boolean needsParse(RowPart row) {
+    return row.hasColumn(TableColumns.STATUS)
+      && row.hasMeta(FetcherHbase.TMP_PARSE_MARK)
+      && row.getStatus() == CrawlDatumHbase.STATUS_FETCHED;
+  }
+
+  /**
+   * Queues a fetched row for parsing, waiting while the queue is full.
+   * Rows that need no parse are collected right away.
+   */
+  public void collect(ImmutableBytesWritable key, RowPart row)
+  throws IOException {
+    checkError();
+    if (closed) {
+      throw new IOException("Parser pool is closed");
+    }
+    if (!needsParse(row)) {
+      passed.incrementAndGet();
+      out.collect(key, row);
+      return;
+    }
+    final Record record = new Record(key, row);
+    if (!queue.offer(record)) {
+      blocked.incrementAndGet();
+      final long start = System.nanoTime();
+      try {
+        while (!queue.offer(record, 100, TimeUnit.MILLISECONDS)) {
+          checkError();
+        }
+      } catch (final InterruptedException e) {
+        throw new IOException("Interrupted while waiting for a parser");
+      } finally {
+        blockedTime.addAndGet(System.nanoTime() - start);
+      }
+    }
+  }
+
+  private void checkError() throws IOException {
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  private void parse() {
+    // parsers need not be thread-safe, so each thread has its own
+    ParseUtilHbase parseUtil = null;
+    try {
+      while (true) {
+        final Record record = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (record == null) {
+          if (closed && queue.isEmpty()) {
+            return;
+          }
+          continue;
+        }
+        if (parseUtil == null) {
+          parseUtil = new ParseUtilHbase(conf, false);
+        }
+        parse(parseUtil, record.key, record.row);
+      }
+    } catch (final IOException e) {
+      LOG.fatal("Output failed: " + e);
+      error = e;
+    } catch (final InterruptedException e) {
+      error = new IOException("Parser interrupted");
+    } catch (final RuntimeException e) {
+      LOG.fatal("Parser failed: " + StringUtils.stringifyException(e));
+      error = new IOException("Parser failed: " + e);
+    }
+    // unblock the fetcher threads, the rows are lost anyway
+    queue.clear();
+  }
+
+  private void parse(ParseUtilHbase parseUtil, ImmutableBytesWritable key,
+      RowPart row) throws IOException {
+    final String url = TableUtil.unreverseUrl(Bytes.toString(key.get()));
+    RowPart redirectRow = null;
+    final long start = System.nanoTime();
+    try {
+      redirectRow = parseUtil.process(url, row);
+      row.deleteMeta(FetcherHbase.TMP_PARSE_MARK);
+      if (!storeContent) {
+        row.deleteColumn(TableColumns.CONTENT_STR);
+      }
+      parsed.incrementAndGet();
+    } catch (final Exception e) {
+      LOG.warn("Error parsing: " + url + ": "
+          + StringUtils.stringifyException(e));
+      failed.incrementAndGet();
+    } finally {
+      parseTime.addAndGet(System.nanoTime() - start);
+    }
+
+    if (redirectRow != null) {
+      out.collect(new ImmutableBytesWritable(redirectRow.getRowId()),
+                  redirectRow);
+    }
+    out.collect(key, row);
+  }
+
+  /** Parses the queued rows and stops the parser threads. */
+  public void close() throws IOException {
+    closed = true;
+    try {
+      for (final Thread parser : parsers) {
+        parser.join();
+      }
+    } catch (final InterruptedException e) {
+      throw new IOException("Interrupted while closing parser pool");
+    }
+    checkError();
+  }
+
+  /** Returns the number of rows waiting for a parser. */
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public int getThreadCount() {
+    return parsers.length;
+  }
+
+  public long getParsedCount() {
+    return parsed.get();
+  }
+
+  /** Returns the number of rows whose parse threw an exception. */
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  /** Returns the number of rows collected without a parse. */
+  public long getPassedCount() {
+    return passed.get();
+  }
+
+  /** Returns the total time spent parsing, in milliseconds. */
+  public long getParseTime() {
+    return parseTime.get() / 1000000L;
+  }
+
+  /** Returns the number of times a fetcher thread found the queue full. */
+  public long getBlockedCount() {
+    return blocked.get();
+  }
+
+  /** Returns the total time fetcher threads waited for a parser,
+   * in milliseconds. */
+  public long getBlockedTime() {
+    return blockedTime.get() / 1000000L;
+  }
+
+  @Override
+  public String toString() {
+    return "parsers: threads=" + parsers.length + ", queue=" + getQueueDepth()
+      + "/" + capacity + ", parsed=" + parsed + ", failed=" + failed
+      + ", parseTime=" + getParseTime() + "ms, blocked=" + getBlockedCount()
+      + " (" + getBlockedTime() + "ms)";
+  }
+}
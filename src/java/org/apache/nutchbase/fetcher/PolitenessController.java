@@ -0,0 +1,211 @@
+package org.apache.nutchbase.fetcher;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutchbase.util.hbase.HostTable;
+
+/**
+ * Adapts the politeness of the fetcher to each host, from the outcome of
+ * its fetches. Hosts that answer fast and without errors get more
+ * concurrent fetches, one at a time up to a cap (additive increase). A
+ * failed fetch (an exception, a 5xx answer or a timeout) or a response
+ * slower than the target latency halves the concurrency of the host, and
+ * once it is down to one thread doubles the delay between its fetches
+ * (multiplicative decrease). The delay never goes below the configured
+ * delay or the Crawl-Delay of the host.
+ *
+ * <p>The state of a host is held in a {@link HostState}, which the caller
+ * must guard; the counters of the decisions may be read from any thread.
+ */
+public class PolitenessController {
+
+  public static final Log LOG = LogFactory.getLog(PolitenessController.class);
+
+  /** If true, the fetcher adapts the concurrency and delay of hosts. */
+  public static final String ADAPTIVE = "fetcher.adaptive";
+
+  /** Maximum number of concurrent fetches of a host. */
+  public static final String MAX_THREADS =
+    "fetcher.adaptive.max.threads.per.host";
+
+  /** Maximum delay between the fetches of a host, in milliseconds. */
+  public static final String MAX_DELAY = "fetcher.adaptive.max.delay";
+
+  /** Response time above which a host is slowed down, in milliseconds. */
+  public static final String TARGET_LATENCY = "fetcher.adaptive.target.latency";
+
+  /** Recent error rate above which a host is not sped up. */
+  public static final String MAX_ERROR_RATE = "fetcher.adaptive.max.error.rate";
+
+  /** Factor by which the delay grows when backing off. */
+  public static final String BACKOFF = "fetcher.adaptive.backoff";
+
+  /** Number of good fetches before a host is sped up one step. */
+  public static final String WINDOW = "fetcher.adaptive.window";
+
+  /** Smallest delay set when backing off from no delay at all. */
+  private static final long MIN_BACKOFF_DELAY = 1000L;
+
+  /** Politeness settings and recent fetches of a host. */
+  public static class HostState {
+    private int threads;
+    private int maxThreads;
+    private long delay;
+    private long minDelay;
+    private int successes;
+    private final HostTable.HostInfo health = new HostTable.HostInfo();
+
+    /** Number of concurrent fetches allowed. */
+    public int getThreads() {
+      return threads;
+    }
+
+    /** Delay between fetches, in milliseconds. */
+    public long getDelay() {
+      return delay;
+    }
+
+    public HostTable.HostInfo getHealth() {
+      return health;
+    }
+
+    @Override
+    public String toString() {
+      return "threads=" + threads + "/" + maxThreads + ", delay=" + delay
+        + ", responseTime=" + Math.round(health.getResponseTime())
+        + ", errorRate=" + health.getErrorRate();
+    }
+  }
+
+  private final int maxThreads;
+  private final long maxDelay;
+  private final long targetLatency;
+  private final float maxErrorRate;
+  private final float backoff;
+  private final int window;
+  private final float decay;
+
+  private final AtomicLong raised = new AtomicLong();
+  private final AtomicLong lowered = new AtomicLong();
+  private final AtomicLong slowedDown = new AtomicLong();
+  private final AtomicLong spedUp = new AtomicLong();
+
+  public PolitenessController(Configuration conf) {
+    maxThreads = conf.getInt(MAX_THREADS, 4);
+    maxDelay = conf.getLong(MAX_DELAY, 60000L);
+    targetLatency = conf.getLong(TARGET_LATENCY, 2000L);
+    maxErrorRate = conf.getFloat(MAX_ERROR_RATE, 0.1f);
+    backoff = Math.max(conf.getFloat(BACKOFF, 2.0f), 1.0f);
+    window = Math.max(conf.getInt(WINDOW, 10), 1);
+    decay = 1.0f / window;
+  }
+
+  public static boolean isEnabled(Configuration conf) {
+    return conf.getBoolean(ADAPTIVE, false);
+  }
+
+  /**
+   * Returns the state of a new host. It starts with a single thread.
+   * @param threads Number of concurrent fetches allowed by the fetcher,
+   * the concurrency never grows beyond it
+   * @param delay Initial, and smallest, delay between fetches
+   */
+  public HostState newHostState(int threads, long delay) {
+    final HostState state = new HostState();
+    state.maxThreads = Math.max(1, Math.min(maxThreads, threads));
+    state.threads = 1;
+    state.delay = delay;
+    state.minDelay = delay;
+    return state;
+  }
+
+  /**
+   * Applies the Crawl-Delay of a host: it gets a single thread, and never
+   * less delay than <code>crawlDelay</code>.
+   */
+  public void setCrawlDelay(HostState state, long crawlDelay) {
+    state.maxThreads = 1;
+    state.threads = 1;
+    state.minDelay = Math.max(state.minDelay, crawlDelay);
+    state.delay = Math.max(state.delay, state.minDelay);
+  }
+
+  /**
+   * Adds a fetch of the host and adapts its settings.
+   * @param error True if the fetch failed with an exception, a server
+   * error or a timeout
+   * @param time Time taken by the fetch, in milliseconds
+   * @return true if the settings of the host changed
+   */
+  public boolean record(HostState state, boolean error, long time) {
+    state.health.recordFetch(error, time, decay);
+
+    if (error || time > targetLatency) {
+      state.successes = 0;
+      if (state.threads > 1) {
+        state.threads = Math.max(1, state.threads / 2);
+        lowered.incrementAndGet();
+      } else if (state.delay < maxDelay) {
+        state.delay = Math.min(maxDelay,
+            Math.max((long) (state.delay * backoff), MIN_BACKOFF_DELAY));
+        slowedDown.incrementAndGet();
+      } else {
+        return false;
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("backing off (" + (error ? "error" : "slow") + "): "
+                  + state);
+      }
+      return true;
+    }
+
+    if (state.health.getErrorRate() > maxErrorRate
+        || state.health.getResponseTime() > targetLatency) {
+      return false;                          // wait until the host recovers
+    }
+    if (++state.successes < window) {
+      return false;
+    }
+    state.successes = 0;
+    if (state.delay > state.minDelay) {
+      state.delay = Math.max(state.minDelay, (long) (state.delay / backoff));
+      spedUp.incrementAndGet();
+    } else if (state.threads < state.maxThreads) {
+      state.threads++;
+      raised.incrementAndGet();
+    } else {
+      return false;
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("speeding up: " + state);
+    }
+    return true;
+  }
+
+  public long getRaisedCount() {
+    return raised.get();
+  }
+
+  public long getLoweredCount() {
+    return lowered.get();
+  }
+
+  public long getSlowedDownCount() {
+    return slowedDown.get();
+  }
+
+  public long getSpedUpCount() {
+    return spedUp.get();
+  }
+
+  @Override
+  public String toString() {
+    return "adaptive politeness: maxThreads=" + maxThreads
+      + ", maxDelay=" + maxDelay + ", targetLatency=" + targetLatency
+      + ", maxErrorRate=" + maxErrorRate + ", threads +" + raised
+      + "/-" + lowered + ", delay +" + slowedDown + "/-" + spedUp;
+  }
+}
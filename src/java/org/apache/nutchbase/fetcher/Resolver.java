@@ -0,0 +1,23 @@
+package org.apache.nutchbase.fetcher;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Looks up the address of a host name. The implementation used by
+ * {@link HostResolver} is set with "resolver.class"; implementations need a
+ * public no-argument constructor, and may implement
+ * {@link org.apache.hadoop.conf.Configurable}.
+ */
+public interface Resolver {
+
+  /** Returns the address of <code>host</code>. May block. */
+  InetAddress resolve(String host) throws UnknownHostException;
+
+  /** Resolves host names with {@link InetAddress#getByName(String)}. */
+  public static class SystemResolver implements Resolver {
+    public InetAddress resolve(String host) throws UnknownHostException {
+      return InetAddress.getByName(host);
+    }
+  }
+}
@@ -20,8 +20,16 @@ public interface HtmlParseFilterHbase extends PluggableHbase, Configurable {
   final static String X_POINT_ID = HtmlParseFilterHbase.class.getName();
 
   /** Adds metadata or otherwise modifies a parse of HTML content, given
-   * the DOM tree of a page. */
+   * the DOM tree of a page. <code>doc</code> is null if no filter
+   * {@link #needsDom() needs} it. */
   ParseHbase filter(String url, RowPart row, ParseHbase parseResult,
                     HTMLMetaTags metaTags, DocumentFragment doc);
+
+  /** Returns true if this filter needs the DOM tree of the page. Parsers
+   * that extract content without building one build it for such filters;
+   * a {@link StreamingHtmlParseFilterHbase} is given the SAX events
+   * instead.
+   */
+  boolean needsDom();
   
 }
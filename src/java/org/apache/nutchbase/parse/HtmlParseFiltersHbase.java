@@ -28,6 +28,7 @@ import org.apache.nutchbase.util.hbase.RowPart;
 import org.apache.hadoop.conf.Configuration;
 
 import org.w3c.dom.DocumentFragment;
+import org.xml.sax.ContentHandler;
 
 /** Creates and caches {@link HtmlParseFilter} implementing plugins.*/
 public class HtmlParseFiltersHbase {
@@ -69,11 +70,28 @@ public class HtmlParseFiltersHbase {
   /** Run all defined filters. */
   public ParseHbase filter(String url, RowPart row, ParseHbase parse,
                            HTMLMetaTags metaTags, DocumentFragment doc) {
+    return filter(url, row, parse, metaTags, doc, null);
+  }
+
+  /**
+   * Run all defined filters. Filters that have a handler in
+   * <code>handlers</code> (see {@link #getContentHandlers(String)}) are
+   * given it instead of the DOM tree.
+   */
+  public ParseHbase filter(String url, RowPart row, ParseHbase parse,
+                           HTMLMetaTags metaTags, DocumentFragment doc,
+                           ContentHandler[] handlers) {
 
     // loop on each filter
-    for (HtmlParseFilterHbase htmlParseFilter : htmlParseFilters) {
+    for (int i = 0; i < htmlParseFilters.length; i++) {
+      HtmlParseFilterHbase htmlParseFilter = htmlParseFilters[i];
       // call filter interface
-      parse = htmlParseFilter.filter(url, row, parse, metaTags, doc);
+      if (handlers != null && handlers[i] != null) {
+        parse = ((StreamingHtmlParseFilterHbase) htmlParseFilter)
+          .filter(url, row, parse, metaTags, handlers[i]);
+      } else {
+        parse = htmlParseFilter.filter(url, row, parse, metaTags, doc);
+      }
 
       // any failure on parse obj, return
       if (!parse.getParseStatus().isSuccess()) {
@@ -84,6 +102,31 @@ public class HtmlParseFiltersHbase {
     return parse;
   }
 
+  /**
+   * Returns new handlers of the SAX events of a page, one per filter, null
+   * for filters that only work from the DOM tree.
+   */
+  public ContentHandler[] getContentHandlers(String url) {
+    ContentHandler[] handlers = new ContentHandler[htmlParseFilters.length];
+    for (int i = 0; i < htmlParseFilters.length; i++) {
+      if (htmlParseFilters[i] instanceof StreamingHtmlParseFilterHbase) {
+        handlers[i] = ((StreamingHtmlParseFilterHbase) htmlParseFilters[i])
+          .getContentHandler(url);
+      }
+    }
+    return handlers;
+  }
+
+  /** Returns true if any filter needs the DOM tree of the page. */
+  public boolean needsDom() {
+    for (HtmlParseFilterHbase htmlParseFilter : htmlParseFilters) {
+      if (htmlParseFilter.needsDom()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public Set<String> getColumnSet() {
     Set<String> columnSet = new HashSet<String>();
     for (HtmlParseFilterHbase htmlParseFilter : htmlParseFilters) {
@@ -0,0 +1,420 @@
+package org.apache.nutchbase.parse;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.nutch.parse.ParseStatus;
+import org.apache.nutch.util.ObjectCache;
+import org.apache.nutchbase.util.hbase.RowPart;
+
+/**
+ * Runs parsers on worker threads, within a time and a memory budget per
+ * document. A parser that takes longer than <code>parser.timeout</code>, or
+ * allocates more than <code>parser.max.allocation</code> bytes, is
+ * interrupted and its document gets a failed parse status
+ * ({@link ParseStatus#FAILED_TIMEOUT} or
+ * {@link ParseStatus#FAILED_MEMORY_LIMIT}), instead of holding the task
+ * until it is killed. A parser that runs out of memory fails the same way.
+ * The time budget starts when the parser does.
+ *
+ * <p>At most <code>parser.threads</code> parsers run at once; callers wait
+ * for a free thread, so callers that parse concurrently should
+ * {@link #setMinThreads(Configuration, int) raise} it to their number. A
+ * parser that ignores the interrupt keeps its thread, which is abandoned.
+ * The first <code>parser.threads</code> abandoned threads are replaced, so a
+ * few stuck parsers do not reduce the capacity; beyond that an abandoned
+ * thread counts against the bound until its parser returns, and the drop in
+ * capacity is logged. Once no thread is left, documents fail with
+ * {@link ParseStatus#FAILED_NO_THREAD} rather than threads being started
+ * without limit.
+ *
+ * <p>Parsers work on a copy of the row, whose changes are copied back if
+ * the parser completes, so that an abandoned parser does not touch a row
+ * its caller goes on with. The caller must not use an abandoned parser
+ * instance again (see {@link #isAbandoned(ParserHbase)}), as parsers need
+ * not be thread-safe.
+ *
+ * <p>Allocations can only be measured on JVMs that count the bytes
+ * allocated by each thread; elsewhere the memory budget is not enforced.
+ */
+public class ParseExecutor {
+
+  public static final Log LOG = LogFactory.getLog(ParseExecutor.class);
+
+  /** Time budget of a document, in seconds. */
+  public static final String TIMEOUT = "parser.timeout";
+
+  /** Allocation budget of a document, in bytes. */
+  public static final String MAX_ALLOCATION = "parser.max.allocation";
+
+  /** Maximum number of parsers running at once. */
+  public static final String THREADS = "parser.threads";
+
+  /** Interval at which a running parser is checked, in milliseconds. */
+  private static final long CHECK_INTERVAL = 100L;
+
+  /** Time a cancelled parser is given to stop, in milliseconds. */
+  private static final long STOP_TIMEOUT = 1000L;
+
+  private static final ThreadMXBean THREAD_MX =
+    ManagementFactory.getThreadMXBean();
+
+  // com.sun.management.ThreadMXBean.getThreadAllocatedBytes, if available
+  private static final Method ALLOCATED_BYTES = getAllocatedBytesMethod();
+
+  private static Method getAllocatedBytesMethod() {
+    try {
+      final Class<?> c = Class.forName("com.sun.management.ThreadMXBean");
+      if (!c.isInstance(THREAD_MX)) {
+        return null;
+      }
+      final Method m = c.getMethod("getThreadAllocatedBytes", long.class);
+      return ((Long) m.invoke(THREAD_MX,
+                              Thread.currentThread().getId())) >= 0 ? m : null;
+    } catch (final Exception e) {
+      return null;
+    }
+  }
+
+  /** Returns the bytes allocated by a thread so far, or -1. */
+  private static long getAllocatedBytes(Thread thread) {
+    if (ALLOCATED_BYTES == null || thread == null) {
+      return -1;
+    }
+    try {
+      return ((Long) ALLOCATED_BYTES.invoke(THREAD_MX, thread.getId()));
+    } catch (final Exception e) {
+      return -1;
+    }
+  }
+
+  /** A parse run by a worker thread. */
+  private class Task implements Runnable {
+    private final ParserHbase parser;
+    private final String url;
+    private final RowPart row;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private Thread thread;
+    private boolean cancelled;
+    private boolean finished;
+    private boolean abandoned;
+    private boolean replaced;
+    private volatile long startAllocated = -1;
+    private volatile ParseHbase parse;
+    private volatile Throwable error;
+
+    Task(ParserHbase parser, String url, RowPart row) {
+      this.parser = parser;
+      this.url = url;
+      this.row = row;
+    }
+
+    public void run() {
+      try {
+        synchronized (this) {
+          if (cancelled) {
+            return;
+          }
+          thread = Thread.currentThread();
+        }
+        startAllocated = getAllocatedBytes(thread);
+        parse = parser.getParse(url, row);
+      } catch (final Throwable t) {
+        error = t;
+      } finally {
+        final boolean wasAbandoned;
+        final boolean wasReplaced;
+        synchronized (this) {
+          thread = null;
+          finished = true;
+          wasAbandoned = abandoned;
+          wasReplaced = replaced;
+        }
+        Thread.interrupted();                  // clear a late cancel
+        if (wasReplaced) {
+          stuck.decrementAndGet();             // its permit was given back
+        } else {
+          if (wasAbandoned) {
+            lost.decrementAndGet();
+            LOG.info("Abandoned parser of " + url + " returned, "
+                     + getCapacity() + " of " + threads
+                     + " parser threads available");
+          }
+          permits.release();
+        }
+        done.countDown();
+      }
+    }
+
+    /**
+     * Marks the task abandoned, and gives its permit back if fewer than
+     * <code>parser.threads</code> abandoned threads are already replaced.
+     * @return false if the parser finished in the meantime
+     */
+    synchronized boolean abandon() {
+      if (finished) {
+        return false;
+      }
+      abandoned = true;
+      if (stuck.incrementAndGet() <= threads) {
+        replaced = true;
+        permits.release();
+      } else {
+        stuck.decrementAndGet();
+        lost.incrementAndGet();
+      }
+      return true;
+    }
+
+    /** Returns the bytes allocated by the parser so far, or -1. */
+    synchronized long getAllocated() {
+      final long allocated = getAllocatedBytes(thread);
+      return allocated < 0 || startAllocated < 0 ? -1
+        : allocated - startAllocated;
+    }
+
+    synchronized void cancel() {
+      cancelled = true;
+      if (thread != null) {
+        thread.interrupt();
+      }
+    }
+  }
+
+  private final Configuration conf;
+  private final long timeout;
+  private final long maxAllocation;
+  private final int threads;
+  private final Semaphore permits;
+  private final ExecutorService pool;
+
+  private final AtomicLong timedOut = new AtomicLong();
+  private final AtomicLong overBudget = new AtomicLong();
+  private final AtomicLong abandoned = new AtomicLong();
+  private final AtomicLong noThread = new AtomicLong();
+  // parser instances that an abandoned thread may still be running
+  private final Map<ParserHbase, Boolean> abandonedParsers =
+    Collections.synchronizedMap(new WeakHashMap<ParserHbase, Boolean>());
+  // abandoned threads still running, whose permits were replaced or not
+  private final AtomicInteger stuck = new AtomicInteger();
+  private final AtomicInteger lost = new AtomicInteger();
+
+  public ParseExecutor(Configuration conf) {
+    this.conf = conf;
+    timeout = conf.getInt(TIMEOUT, 30) * 1000L;
+    maxAllocation = conf.getLong(MAX_ALLOCATION, -1L);
+    threads = Math.max(conf.getInt(THREADS, 8), 1);
+    permits = new Semaphore(threads);
+    final AtomicInteger count = new AtomicInteger();
+    // threads are bounded by the permits, not by the pool
+    pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, "Parser" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    if (maxAllocation > 0 && ALLOCATED_BYTES == null) {
+      LOG.warn("Allocations of threads are not measured by this JVM, "
+               + MAX_ALLOCATION + " is ignored");
+    }
+  }
+
+  /**
+   * Raises <code>parser.threads</code> to <code>threads</code>, so that
+   * that many threads parsing at once do not wait for each other. Must be
+   * called before the executor of the configuration is created.
+   */
+  public static void setMinThreads(Configuration conf, int threads) {
+    if (conf.getInt(THREADS, 8) < threads) {
+      conf.setInt(THREADS, threads);
+    }
+  }
+
+  /** Returns the parse executor for this configuration. */
+  public static ParseExecutor get(Configuration conf) {
+    final ObjectCache objectCache = ObjectCache.get(conf);
+    synchronized (objectCache) {
+      final String cacheId = ParseExecutor.class.getName();
+      ParseExecutor executor = (ParseExecutor) objectCache.getObject(cacheId);
+      if (executor == null) {
+        executor = new ParseExecutor(conf);
+        objectCache.setObject(cacheId, executor);
+      }
+      return executor;
+    }
+  }
+
+  /** Returns true if parsers run within budgets, on worker threads. */
+  public boolean isEnabled() {
+    return timeout > 0 || (maxAllocation > 0 && ALLOCATED_BYTES != null);
+  }
+
+  private ParseHbase fail(short code, String message) {
+    return new ParseStatus(ParseStatus.FAILED, code, message)
+      .getEmptyParseHbase(conf);
+  }
+
+  /**
+   * Parses a document with <code>parser</code> within the budgets. Runtime
+   * exceptions of the parser are thrown to the caller.
+   * @return the parse, or an empty parse with a failed status if the
+   * parser was cancelled
+   */
+  public ParseHbase parse(ParserHbase parser, String url, RowPart row) {
+    if (!isEnabled()) {
+      return parser.getParse(url, row);
+    }
+    try {
+      // wait for a free thread, unless stuck parsers hold them all
+      while (!permits.tryAcquire(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+        if (getCapacity() <= 0) {
+          noThread.incrementAndGet();
+          LOG.warn("No parser thread left for " + url + ", " + abandoned
+                   + " parser threads abandoned");
+          return fail(ParseStatus.FAILED_NO_THREAD, "No parser thread left");
+        }
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return new ParseStatus(e).getEmptyParseHbase(conf);
+    }
+
+    final Task task;
+    try {
+      task = new Task(parser, url, WritableUtils.clone(row, conf));
+    } catch (final RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+    pool.execute(task);
+    final long deadline = timeout > 0
+      ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+    try {
+      while (true) {
+        final long now = System.currentTimeMillis();
+        if (now >= deadline) {
+          timedOut.incrementAndGet();
+          cancel(task, "took longer than " + timeout + "ms");
+          return fail(ParseStatus.FAILED_TIMEOUT,
+                      "Parser timed out after " + timeout + "ms");
+        }
+        if (task.done.await(Math.min(CHECK_INTERVAL, deadline - now),
+                            TimeUnit.MILLISECONDS)) {
+          break;
+        }
+        final long allocated = task.getAllocated();
+        if (maxAllocation > 0 && allocated > maxAllocation) {
+          overBudget.incrementAndGet();
+          cancel(task, "allocated " + allocated + " bytes");
+          return fail(ParseStatus.FAILED_MEMORY_LIMIT,
+                      "Parser allocated more than " + maxAllocation + " bytes");
+        }
+      }
+    } catch (final InterruptedException e) {
+      task.cancel();
+      Thread.currentThread().interrupt();
+      return new ParseStatus(e).getEmptyParseHbase(conf);
+    }
+
+    final Throwable error = task.error;
+    if (error instanceof OutOfMemoryError) {
+      overBudget.incrementAndGet();
+      LOG.warn("Parser of " + url + " ran out of memory");
+      return fail(ParseStatus.FAILED_MEMORY_LIMIT, error.toString());
+    } else if (error instanceof RuntimeException) {
+      throw (RuntimeException) error;
+    } else if (error instanceof Error) {
+      throw (Error) error;
+    } else if (error != null) {
+      throw new RuntimeException(error);
+    }
+    row.setChanges(task.row);
+    return task.parse;
+  }
+
+  private void cancel(Task task, String reason) {
+    LOG.warn("Cancelling parser of " + task.url + ": " + reason);
+    task.cancel();
+    try {
+      if (!task.done.await(STOP_TIMEOUT, TimeUnit.MILLISECONDS)
+          && task.abandon()) {
+        abandoned.incrementAndGet();
+        abandonedParsers.put(task.parser, Boolean.TRUE);
+        if (task.replaced) {
+          LOG.warn("Parser of " + task.url + " did not stop, abandoning it"
+                   + " and replacing its thread");
+        } else {
+          LOG.warn("Parser of " + task.url + " did not stop, abandoning it; "
+                   + getCapacity() + " of " + threads
+                   + " parser threads available");
+        }
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Returns true if <code>parser</code> was abandoned while it parsed, and
+   * may still be running: it must not be used again.
+   */
+  public boolean isAbandoned(ParserHbase parser) {
+    return abandonedParsers.containsKey(parser);
+  }
+
+  /** Returns the number of parses cancelled for taking too long. */
+  public long getTimeoutCount() {
+    return timedOut.get();
+  }
+
+  /** Returns the number of parses cancelled for using too much memory. */
+  public long getMemoryLimitCount() {
+    return overBudget.get();
+  }
+
+  /** Returns the number of parses failed for lack of a parser thread. */
+  public long getNoThreadCount() {
+    return noThread.get();
+  }
+
+  /** Returns the number of parser threads that did not stop when
+   * cancelled. */
+  public long getAbandonedCount() {
+    return abandoned.get();
+  }
+
+  /** Returns the number of parsers that can run at once, which abandoned
+   * threads beyond those replaced reduce. */
+  public int getCapacity() {
+    return threads - lost.get();
+  }
+
+  @Override
+  public String toString() {
+    return "parse executor: threads=" + threads + ", timeout=" + timeout
+      + "ms, maxAllocation=" + maxAllocation + ", timeouts=" + timedOut
+      + ", memoryLimits=" + overBudget + ", noThread=" + noThread
+      + ", abandoned=" + abandoned
+      + ", capacity=" + getCapacity();
+  }
+}
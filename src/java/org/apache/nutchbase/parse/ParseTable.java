@@ -1,51 +1,68 @@
 package org.apache.nutchbase.parse;
 
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hbase.io.BatchUpdate;
+import org.apache.hadoop.hbase.io.Cell;
 import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
 import org.apache.hadoop.hbase.io.RowResult;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapRunnable;
 import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
-import org.apache.nutch.fetcher.Fetcher;
-import org.apache.nutch.net.URLFilterException;
-import org.apache.nutch.net.URLFilters;
-import org.apache.nutch.net.URLNormalizers;
-import org.apache.nutch.parse.Outlink;
 import org.apache.nutch.parse.ParseStatus;
 import org.apache.nutch.util.NutchConfiguration;
 import org.apache.nutch.util.NutchJob;
-import org.apache.nutch.util.URLUtil;
 import org.apache.nutchbase.crawl.CrawlDatumHbase;
 import org.apache.nutchbase.crawl.SignatureFactoryHbase;
-import org.apache.nutchbase.crawl.SignatureHbase;
 import org.apache.nutchbase.fetcher.FetcherHbase;
+import org.apache.nutchbase.util.hbase.BatchTableInputFormat;
+import org.apache.nutchbase.util.hbase.ColumnCompression;
 import org.apache.nutchbase.util.hbase.RowPart;
 import org.apache.nutchbase.util.hbase.TableColumns;
 import org.apache.nutchbase.util.hbase.TableMapReduce;
 import org.apache.nutchbase.util.hbase.TableUtil;
 
+/**
+ * Parses the fetched rows of the webtable. Rows are parsed by
+ * <code>parse.map.threads</code> threads of the map task, each with its own
+ * parsers, while the map thread reads the input. Rows read but not yet
+ * written are bounded by their size, <code>parse.map.inflight.size</code>.
+ * Rows are written in the order their parse ends; the reduce does not
+ * depend on it.
+ */
 public class ParseTable
 extends TableMapReduce<ImmutableBytesWritable, RowPart>
-implements Tool {
+implements MapRunnable<ImmutableBytesWritable, RowResult,
+                       ImmutableBytesWritable, RowPart>,
+           Tool {
 
   public static final Log LOG = LogFactory.getLog(ParseTable.class);
 
   public static final String TMP_UPDATE_MARK = "__tmp_update_mark__";
 
+  /** Number of parse threads of a map task. */
+  public static final String THREADS = "parse.map.threads";
+
+  /** Maximum size of the rows read but not yet parsed and written,
+   * in bytes. */
+  public static final String INFLIGHT_SIZE = "parse.map.inflight.size";
+
   private static final Set<String> COLUMNS = new HashSet<String>();
 
   static {
@@ -56,32 +73,244 @@ implements Tool {
     COLUMNS.add(TableColumns.METADATA_STR + FetcherHbase.TMP_PARSE_MARK);
   }
 
+  private static class Record {
+    final ImmutableBytesWritable key;
+    final RowResult rowResult;
+    final long size;
+
+    Record(ImmutableBytesWritable key, RowResult rowResult, long size) {
+      this.key = key;
+      this.rowResult = rowResult;
+      this.size = size;
+    }
+  }
+
+  private JobConf job;
   private ParseUtilHbase parseUtil;
-  private SignatureHbase sig;
-  private URLFilters filters;
-  private URLNormalizers normalizers;
-  private int maxOutlinks;
-  private boolean ignoreExternalLinks;
+  private ColumnCompression compression;
 
+  private int threadCount;
+  private long maxInflight;
+  private BlockingQueue<Record> queue;
+  private volatile boolean feederFinished;
+  private volatile IOException error;
+
+  private long inflight;                          // guarded by this
+  private long maxInflightSeen;                   // guarded by this
+  private final AtomicLong blocked = new AtomicLong();
+  private final AtomicLong blockedTime = new AtomicLong();
 
   @Override
   public void configure(JobConf job) {
     super.configure(job);
+    this.job = job;
+    threadCount = Math.max(job.getInt(THREADS, 4), 1);
+    maxInflight = job.getLong(INFLIGHT_SIZE, 64L * 1024 * 1024);
+    // every parse thread may need a parser thread of the executor
+    ParseExecutor.setMinThreads(job, threadCount);
     parseUtil = new ParseUtilHbase(job);
-    sig = SignatureFactoryHbase.getSignature(job);
-    filters = new URLFilters(job);
-    normalizers = new URLNormalizers(job, URLNormalizers.SCOPE_OUTLINK);
-    final int maxOutlinksPerPage = job.getInt("db.max.outlinks.per.page", 100);
-    maxOutlinks = (maxOutlinksPerPage < 0) ? Integer.MAX_VALUE
-        : maxOutlinksPerPage;
-    ignoreExternalLinks = job.getBoolean("db.ignore.external.links", false);
+    compression = ColumnCompression.get(job);
+  }
+
+  /**
+   * This class parses the rows read by the map thread, with its own
+   * parser instances.
+   */
+  private class ParseThread extends Thread {
+    private final OutputCollector<ImmutableBytesWritable, RowPart> output;
+    private final Reporter reporter;
+
+    public ParseThread(int num,
+        OutputCollector<ImmutableBytesWritable, RowPart> output,
+        Reporter reporter) {
+      this.setDaemon(true);
+      this.setName("ParseThread" + num);
+      this.output = output;
+      this.reporter = reporter;
+    }
 
+    @Override
+    public void run() {
+      // parsers need not be thread-safe, so each thread has its own
+      ParseUtilHbase threadParseUtil = null;
+      try {
+        while (true) {
+          final Record record = queue.poll(100, TimeUnit.MILLISECONDS);
+          if (record == null) {
+            if (feederFinished && queue.isEmpty()) {
+              return;
+            }
+            continue;
+          }
+          if (threadParseUtil == null) {
+            threadParseUtil = new ParseUtilHbase(job, false);
+          }
+          try {
+            map(threadParseUtil, record.key, record.rowResult, output,
+                reporter);
+          } finally {
+            release(record.size);
+          }
+          reporter.progress();
+        }
+      } catch (final IOException e) {
+        LOG.fatal("ParseThread output failed: " + e);
+        error = e;
+      } catch (final InterruptedException e) {
+        error = new IOException("ParseThread interrupted");
+      } catch (final RuntimeException e) {
+        LOG.fatal("ParseThread failed: " + StringUtils.stringifyException(e));
+        error = new IOException("ParseThread failed: " + e);
+      } finally {
+        if (error != null) {
+          // unblock the map thread, the rows are lost anyway
+          queue.clear();
+          synchronized (ParseTable.this) {
+            inflight = 0;
+            ParseTable.this.notifyAll();
+          }
+        }
+      }
+    }
+  }
+
+  /** Returns the size of a row, its values and key. */
+  private static long getSize(ImmutableBytesWritable key,
+      RowResult rowResult) {
+    long size = key.getSize();
+    for (final Cell cell : rowResult.values()) {
+      size += cell.getValue().length;
+    }
+    return size;
+  }
+
+  /**
+   * Waits until a row of this size fits in the rows in flight. A row
+   * larger than the limit waits until no other row is in flight.
+   */
+  private synchronized void acquire(long size)
+  throws IOException, InterruptedException {
+    if (inflight > 0 && inflight + size > maxInflight) {
+      blocked.incrementAndGet();
+      final long start = System.nanoTime();
+      try {
+        while (inflight > 0 && inflight + size > maxInflight) {
+          checkError();
+          wait(100);
+        }
+      } finally {
+        blockedTime.addAndGet(System.nanoTime() - start);
+      }
+    }
+    inflight += size;
+    maxInflightSeen = Math.max(maxInflightSeen, inflight);
+  }
+
+  private synchronized void release(long size) {
+    inflight = Math.max(inflight - size, 0);
+    notifyAll();
+  }
+
+  private void checkError() throws IOException {
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  public void run(RecordReader<ImmutableBytesWritable, RowResult> input,
+      final OutputCollector<ImmutableBytesWritable, RowPart> output,
+      Reporter reporter) throws IOException {
+    if (threadCount == 1) {
+      ImmutableBytesWritable key = input.createKey();
+      RowResult rowResult = input.createValue();
+      while (input.next(key, rowResult)) {
+        map(key, rowResult, output, reporter);
+        key = input.createKey();
+        rowResult = input.createValue();
+      }
+      return;
+    }
+
+    LOG.info("ParseHbase: threads: " + threadCount);
+    queue = new LinkedBlockingQueue<Record>();
+    // parse threads share the collector of the task
+    final OutputCollector<ImmutableBytesWritable, RowPart> syncOutput =
+      new OutputCollector<ImmutableBytesWritable, RowPart>() {
+        public void collect(ImmutableBytesWritable key, RowPart row)
+        throws IOException {
+          synchronized (output) {
+            output.collect(key, row);
+          }
+        }
+      };
+    final ParseThread[] threads = new ParseThread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      threads[i] = new ParseThread(i, syncOutput, reporter);
+      threads[i].start();
+    }
+
+    boolean finished = false;
+    try {
+      while (true) {
+        checkError();
+        final ImmutableBytesWritable key = input.createKey();
+        final RowResult rowResult = input.createValue();
+        if (!input.next(key, rowResult)) {
+          break;
+        }
+        final long size = getSize(key, rowResult);
+        acquire(size);
+        queue.put(new Record(key, rowResult, size));
+      }
+      finished = true;
+    } catch (final InterruptedException e) {
+      throw new IOException("Interrupted while reading input");
+    } finally {
+      if (!finished) {
+        // the task fails: parse no more rows
+        queue.clear();
+      }
+      feederFinished = true;
+      // no thread may write once this method returns
+      for (final ParseThread thread : threads) {
+        while (thread.isAlive()) {
+          try {
+            thread.join();
+          } catch (final InterruptedException e) {
+            finished = false;
+            queue.clear();
+            thread.interrupt();
+          }
+        }
+      }
+    }
+    if (!finished) {
+      throw new IOException("Interrupted while waiting for parse threads");
+    }
+    checkError();
+
+    LOG.info("ParseHbase: blocked " + blocked + " times, "
+             + blockedTime.get() / 1000000L + "ms, max in flight "
+             + maxInflightSeen + " bytes");
+    reporter.incrCounter("ParseThreads", "blocked", blocked.get());
+    reporter.incrCounter("ParseThreads", "blocked ms",
+                         blockedTime.get() / 1000000L);
+    reporter.incrCounter("ParseThreads", "max inflight bytes",
+                         maxInflightSeen);
   }
 
   @Override
   public void map(ImmutableBytesWritable key, RowResult rowResult,
       OutputCollector<ImmutableBytesWritable, RowPart> output,
       Reporter reporter)
+  throws IOException {
+    map(parseUtil, key, rowResult, output, reporter);
+  }
+
+  private void map(ParseUtilHbase parseUtil, ImmutableBytesWritable key,
+      RowResult rowResult,
+      OutputCollector<ImmutableBytesWritable, RowPart> output,
+      Reporter reporter)
   throws IOException {
     final RowPart row = new RowPart(rowResult);
     final String url = TableUtil.unreverseUrl(Bytes.toString(key.get()));
@@ -99,92 +328,31 @@ implements Tool {
       return;
     }
 
-    ParseHbase parse;
+    RowPart redirectRow;
     try {
-      parse = parseUtil.parse(url, row);
+      redirectRow = parseUtil.process(url, row);
     } catch (final Exception e) {
       LOG.warn("Error parsing: " + key + ": " + StringUtils.stringifyException(e));
+      reporter.incrCounter("ParserStatus", "exception", 1);
       return;
     }
 
-    final byte[] signature = sig.calculate(row, parse);
-
-    final ParseStatus pstatus = parse.getParseStatus();
-    row.setParseStatus(pstatus);
-    if (pstatus.isSuccess()) {
-      if (pstatus.getMinorCode() == ParseStatus.SUCCESS_REDIRECT) {
-        String newUrl = pstatus.getMessage();
-        final int refreshTime = Integer.parseInt(pstatus.getArgs()[1]);
-        newUrl = normalizers.normalize(newUrl,
-            URLNormalizers.SCOPE_FETCHER);
-        try {
-          newUrl = filters.filter(newUrl);
-          if (newUrl == null || newUrl.equals(url)) {
-            final String reprUrl = URLUtil.chooseRepr(url, newUrl,
-                refreshTime < Fetcher.PERM_REFRESH_TIME);
-            final String reversedUrl = TableUtil.reverseUrl(reprUrl);
-            final ImmutableBytesWritable newKey =
-              new ImmutableBytesWritable(reversedUrl.getBytes());
-            final RowPart newRow = new RowPart(newKey.get());
-            if (!reprUrl.equals(url)) {
-              newRow.setReprUrl(reprUrl);
-            }
-            newRow.putMeta(FetcherHbase.REDIRECT_DISCOVERED, TableUtil.YES_VAL);
-            output.collect(newKey, newRow);
-          }
-        } catch (final Exception e) {
-          // ignore
-        }
+    final ParseStatus pstatus = row.getParseStatus();
+    if (pstatus != null) {
+      if (pstatus.getMinorCode() == ParseStatus.FAILED_TIMEOUT) {
+        reporter.incrCounter("ParserStatus", "timeout", 1);
+      } else if (pstatus.getMinorCode() == ParseStatus.FAILED_MEMORY_LIMIT) {
+        reporter.incrCounter("ParserStatus", "memory limit", 1);
       } else {
-        row.setText(parse.getText());
-        row.setTitle(parse.getTitle());
-        final byte[] prevSig = row.getSignature();
-        if (prevSig != null) {
-          row.setPrevSignature(prevSig);
-        }
-        row.setSignature(signature);
-        row.deleteAllOutlinks();
-        final Outlink[] outlinks = parse.getOutlinks();
-        final int count = 0;
-        String fromHost;
-        if (ignoreExternalLinks) {
-          try {
-            fromHost = new URL(url).getHost().toLowerCase();
-          } catch (final MalformedURLException e) {
-            fromHost = null;
-          }
-        } else {
-          fromHost = null;
-        }
-        for (int i = 0; count < maxOutlinks && i < outlinks.length; i++) {
-          String toUrl = outlinks[i].getToUrl();
-          toUrl = normalizers.normalize(toUrl, URLNormalizers.SCOPE_OUTLINK);
-          try {
-            toUrl = filters.filter(toUrl);
-          } catch (final URLFilterException e) {
-            continue;
-          }
-          if (toUrl == null) {
-            continue;
-          }
-          String toHost;
-          if (ignoreExternalLinks) {
-            try {
-              toHost = new URL(toUrl).getHost().toLowerCase();
-            } catch (final MalformedURLException e) {
-              toHost = null;
-            }
-            if (toHost == null || !toHost.equals(fromHost)) { // external links
-              continue; // skip it
-            }
-          }
-
-          row.addOutlink(new Outlink(toUrl, outlinks[i].getAnchor()));
-        }
-        row.putMeta(TMP_UPDATE_MARK, TableUtil.YES_VAL);
+        reporter.incrCounter("ParserStatus",
+            ParseStatus.majorCodes[pstatus.getMajorCode()], 1);
       }
     }
 
+    if (redirectRow != null) {
+      output.collect(new ImmutableBytesWritable(redirectRow.getRowId()),
+                     redirectRow);
+    }
     output.collect(key, row);
   }
 
@@ -195,10 +363,19 @@ implements Tool {
   throws IOException {
     RowPart row = values.next();
     row.deleteMeta(FetcherHbase.TMP_PARSE_MARK);
-    output.collect(key, row.makeBatchUpdate());
+    output.collect(key, row.makeBatchUpdate(compression));
   }
 
   public void parse(String table) throws IOException {
+    parse(table, null);
+  }
+
+  /**
+   * Parses the fetched rows.
+   * @param batchId if not null, only the rows of this batch are read
+   * through the batch index
+   */
+  public void parse(String table, String batchId) throws IOException {
 
     LOG.info("ParseHbase: starting");
     LOG.info("ParseHbase: segment: " + table);
@@ -206,33 +383,47 @@ implements Tool {
     final JobConf job = new NutchJob(getConf());
     job.setJobName("parse-hbase " + table);
 
-    TableMapReduce.initJob(table, getColumns(job),
+    TableMapReduce.initJob(table, TableUtil.getColumns(getColumnSet(job)),
         ParseTable.class, ImmutableBytesWritable.class,
         RowPart.class, job);
+    job.setMapRunnerClass(ParseTable.class);
+    if (batchId != null) {
+      BatchTableInputFormat.setBatch(job, batchId);
+    }
 
     JobClient.runJob(job);
     LOG.info("ParseHbase: done");
   }
 
-  private String getColumns(JobConf job) {
+  /**
+   * Returns the columns that have to be read to parse a fetched row.
+   */
+  public static Set<String> getColumnSet(JobConf job) {
     final Set<String> columnSet = new HashSet<String>(COLUMNS);
     final ParserFactoryHbase parserFactory = new ParserFactoryHbase(job);
     columnSet.addAll(parserFactory.getColumnSet());
     columnSet.addAll(SignatureFactoryHbase.getSignature(job).getColumnSet());
     final HtmlParseFiltersHbase filters = new HtmlParseFiltersHbase(job);
     columnSet.addAll(filters.getColumnSet());
-    return TableUtil.getColumns(columnSet);
+    return columnSet;
   }
 
   public int run(String[] args) throws Exception {
-    final String usage = "Usage: ParseSegment <webtable>";
+    final String usage = "Usage: ParseSegment <webtable> [-batch id]";
 
     if (args.length == 0) {
       System.err.println(usage);
       System.exit(-1);
     }
 
-    parse(args[0]);
+    String batchId = null;
+    for (int i = 1; i < args.length; i++) {
+      if ("-batch".equals(args[i])) {
+        batchId = args[++i];
+      }
+    }
+
+    parse(args[0], batchId);
     return 0;
   }
 
@@ -21,9 +21,23 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 // Nutch Imports
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import org.apache.nutch.fetcher.Fetcher;
+import org.apache.nutch.net.URLFilterException;
+import org.apache.nutch.net.URLFilters;
+import org.apache.nutch.net.URLNormalizers;
+import org.apache.nutch.parse.Outlink;
 import org.apache.nutch.parse.ParseException;
+import org.apache.nutch.parse.ParseStatus;
 import org.apache.nutch.parse.ParserNotFound;
+import org.apache.nutch.util.URLUtil;
+import org.apache.nutchbase.crawl.SignatureFactoryHbase;
+import org.apache.nutchbase.crawl.SignatureHbase;
+import org.apache.nutchbase.fetcher.FetcherHbase;
 import org.apache.nutchbase.util.hbase.RowPart;
+import org.apache.nutchbase.util.hbase.TableUtil;
 
 // Hadoop imports
 import org.apache.hadoop.conf.Configuration;
@@ -42,13 +56,36 @@ public class ParseUtilHbase {
   /* our log stream */
   public static final Log LOG = LogFactory.getLog(ParseUtilHbase.class);
   private ParserFactoryHbase parserFactory;
+  private ParseExecutor executor;
+  private SignatureHbase sig;
+  private URLFilters filters;
+  private URLNormalizers normalizers;
+  private int maxOutlinks;
+  private boolean ignoreExternalLinks;
   
   /**
    * 
    * @param conf
    */
   public ParseUtilHbase(Configuration conf) {
-    this.parserFactory = new ParserFactoryHbase(conf);
+    this(conf, true);
+  }
+
+  /**
+   * @param sharedParsers If false, this instance has its own parser
+   *        instances, see {@link ParserFactoryHbase}. Threads that parse
+   *        concurrently each need one.
+   */
+  public ParseUtilHbase(Configuration conf, boolean sharedParsers) {
+    this.parserFactory = new ParserFactoryHbase(conf, sharedParsers);
+    this.executor = ParseExecutor.get(conf);
+    sig = SignatureFactoryHbase.getSignature(conf);
+    filters = new URLFilters(conf);
+    normalizers = new URLNormalizers(conf, URLNormalizers.SCOPE_OUTLINK);
+    final int maxOutlinksPerPage = conf.getInt("db.max.outlinks.per.page", 100);
+    maxOutlinks = (maxOutlinksPerPage < 0) ? Integer.MAX_VALUE
+        : maxOutlinksPerPage;
+    ignoreExternalLinks = conf.getBoolean("db.ignore.external.links", false);
   }
   
   /**
@@ -79,7 +116,12 @@ public class ParseUtilHbase {
       if (LOG.isDebugEnabled()) {
         LOG.debug("Parsing [" + url + "] with [" + parsers[i] + "]");
       }
-      parse = parsers[i].getParse(url, row);
+      // a parser cancelled for its budgets returns a failed parse
+      parse = executor.parse(parsers[i], url, row);
+      if (executor.isAbandoned(parsers[i])) {
+        // it may still be running, use a new instance from now on
+        parserFactory.removeParser(parsers[i]);
+      }
       if (parse != null)
         return parse;
     }
@@ -90,4 +132,104 @@ public class ParseUtilHbase {
     }
     return null;
   }
+
+  /**
+   * Parses a fetched row and stores the results back into it: parse status,
+   * text, title, signature and the normalized and filtered outlinks. A
+   * successfully parsed row is marked with
+   * {@link ParseTable#TMP_UPDATE_MARK}.
+   *
+   * @param url Page's URL
+   * @param row url's row, must contain the content of the page
+   * @return a new row for the target of a meta-refresh redirect,
+   * or <code>null</code> if there is none
+   * @throws ParseException If the content can not be parsed.
+   */
+  public RowPart process(String url, RowPart row) throws ParseException {
+    final ParseHbase parse = parse(url, row);
+    if (parse == null) {
+      throw new ParseException("Unable to parse content of " + url);
+    }
+
+    final byte[] signature = sig.calculate(row, parse);
+
+    RowPart redirectRow = null;
+    final ParseStatus pstatus = parse.getParseStatus();
+    row.setParseStatus(pstatus);
+    if (pstatus.isSuccess()) {
+      if (pstatus.getMinorCode() == ParseStatus.SUCCESS_REDIRECT) {
+        String newUrl = pstatus.getMessage();
+        final int refreshTime = Integer.parseInt(pstatus.getArgs()[1]);
+        try {
+          newUrl = normalizers.normalize(newUrl,
+              URLNormalizers.SCOPE_FETCHER);
+          newUrl = filters.filter(newUrl);
+          if (newUrl != null && !newUrl.equals(url)) {
+            final String reprUrl = URLUtil.chooseRepr(url, newUrl,
+                refreshTime < Fetcher.PERM_REFRESH_TIME);
+            final String reversedUrl = TableUtil.reverseUrl(reprUrl);
+            redirectRow = new RowPart(reversedUrl.getBytes());
+            if (!reprUrl.equals(url)) {
+              redirectRow.setReprUrl(reprUrl);
+            }
+            redirectRow.putMeta(FetcherHbase.REDIRECT_DISCOVERED,
+                                TableUtil.YES_VAL);
+          }
+        } catch (final Exception e) {
+          // ignore
+        }
+      } else {
+        row.setText(parse.getText());
+        row.setTitle(parse.getTitle());
+        final byte[] prevSig = row.getSignature();
+        if (prevSig != null) {
+          row.setPrevSignature(prevSig);
+        }
+        row.setSignature(signature);
+        row.deleteAllOutlinks();
+        final Outlink[] outlinks = parse.getOutlinks();
+        int count = 0;
+        String fromHost;
+        if (ignoreExternalLinks) {
+          try {
+            fromHost = new URL(url).getHost().toLowerCase();
+          } catch (final MalformedURLException e) {
+            fromHost = null;
+          }
+        } else {
+          fromHost = null;
+        }
+        for (int i = 0; count < maxOutlinks && i < outlinks.length; i++) {
+          String toUrl = outlinks[i].getToUrl();
+          try {
+            toUrl = normalizers.normalize(toUrl, URLNormalizers.SCOPE_OUTLINK);
+            toUrl = filters.filter(toUrl);
+          } catch (final MalformedURLException e) {
+            continue;
+          } catch (final URLFilterException e) {
+            continue;
+          }
+          if (toUrl == null) {
+            continue;
+          }
+          if (ignoreExternalLinks) {
+            String toHost;
+            try {
+              toHost = new URL(toUrl).getHost().toLowerCase();
+            } catch (final MalformedURLException e) {
+              toHost = null;
+            }
+            if (toHost == null || !toHost.equals(fromHost)) { // external links
+              continue; // skip it
+            }
+          }
+
+          row.addOutlink(new Outlink(toUrl, outlinks[i].getAnchor()));
+          count++;
+        }
+        row.putMeta(ParseTable.TMP_UPDATE_MARK, TableUtil.YES_VAL);
+      }
+    }
+    return redirectRow;
+  }
 }
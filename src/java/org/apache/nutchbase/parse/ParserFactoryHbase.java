@@ -18,8 +18,10 @@ package org.apache.nutchbase.parse;
 
 // JDK imports
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 // Commons Logging imports
@@ -42,7 +44,12 @@ import org.apache.nutch.util.MimeUtil;
 import org.apache.nutch.util.ObjectCache;
 
 
-/** Creates and caches {@link Parser} plugins.*/
+/**
+ * Creates and caches {@link Parser} plugins. Parser instances are shared by
+ * all the factories of a configuration, through its {@link ObjectCache},
+ * unless the factory is created with its own parsers: parsers need not be
+ * thread-safe, so threads that parse concurrently each use such a factory.
+ */
 public final class ParserFactoryHbase {
   
   public static final Log LOG = LogFactory.getLog(ParserFactoryHbase.class);
@@ -58,8 +65,22 @@ public final class ParserFactoryHbase {
   private ExtensionPoint extensionPoint;
   private ParsePluginList parsePluginList;
 
+  /** Parser instances of this factory, or null if they are shared. */
+  private Map<String, ParserHbase> parsers;
+
   public ParserFactoryHbase(Configuration conf) {
+    this(conf, true);
+  }
+
+  /**
+   * @param shared If false, this factory creates its own parser instances
+   *        instead of sharing those of the configuration.
+   */
+  public ParserFactoryHbase(Configuration conf, boolean shared) {
     this.conf = conf;
+    if (!shared) {
+      this.parsers = new HashMap<String, ParserHbase>();
+    }
     ObjectCache objectCache = ObjectCache.get(conf);
     this.extensionPoint = PluginRepository.get(conf).getExtensionPoint(
         ParserHbase.X_POINT_ID);
@@ -109,8 +130,6 @@ public final class ParserFactoryHbase {
     List<ParserHbase> parsers = null;
     List<Extension> parserExts = null;
     
-    ObjectCache objectCache = ObjectCache.get(conf);
-    
     // TODO once the MimeTypes is available
     // parsers = getExtensions(MimeUtils.map(contentType));
     // if (parsers != null) {
@@ -129,11 +148,11 @@ public final class ParserFactoryHbase {
       ParserHbase p = null;
       try {
         //check to see if we've cached this parser instance yet
-        p = (ParserHbase) objectCache.getObject(ext.getId());
+        p = getCachedParser(ext.getId());
         if (p == null) {
           // go ahead and instantiate it and then cache it
           p = (ParserHbase) ext.getExtensionInstance();
-          objectCache.setObject(ext.getId(),p);
+          cacheParser(ext.getId(), p);
         }
         parsers.add(p);
       } catch (PluginRuntimeException e) {
@@ -175,8 +194,7 @@ public final class ParserFactoryHbase {
     Extension[] extensions = this.extensionPoint.getExtensions();
     Extension parserExt = null;
 
-    ObjectCache objectCache = ObjectCache.get(conf);
-    
+
     if (id != null) {
       parserExt = getExtension(extensions, id);
     }
@@ -189,14 +207,14 @@ public final class ParserFactoryHbase {
     }
     
     // first check the cache	    	   
-    if (objectCache.getObject(parserExt.getId()) != null) {
-      return (ParserHbase) objectCache.getObject(parserExt.getId());
+    if (getCachedParser(parserExt.getId()) != null) {
+      return getCachedParser(parserExt.getId());
 
     // if not found in cache, instantiate the Parser    
     } else {
       try {
         ParserHbase p = (ParserHbase) parserExt.getExtensionInstance();
-        objectCache.setObject(parserExt.getId(), p);
+        cacheParser(parserExt.getId(), p);
         return p;
       } catch (PluginRuntimeException e) {
         if (LOG.isWarnEnabled()) {
@@ -209,6 +227,37 @@ public final class ParserFactoryHbase {
     }
   }
   
+  private ParserHbase getCachedParser(String id) {
+    if (parsers != null) {
+      synchronized (parsers) {
+        return parsers.get(id);
+      }
+    }
+    return (ParserHbase) ObjectCache.get(conf).getObject(id);
+  }
+
+  /**
+   * Drops <code>parser</code> from the cache, so that a new instance is
+   * created the next time it is needed.
+   */
+  public void removeParser(ParserHbase parser) {
+    for (Extension ext : this.extensionPoint.getExtensions()) {
+      if (getCachedParser(ext.getId()) == parser) {
+        cacheParser(ext.getId(), null);
+      }
+    }
+  }
+
+  private void cacheParser(String id, ParserHbase parser) {
+    if (parsers != null) {
+      synchronized (parsers) {
+        parsers.put(id, parser);
+      }
+    } else {
+      ObjectCache.get(conf).setObject(id, parser);
+    }
+  }
+
   public Set<String> getColumnSet() {
     Set<String> columnSet = new HashSet<String>();
     Extension[] extensions = this.extensionPoint.getExtensions();
@@ -0,0 +1,27 @@
+package org.apache.nutchbase.parse;
+
+import org.xml.sax.ContentHandler;
+
+// Nutch imports
+import org.apache.nutch.parse.HTMLMetaTags;
+import org.apache.nutchbase.util.hbase.RowPart;
+
+
+/** An {@link HtmlParseFilterHbase} that can also work from the SAX events
+ * of a page, so that parsers which extract content without a DOM tree need
+ * not build one for it.
+ */
+public interface StreamingHtmlParseFilterHbase extends HtmlParseFilterHbase {
+
+  /** Returns a new handler of the SAX events of a page, for a single page.
+   * The parser passes it back to
+   * {@link #filter(String, RowPart, ParseHbase, HTMLMetaTags, ContentHandler)}
+   * once the page has been read. */
+  ContentHandler getContentHandler(String url);
+
+  /** Adds metadata or otherwise modifies a parse of HTML content, given
+   * the handler that received the SAX events of the page. */
+  ParseHbase filter(String url, RowPart row, ParseHbase parseResult,
+                    HTMLMetaTags metaTags, ContentHandler handler);
+
+}
@@ -0,0 +1,139 @@
+package org.apache.nutchbase.util.hbase;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Scanner;
+import org.apache.hadoop.hbase.io.RowResult;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Secondary index of the urls selected by a generate run. Rows are keyed
+ * by "&lt;batch id&gt;-&lt;partition&gt;-&lt;reversed url&gt;", so that
+ * the rows of a single batch (and of a single partition of the batch) can
+ * be read with a range scan instead of scanning the whole webtable.
+ */
+public class BatchTable {
+
+  public static final Log LOG = LogFactory.getLog(BatchTable.class);
+
+  /** If true, generator writes the batch index. */
+  public static final String BATCH_INDEX = "generate.batch.index";
+
+  /** Name of the batch table. Defaults to "&lt;webtable&gt;_batch". */
+  public static final String BATCH_TABLE = "generate.batch.table";
+
+  /** Batch to be read by {@link BatchTableInputFormat}. */
+  public static final String BATCH_ID = "generate.batch.id";
+
+  public static final String URL_STR = "url:";
+  public static final byte[] URL = Bytes.toBytes(URL_STR);
+
+  private static final char SEPARATOR = '-';
+
+  public static String getTableName(Configuration conf, String webTable) {
+    final String tableName = conf.get(BATCH_TABLE);
+    if (tableName == null || tableName.length() == 0) {
+      return webTable + "_batch";
+    }
+    return tableName;
+  }
+
+  /** Creates a new batch id. Ids never contain {@link #SEPARATOR}. */
+  public static String newBatchId(long curTime) {
+    return Long.toString(curTime);
+  }
+
+  /** Creates the batch table if it does not exist yet. */
+  public static void createTable(HBaseConfiguration hbaseConf, String tableName)
+  throws IOException {
+    final HBaseAdmin admin = new HBaseAdmin(hbaseConf);
+    if (admin.tableExists(tableName)) {
+      return;
+    }
+    LOG.info("Creating batch table: " + tableName);
+    final HTableDescriptor desc = new HTableDescriptor(tableName);
+    desc.addFamily(new HColumnDescriptor(URL));
+    admin.createTable(desc);
+  }
+
+  /** Returns the first key of the given batch. */
+  public static byte[] getStartRow(String batchId) {
+    return Bytes.toBytes(batchId + SEPARATOR);
+  }
+
+  /** Returns the key right after the last key of the given batch. */
+  public static byte[] getStopRow(String batchId) {
+    return Bytes.toBytes(batchId + (char) (SEPARATOR + 1));
+  }
+
+  /** Returns the first key of a partition of the given batch. */
+  public static byte[] getStartRow(String batchId, int partition) {
+    return Bytes.toBytes(batchId + SEPARATOR + formatPartition(partition)
+                         + SEPARATOR);
+  }
+
+  /** Returns the key right after the last key of a partition. */
+  public static byte[] getStopRow(String batchId, int partition) {
+    return Bytes.toBytes(batchId + SEPARATOR + formatPartition(partition)
+                         + (char) (SEPARATOR + 1));
+  }
+
+  public static byte[] makeKey(String batchId, int partition,
+                               String reversedUrl) {
+    return Bytes.toBytes(batchId + SEPARATOR + formatPartition(partition)
+                         + SEPARATOR + reversedUrl);
+  }
+
+  /** Extracts the partition number from a batch table key. */
+  public static int getPartition(byte[] key) {
+    final String keyString = Bytes.toString(key);
+    final int start = keyString.indexOf(SEPARATOR) + 1;
+    final int end = keyString.indexOf(SEPARATOR, start);
+    return Integer.parseInt(keyString.substring(start, end));
+  }
+
+  /** Extracts the reversed url (i.e. the webtable key) from a batch table
+   * key. */
+  public static String getReversedUrl(byte[] key) {
+    final String keyString = Bytes.toString(key);
+    final int start = keyString.indexOf(SEPARATOR) + 1;
+    return keyString.substring(keyString.indexOf(SEPARATOR, start) + 1);
+  }
+
+  /** Deletes all index rows of a batch. */
+  public static void deleteBatch(HBaseConfiguration hbaseConf,
+      String tableName, String batchId) throws IOException {
+    final HTable table = new HTable(hbaseConf, tableName);
+    final Scanner scanner = table.getScanner(new byte[][] { URL },
+        getStartRow(batchId), getStopRow(batchId));
+    int count = 0;
+    try {
+      RowResult rowResult;
+      while ((rowResult = scanner.next()) != null) {
+        table.deleteAll(rowResult.getRow());
+        count++;
+      }
+    } finally {
+      scanner.close();
+    }
+    LOG.info("Deleted " + count + " rows of batch " + batchId
+             + " from " + tableName);
+  }
+
+  private static String formatPartition(int partition) {
+    final String s = Integer.toString(partition);
+    final StringBuilder buf = new StringBuilder(5);
+    for (int i = s.length(); i < 5; i++) {
+      buf.append('0');
+    }
+    return buf.append(s).toString();
+  }
+}
@@ -0,0 +1,111 @@
+package org.apache.nutchbase.util.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Scanner;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.io.RowResult;
+import org.apache.hadoop.hbase.mapred.TableInputFormat;
+import org.apache.hadoop.hbase.mapred.TableSplit;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapred.InputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * A {@link TableInputFormat} replacement that reads only the webtable rows
+ * of a single generate batch. Rows are found through the {@link BatchTable}
+ * index and fetched from the webtable one by one, so the cost of a job is
+ * proportional to the size of the batch instead of the size of the table.
+ * There is one split per partition of the batch. The generator assigns
+ * hosts to partitions so that partitions hold about as many urls, instead
+ * of following the region boundaries of the webtable, where one big
+ * domain makes one map task much longer than the others.
+ *
+ * <p>Input table and columns are configured the same way as for
+ * {@link TableInputFormat}; the batch is set with
+ * {@link #setBatch(JobConf, String)}.
+ */
+public class BatchTableInputFormat
+implements InputFormat<ImmutableBytesWritable, RowResult> {
+
+  public static final Log LOG = LogFactory.getLog(BatchTableInputFormat.class);
+
+  /**
+   * Makes <code>job</code> read its input through the index of the given
+   * batch. Must be called after the table input of the job is set up.
+   */
+  public static void setBatch(JobConf job, String batchId) {
+    job.setInputFormat(BatchTableInputFormat.class);
+    job.set(BatchTable.BATCH_ID, batchId);
+  }
+
+  public InputSplit[] getSplits(JobConf job, int numSplits) throws IOException {
+    final String batchId = job.get(BatchTable.BATCH_ID);
+    if (batchId == null) {
+      throw new IOException("No batch id set");
+    }
+    final String tableName =
+      BatchTable.getTableName(job, IndexRecordReader.getWebTableName(job));
+    final HTable table = new HTable(new HBaseConfiguration(job), tableName);
+
+    // find the partitions of this batch by skipping from one partition
+    // to the next
+    final List<InputSplit> splits = new ArrayList<InputSplit>();
+    final byte[] stopRow = BatchTable.getStopRow(batchId);
+    byte[] startRow = BatchTable.getStartRow(batchId);
+    while (true) {
+      final Scanner scanner =
+        table.getScanner(new byte[][] { BatchTable.URL }, startRow, stopRow);
+      RowResult first;
+      try {
+        first = scanner.next();
+      } finally {
+        scanner.close();
+      }
+      if (first == null) {
+        break;
+      }
+      final int partition = BatchTable.getPartition(first.getRow());
+      final byte[] partitionStart = BatchTable.getStartRow(batchId, partition);
+      final byte[] partitionStop = BatchTable.getStopRow(batchId, partition);
+      final String location =
+        table.getRegionLocation(partitionStart).getServerAddress().getHostname();
+      splits.add(new TableSplit(Bytes.toBytes(tableName), partitionStart,
+                                partitionStop, location));
+      startRow = partitionStop;
+    }
+    LOG.info("Batch " + batchId + " has " + splits.size() + " partitions");
+    return splits.toArray(new InputSplit[splits.size()]);
+  }
+
+  public RecordReader<ImmutableBytesWritable, RowResult> getRecordReader(
+      InputSplit split, JobConf job, Reporter reporter) throws IOException {
+    final TableSplit tSplit = (TableSplit) split;
+    final HBaseConfiguration hbaseConf = new HBaseConfiguration(job);
+    final HTable batchTable = new HTable(hbaseConf, tSplit.getTableName());
+    final HTable webTable = new HTable(hbaseConf, IndexRecordReader.getWebTableName(job));
+    return new BatchRecordReader(batchTable, webTable, IndexRecordReader.getInputColumns(job),
+                                 tSplit.getStartRow(), tSplit.getEndRow());
+  }
+
+  private static class BatchRecordReader extends IndexRecordReader {
+    public BatchRecordReader(HTable batchTable, HTable webTable,
+        byte[][] columns, byte[] startRow, byte[] stopRow) throws IOException {
+      super(batchTable, BatchTable.URL, webTable, columns, startRow, stopRow);
+    }
+
+    @Override
+    protected byte[] getRowKey(byte[] indexKey) {
+      return Bytes.toBytes(BatchTable.getReversedUrl(indexKey));
+    }
+  }
+}
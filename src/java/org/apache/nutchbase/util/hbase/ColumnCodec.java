@@ -0,0 +1,163 @@
+package org.apache.nutchbase.util.hbase;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Compact encoding of column names, used by the wire format of
+ * {@link ImmutableRowPart} and {@link RowPart}.
+ *
+ * <p>A column is written as the index of its family in the fixed list of
+ * {@link TableColumns} families, followed by its qualifier. Qualifiers (and
+ * families that are not in the list) go through a dictionary that lives as
+ * long as a single record: the first occurrence is written in full, later
+ * ones as a reference to it. All numbers are written as variable-length
+ * integers.
+ */
+class ColumnCodec implements TableColumns {
+
+  /** Known families. Only ever append to this list, the index of a family
+   * is its code on the wire. */
+  private static final byte[][] FAMILIES = {
+    BASE_URL, STATUS, FETCH_TIME, RETRIES, FETCH_INTERVAL, SCORE,
+    MODIFIED_TIME, SIGNATURE, CONTENT, CONTENT_TYPE, TITLE, OUTLINKS,
+    INLINKS, PARSE_STATUS, PROTOCOL_STATUS, TEXT, REPR_URL, HEADERS,
+    METADATA, PAGERANK, VOTES, PREV_SIGNATURE, PREV_FETCH_TIME
+  };
+
+  /** Family code of a family that is not in {@link #FAMILIES}. */
+  private static final int OTHER_FAMILY = FAMILIES.length;
+
+  private static final byte[] EMPTY = new byte[0];
+
+  private static final byte FAMILY_DELIMITER = ':';
+
+  private static int getFamilyCode(byte[] column, int familyLength) {
+    for (int i = 0; i < FAMILIES.length; i++) {
+      final byte[] family = FAMILIES[i];
+      if (family.length == familyLength
+          && WritableComparator.compareBytes(family, 0, family.length,
+                                             column, 0, familyLength) == 0) {
+        return i;
+      }
+    }
+    return OTHER_FAMILY;
+  }
+
+  private static byte[] copyOf(byte[] b, int offset, int length) {
+    final byte[] copy = new byte[length];
+    System.arraycopy(b, offset, copy, 0, length);
+    return copy;
+  }
+
+  /** Writes the columns of a single record. */
+  static class Writer {
+    private final Map<byte[], Integer> dictionary =
+      new TreeMap<byte[], Integer>(Bytes.BYTES_COMPARATOR);
+
+    void writeColumn(DataOutput out, byte[] column) throws IOException {
+      int familyLength = 0;
+      while (familyLength < column.length
+             && column[familyLength] != FAMILY_DELIMITER) {
+        familyLength++;
+      }
+      if (familyLength < column.length) {
+        familyLength++; // the delimiter belongs to the family
+      }
+
+      final int code = getFamilyCode(column, familyLength);
+      WritableUtils.writeVInt(out, code);
+      if (code == OTHER_FAMILY) {
+        writeEntry(out, column, 0, familyLength);
+      }
+      writeEntry(out, column, familyLength, column.length - familyLength);
+    }
+
+    /**
+     * Writes 0 for an empty entry, -length followed by the bytes for a new
+     * entry and index + 1 for an entry that is already in the dictionary.
+     */
+    private void writeEntry(DataOutput out, byte[] b, int offset, int length)
+    throws IOException {
+      if (length == 0) {
+        WritableUtils.writeVInt(out, 0);
+        return;
+      }
+      final byte[] entry = copyOf(b, offset, length);
+      final Integer index = dictionary.get(entry);
+      if (index != null) {
+        WritableUtils.writeVInt(out, index + 1);
+        return;
+      }
+      dictionary.put(entry, dictionary.size());
+      WritableUtils.writeVInt(out, -length);
+      out.write(entry);
+    }
+  }
+
+  /** Reads the columns of a single record. */
+  static class Reader {
+    private final List<byte[]> dictionary = new ArrayList<byte[]>();
+
+    byte[] readColumn(DataInput in) throws IOException {
+      final int code = WritableUtils.readVInt(in);
+      final byte[] family;
+      if (code == OTHER_FAMILY) {
+        family = readEntry(in);
+      } else if (code >= 0 && code < OTHER_FAMILY) {
+        family = FAMILIES[code];
+      } else {
+        throw new IOException("Invalid family code: " + code);
+      }
+      final byte[] qualifier = readEntry(in);
+      return Bytes.add(family, qualifier);
+    }
+
+    private byte[] readEntry(DataInput in) throws IOException {
+      final int n = WritableUtils.readVInt(in);
+      if (n == 0) {
+        return EMPTY;
+      }
+      if (n > 0) {
+        if (n > dictionary.size()) {
+          throw new IOException("Invalid dictionary reference: " + n);
+        }
+        return dictionary.get(n - 1);
+      }
+      final byte[] entry = new byte[-n];
+      in.readFully(entry);
+      dictionary.add(entry);
+      return entry;
+    }
+  }
+
+  /** Writes a value, or a deletion if <code>value</code> is null. */
+  static void writeValue(DataOutput out, byte[] value) throws IOException {
+    if (value == null) {
+      WritableUtils.writeVInt(out, -1);
+      return;
+    }
+    WritableUtils.writeVInt(out, value.length);
+    out.write(value);
+  }
+
+  /** Reads a value written by {@link #writeValue(DataOutput, byte[])}. */
+  static byte[] readValue(DataInput in) throws IOException {
+    final int length = WritableUtils.readVInt(in);
+    if (length < 0) {
+      return null;
+    }
+    final byte[] value = new byte[length];
+    in.readFully(value);
+    return value;
+  }
+}
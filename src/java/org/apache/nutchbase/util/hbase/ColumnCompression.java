@@ -0,0 +1,210 @@
+package org.apache.nutchbase.util.hbase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.nutch.util.DeflateUtils;
+import org.apache.nutch.util.GZIPUtils;
+import org.apache.nutch.util.ObjectCache;
+
+/**
+ * Compresses the largest columns of the webtable, <code>content:</code> and
+ * <code>text:</code>, on their way to the table. A compressed value starts
+ * with two magic bytes, which can not start a UTF-8 string, followed by a
+ * marker byte naming the codec. Values that are not compressed are stored
+ * as they are, so tables written without compression, or with another
+ * codec, remain readable, except those starting with the magic bytes
+ * themselves (binary content may), which get a header with the
+ * <code>none</code> codec. Values are decoded by {@link ImmutableRowPart}
+ * when they are read through a getter.
+ *
+ * <p>Codecs are <code>none</code>, <code>deflate</code> (see
+ * {@link DeflateUtils}), <code>gzip</code> (see {@link GZIPUtils}) and
+ * <code>fast</code>, deflate at its fastest level, which only looks for
+ * the first LZ77 match.
+ */
+public class ColumnCompression {
+
+  /** Codec of the <code>content:</code> column. */
+  public static final String CONTENT_CODEC = "webtable.content.codec";
+
+  /** Codec of the <code>text:</code> column. */
+  public static final String TEXT_CODEC = "webtable.text.codec";
+
+  /** Values shorter than this, in bytes, are not compressed. */
+  public static final String MIN_SIZE = "webtable.compress.min.size";
+
+  public static final byte NONE    = 0;
+  public static final byte DEFLATE = 1;
+  public static final byte GZIP    = 2;
+  public static final byte FAST    = 3;
+
+  private static final String[] NAMES = { "none", "deflate", "gzip", "fast" };
+
+  // 0xc0 never occurs in UTF-8
+  private static final byte MAGIC0 = (byte) 0xc0;
+  private static final byte MAGIC1 = (byte) 0xde;
+  private static final int HEADER_LEN = 3;
+
+  private final byte contentCodec;
+  private final byte textCodec;
+  private final int minSize;
+
+  public ColumnCompression(Configuration conf) {
+    contentCodec = getCodec(conf.get(CONTENT_CODEC, "none"));
+    textCodec = getCodec(conf.get(TEXT_CODEC, "none"));
+    minSize = conf.getInt(MIN_SIZE, 128);
+  }
+
+  /** Returns the codec with this name. */
+  public static byte getCodec(String name) {
+    for (byte codec = 0; codec < NAMES.length; codec++) {
+      if (NAMES[codec].equalsIgnoreCase(name.trim())) {
+        return codec;
+      }
+    }
+    throw new IllegalArgumentException("Unknown codec: " + name);
+  }
+
+  /** Returns the compression of the columns for this configuration. */
+  public static ColumnCompression get(Configuration conf) {
+    final ObjectCache objectCache = ObjectCache.get(conf);
+    synchronized (objectCache) {
+      final String cacheId = ColumnCompression.class.getName();
+      ColumnCompression compression =
+        (ColumnCompression) objectCache.getObject(cacheId);
+      if (compression == null) {
+        compression = new ColumnCompression(conf);
+        objectCache.setObject(cacheId, compression);
+      }
+      return compression;
+    }
+  }
+
+  /**
+   * Returns the value to store in a column: compressed if the column has a
+   * codec and compression makes it smaller, else <code>value</code> itself.
+   */
+  public byte[] encode(byte[] column, byte[] value) {
+    if (value == null) {
+      return value;
+    }
+    byte codec;
+    if (Bytes.equals(column, TableColumns.CONTENT)) {
+      codec = contentCodec;
+    } else if (Bytes.equals(column, TableColumns.TEXT)) {
+      codec = textCodec;
+    } else {
+      return value;
+    }
+    if (value.length < minSize) {
+      codec = NONE;
+    }
+    return compress(codec, value);
+  }
+
+  /**
+   * Compresses a value with a codec, and adds the header. Returns
+   * <code>value</code> itself if it does not get smaller, unless it starts
+   * with the magic bytes: then it is returned with a <code>none</code>
+   * header, so that it is not mistaken for a compressed value.
+   */
+  public static byte[] compress(byte codec, byte[] value) {
+    final byte[] compressed;
+    switch (codec) {
+    case NONE:
+      return raw(value);
+    case DEFLATE:
+      compressed = DeflateUtils.deflate(value);
+      break;
+    case GZIP:
+      compressed = GZIPUtils.zip(value);
+      break;
+    case FAST:
+      compressed = deflateFast(value);
+      break;
+    default:
+      throw new IllegalArgumentException("Unknown codec: " + codec);
+    }
+    if (compressed == null
+        || compressed.length + HEADER_LEN >= value.length) {
+      return raw(value);
+    }
+    return addHeader(codec, compressed);
+  }
+
+  /** Returns a value that is not compressed, escaped if needed. */
+  private static byte[] raw(byte[] value) {
+    return isCompressed(value) ? addHeader(NONE, value) : value;
+  }
+
+  private static byte[] addHeader(byte codec, byte[] value) {
+    final byte[] encoded = new byte[value.length + HEADER_LEN];
+    encoded[0] = MAGIC0;
+    encoded[1] = MAGIC1;
+    encoded[2] = codec;
+    System.arraycopy(value, 0, encoded, HEADER_LEN, value.length);
+    return encoded;
+  }
+
+  private static byte[] deflateFast(byte[] value) {
+    final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(value);
+      deflater.finish();
+      final ByteArrayOutputStream out =
+        new ByteArrayOutputStream(value.length / 2 + 16);
+      final byte[] buf = new byte[4096];
+      while (!deflater.finished()) {
+        out.write(buf, 0, deflater.deflate(buf));
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /** Returns true if <code>value</code> starts with a codec header. */
+  public static boolean isCompressed(byte[] value) {
+    return value != null && value.length >= HEADER_LEN
+      && value[0] == MAGIC0 && value[1] == MAGIC1;
+  }
+
+  /** Returns the codec of a stored value. */
+  public static byte getCodec(byte[] value) {
+    return isCompressed(value) ? value[2] : NONE;
+  }
+
+  /**
+   * Returns the original of a stored value, decompressing it if it starts
+   * with a codec header.
+   * @throws IOException If the value can not be decompressed
+   */
+  public static byte[] decode(byte[] value) throws IOException {
+    if (!isCompressed(value)) {
+      return value;
+    }
+    final byte[] compressed = new byte[value.length - HEADER_LEN];
+    System.arraycopy(value, HEADER_LEN, compressed, 0, compressed.length);
+    switch (value[2]) {
+    case NONE:                           // an escaped raw value
+      return compressed;
+    case DEFLATE:
+    case FAST:                           // a zlib stream as well
+      return DeflateUtils.inflate(compressed);
+    case GZIP:
+      return GZIPUtils.unzip(compressed);
+    default:
+      throw new IOException("Unknown codec: " + value[2]);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "content: " + NAMES[contentCodec] + ", text: " + NAMES[textCodec]
+      + ", minSize=" + minSize;
+  }
+}
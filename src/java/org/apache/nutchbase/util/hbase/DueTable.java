@@ -0,0 +1,151 @@
+package org.apache.nutchbase.util.hbase;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.io.BatchUpdate;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Secondary index of the webtable by fetch time. Rows are keyed by
+ * "&lt;fetch time bucket&gt;-&lt;reversed url&gt;", so that the generator
+ * can read the urls that are due with a range scan over the buckets at or
+ * before the current time, instead of scanning the whole webtable.
+ *
+ * <p>The index is kept up to date by the jobs that change fetch times
+ * (InjectorHbase and UpdateTable) through instances of this class. Entries
+ * may be stale, so readers still have to check the fetch time of the rows
+ * they find. "UpdateTable -all" (re)builds the index of an existing table.
+ */
+public class DueTable {
+
+  public static final Log LOG = LogFactory.getLog(DueTable.class);
+
+  /** If true, the due-time index is maintained and used by the generator. */
+  public static final String DUE_INDEX = "generate.due.index";
+
+  /** Name of the due table. Defaults to "&lt;webtable&gt;_due". */
+  public static final String DUE_TABLE = "generate.due.table";
+
+  /** Width of a fetch time bucket, in milliseconds. */
+  public static final String DUE_BUCKET = "generate.due.bucket";
+
+  public static final String URL_STR = "url:";
+  public static final byte[] URL = Bytes.toBytes(URL_STR);
+
+  private static final char SEPARATOR = '-';
+
+  private static final int BUCKET_DIGITS = 19;
+
+  private final HTable table;
+  private final long bucketSize;
+  private int updates;
+  private int deletes;
+
+  /** Opens the due table of <code>webTable</code> for updating. */
+  public DueTable(Configuration conf, String webTable) throws IOException {
+    table = new HTable(new HBaseConfiguration(conf),
+                       getTableName(conf, webTable));
+    table.setAutoFlush(false);
+    bucketSize = getBucketSize(conf);
+  }
+
+  public static boolean isEnabled(Configuration conf) {
+    return conf.getBoolean(DUE_INDEX, false);
+  }
+
+  public static String getTableName(Configuration conf, String webTable) {
+    final String tableName = conf.get(DUE_TABLE);
+    if (tableName == null || tableName.length() == 0) {
+      return webTable + "_due";
+    }
+    return tableName;
+  }
+
+  public static long getBucketSize(Configuration conf) {
+    return conf.getLong(DUE_BUCKET, 3600000L);
+  }
+
+  /** Creates the due table if it does not exist yet. */
+  public static void createTable(HBaseConfiguration hbaseConf, String tableName)
+  throws IOException {
+    final HBaseAdmin admin = new HBaseAdmin(hbaseConf);
+    if (admin.tableExists(tableName)) {
+      return;
+    }
+    LOG.info("Creating due table: " + tableName);
+    final HTableDescriptor desc = new HTableDescriptor(tableName);
+    desc.addFamily(new HColumnDescriptor(URL));
+    admin.createTable(desc);
+  }
+
+  public static byte[] makeKey(long fetchTime, long bucketSize,
+                               String reversedUrl) {
+    return Bytes.toBytes(formatBucket(fetchTime / bucketSize) + SEPARATOR
+                         + reversedUrl);
+  }
+
+  /** Returns the key right after the last key of the bucket of
+   * <code>curTime</code>. */
+  public static byte[] getStopRow(long curTime, long bucketSize) {
+    return Bytes.toBytes(formatBucket(curTime / bucketSize)
+                         + (char) (SEPARATOR + 1));
+  }
+
+  /** Extracts the reversed url (i.e. the webtable key) from a due table
+   * key. */
+  public static String getReversedUrl(byte[] key) {
+    final String keyString = Bytes.toString(key);
+    return keyString.substring(keyString.indexOf(SEPARATOR) + 1);
+  }
+
+  /**
+   * Moves the entry of a row from the bucket of its old fetch time to the
+   * bucket of its new one.
+   * @param rowId Webtable key of the row
+   * @param oldFetchTime Fetch time the row is indexed with, or a negative
+   * value if the row is not indexed
+   * @param newFetchTime Current fetch time of the row
+   */
+  public void update(byte[] rowId, long oldFetchTime, long newFetchTime)
+  throws IOException {
+    final String reversedUrl = Bytes.toString(rowId);
+    if (oldFetchTime >= 0) {
+      if (oldFetchTime / bucketSize == newFetchTime / bucketSize) {
+        return;
+      }
+      final BatchUpdate delete =
+        new BatchUpdate(makeKey(oldFetchTime, bucketSize, reversedUrl));
+      delete.delete(URL);
+      table.commit(delete);
+      deletes++;
+    }
+    final BatchUpdate bu =
+      new BatchUpdate(makeKey(newFetchTime, bucketSize, reversedUrl));
+    bu.put(URL, TableUtil.YES_VAL);
+    table.commit(bu);
+    updates++;
+  }
+
+  /** Writes the buffered updates to the table. */
+  public void flush() throws IOException {
+    table.flushCommits();
+    LOG.info("Due index: " + updates + " updates, " + deletes + " deletes");
+  }
+
+  private static String formatBucket(long bucket) {
+    final String s = Long.toString(bucket);
+    final StringBuilder buf = new StringBuilder(BUCKET_DIGITS);
+    for (int i = s.length(); i < BUCKET_DIGITS; i++) {
+      buf.append('0');
+    }
+    return buf.append(s).toString();
+  }
+}
@@ -0,0 +1,95 @@
+package org.apache.nutchbase.util.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.io.RowResult;
+import org.apache.hadoop.hbase.mapred.TableInputFormat;
+import org.apache.hadoop.hbase.mapred.TableSplit;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapred.InputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * A {@link TableInputFormat} replacement that reads only the webtable rows
+ * whose fetch time bucket in the {@link DueTable} index is at or before a
+ * given time. There is one split per region of the index table that holds
+ * due entries.
+ *
+ * <p>Input table and columns are configured the same way as for
+ * {@link TableInputFormat}; the time is set with
+ * {@link #setDueTime(JobConf, long)}.
+ */
+public class DueTableInputFormat
+implements InputFormat<ImmutableBytesWritable, RowResult> {
+
+  public static final Log LOG = LogFactory.getLog(DueTableInputFormat.class);
+
+  private static final String DUE_TIME = "generate.due.time";
+
+  /**
+   * Makes <code>job</code> read its input through the due index, up to
+   * <code>curTime</code>. Must be called after the table input of the job
+   * is set up.
+   */
+  public static void setDueTime(JobConf job, long curTime) {
+    job.setInputFormat(DueTableInputFormat.class);
+    job.setLong(DUE_TIME, curTime);
+  }
+
+  public InputSplit[] getSplits(JobConf job, int numSplits) throws IOException {
+    final long curTime = job.getLong(DUE_TIME, System.currentTimeMillis());
+    final String tableName =
+      DueTable.getTableName(job, IndexRecordReader.getWebTableName(job));
+    final HTable table = new HTable(new HBaseConfiguration(job), tableName);
+    final byte[] stopRow =
+      DueTable.getStopRow(curTime, DueTable.getBucketSize(job));
+
+    final byte[][] startKeys = table.getStartKeys();
+    final List<InputSplit> splits = new ArrayList<InputSplit>();
+    for (int i = 0; i < startKeys.length; i++) {
+      final byte[] start = startKeys[i];
+      if (start.length > 0 && Bytes.compareTo(start, stopRow) >= 0) {
+        break;
+      }
+      byte[] end = stopRow;
+      if (i + 1 < startKeys.length
+          && Bytes.compareTo(startKeys[i + 1], stopRow) < 0) {
+        end = startKeys[i + 1];
+      }
+      final String location =
+        table.getRegionLocation(start).getServerAddress().getHostname();
+      splits.add(new TableSplit(Bytes.toBytes(tableName), start, end,
+                                location));
+    }
+    LOG.info("Due index of " + tableName + " has " + splits.size()
+             + " splits up to " + curTime);
+    return splits.toArray(new InputSplit[splits.size()]);
+  }
+
+  public RecordReader<ImmutableBytesWritable, RowResult> getRecordReader(
+      InputSplit split, JobConf job, Reporter reporter) throws IOException {
+    final TableSplit tSplit = (TableSplit) split;
+    final HBaseConfiguration hbaseConf = new HBaseConfiguration(job);
+    final HTable dueTable = new HTable(hbaseConf, tSplit.getTableName());
+    final HTable webTable =
+      new HTable(hbaseConf, IndexRecordReader.getWebTableName(job));
+    return new IndexRecordReader(dueTable, DueTable.URL, webTable,
+        IndexRecordReader.getInputColumns(job), tSplit.getStartRow(),
+        tSplit.getEndRow()) {
+      @Override
+      protected byte[] getRowKey(byte[] indexKey) {
+        return Bytes.toBytes(DueTable.getReversedUrl(indexKey));
+      }
+    };
+  }
+}
@@ -0,0 +1,527 @@
+package org.apache.nutchbase.util.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.io.BatchUpdate;
+import org.apache.hadoop.hbase.io.Cell;
+import org.apache.hadoop.hbase.io.RowResult;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.nutch.util.ObjectCache;
+
+/**
+ * Per-host state that outlives a single task: the robots.txt rules of the
+ * host with their fetch and expiry times, and a rolling measure of its
+ * health (error rate and mean response time of the last fetches). Rows are
+ * keyed by reversed host name, as returned by
+ * {@link TableUtil#getReversedHost(String)}.
+ *
+ * <p>Reads go through a bounded LRU cache, and changes are written behind
+ * in batches of {@link #FLUSH_SIZE} rows by a background thread, so that
+ * the fetcher does not make a round trip to HBase per fetched page, nor
+ * wait for the batches. Errors of background writes are logged, and thrown
+ * by the next call to {@link #flush()}. There is one instance per
+ * configuration, see {@link #get(Configuration)}, shared by the fetcher and
+ * the protocol plugins.
+ */
+public class HostTable {
+
+  public static final Log LOG = LogFactory.getLog(HostTable.class);
+
+  /** If true, the fetcher maintains the host table. */
+  public static final String HOST_TABLE_ENABLED = "host.table.enabled";
+
+  /** Name of the host table. Defaults to "&lt;webtable&gt;_host". */
+  public static final String HOST_TABLE = "host.table";
+
+  /** Maximum number of hosts held in memory. */
+  public static final String CACHE_SIZE = "host.table.cache.size";
+
+  /** Number of changed hosts that triggers a write to the table. */
+  public static final String FLUSH_SIZE = "host.table.flush.size";
+
+  /** Weight of the last fetch in the rolling health averages. */
+  public static final String HEALTH_DECAY = "host.table.health.decay";
+
+  public static final String ROBOTS_STR = "robots:";
+  public static final byte[] ROBOTS_RULES = Bytes.toBytes("robots:rules");
+  public static final byte[] ROBOTS_FETCH_TIME =
+    Bytes.toBytes("robots:fetchTime");
+  public static final byte[] ROBOTS_EXPIRES = Bytes.toBytes("robots:expires");
+  public static final byte[] ROBOTS_CRAWL_DELAY =
+    Bytes.toBytes("robots:crawlDelay");
+
+  public static final String HEALTH_STR = "health:";
+  public static final byte[] HEALTH_FETCHES = Bytes.toBytes("health:fetches");
+  public static final byte[] HEALTH_ERRORS = Bytes.toBytes("health:errors");
+  public static final byte[] HEALTH_ERROR_RATE =
+    Bytes.toBytes("health:errorRate");
+  public static final byte[] HEALTH_RESPONSE_TIME =
+    Bytes.toBytes("health:responseTime");
+
+  /** Number of fetches before the error rate of a host is trusted. */
+  public static final int MIN_FETCHES = 10;
+
+  /**
+   * State of a single host. Instances are shared between threads, so all
+   * accessors are synchronized.
+   */
+  public static class HostInfo {
+    private byte[] robotsRules;
+    private long robotsFetchTime = -1L;
+    private long robotsExpires = -1L;
+    private long crawlDelay = -1L;
+    private long fetches;
+    private long errors;
+    private float errorRate;
+    private float responseTime;
+
+    public HostInfo() { }
+
+    /** Reads a host from a host table row. */
+    public HostInfo(RowResult row) {
+      robotsRules = getValue(row, ROBOTS_RULES);
+      robotsFetchTime = getLong(row, ROBOTS_FETCH_TIME, -1L);
+      robotsExpires = getLong(row, ROBOTS_EXPIRES, -1L);
+      crawlDelay = getLong(row, ROBOTS_CRAWL_DELAY, -1L);
+      fetches = getLong(row, HEALTH_FETCHES, 0L);
+      errors = getLong(row, HEALTH_ERRORS, 0L);
+      final byte[] rate = getValue(row, HEALTH_ERROR_RATE);
+      errorRate = rate == null ? 0f : TableUtil.toFloat(rate);
+      final byte[] time = getValue(row, HEALTH_RESPONSE_TIME);
+      responseTime = time == null ? 0f : TableUtil.toFloat(time);
+    }
+
+    /** Returns the robots rules in the format of the protocol plugins, or
+     * null if the rules of the host are unknown. */
+    public synchronized byte[] getRobotsRules() {
+      return robotsRules;
+    }
+
+    public synchronized long getRobotsFetchTime() {
+      return robotsFetchTime;
+    }
+
+    public synchronized long getRobotsExpires() {
+      return robotsExpires;
+    }
+
+    /** Returns the Crawl-Delay of the host, in milliseconds, or -1. */
+    public synchronized long getCrawlDelay() {
+      return crawlDelay;
+    }
+
+    /** Returns true if robots rules are known and not expired at
+     * <code>curTime</code>. */
+    public synchronized boolean hasRobotsRules(long curTime) {
+      return robotsRules != null && curTime < robotsExpires;
+    }
+
+    public synchronized void setRobotsRules(byte[] rules, long crawlDelay,
+        long fetchTime, long expires) {
+      this.robotsRules = rules;
+      this.crawlDelay = crawlDelay;
+      this.robotsFetchTime = fetchTime;
+      this.robotsExpires = expires;
+    }
+
+    public synchronized long getFetches() {
+      return fetches;
+    }
+
+    public synchronized long getErrors() {
+      return errors;
+    }
+
+    /** Returns the rolling error rate, between 0 and 1. */
+    public synchronized float getErrorRate() {
+      return errorRate;
+    }
+
+    /** Returns the rolling mean response time, in milliseconds. */
+    public synchronized float getResponseTime() {
+      return responseTime;
+    }
+
+    /**
+     * Adds a fetch to the health averages. The first fetches are averaged
+     * evenly, later ones with weight <code>decay</code>, so that old
+     * fetches are forgotten exponentially.
+     */
+    public synchronized void recordFetch(boolean error, long time,
+                                         float decay) {
+      fetches++;
+      if (error) {
+        errors++;
+      }
+      final float weight = Math.max(decay, 1f / fetches);
+      errorRate += weight * ((error ? 1f : 0f) - errorRate);
+      responseTime += weight * (time - responseTime);
+    }
+
+    /** Returns false if the host failed more than
+     * <code>maxErrorRate</code> of its recent fetches. */
+    public synchronized boolean isHealthy(float maxErrorRate) {
+      return fetches < MIN_FETCHES || errorRate <= maxErrorRate;
+    }
+
+    synchronized BatchUpdate makeBatchUpdate(String reversedHost) {
+      final BatchUpdate bu = new BatchUpdate(reversedHost);
+      if (robotsRules != null) {
+        bu.put(ROBOTS_RULES, robotsRules);
+        bu.put(ROBOTS_FETCH_TIME, Bytes.toBytes(robotsFetchTime));
+        bu.put(ROBOTS_EXPIRES, Bytes.toBytes(robotsExpires));
+        bu.put(ROBOTS_CRAWL_DELAY, Bytes.toBytes(crawlDelay));
+      }
+      bu.put(HEALTH_FETCHES, Bytes.toBytes(fetches));
+      bu.put(HEALTH_ERRORS, Bytes.toBytes(errors));
+      bu.put(HEALTH_ERROR_RATE, TableUtil.toBytes(errorRate));
+      bu.put(HEALTH_RESPONSE_TIME, TableUtil.toBytes(responseTime));
+      return bu;
+    }
+
+    @Override
+    public synchronized String toString() {
+      return "fetches=" + fetches + ", errors=" + errors
+        + ", errorRate=" + errorRate + ", responseTime=" + responseTime
+        + ", crawlDelay=" + crawlDelay + ", robotsExpires=" + robotsExpires;
+    }
+
+    private static byte[] getValue(RowResult row, byte[] column) {
+      final Cell cell = row.get(column);
+      return cell == null ? null : cell.getValue();
+    }
+
+    private static long getLong(RowResult row, byte[] column, long dflt) {
+      final byte[] value = getValue(row, column);
+      return value == null ? dflt : Bytes.toLong(value);
+    }
+  }
+
+  private final HTable table;
+  private final int flushSize;
+  private final float decay;
+
+  /** Hosts read or changed lately, in access order. */
+  private final Map<String, HostInfo> cache;
+
+  /** Changed hosts not written yet. They may have left the cache. */
+  private final Map<String, HostInfo> dirty = new HashMap<String, HostInfo>();
+
+  /** Hosts being written. They may have left the cache. */
+  private final Map<String, HostInfo> writing =
+    new HashMap<String, HostInfo>();
+
+  /** Writes the batches of changed hosts, created on the first one. */
+  private ExecutorService flusher;
+  private boolean flushQueued;
+  private IOException flushError;
+
+  private long reads;
+  private long hits;
+  private long writes;
+
+  /** Opens the host table <code>tableName</code>. */
+  public HostTable(Configuration conf, String tableName) throws IOException {
+    this(conf, new HTable(new HBaseConfiguration(conf), tableName));
+  }
+
+  /**
+   * @param table Host table, or null to keep the hosts in memory only
+   */
+  HostTable(Configuration conf, HTable table) {
+    this.table = table;
+    if (table != null) {
+      table.setAutoFlush(false);
+    }
+    flushSize = conf.getInt(FLUSH_SIZE, 1000);
+    decay = conf.getFloat(HEALTH_DECAY, 0.1f);
+    final int cacheSize = conf.getInt(CACHE_SIZE, 10000);
+    cache = new LinkedHashMap<String, HostInfo>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, HostInfo> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  public static boolean isEnabled(Configuration conf) {
+    return conf.getBoolean(HOST_TABLE_ENABLED, false);
+  }
+
+  public static String getTableName(Configuration conf, String webTable) {
+    final String tableName = conf.get(HOST_TABLE);
+    if (tableName == null || tableName.length() == 0) {
+      return webTable + "_host";
+    }
+    return tableName;
+  }
+
+  /**
+   * Sets {@link #HOST_TABLE} to the host table of <code>webTable</code>, if
+   * the host table is enabled.
+   * @return the name of the host table, or null if it is not enabled
+   */
+  public static String setTableName(Configuration conf, String webTable) {
+    if (!isEnabled(conf)) {
+      return null;
+    }
+    final String tableName = getTableName(conf, webTable);
+    conf.set(HOST_TABLE, tableName);
+    return tableName;
+  }
+
+  /**
+   * Prepares a job that uses the host table of <code>webTable</code>:
+   * creates the table if it is enabled and does not exist yet, and sets
+   * {@link #HOST_TABLE}, so that {@link #get(Configuration)} finds it.
+   */
+  public static void setUpJob(Configuration job, String webTable)
+  throws IOException {
+    final String tableName = setTableName(job, webTable);
+    if (tableName != null) {
+      createTable(new HBaseConfiguration(job), tableName);
+    }
+  }
+
+  /**
+   * Returns the host table of <code>conf</code>, or null if it is not
+   * enabled or its name is not set. Jobs that use the table are set up with
+   * {@link #setUpJob(Configuration, String)}.
+   */
+  public static HostTable get(Configuration conf) throws IOException {
+    final String tableName = conf.get(HOST_TABLE);
+    if (!isEnabled(conf) || tableName == null || tableName.length() == 0) {
+      return null;
+    }
+    final ObjectCache objectCache = ObjectCache.get(conf);
+    synchronized (objectCache) {
+      final String cacheId = HostTable.class.getName();
+      HostTable hostTable = (HostTable) objectCache.getObject(cacheId);
+      if (hostTable == null) {
+        hostTable = new HostTable(conf, tableName);
+        objectCache.setObject(cacheId, hostTable);
+      }
+      return hostTable;
+    }
+  }
+
+  /** Creates the host table if it does not exist yet. */
+  public static void createTable(HBaseConfiguration hbaseConf, String tableName)
+  throws IOException {
+    final HBaseAdmin admin = new HBaseAdmin(hbaseConf);
+    if (admin.tableExists(tableName)) {
+      return;
+    }
+    LOG.info("Creating host table: " + tableName);
+    final HTableDescriptor desc = new HTableDescriptor(tableName);
+    desc.addFamily(new HColumnDescriptor(ROBOTS_STR));
+    desc.addFamily(new HColumnDescriptor(HEALTH_STR));
+    admin.createTable(desc);
+  }
+
+  /**
+   * Returns the state of a host, reading it from the table if it is not
+   * cached. Unknown hosts get a new, empty state.
+   */
+  public HostInfo getHostInfo(String reversedHost) throws IOException {
+    synchronized (this) {
+      reads++;
+      HostInfo info = cache.get(reversedHost);
+      if (info == null) {
+        info = dirty.get(reversedHost);
+        if (info == null) {
+          info = writing.get(reversedHost);
+        }
+        if (info != null) {
+          cache.put(reversedHost, info);
+        }
+      }
+      if (info != null) {
+        hits++;
+        return info;
+      }
+    }
+
+    // read outside of the lock, so that cached hosts are not held up
+    HostInfo info = null;
+    if (table != null) {
+      RowResult row;
+      synchronized (table) {
+        row = table.getRow(reversedHost);
+      }
+      if (row != null && !row.isEmpty()) {
+        info = new HostInfo(row);
+      }
+    }
+    if (info == null) {
+      info = new HostInfo();
+    }
+
+    synchronized (this) {
+      // another thread may have read the host in the meantime
+      final HostInfo current = cache.get(reversedHost);
+      if (current != null) {
+        return current;
+      }
+      cache.put(reversedHost, info);
+      return info;
+    }
+  }
+
+  /** Returns the number of changed hosts not written yet. */
+  public synchronized int getPendingCount() {
+    return dirty.size();
+  }
+
+  /** Adds a fetch of <code>reversedHost</code> to its health. */
+  public void recordFetch(String reversedHost, boolean error, long time)
+  throws IOException {
+    final HostInfo info = getHostInfo(reversedHost);
+    info.recordFetch(error, time, decay);
+    changed(reversedHost, info);
+  }
+
+  /** Stores the robots rules of <code>reversedHost</code>. */
+  public void setRobotsRules(String reversedHost, byte[] rules,
+      long crawlDelay, long fetchTime, long expires) throws IOException {
+    final HostInfo info = getHostInfo(reversedHost);
+    info.setRobotsRules(rules, crawlDelay, fetchTime, expires);
+    changed(reversedHost, info);
+  }
+
+  private synchronized void changed(String reversedHost, HostInfo info) {
+    dirty.put(reversedHost, info);
+    if (dirty.size() < flushSize || flushQueued) {
+      return;
+    }
+    if (flusher == null) {
+      flusher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          final Thread t = new Thread(r, "HostTableFlusher");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    flushQueued = true;
+    flusher.execute(new Runnable() {
+      public void run() {
+        synchronized (HostTable.this) {
+          flushQueued = false;
+        }
+        try {
+          write();
+        } catch (final IOException e) {
+          LOG.warn("Couldn't write host table: " + e);
+          synchronized (HostTable.this) {
+            flushError = e;
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Writes the changed hosts to the table, and waits for the writes.
+   * @throws IOException If this or an earlier background write failed
+   */
+  public void flush() throws IOException {
+    ExecutorService executor;
+    synchronized (this) {
+      executor = flusher;
+    }
+    if (executor == null) {
+      write();
+    } else {
+      // after the background writes queued so far
+      final Future<Object> future = executor.submit(new Callable<Object>() {
+        public Object call() throws IOException {
+          write();
+          return null;
+        }
+      });
+      try {
+        future.get();
+      } catch (final InterruptedException e) {
+        throw new IOException("Interrupted while writing host table");
+      } catch (final ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new RuntimeException(e.getCause());
+      }
+    }
+    IOException error;
+    synchronized (this) {
+      error = flushError;
+      flushError = null;
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  private void write() throws IOException {
+    List<BatchUpdate> updates;
+    Map<String, HostInfo> batch;
+    synchronized (this) {
+      if (dirty.isEmpty()) {
+        return;
+      }
+      updates = new ArrayList<BatchUpdate>(dirty.size());
+      for (final Map.Entry<String, HostInfo> entry : dirty.entrySet()) {
+        updates.add(entry.getValue().makeBatchUpdate(entry.getKey()));
+      }
+      batch = new HashMap<String, HostInfo>(dirty);
+      writing.putAll(dirty);
+      dirty.clear();
+      writes += updates.size();
+    }
+    try {
+      if (table == null) {
+        return;
+      }
+      synchronized (table) {
+        for (final BatchUpdate bu : updates) {
+          table.commit(bu);
+        }
+        table.flushCommits();
+      }
+    } finally {
+      synchronized (this) {
+        for (final Map.Entry<String, HostInfo> entry : batch.entrySet()) {
+          if (writing.get(entry.getKey()) == entry.getValue()) {
+            writing.remove(entry.getKey());
+          }
+        }
+      }
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "host table: " + cache.size() + " cached, " + reads + " reads, "
+      + hits + " hits, " + writes + " writes, " + dirty.size() + " pending";
+  }
+}
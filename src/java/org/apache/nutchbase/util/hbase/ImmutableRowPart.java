@@ -3,17 +3,24 @@ package org.apache.nutchbase.util.hbase;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
 
+import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.io.Cell;
 import org.apache.hadoop.hbase.io.HbaseMapWritable;
 import org.apache.hadoop.hbase.io.RowResult;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.util.Writables;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.nutch.crawl.Inlink;
 import org.apache.nutch.parse.Outlink;
 import org.apache.nutch.parse.ParseStatus;
@@ -26,6 +33,78 @@ public class ImmutableRowPart implements Writable, TableColumns {
 
   protected RowResult rowResult;
 
+  // values decoded on first use, see invalidate(byte[])
+  private ProtocolStatus protocolStatus;
+  private ParseStatus parseStatus;
+  private Collection<Outlink> outlinks;
+  private Collection<Inlink> inlinks;
+  private byte[] content;
+  private String text;
+
+  /**
+   * Returns a view of the columns of a family. Both <code>map</code> and
+   * the view are sorted by {@link Bytes#BYTES_COMPARATOR}, so only the
+   * columns of the family are visited.
+   * @param map Columns of a row
+   * @param family Family name, including the trailing ':'
+   */
+  protected static <V> SortedMap<byte[], V> familyMap(SortedMap<byte[], V> map,
+                                                      byte[] family) {
+    // family names end with ':', so incrementing the last byte never
+    // overflows and gives the first key after the family
+    final byte[] stop = new byte[family.length];
+    System.arraycopy(family, 0, stop, 0, family.length);
+    stop[stop.length - 1]++;
+    return map.subMap(family, stop);
+  }
+
+  private static boolean startsWith(byte[] column, byte[] prefix) {
+    return column.length >= prefix.length
+      && WritableComparator.compareBytes(column, 0, prefix.length,
+                                         prefix, 0, prefix.length) == 0;
+  }
+
+  /**
+   * Drops the values decoded from <code>column</code>, if any. Must be
+   * called whenever a column of the row changes.
+   * @param column A column or a whole family
+   */
+  protected void invalidate(byte[] column) {
+    if (startsWith(column, OUTLINKS)) {
+      outlinks = null;
+    } else if (startsWith(column, INLINKS)) {
+      inlinks = null;
+    } else if (startsWith(column, PROTOCOL_STATUS)) {
+      protocolStatus = null;
+    } else if (startsWith(column, PARSE_STATUS)) {
+      parseStatus = null;
+    } else if (startsWith(column, CONTENT)) {
+      content = null;
+    } else if (startsWith(column, TEXT)) {
+      text = null;
+    }
+  }
+
+  /** Drops all decoded values. */
+  protected void invalidateAll() {
+    protocolStatus = null;
+    parseStatus = null;
+    outlinks = null;
+    inlinks = null;
+    content = null;
+    text = null;
+  }
+
+  /** Returns the qualifier of a column, i.e. what follows the family. */
+  protected static String qualifier(byte[] col, byte[] family) {
+    try {
+      return new String(col, family.length, col.length - family.length,
+                        HConstants.UTF8_ENCODING);
+    } catch (final UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   /** For Writable. Do not use directly. */
   public ImmutableRowPart() { rowResult = new RowResult(); }
 
@@ -49,11 +128,58 @@ public class ImmutableRowPart implements Writable, TableColumns {
   }
 
   public void readFields(DataInput in) throws IOException {
-    rowResult.readFields(in);
+    readRow(in, new ColumnCodec.Reader());
   }
 
   public void write(DataOutput out) throws IOException {
-    rowResult.write(out);
+    writeRow(out, new ColumnCodec.Writer());
+  }
+
+  /** Reads the row written by {@link #writeRow(DataOutput, ColumnCodec.Writer)}. */
+  void readRow(DataInput in, ColumnCodec.Reader reader) throws IOException {
+    invalidateAll();
+    final byte[] rowId = Bytes.readByteArray(in);
+    final HbaseMapWritable<byte[], Cell> cells =
+      new HbaseMapWritable<byte[], Cell>();
+    final int size = WritableUtils.readVInt(in);
+    final long baseTimestamp = size > 0 ? WritableUtils.readVLong(in) : 0L;
+    for (int i = 0; i < size; i++) {
+      final byte[] col = reader.readColumn(in);
+      final int numValues = WritableUtils.readVInt(in);
+      final byte[][] values = new byte[numValues][];
+      final long[] timestamps = new long[numValues];
+      for (int j = 0; j < numValues; j++) {
+        values[j] = ColumnCodec.readValue(in);
+        timestamps[j] = baseTimestamp + WritableUtils.readVLong(in);
+      }
+      cells.put(col, new Cell(values, timestamps));
+    }
+    rowResult = new RowResult(rowId, cells);
+  }
+
+  /**
+   * Writes the row id and the cells of the row. Column names are coded by
+   * <code>writer</code> and timestamps are written relative to the first
+   * one, which keeps records small in the shuffle.
+   */
+  void writeRow(DataOutput out, ColumnCodec.Writer writer) throws IOException {
+    Bytes.writeByteArray(out, rowResult.getRow());
+    WritableUtils.writeVInt(out, rowResult.size());
+    if (rowResult.isEmpty()) {
+      return;
+    }
+    final long baseTimestamp =
+      rowResult.values().iterator().next().getTimestamp();
+    WritableUtils.writeVLong(out, baseTimestamp);
+    for (final Map.Entry<byte[], Cell> e : rowResult.entrySet()) {
+      writer.writeColumn(out, e.getKey());
+      final Cell cell = e.getValue();
+      WritableUtils.writeVInt(out, cell.getNumValues());
+      for (final Map.Entry<Long, byte[]> version : cell) {
+        ColumnCodec.writeValue(out, version.getValue());
+        WritableUtils.writeVLong(out, version.getKey() - baseTimestamp);
+      }
+    }
   }
 
   public byte[] getRowId() {
@@ -113,7 +239,16 @@ public class ImmutableRowPart implements Writable, TableColumns {
     return Bytes.toInt(rowResult.get(RETRIES).getValue());
   }
 
+  /** Returns the protocol status. The returned object is shared by all
+   * callers and must not be modified. */
   public ProtocolStatus getProtocolStatus() {
+    if (protocolStatus == null) {
+      protocolStatus = decodeProtocolStatus();
+    }
+    return protocolStatus;
+  }
+
+  protected ProtocolStatus decodeProtocolStatus() {
     final ProtocolStatus protocolStatus = new ProtocolStatus();
     final byte[] val = rowResult.get(PROTOCOL_STATUS).getValue();
     try {
@@ -150,23 +285,54 @@ public class ImmutableRowPart implements Writable, TableColumns {
 	}
 	
   }
+  /** Returns the content, decompressed if it was stored compressed. The
+   * returned array is shared by all callers and must not be modified. */
   public byte[] getContent() {
-    return rowResult.get(CONTENT).getValue();
+    if (content == null) {
+      content = decode(rowResult.get(CONTENT).getValue());
+    }
+    return content;
   }
 
   public String getContentType() {
     return stringify(rowResult.get(CONTENT_TYPE));
   }
 
+  /** Returns the text, decompressed if it was stored compressed. */
   public String getText() {
-    return stringify(rowResult.get(TEXT));
+    if (text == null) {
+      final Cell c = rowResult.get(TEXT);
+      if (c == null) {
+        return null;
+      }
+      text = Bytes.toString(decode(c.getValue()));
+    }
+    return text;
+  }
+
+  /** Decompresses a value written by {@link ColumnCompression}. */
+  protected static byte[] decode(byte[] value) {
+    try {
+      return ColumnCompression.decode(value);
+    } catch (final IOException e) {
+      throw new RuntimeException(e);
+    }
   }
 
   public String getTitle() {
     return stringify(rowResult.get(TITLE));
   }
 
+  /** Returns the parse status. The returned object is shared by all
+   * callers and must not be modified. */
   public ParseStatus getParseStatus() {
+    if (parseStatus == null) {
+      parseStatus = decodeParseStatus();
+    }
+    return parseStatus;
+  }
+
+  protected ParseStatus decodeParseStatus() {
     final ParseStatus parseStatus = new ParseStatus();
     final byte[] val = rowResult.get(PARSE_STATUS).getValue();
     try {
@@ -180,28 +346,40 @@ public class ImmutableRowPart implements Writable, TableColumns {
     return stringify(rowResult.get(REPR_URL));
   }
 
+  /** Returns a read-only collection of the outlinks of the row. */
   public Collection<Outlink> getOutlinks() {
+    if (outlinks == null) {
+      outlinks = Collections.unmodifiableCollection(decodeOutlinks());
+    }
+    return outlinks;
+  }
+
+  protected Collection<Outlink> decodeOutlinks() {
     final List<Outlink> outlinks = new ArrayList<Outlink>();
-    for (final byte[] col : rowResult.keySet()) {
-      final String column = Bytes.toString(col);
-      if (column.startsWith(OUTLINKS_STR)) {
-        final String toUrl = column.substring(OUTLINKS_STR_LEN);
-        final String anchor = Bytes.toString(rowResult.get(col).getValue());
-        outlinks.add(new Outlink(toUrl, anchor));
-      }
+    for (final Map.Entry<byte[], Cell> e :
+         familyMap(rowResult, OUTLINKS).entrySet()) {
+      final String toUrl = qualifier(e.getKey(), OUTLINKS);
+      final String anchor = Bytes.toString(e.getValue().getValue());
+      outlinks.add(new Outlink(toUrl, anchor));
     }
     return outlinks;
   }
 
+  /** Returns a read-only collection of the inlinks of the row. */
   public Collection<Inlink> getInlinks() {
+    if (inlinks == null) {
+      inlinks = Collections.unmodifiableCollection(decodeInlinks());
+    }
+    return inlinks;
+  }
+
+  protected Collection<Inlink> decodeInlinks() {
     final List<Inlink> inlinks = new ArrayList<Inlink>();
-    for (final byte[] col : rowResult.keySet()) {
-      final String column = Bytes.toString(col);
-      if (column.startsWith(INLINKS_STR)) {
-        final String fromUrl = column.substring(INLINKS_STR_LEN);
-        final String anchor = Bytes.toString(rowResult.get(col).getValue());
-        inlinks.add(new Inlink(fromUrl, anchor));
-      }
+    for (final Map.Entry<byte[], Cell> e :
+         familyMap(rowResult, INLINKS).entrySet()) {
+      final String fromUrl = qualifier(e.getKey(), INLINKS);
+      final String anchor = Bytes.toString(e.getValue().getValue());
+      inlinks.add(new Inlink(fromUrl, anchor));
     }
 
     return inlinks;
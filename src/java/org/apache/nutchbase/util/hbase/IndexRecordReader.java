@@ -0,0 +1,93 @@
+package org.apache.nutchbase.util.hbase;
+
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Scanner;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.io.RowResult;
+import org.apache.hadoop.hbase.mapred.TableInputFormat;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Writables;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+
+/**
+ * Reads webtable rows through a range of an index table, such as
+ * {@link BatchTable} or {@link DueTable}. Rows are read from the webtable
+ * one by one; index entries whose row does not exist are skipped.
+ */
+abstract class IndexRecordReader
+implements RecordReader<ImmutableBytesWritable, RowResult> {
+  private final HTable webTable;
+  private final byte[][] columns;
+  private final Scanner scanner;
+  private long rowCount = 0L;
+
+  public IndexRecordReader(HTable indexTable, byte[] indexColumn,
+      HTable webTable, byte[][] columns, byte[] startRow, byte[] stopRow)
+  throws IOException {
+    this.webTable = webTable;
+    this.columns = columns;
+    this.scanner = indexTable.getScanner(new byte[][] { indexColumn },
+                                         startRow, stopRow);
+  }
+
+  /** Returns the webtable key that an index key points to. */
+  protected abstract byte[] getRowKey(byte[] indexKey);
+
+  /** Returns the webtable, i.e. the table input of a table job. */
+  static String getWebTableName(JobConf job) {
+    return FileInputFormat.getInputPaths(job)[0].getName();
+  }
+
+  /** Returns the columns set with {@link TableInputFormat#COLUMN_LIST}. */
+  static byte[][] getInputColumns(JobConf job) {
+    final String[] colNames = job.get(TableInputFormat.COLUMN_LIST).split(" ");
+    final byte[][] columns = new byte[colNames.length][];
+    for (int i = 0; i < columns.length; i++) {
+      columns[i] = Bytes.toBytes(colNames[i]);
+    }
+    return columns;
+  }
+
+  public boolean next(ImmutableBytesWritable key, RowResult value)
+  throws IOException {
+    RowResult indexRow;
+    while ((indexRow = scanner.next()) != null) {
+      final byte[] rowKey = getRowKey(indexRow.getRow());
+      final RowResult row = webTable.getRow(rowKey, columns);
+      if (row == null || row.isEmpty()) {
+        // row was deleted after it was indexed
+        continue;
+      }
+      key.set(rowKey);
+      Writables.copyWritable(row, value);
+      rowCount++;
+      return true;
+    }
+    return false;
+  }
+
+  public ImmutableBytesWritable createKey() {
+    return new ImmutableBytesWritable();
+  }
+
+  public RowResult createValue() {
+    return new RowResult();
+  }
+
+  public long getPos() {
+    return rowCount;
+  }
+
+  public float getProgress() {
+    // the number of index entries in the range is not known in advance
+    return 0;
+  }
+
+  public void close() {
+    scanner.close();
+  }
+}
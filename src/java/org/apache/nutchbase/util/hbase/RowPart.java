@@ -9,6 +9,7 @@ import org.apache.hadoop.hbase.io.BatchUpdate;
 import org.apache.hadoop.hbase.io.RowResult;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.util.Writables;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.nutch.crawl.Inlink;
 import org.apache.nutch.parse.Outlink;
 import org.apache.nutch.parse.ParseStatus;
@@ -16,7 +17,7 @@ import org.apache.nutch.protocol.ProtocolStatus;
 
 public class RowPart extends ImmutableRowPart {
 
-  private final Map<byte[], byte[]> opMap =
+  private final SortedMap<byte[], byte[]> opMap =
     new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
 
   /** For Writable. Do not use directly. */
@@ -39,24 +40,15 @@ public class RowPart extends ImmutableRowPart {
     }
   }
 
-  // TODO: waay too slow. Find a faster approach
-  private void deleteColumnAll(String colStart) {
+  private void deleteColumnAll(byte[] family) {
+    invalidate(family);
+
     // first clear new additions/deletions
-    final Iterator<Map.Entry<byte[], byte[]>> it = opMap.entrySet().iterator();
-    while (it.hasNext()) {
-      final byte[] key = it.next().getKey();
-      final String keyString = Bytes.toString(key);
-      if (keyString.startsWith(colStart)) {
-        it.remove();
-      }
-    }
+    familyMap(opMap, family).clear();
 
     // then add 'delete' operations for existing columns
-    for (final byte[] col : rowResult.keySet()) {
-      final String column = Bytes.toString(col);
-      if (column.startsWith(colStart)) {
-        opMap.put(col, null);
-      }
+    for (final byte[] col : familyMap(rowResult, family).keySet()) {
+      opMap.put(col, null);
     }
   }
 
@@ -140,25 +132,23 @@ public class RowPart extends ImmutableRowPart {
   }
 
   @Override
-  public Collection<Outlink> getOutlinks() {
-    final Collection<Outlink> outlinks = super.getOutlinks();
+  protected Collection<Outlink> decodeOutlinks() {
+    final Collection<Outlink> outlinks = super.decodeOutlinks();
     final Map<String, Outlink> linkMap = new HashMap<String, Outlink>();
 
     for (final Outlink outlink : outlinks) {
       linkMap.put(outlink.getToUrl(), outlink);
     }
 
-    for (final Map.Entry<byte[], byte[]> entry : opMap.entrySet()) {
-      final String key = Bytes.toString(entry.getKey());
-      if (key.startsWith(OUTLINKS_STR)) {
-        final byte[] val = entry.getValue();
-        if (val == null) { // outlink deleted
-          linkMap.remove(key);
-        } else { // new outlink
-          final String toUrl = key.substring(OUTLINKS_STR_LEN);
-          final String anchor = Bytes.toString(val);
-          linkMap.put(key, new Outlink(toUrl, anchor));
-        }
+    for (final Map.Entry<byte[], byte[]> entry :
+         familyMap(opMap, OUTLINKS).entrySet()) {
+      final byte[] val = entry.getValue();
+      final String toUrl = qualifier(entry.getKey(), OUTLINKS);
+      if (val == null) { // outlink deleted
+        linkMap.remove(toUrl);
+      } else { // new outlink
+        final String anchor = Bytes.toString(val);
+        linkMap.put(toUrl, new Outlink(toUrl, anchor));
       }
     }
     return linkMap.values();
@@ -167,32 +157,31 @@ public class RowPart extends ImmutableRowPart {
   public void addOutlink(Outlink outlink) {
     final byte[] key = Bytes.toBytes(OUTLINKS_STR + outlink.getToUrl());
     opMap.put(key, Bytes.toBytes(outlink.getAnchor()));
+    invalidate(OUTLINKS);
   }
 
   public void deleteAllOutlinks() {
-    deleteColumnAll(OUTLINKS_STR);
+    deleteColumnAll(OUTLINKS);
   }
 
   @Override
-  public Collection<Inlink> getInlinks() {
-    final Collection<Inlink> inlinks = super.getInlinks();
+  protected Collection<Inlink> decodeInlinks() {
+    final Collection<Inlink> inlinks = super.decodeInlinks();
     final Map<String, Inlink> linkMap = new HashMap<String, Inlink>();
 
     for (final Inlink inlink : inlinks) {
       linkMap.put(inlink.getFromUrl(), inlink);
     }
 
-    for (final Map.Entry<byte[], byte[]> entry : opMap.entrySet()) {
-      final String key = Bytes.toString(entry.getKey());
-      if (key.startsWith(INLINKS_STR)) {
-        final byte[] val = entry.getValue();
-        if (val == null) { // inlink deleted
-          linkMap.remove(key);
-        } else { // new outlink
-          final String fromUrl = key.substring(INLINKS_STR_LEN);
-          final String anchor = Bytes.toString(val);
-          linkMap.put(key, new Inlink(fromUrl, anchor));
-        }
+    for (final Map.Entry<byte[], byte[]> entry :
+         familyMap(opMap, INLINKS).entrySet()) {
+      final byte[] val = entry.getValue();
+      final String fromUrl = qualifier(entry.getKey(), INLINKS);
+      if (val == null) { // inlink deleted
+        linkMap.remove(fromUrl);
+      } else { // new outlink
+        final String anchor = Bytes.toString(val);
+        linkMap.put(fromUrl, new Inlink(fromUrl, anchor));
       }
     }
     return linkMap.values();
@@ -202,16 +191,17 @@ public class RowPart extends ImmutableRowPart {
     checkForNull(inlink);
     final String fullKey = INLINKS_STR + inlink.getFromUrl();
     opMap.put(Bytes.toBytes(fullKey), Bytes.toBytes(inlink.getAnchor()));
+    invalidate(INLINKS);
   }
 
   public void deleteAllInlinks() {
-    deleteColumnAll(INLINKS_STR);
+    deleteColumnAll(INLINKS);
   }
 
   @Override
-  public ParseStatus getParseStatus() {
+  protected ParseStatus decodeParseStatus() {
     if (!opMap.containsKey(PARSE_STATUS))
-      return super.getParseStatus();
+      return super.decodeParseStatus();
 
     final ParseStatus parseStatus = new ParseStatus();
     try {
@@ -226,6 +216,7 @@ public class RowPart extends ImmutableRowPart {
     checkForNull(parseStatus);
     try {
       opMap.put(PARSE_STATUS, Writables.getBytes(parseStatus));
+      invalidate(PARSE_STATUS);
     } catch (final IOException e) {
       throw new RuntimeException(e); // TODO: really?
     }
@@ -257,9 +248,9 @@ public class RowPart extends ImmutableRowPart {
   }
 
   @Override
-  public ProtocolStatus getProtocolStatus() {
+  protected ProtocolStatus decodeProtocolStatus() {
     if (!opMap.containsKey(PROTOCOL_STATUS))
-      return super.getProtocolStatus();
+      return super.decodeProtocolStatus();
 
     final ProtocolStatus protocolStatus = new ProtocolStatus();
     final byte[] val = opMap.get(PROTOCOL_STATUS);
@@ -275,6 +266,7 @@ public class RowPart extends ImmutableRowPart {
     try {
       opMap.put(PROTOCOL_STATUS,
                 Writables.getBytes(protocolStatus));
+      invalidate(PROTOCOL_STATUS);
     } catch (final IOException e) {
       throw new RuntimeException(e);
     }
@@ -400,14 +392,15 @@ public class RowPart extends ImmutableRowPart {
 
   public void putColumn(byte[] key, byte[] val) {
       opMap.put(key, val);
+      invalidate(key);
   }
 
   public void putColumn(String key, String val) {
-      opMap.put(Bytes.toBytes(key), Bytes.toBytes(val));
+      putColumn(Bytes.toBytes(key), Bytes.toBytes(val));
   }
 
   public void deleteColumn(String key) {
-      opMap.put(Bytes.toBytes(key), null);
+      putColumn(Bytes.toBytes(key), null);
   }
 
   @Override
@@ -435,7 +428,7 @@ public class RowPart extends ImmutableRowPart {
   }
 
   public void deleteHeaders() {
-    deleteColumnAll(HEADERS_STR);
+    deleteColumnAll(HEADERS);
   }
 
   @Override
@@ -477,13 +470,34 @@ public class RowPart extends ImmutableRowPart {
     opMap.put(Bytes.toBytes(METADATA_STR + metaKey), null);
   }
 
+  /**
+   * Replaces the changes of this row with those of <code>copy</code>, a
+   * copy of this row that was changed instead of it.
+   */
+  public void setChanges(RowPart copy) {
+    opMap.clear();
+    opMap.putAll(copy.opMap);
+    invalidateAll();
+  }
+
   public BatchUpdate makeBatchUpdate() {
+    return makeBatchUpdate(null);
+  }
+
+  /**
+   * Returns the changes of the row as an update of the table.
+   * @param compression Compresses the values of large columns, may be
+   * <code>null</code>
+   */
+  public BatchUpdate makeBatchUpdate(ColumnCompression compression) {
     final BatchUpdate bu = new BatchUpdate(getRowId(), System.currentTimeMillis());
 
     for (final Map.Entry<byte[], byte[]> entry : opMap.entrySet()) {
       final byte[] val = entry.getValue();
       if (val == null) { // delete op
         bu.delete(entry.getKey());
+      } else if (compression != null) {
+        bu.put(entry.getKey(), compression.encode(entry.getKey(), val));
       } else { // put op
         bu.put(entry.getKey(), val);
       }
@@ -494,35 +508,26 @@ public class RowPart extends ImmutableRowPart {
 
   @Override
   public void readFields(DataInput in) throws IOException {
-    super.readFields(in);
+    final ColumnCodec.Reader reader = new ColumnCodec.Reader();
+    readRow(in, reader);
     opMap.clear();
-    final int size = in.readInt();
+    final int size = WritableUtils.readVInt(in);
     for (int i = 0; i < size; i++) {
-      final byte[] key = Bytes.readByteArray(in);
-
-      byte[] val = null;
-      if (in.readBoolean()) {
-        val = Bytes.readByteArray(in);
-      }
-
-      opMap.put(key, val);
+      final byte[] key = reader.readColumn(in);
+      opMap.put(key, ColumnCodec.readValue(in));
     }
   }
 
   @Override
   public void write(DataOutput out) throws IOException {
-    super.write(out);
-    out.writeInt(opMap.size());
+    // share the column dictionary with the row, as ops mostly touch
+    // columns that the row already has
+    final ColumnCodec.Writer writer = new ColumnCodec.Writer();
+    writeRow(out, writer);
+    WritableUtils.writeVInt(out, opMap.size());
     for (final Map.Entry<byte[], byte[]> op : opMap.entrySet()) {
-      Bytes.writeByteArray(out, op.getKey());
-
-      final byte[] val = op.getValue();
-      if (val == null) { // a delete operation
-        out.writeBoolean(false);
-      } else { // a put operation
-        out.writeBoolean(true);
-        Bytes.writeByteArray(out, val);
-      }
+      writer.writeColumn(out, op.getKey());
+      ColumnCodec.writeValue(out, op.getValue()); // null for a delete
     }
   }
 
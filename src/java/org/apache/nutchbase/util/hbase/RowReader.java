@@ -0,0 +1,90 @@
+package org.apache.nutchbase.util.hbase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.io.RowResult;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Reads rows of a table with parallel point reads, for reducers that update
+ * rows they only get the keys of.
+ */
+public class RowReader {
+
+  private final ExecutorService readers;
+  private final ThreadLocal<HTable> tables;
+  private final byte[][] columns;
+
+  /**
+   * @param columns Columns to read
+   * @param threads Number of rows read at once
+   */
+  public RowReader(final Configuration conf, final String tableName,
+                   Set<String> columns, int threads) {
+    this.columns = new byte[columns.size()][];
+    int i = 0;
+    for (String column : columns) {
+      this.columns[i++] = Bytes.toBytes(column);
+    }
+    tables = new ThreadLocal<HTable>() {
+      @Override
+      protected HTable initialValue() {
+        try {
+          return new HTable(new HBaseConfiguration(conf), tableName);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    readers = Executors.newFixedThreadPool(threads);
+  }
+
+  /**
+   * Returns the rows of <code>keys</code>, in the same order, with
+   * <code>null</code> for the rows that do not exist.
+   */
+  public RowResult[] getRows(List<ImmutableBytesWritable> keys)
+  throws IOException {
+    List<Future<RowResult>> results =
+      new ArrayList<Future<RowResult>>(keys.size());
+    for (final ImmutableBytesWritable key : keys) {
+      results.add(readers.submit(new Callable<RowResult>() {
+        public RowResult call() throws IOException {
+          return tables.get().getRow(key.get(), columns);
+        }
+      }));
+    }
+
+    RowResult[] rows = new RowResult[keys.size()];
+    for (int i = 0; i < rows.length; i++) {
+      RowResult rowResult;
+      try {
+        rowResult = results.get(i).get();
+      } catch (InterruptedException e) {
+        throw new IOException(e.toString());
+      } catch (ExecutionException e) {
+        throw new IOException(e.getCause().toString());
+      }
+      if (rowResult != null && !rowResult.isEmpty()) {
+        rows[i] = rowResult;
+      }
+    }
+    return rows;
+  }
+
+  public void close() {
+    readers.shutdown();
+  }
+}
@@ -0,0 +1,117 @@
+package org.apache.nutchbase.util.hbase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Picks webtable keys that cut the urls of a seed list into ranges of
+ * about the same size. Lines are read at evenly spaced offsets of the seed
+ * files, so sorted seed lists are sampled as well as unsorted ones, without
+ * reading them whole.
+ */
+public class SeedKeySampler {
+
+  public static final Log LOG = LogFactory.getLog(SeedKeySampler.class);
+
+  /** Number of seed lines read to pick split keys. */
+  public static final String SAMPLE_SIZE = "inject.sample.size";
+
+  /**
+   * Returns <code>numRanges - 1</code> sorted keys (or fewer, if the
+   * seed list is too small) that split the reversed seed urls in
+   * <code>urlDir</code> into <code>numRanges</code> ranges.
+   */
+  public static byte[][] getSplitKeys(Configuration conf, Path urlDir,
+      int numRanges) throws IOException {
+    final SortedSet<String> sample = sample(conf, urlDir,
+        conf.getInt(SAMPLE_SIZE, 10000));
+    final List<byte[]> splitKeys = new ArrayList<byte[]>();
+    if (numRanges > 1 && !sample.isEmpty()) {
+      final String[] keys = sample.toArray(new String[sample.size()]);
+      String prev = null;
+      for (int i = 1; i < numRanges; i++) {
+        final String key = keys[(int) ((long) i * keys.length / numRanges)];
+        if (!key.equals(prev)) {
+          splitKeys.add(Bytes.toBytes(key));
+          prev = key;
+        }
+      }
+    }
+    LOG.info("Sampled " + sample.size() + " seed keys, "
+             + splitKeys.size() + " split keys");
+    return splitKeys.toArray(new byte[splitKeys.size()][]);
+  }
+
+  private static SortedSet<String> sample(Configuration conf, Path urlDir,
+      int sampleSize) throws IOException {
+    final FileSystem fs = urlDir.getFileSystem(conf);
+    final List<FileStatus> files = new ArrayList<FileStatus>();
+    long totalLength = 0L;
+    for (final FileStatus file : fs.listStatus(urlDir)) {
+      if (!file.isDir() && file.getLen() > 0) {
+        files.add(file);
+        totalLength += file.getLen();
+      }
+    }
+
+    final SortedSet<String> keys = new TreeSet<String>();
+    for (final FileStatus file : files) {
+      final long len = file.getLen();
+      final int samples =
+        (int) Math.max(1L, (long) sampleSize * len / totalLength);
+      final FSDataInputStream in = fs.open(file.getPath());
+      try {
+        for (int i = 0; i < samples; i++) {
+          final long offset = len * i / samples;
+          in.seek(offset);
+          if (offset > 0) {
+            readLine(in); // skip the rest of a partial line
+          }
+          final String line = readLine(in);
+          if (line == null) {
+            break;
+          }
+          final String url = line.trim();
+          if (url.length() == 0 || url.startsWith("#")) {
+            continue;
+          }
+          try {
+            keys.add(TableUtil.reverseUrl(url));
+          } catch (final MalformedURLException e) {
+            // not a url, skip it
+          }
+        }
+      } finally {
+        in.close();
+      }
+    }
+    return keys;
+  }
+
+  /** Reads up to the next newline, or returns null at the end of input. */
+  private static String readLine(FSDataInputStream in) throws IOException {
+    final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != -1 && b != '\n') {
+      line.write(b);
+    }
+    if (b == -1 && line.size() == 0) {
+      return null;
+    }
+    return Bytes.toString(line.toByteArray());
+  }
+}
@@ -111,7 +111,18 @@ public class TableUtil {
   public static String getReversedHost(String reversedUrl) {
     return reversedUrl.substring(0, reversedUrl.indexOf(':'));
   }
-  
+
+  /** Reverses a host name, the same way as the host part of
+   * {@link #reverseUrl(URL)}. E.g "bar.foo.com" -> "com.foo.bar"
+   * @param host Host name
+   * @return Reversed host
+   */
+  public static String reverseHost(String host) {
+    StringBuilder buf = new StringBuilder();
+    reverseAppendSplits(host.split("\\."), buf);
+    return buf.toString();
+  }
+
   private static void reverseAppendSplits(String[] splits, StringBuilder buf) {
     for (int i = splits.length - 1; i > 0; i--) {
       buf.append(splits[i]);
@@ -1,11 +1,16 @@
 package org.apache.nutchbase.util.hbase;
 
+import java.io.IOException;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HBaseConfiguration;
 import org.apache.hadoop.hbase.HColumnDescriptor;
 import org.apache.hadoop.hbase.HTableDescriptor;
 import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.io.BatchUpdate;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
@@ -60,10 +65,68 @@ public class WebTableCreator extends Configured implements Tool {
 
     }
 
+    /**
+     * Splits a new, empty table into about <code>numRegions</code> regions
+     * whose boundaries follow the distribution of the seed urls. This
+     * version of HBase can not create a table with given split keys, so
+     * the sampled keys are written as placeholder rows, regions are split
+     * at their middle key until there are enough of them, and the
+     * placeholders are deleted.
+     */
+    public static void preSplit(HBaseConfiguration hbaseConf, String tableName,
+            Path urlDir, int numRegions) throws IOException {
+        byte[][] keys = SeedKeySampler.getSplitKeys(hbaseConf, urlDir,
+                numRegions * 16);
+        if (keys.length == 0) {
+            LOG.warn("No seed keys sampled, not splitting " + tableName);
+            return;
+        }
+
+        HTable table = new HTable(hbaseConf, tableName);
+        table.setAutoFlush(false);
+        for (byte[] key : keys) {
+            BatchUpdate bu = new BatchUpdate(key);
+            bu.put(TableColumns.METADATA, TableUtil.YES_VAL);
+            table.commit(bu);
+        }
+        table.flushCommits();
+
+        HBaseAdmin admin = new HBaseAdmin(hbaseConf);
+        long timeout = hbaseConf.getLong("webtable.presplit.timeout", 60000L);
+        int regions = table.getStartKeys().length;
+        while (regions < numRegions) {
+            admin.flush(tableName);
+            admin.split(tableName);
+            long deadline = System.currentTimeMillis() + timeout;
+            int newRegions = regions;
+            while (newRegions <= regions
+                    && System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    throw new IOException(e.toString());
+                }
+                newRegions = table.getStartKeys().length;
+            }
+            if (newRegions <= regions) {
+                LOG.warn("Regions of " + tableName + " stopped splitting at "
+                        + regions);
+                break;
+            }
+            regions = newRegions;
+            LOG.info(tableName + " has " + regions + " regions");
+        }
+
+        for (byte[] key : keys) {
+            table.deleteAll(key);
+        }
+    }
+
     public int run(String[] args) throws Exception {
 
-        if (args.length != 1) {
-            System.err.println("Usage: WebTableCreator <webtable>");
+        if (args.length != 1 && args.length != 4) {
+            System.err.println("Usage: WebTableCreator <webtable> "
+                    + "[-presplit <url_dir> <regions>]");
             return -1;
         }
         try {
@@ -77,6 +140,11 @@ public class WebTableCreator extends Configured implements Tool {
             HBaseAdmin admin = new HBaseAdmin(hbaseConf);
             LOG.warn("Calling createTable");
             admin.createTable(desc);
+
+            if (args.length == 4 && "-presplit".equals(args[1])) {
+                preSplit(hbaseConf, args[0], new Path(args[2]),
+                        Integer.parseInt(args[3]));
+            }
             return 0;
         } catch (Exception e) {
             LOG.fatal("WebTableCreator: " + StringUtils.stringifyException(e));
@@ -84,4 +152,4 @@ public class WebTableCreator extends Configured implements Tool {
         }
 
     }
-}
\ No newline at end of file
+}
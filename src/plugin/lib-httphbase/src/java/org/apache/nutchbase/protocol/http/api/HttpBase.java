@@ -29,6 +29,9 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 // Nutch imports
+import org.apache.nutch.metadata.HttpHeaders;
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.net.protocols.HttpDateFormat;
 import org.apache.nutch.net.protocols.Response;
 import org.apache.nutch.protocol.Content;
 import org.apache.nutch.protocol.Protocol;
@@ -39,9 +42,11 @@ import org.apache.nutch.protocol.RobotRules;
 import org.apache.nutch.util.GZIPUtils;
 import org.apache.nutch.util.LogUtil;
 import org.apache.nutch.util.MimeUtil;
+import org.apache.nutchbase.fetcher.HostResolver;
 import org.apache.nutchbase.protocol.ProtocolHbase;
 import org.apache.nutchbase.util.hbase.ImmutableRowPart;
 import org.apache.nutchbase.util.hbase.RowPart;
+import org.apache.nutchbase.util.hbase.TableColumns;
 
 // Hadoop imports
 import org.apache.hadoop.conf.Configuration;
@@ -339,7 +344,7 @@ public abstract class HttpBase implements ProtocolHbase {
     String host;
     if (byIP) {
       try {
-        InetAddress addr = InetAddress.getByName(url.getHost());
+        InetAddress addr = HostResolver.get(conf).resolve(url.getHost());
         host = addr.getHostAddress();
       } catch (UnknownHostException e) {
         // unable to resolve it, so don't fall back to host name
@@ -483,6 +488,48 @@ public abstract class HttpBase implements ProtocolHbase {
     }
   }
   
+  /**
+   * Returns the value of the If-Modified-Since header of a request for the
+   * page stored in <code>row</code>: the Last-Modified date the server sent
+   * with the page, or else the modified time of the page. Returns null if
+   * neither is known.
+   */
+  public static String getIfModifiedSince(RowPart row) {
+    String lastModified = row.getHeader(HttpHeaders.LAST_MODIFIED);
+    if (lastModified != null) {
+      return lastModified;
+    }
+    if (row.hasColumn(TableColumns.MODIFIED_TIME)
+        && row.getModifiedTime() > 0) {
+      return HttpDateFormat.toString(row.getModifiedTime());
+    }
+    return null;
+  }
+
+  /**
+   * Returns the value of the If-None-Match header of a request for the
+   * page stored in <code>row</code>, i.e. the ETag the server sent with
+   * the page, or null.
+   */
+  public static String getIfNoneMatch(RowPart row) {
+    return row.getHeader(HttpHeaders.ETAG);
+  }
+
+  /**
+   * Stores the headers of a response in <code>row</code>. They replace the
+   * stored headers, except for a 304 (not modified) response, whose
+   * headers are added to the stored ones: they describe the stored page,
+   * and its validators must be kept for the next request.
+   */
+  public static void setHeaders(RowPart row, int code, Metadata headers) {
+    if (code != 304) {
+      row.deleteHeaders();
+    }
+    for (String key : headers.names()) {
+      row.addHeader(key, headers.get(key));
+    }
+  }
+
   public byte[] processGzipEncoded(byte[] compressed, URL url) throws IOException {
 
     if (LOGGER.isTraceEnabled()) { LOGGER.trace("uncompressing...."); }
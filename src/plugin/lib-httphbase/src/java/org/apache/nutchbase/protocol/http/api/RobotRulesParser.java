@@ -25,7 +25,8 @@ import java.net.URL;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.StringTokenizer;
 
 // Commons Logging imports
@@ -41,7 +42,9 @@ import org.apache.nutch.crawl.CrawlDatum;
 import org.apache.nutch.net.protocols.Response;
 import org.apache.nutch.protocol.ProtocolException;
 import org.apache.nutch.protocol.RobotRules;
+import org.apache.nutchbase.util.hbase.HostTable;
 import org.apache.nutchbase.util.hbase.RowPart;
+import org.apache.nutchbase.util.hbase.TableUtil;
 
 
 /**
@@ -59,7 +62,26 @@ public class RobotRulesParser implements Configurable {
 
   private boolean allowForbidden = false;
 
-  private static final Hashtable CACHE = new Hashtable();
+  /** Maximum number of hosts whose rules are cached in memory. */
+  public static final String CACHE_SIZE = "http.robots.cache.size";
+
+  /** Time after which the rules of a host are fetched again. */
+  public static final String EXPIRY = "http.robots.expiry";
+
+  private static volatile int cacheSize = 10000;
+
+  /** Rules of the hosts used lately, shared by all instances. */
+  private static final Map<String, CachedRules> CACHE =
+    new LinkedHashMap<String, CachedRules>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedRules> eldest) {
+        return size() > cacheSize;
+      }
+    };
+
+  private static final byte RULES_VERSION = 1;
   
   private static final String CHARACTER_ENCODING= "UTF-8";
   private static final int NO_PRECEDENCE= Integer.MAX_VALUE;
@@ -70,6 +92,17 @@ public class RobotRulesParser implements Configurable {
 
   private Configuration conf;
   private HashMap robotNames;
+  private long expiry = 24L * 60 * 60 * 1000;
+
+  private static class CachedRules {
+    final RobotRuleSet rules;
+    final long expires;
+
+    CachedRules(RobotRuleSet rules, long expires) {
+      this.rules = rules;
+      this.expires = expires;
+    }
+  }
 
   /**
    * This class holds the rules which were parsed from a robots.txt
@@ -191,6 +224,51 @@ public class RobotRulesParser implements Configurable {
       return true;
     }
 
+    /**
+     * Serializes the rules, for {@link HostTable}. The Crawl-Delay and the
+     * expire time are not included.
+     */
+    public byte[] toBytes() {
+      isAllowed("x");  // force String[] representation
+      StringBuilder buf = new StringBuilder();
+      buf.append((char) RULES_VERSION);
+      for (int i= 0; i < entries.length; i++) {
+        buf.append(entries[i].allowed ? 'A' : 'D');
+        buf.append(entries[i].prefix).append('\n');
+      }
+      try {
+        return buf.toString().getBytes(CHARACTER_ENCODING);
+      } catch (java.io.UnsupportedEncodingException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    /**
+     * Reads rules serialized by {@link #toBytes()}.
+     * @return the rules, or null if <code>bytes</code> are not in a known
+     * format
+     */
+    public static RobotRuleSet fromBytes(byte[] bytes) {
+      if (bytes == null || bytes.length == 0 || bytes[0] != RULES_VERSION) {
+        return null;
+      }
+      String content;
+      try {
+        content = new String(bytes, 1, bytes.length - 1, CHARACTER_ENCODING);
+      } catch (java.io.UnsupportedEncodingException e) {
+        throw new RuntimeException(e);
+      }
+      RobotRuleSet rules = new RobotRuleSet();
+      int start = 0;
+      int end;
+      while ((end = content.indexOf('\n', start)) >= 0) {
+        rules.addPrefix(content.substring(start + 1, end),
+                        content.charAt(start) == 'A');
+        start = end + 1;
+      }
+      return rules;
+    }
+
     /**
      */
     public String toString() {
@@ -222,6 +300,8 @@ public class RobotRulesParser implements Configurable {
   public void setConf(Configuration conf) {
     this.conf = conf;
     allowForbidden = conf.getBoolean("http.robots.403.allow", false);
+    cacheSize = conf.getInt(CACHE_SIZE, 10000);
+    expiry = conf.getLong(EXPIRY, expiry);
     //
     // Grab the agent names we advertise to robots files.
     //
@@ -451,41 +531,96 @@ public class RobotRulesParser implements Configurable {
   private RobotRuleSet getRobotRulesSet(HttpBase http, URL url) {
 
     String host = url.getHost().toLowerCase(); // normalize to lower case
+    long now = System.currentTimeMillis();
 
-    RobotRuleSet robotRules = (RobotRuleSet)CACHE.get(host);
+    CachedRules cached;
+    synchronized (CACHE) {
+      cached = CACHE.get(host);
+    }
+    if (cached != null && now < cached.expires) {
+      return cached.rules;
+    }
 
-    boolean cacheRule = true;
-    
-    if (robotRules == null) {                     // cache miss
-      if (LOG.isTraceEnabled()) { LOG.trace("cache miss " + url); }
+    // rules fetched by an earlier task
+    HostTable hostTable = getHostTable();
+    String reversedHost = TableUtil.reverseHost(host);
+    if (hostTable != null) {
       try {
-        Response response = http.getResponse(new URL(url, "/robots.txt"),
-                                             new RowPart(), true);
-
-        if (response.getCode() == 200)               // found rules: parse them
-          robotRules = parseRules(response.getContent());
-        else if ( (response.getCode() == 403) && (!allowForbidden) )
-          robotRules = FORBID_ALL_RULES;            // use forbid all
-        else if (response.getCode() >= 500) {
-          cacheRule = false;
-          robotRules = EMPTY_RULES;
-        }else                                        
-          robotRules = EMPTY_RULES;                 // use default rules
-      } catch (Throwable t) {
-        if (LOG.isInfoEnabled()) {
-          LOG.info("Couldn't get robots.txt for " + url + ": " + t.toString());
+        HostTable.HostInfo info = hostTable.getHostInfo(reversedHost);
+        if (info.hasRobotsRules(now)) {
+          RobotRuleSet robotRules =
+            RobotRuleSet.fromBytes(info.getRobotsRules());
+          if (robotRules != null) {
+            robotRules.setCrawlDelay(info.getCrawlDelay());
+            robotRules.setExpireTime(info.getRobotsExpires());
+            cacheRules(host, robotRules, info.getRobotsExpires());
+            return robotRules;
+          }
         }
+      } catch (IOException e) {
+        LOG.warn("Couldn't read host table for " + host + ": " + e);
+      }
+    }
+
+    RobotRuleSet robotRules;
+    boolean cacheRule = true;
+    
+    if (LOG.isTraceEnabled()) { LOG.trace("cache miss " + url); }
+    try {
+      Response response = http.getResponse(new URL(url, "/robots.txt"),
+                                           new RowPart(), true);
+
+      if (response.getCode() == 200)               // found rules: parse them
+        robotRules = parseRules(response.getContent());
+      else if ( (response.getCode() == 403) && (!allowForbidden) )
+        robotRules = FORBID_ALL_RULES;            // use forbid all
+      else if (response.getCode() >= 500) {
         cacheRule = false;
         robotRules = EMPTY_RULES;
+      }else                                        
+        robotRules = EMPTY_RULES;                 // use default rules
+    } catch (Throwable t) {
+      if (LOG.isInfoEnabled()) {
+        LOG.info("Couldn't get robots.txt for " + url + ": " + t.toString());
       }
+      cacheRule = false;
+      robotRules = EMPTY_RULES;
+    }
 
-      if (cacheRule){
-        CACHE.put(host, robotRules);  // cache rules for host
+    if (cacheRule) {
+      long expires = now + expiry;
+      cacheRules(host, robotRules, expires);  // cache rules for host
+      if (hostTable != null) {
+        try {
+          hostTable.setRobotsRules(reversedHost, robotRules.toBytes(),
+                                   robotRules.getCrawlDelay(), now, expires);
+        } catch (IOException e) {
+          LOG.warn("Couldn't update host table for " + host + ": " + e);
+        }
       }
     }
     return robotRules;
   }
 
+  private static void cacheRules(String host, RobotRuleSet rules,
+                                 long expires) {
+    synchronized (CACHE) {
+      CACHE.put(host, new CachedRules(rules, expires));
+    }
+  }
+
+  private HostTable getHostTable() {
+    if (conf == null) {
+      return null;
+    }
+    try {
+      return HostTable.get(conf);
+    } catch (IOException e) {
+      LOG.warn("Couldn't open host table: " + e);
+      return null;
+    }
+  }
+
   public boolean isAllowed(HttpBase http, URL url)
       throws ProtocolException, IOException {
     String path = url.getPath();                  // check rules
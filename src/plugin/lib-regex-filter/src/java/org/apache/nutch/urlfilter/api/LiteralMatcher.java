@@ -0,0 +1,157 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.urlfilter.api;
+
+// JDK imports
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeMap;
+
+
+/**
+ * Finds which of a set of literals occur in a string, in a single pass over
+ * the string (an Aho-Corasick automaton).
+ *
+ * <p>Each literal is added with an id; {@link #match(String, boolean[])}
+ * sets the ids of the literals found. Literals must all be added before the
+ * first match.</p>
+ */
+public class LiteralMatcher {
+
+  private static final int[] NO_IDS = new int[0];
+
+  // the trie while literals are added
+  private final List<TreeMap<Character, Integer>> edges =
+    new ArrayList<TreeMap<Character, Integer>>();
+  private final List<int[]> outputs = new ArrayList<int[]>();
+
+  // the automaton: sorted transitions, failure links and ids of each state
+  private char[][] labels;
+  private int[][] targets;
+  private int[] fail;
+  private int[][] ids;
+
+  /** Constructs a matcher of no literals. */
+  public LiteralMatcher() {
+    newState();
+  }
+
+  private int newState() {
+    edges.add(new TreeMap<Character, Integer>());
+    outputs.add(NO_IDS);
+    return edges.size() - 1;
+  }
+
+  /** Adds a non empty literal, with the id to set when it is found. */
+  public void add(String literal, int id) {
+    if (labels != null) {
+      throw new IllegalStateException("already matching");
+    }
+    if (literal.length() == 0) {
+      throw new IllegalArgumentException("empty literal");
+    }
+    int state = 0;
+    for (int i = 0; i < literal.length(); i++) {
+      final Character c = Character.valueOf(literal.charAt(i));
+      Integer next = edges.get(state).get(c);
+      if (next == null) {
+        next = Integer.valueOf(newState());
+        edges.get(state).put(c, next);
+      }
+      state = next.intValue();
+    }
+    outputs.set(state, union(outputs.get(state), new int[] { id }));
+  }
+
+  private static int[] union(int[] a, int[] b) {
+    if (a.length == 0) {
+      return b;
+    }
+    final int[] ab = new int[a.length + b.length];
+    System.arraycopy(a, 0, ab, 0, a.length);
+    System.arraycopy(b, 0, ab, a.length, b.length);
+    return ab;
+  }
+
+  /** Builds the transitions and failure links, breadth first. */
+  private void build() {
+    final int size = edges.size();
+    labels = new char[size][];
+    targets = new int[size][];
+    fail = new int[size];
+    ids = new int[size][];
+    ids[0] = outputs.get(0);
+    final LinkedList<Integer> queue = new LinkedList<Integer>();
+    queue.add(Integer.valueOf(0));
+    while (!queue.isEmpty()) {
+      final int state = queue.removeFirst().intValue();
+      final TreeMap<Character, Integer> out = edges.get(state);
+      labels[state] = new char[out.size()];
+      targets[state] = new int[out.size()];
+      int i = 0;
+      for (final Character c : out.keySet()) {
+        final int next = out.get(c).intValue();
+        labels[state][i] = c.charValue();
+        targets[state][i++] = next;
+        if (state == 0) {
+          fail[next] = 0;
+        } else {
+          fail[next] = step(fail[state], c.charValue());
+        }
+        ids[next] = union(ids[fail[next]], outputs.get(next));
+        queue.add(Integer.valueOf(next));
+      }
+    }
+    edges.clear();
+    outputs.clear();
+  }
+
+  /** Returns the state after <code>c</code>, following failure links. */
+  private int step(int state, char c) {
+    while (true) {
+      final int i = Arrays.binarySearch(labels[state], c);
+      if (i >= 0) {
+        return targets[state][i];
+      }
+      if (state == 0) {
+        return 0;
+      }
+      state = fail[state];
+    }
+  }
+
+  /**
+   * Sets <code>found[id]</code> for the id of each literal that occurs in
+   * <code>s</code>.
+   */
+  public void match(String s, boolean[] found) {
+    synchronized (this) {
+      if (labels == null) {
+        build();
+      }
+    }
+    int state = 0;
+    for (int i = 0; i < s.length(); i++) {
+      state = step(state, s.charAt(i));
+      for (final int id : ids[state]) {
+        found[id] = true;
+      }
+    }
+  }
+}
@@ -0,0 +1,335 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.urlfilter.api;
+
+// JDK imports
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Finds the literals required by a {@link java.util.regex.Pattern regular
+ * expression}: strings such that any text the expression finds a match in
+ * contains one of them. For instance, <code>\.(gif|jpg)$</code> requires
+ * <code>.gif</code> or <code>.jpg</code>.
+ *
+ * <p>The analysis is conservative: it only looks at the sequence of
+ * characters and groups of literal alternatives at the top level of the
+ * expression, and gives up (returns <code>null</code>) on top level
+ * alternations, flags and quoting.</p>
+ */
+public class RegexLiterals {
+
+  /** Maximum number of alternative literals of an expression. */
+  private static final int MAX_LITERALS = 64;
+
+  private final String regex;
+  private int pos;
+
+  // literals of the current run of atoms, and before its last atom
+  private List<String> current;
+  private List<String> previous;
+  private List<String> best;
+
+  private RegexLiterals(String regex) {
+    this.regex = regex;
+  }
+
+  /**
+   * Returns the literals required by a regular expression, or
+   * <code>null</code> if none were found.
+   */
+  public static String[] find(String regex) {
+    final List<String> literals = new RegexLiterals(regex).find();
+    return literals == null ? null
+      : literals.toArray(new String[literals.size()]);
+  }
+
+  private List<String> find() {
+    if (hasFlagsOrQuotes(regex)) {
+      return null;
+    }
+    best = null;
+    startRun();
+    while (pos < regex.length()) {
+      final char c = regex.charAt(pos);
+      switch (c) {
+      case '|':
+      case ')':
+        return null;                            // top level alternation
+      case '*':
+      case '?':
+        pos++;
+        skipQuantifierMode();
+        optionalAtom();
+        break;
+      case '+':
+        pos++;
+        skipQuantifierMode();
+        endRun();
+        break;
+      case '{':
+        final int min = readRepetition();
+        if (min < 0) {
+          return null;
+        }
+        if (min == 0) {
+          optionalAtom();
+        } else {
+          endRun();
+        }
+        break;
+      case '\\':
+        if (pos + 1 >= regex.length()) {
+          return null;
+        }
+        final char e = regex.charAt(pos + 1);
+        pos += 2;
+        if (Character.isDigit(e) || "xucpPk".indexOf(e) >= 0) {
+          return null;                          // escapes with arguments
+        } else if (Character.isLetter(e)) {
+          opaqueAtom();                         // a class or a control character
+        } else {
+          append(String.valueOf(e));
+        }
+        break;
+      case '[':
+        if (!skipClass()) {
+          return null;
+        }
+        opaqueAtom();
+        break;
+      case '(':
+        final List<String> alternatives = readGroup();
+        if (alternatives == null) {
+          return null;
+        }
+        if (alternatives.isEmpty()) {
+          opaqueAtom();
+        } else {
+          append(alternatives);
+        }
+        break;
+      case '.':
+      case '^':
+      case '$':
+        pos++;
+        opaqueAtom();
+        break;
+      default:
+        pos++;
+        append(String.valueOf(c));
+      }
+    }
+    endRun();
+    return best;
+  }
+
+  private static boolean hasFlagsOrQuotes(String regex) {
+    for (int i = 0; i < regex.length() - 1; i++) {
+      final char c = regex.charAt(i);
+      if (c == '\\') {
+        if (regex.charAt(i + 1) == 'Q') {
+          return true;
+        }
+        i++;
+      } else if (c == '(' && regex.charAt(i + 1) == '?'
+                 && (i + 2 >= regex.length() || regex.charAt(i + 2) != ':')) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void startRun() {
+    current = new ArrayList<String>();
+    current.add("");
+    previous = null;
+  }
+
+  /** Ends the current run, keeping it if it is the best one so far. */
+  private void endRun() {
+    if (score(current) > score(best)) {
+      best = current;
+    }
+    startRun();
+  }
+
+  /** Returns the length of the shortest literal. */
+  private static int score(List<String> literals) {
+    if (literals == null) {
+      return 0;
+    }
+    int min = Integer.MAX_VALUE;
+    for (final String literal : literals) {
+      min = Math.min(min, literal.length());
+    }
+    return min;
+  }
+
+  private void append(String s) {
+    final List<String> one = new ArrayList<String>(1);
+    one.add(s);
+    append(one);
+  }
+
+  /** Appends an atom matching one of <code>alternatives</code>. */
+  private void append(List<String> alternatives) {
+    if (current.size() * alternatives.size() > MAX_LITERALS) {
+      endRun();
+    }
+    final List<String> next =
+      new ArrayList<String>(current.size() * alternatives.size());
+    for (final String prefix : current) {
+      for (final String alternative : alternatives) {
+        next.add(prefix + alternative);
+      }
+    }
+    previous = current;
+    current = next;
+  }
+
+  /** Handles an atom that is not a literal. */
+  private void opaqueAtom() {
+    endRun();
+  }
+
+  /** Handles a quantifier that makes the last atom optional. */
+  private void optionalAtom() {
+    if (previous != null) {
+      current = previous;
+    }
+    endRun();
+  }
+
+  private void skipQuantifierMode() {
+    if (pos < regex.length()
+        && (regex.charAt(pos) == '?' || regex.charAt(pos) == '+')) {
+      pos++;
+    }
+  }
+
+  /** Reads <code>{n}</code>, <code>{n,}</code> or <code>{n,m}</code>, and
+   * returns n, or -1. */
+  private int readRepetition() {
+    final int end = regex.indexOf('}', pos);
+    if (end < 0) {
+      return -1;
+    }
+    final String spec = regex.substring(pos + 1, end);
+    pos = end + 1;
+    skipQuantifierMode();
+    final int comma = spec.indexOf(',');
+    try {
+      return Integer.parseInt(comma < 0 ? spec : spec.substring(0, comma));
+    } catch (final NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** Skips a character class, which may contain nested classes. */
+  private boolean skipClass() {
+    int depth = 0;
+    while (pos < regex.length()) {
+      final char c = regex.charAt(pos);
+      if (c == '\\') {
+        pos += 2;
+        continue;
+      }
+      if (c == '[') {
+        depth++;
+        pos++;
+        // a leading ] (after an optional ^) is a character
+        if (pos < regex.length() && regex.charAt(pos) == '^') {
+          pos++;
+        }
+        if (pos < regex.length() && regex.charAt(pos) == ']') {
+          pos++;
+        }
+        continue;
+      }
+      pos++;
+      if (c == ']' && --depth == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads a group. Returns its alternatives if it is a group of literal
+   * alternatives, an empty list if it is another group, or
+   * <code>null</code> if it is not closed.
+   */
+  private List<String> readGroup() {
+    final List<String> alternatives = new ArrayList<String>();
+    StringBuilder alternative = new StringBuilder();
+    boolean literal = true;
+    int depth = 0;
+    pos++;
+    if (regex.startsWith("?:", pos)) {
+      pos += 2;
+    }
+    while (pos < regex.length()) {
+      final char c = regex.charAt(pos);
+      switch (c) {
+      case '\\':
+        if (pos + 1 >= regex.length()) {
+          return null;
+        }
+        final char e = regex.charAt(pos + 1);
+        if (Character.isLetterOrDigit(e)) {
+          literal = false;
+        } else {
+          alternative.append(e);
+        }
+        pos += 2;
+        continue;
+      case '[':
+        if (!skipClass()) {
+          return null;
+        }
+        literal = false;
+        continue;
+      case '(':
+        depth++;
+        literal = false;
+        break;
+      case ')':
+        if (depth-- == 0) {
+          pos++;
+          alternatives.add(alternative.toString());
+          return literal ? alternatives : new ArrayList<String>();
+        }
+        break;
+      case '|':
+        if (depth == 0) {
+          alternatives.add(alternative.toString());
+          alternative = new StringBuilder();
+        }
+        break;
+      case '.': case '^': case '$': case '*': case '+': case '?': case '{':
+        literal = false;
+        break;
+      default:
+        alternative.append(c);
+      }
+      pos++;
+    }
+    return null;
+  }
+}
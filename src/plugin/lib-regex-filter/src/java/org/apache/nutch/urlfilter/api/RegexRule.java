@@ -60,5 +60,20 @@ public abstract class RegexRule {
    */
   protected abstract boolean match(String url);
 
+  /**
+   * Returns literals such that any url matching this rule contains at least
+   * one of them, if known. Rules of urls containing none of the literals are
+   * skipped by {@link RegexURLFilterBase} without calling
+   * {@link #match(String)}.
+   * @return the literals required by this rule, or <code>null</code> if
+   *         this rule must always be checked.
+   */
+  protected String[] getLiterals() { return null; }
+
+  /**
+   * Returns the regular expression of this rule.
+   */
+  public String getRegex() { return regex; }
+
 }
 
@@ -24,6 +24,7 @@ import java.io.InputStreamReader;
 import java.io.IOException;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 // Commons Logging imports
 import org.apache.commons.logging.Log;
@@ -51,6 +52,13 @@ import org.apache.nutch.net.*;
  * where plus (<code>+</code>)means go ahead and index it and minus 
  * (<code>-</code>)means no.</p>
  *
+ * <p>Unless <code>urlfilter.compiled</code> is false, the rules are
+ * compiled: runs of rules of the same sign are merged when the implementation
+ * supports it (see {@link #mergeRules(boolean, List)}), and a rule is only
+ * checked if the url contains one of its {@link RegexRule#getLiterals()
+ * literals}, all of which are looked for in a single pass over the url. The
+ * first matching rule still decides.</p>
+ *
  * @author J&eacute;r&ocirc;me Charron
  */
 public abstract class RegexURLFilterBase implements URLFilter {
@@ -61,6 +69,18 @@ public abstract class RegexURLFilterBase implements URLFilter {
   /** An array of applicable rules */
   private RegexRule[] rules;
 
+  /** Whether to use the compiled rules */
+  private boolean compiled = true;
+
+  /** The rules, with runs of rules of the same sign merged */
+  private RegexRule[] compiledRules;
+
+  /** Whether each compiled rule is only checked if one of its literals is found */
+  private boolean[] required;
+
+  /** The literals of the compiled rules, or null if there are none */
+  private LiteralMatcher literals;
+
   /** The current configuration */
   private Configuration conf;
 
@@ -86,6 +106,7 @@ public abstract class RegexURLFilterBase implements URLFilter {
   protected RegexURLFilterBase(Reader reader)
     throws IOException, IllegalArgumentException {
     rules = readRulesFile(reader);
+    compile();
   }
   
   /**
@@ -105,6 +126,19 @@ public abstract class RegexURLFilterBase implements URLFilter {
    * @return the name of the file of rules to use.
    */
   protected abstract String getRulesFile(Configuration conf);
+
+  /**
+   * Merges consecutive rules of the same sign into a single rule matching
+   * the urls any of them matches, if this implementation can do it more
+   * efficiently than checking the rules one by one. The default
+   * implementation does not merge rules.
+   * @param sign of the rules.
+   * @param rules are the rules to merge, at least two.
+   * @return the merged rule, or <code>null</code> to keep the rules.
+   */
+  protected RegexRule mergeRules(boolean sign, List<RegexRule> rules) {
+    return null;
+  }
   
   
   /* -------------------------- *
@@ -113,6 +147,9 @@ public abstract class RegexURLFilterBase implements URLFilter {
   
   // Inherited Javadoc
   public synchronized String filter(String url) {
+    if (compiled) {
+      return filterCompiled(url);
+    }
     for (int i=0; i<rules.length; i++) {
       if (rules[i].match(url)) {
         return rules[i].accept() ? url : null;
@@ -121,6 +158,23 @@ public abstract class RegexURLFilterBase implements URLFilter {
     return null;
   }
 
+  private String filterCompiled(String url) {
+    boolean[] found = null;
+    if (literals != null) {
+      found = new boolean[compiledRules.length];
+      literals.match(url, found);
+    }
+    for (int i=0; i<compiledRules.length; i++) {
+      if (required[i] && !found[i]) {
+        continue;
+      }
+      if (compiledRules[i].match(url)) {
+        return compiledRules[i].accept() ? url : null;
+      }
+    }
+    return null;
+  }
+
   /* --------------------------- *
    * </implementation:URLFilter> *
    * --------------------------- */
@@ -132,6 +186,7 @@ public abstract class RegexURLFilterBase implements URLFilter {
   
   public void setConf(Configuration conf) {
     this.conf = conf;
+    compiled = conf.getBoolean("urlfilter.compiled", true);
     String file = getRulesFile(conf);
     Reader reader = conf.getConfResourceAsReader(file);
     if (reader == null) {
@@ -139,6 +194,7 @@ public abstract class RegexURLFilterBase implements URLFilter {
     } else {
       try {
         rules = readRulesFile(reader);
+        compile();
       } catch (IOException e) {
         if (LOG.isFatalEnabled()) { LOG.fatal(e.getMessage()); }
         //TODO mb@media-style.com: throw Exception? Because broken api.
@@ -195,6 +251,58 @@ public abstract class RegexURLFilterBase implements URLFilter {
     return (RegexRule[]) rules.toArray(new RegexRule[rules.size()]);
   }
 
+  /**
+   * Uses the compiled rules or checks each rule in turn.
+   */
+  synchronized void setCompiled(boolean compiled) {
+    this.compiled = compiled;
+  }
+
+  /**
+   * Merges the runs of rules of the same sign, and collects the literals
+   * of the resulting rules.
+   */
+  private void compile() {
+    List<RegexRule> merged = new ArrayList<RegexRule>();
+    int start = 0;
+    while (start < rules.length) {
+      boolean sign = rules[start].accept();
+      int end = start + 1;
+      while (end < rules.length && rules[end].accept() == sign) {
+        end++;
+      }
+      List<RegexRule> run = Arrays.asList(rules).subList(start, end);
+      RegexRule rule = run.size() > 1 ? mergeRules(sign, run) : null;
+      if (rule != null) {
+        merged.add(rule);
+      } else {
+        merged.addAll(run);
+      }
+      start = end;
+    }
+    compiledRules = merged.toArray(new RegexRule[merged.size()]);
+
+    required = new boolean[compiledRules.length];
+    LiteralMatcher matcher = new LiteralMatcher();
+    boolean any = false;
+    for (int i=0; i<compiledRules.length; i++) {
+      String[] ruleLiterals = compiledRules[i].getLiterals();
+      if (ruleLiterals == null || ruleLiterals.length == 0
+          || Arrays.asList(ruleLiterals).contains("")) {
+        continue;
+      }
+      for (String literal : ruleLiterals) {
+        matcher.add(literal, i);
+      }
+      required[i] = any = true;
+    }
+    literals = any ? matcher : null;
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Compiled " + rules.length + " rules into "
+                + compiledRules.length);
+    }
+  }
+
   /**
    * Filter the standard input using a RegexURLFilterBase.
    * @param filter is the RegexURLFilterBase to use for filtering the
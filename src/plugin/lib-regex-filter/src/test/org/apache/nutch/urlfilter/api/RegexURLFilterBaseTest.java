@@ -64,19 +64,26 @@ public abstract class RegexURLFilterBaseTest extends TestCase {
     }
   }
   
+  /**
+   * Times the filter on the urls, checking each rule in turn and then with
+   * the compiled rules.
+   */
   protected void bench(int loops, Reader rules, Reader urls) {
-    long start = System.currentTimeMillis();
     try {
       URLFilter filter = getURLFilter(rules);
       FilteredURL[] expected = readURLFile(urls);
-      for (int i=0; i<loops; i++) {
-        test(filter, expected);
+      for (boolean compiled : new boolean[] { false, true }) {
+        setCompiled(filter, compiled);
+        long start = System.currentTimeMillis();
+        for (int i=0; i<loops; i++) {
+          test(filter, expected);
+        }
+        LOG.info("bench time (" + loops + (compiled ? ", compiled) " : ") ") +
+                 (System.currentTimeMillis()-start) + "ms");
       }
     } catch (Exception e) {
       fail(e.toString());
     }
-    LOG.info("bench time (" + loops + ") " +
-             (System.currentTimeMillis()-start) + "ms");
   }
   
   protected void test(String file) {
@@ -90,7 +97,12 @@ public abstract class RegexURLFilterBaseTest extends TestCase {
   
   protected void test(Reader rules, Reader urls) {
     try {
-      test(getURLFilter(rules), readURLFile(urls));
+      URLFilter filter = getURLFilter(rules);
+      FilteredURL[] expected = readURLFile(urls);
+      setCompiled(filter, false);
+      test(filter, expected);
+      setCompiled(filter, true);
+      test(filter, expected);
     } catch (Exception e) {
       fail(e.toString());
     }
@@ -107,6 +119,12 @@ public abstract class RegexURLFilterBaseTest extends TestCase {
     }
   }
   
+  private static void setCompiled(URLFilter filter, boolean compiled) {
+    if (filter instanceof RegexURLFilterBase) {
+      ((RegexURLFilterBase) filter).setCompiled(compiled);
+    }
+  }
+
   private static FilteredURL[] readURLFile(Reader reader) throws IOException {
     BufferedReader in = new BufferedReader(reader);
     List list = new ArrayList();
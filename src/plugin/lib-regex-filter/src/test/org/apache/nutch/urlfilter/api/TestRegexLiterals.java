@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutch.urlfilter.api;
+
+// JDK imports
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+// JUnit imports
+import junit.framework.TestCase;
+
+
+/**
+ * JUnit based test of classes <code>RegexLiterals</code> and
+ * <code>LiteralMatcher</code>.
+ */
+public class TestRegexLiterals extends TestCase {
+
+  private static final String[] REGEXES = {
+    "^(file|ftp|mailto):",
+    "\\.(gif|GIF|jpg|JPG|ico|ICO|css|sit|eps|wmf|zip|ppt|mpg|xls|gz|rpm|tgz|mov|MOV|exe|png)$",
+    "[?*!@=]",
+    "^.*//.*\\.fr/",
+    "-.*(/[^/]+)/[^/]+\\1/[^/]+\\1/",
+    "^http://([a-z0-9]*\\.)*apache.org/",
+    "\\.(?:ab|cd)+x",
+    "abc?d",
+    "ab*c",
+    "a{0,3}bc{2}d",
+    "(ab|cd)(ef|)g",
+    "[a]bc]d",
+    "x\\x41yz",
+    "(?i)abc",
+    "a|bc",
+    "\\Qa.b\\E",
+    ".",
+  };
+
+  public void testFind() {
+    assertEquals("[file:, ftp:, mailto:]", find(REGEXES[0]));
+    assertTrue(find(REGEXES[1]).startsWith("[.gif, .GIF, "));
+    assertNull(RegexLiterals.find(REGEXES[2]));
+    assertEquals("[.fr/]", find(REGEXES[3]));
+    assertEquals("[http://]", find(REGEXES[5]));
+    assertEquals("[ab]", find(REGEXES[7]));
+    assertEquals("[ab, cd]", find("(ab|cd)+"));
+    assertEquals("[abefg, abg, cdefg, cdg]", find(REGEXES[10]));
+    assertEquals("[bc]d]", find(REGEXES[11]));
+    for (int i = 12; i < REGEXES.length; i++) {
+      assertNull(REGEXES[i], RegexLiterals.find(REGEXES[i]));
+    }
+  }
+
+  private static String find(String regex) {
+    String[] literals = RegexLiterals.find(regex);
+    return literals == null ? null : Arrays.asList(literals).toString();
+  }
+
+  /** Any text a regex finds a match in contains one of its literals. */
+  public void testRequired() {
+    Random random = new Random(1);
+    String alphabet = "abcdefgx/.:?@=ilmnoprt";
+    for (String regex : REGEXES) {
+      Pattern pattern = Pattern.compile(regex);
+      String[] literals = RegexLiterals.find(regex);
+      if (literals == null) {
+        continue;
+      }
+      for (int i = 0; i < 20000; i++) {
+        StringBuilder text = new StringBuilder();
+        int length = random.nextInt(20);
+        for (int j = 0; j < length; j++) {
+          text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        // and sometimes a piece of the regex
+        if (random.nextBoolean()) {
+          int start = random.nextInt(regex.length());
+          text.insert(random.nextInt(text.length() + 1), regex.substring(
+              start, start + random.nextInt(regex.length() - start + 1)));
+        }
+        if (pattern.matcher(text).find()) {
+          assertTrue(regex + " " + text, contains(text.toString(), literals));
+        }
+      }
+    }
+  }
+
+  private static boolean contains(String text, String[] literals) {
+    for (String literal : literals) {
+      if (text.indexOf(literal) >= 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public void testMatcher() {
+    String[] literals = { "he", "she", "his", "hers", "e", "rs", "she" };
+    LiteralMatcher matcher = new LiteralMatcher();
+    for (int i = 0; i < literals.length; i++) {
+      matcher.add(literals[i], i);
+    }
+    Random random = new Random(1);
+    for (int i = 0; i < 10000; i++) {
+      StringBuilder text = new StringBuilder();
+      int length = random.nextInt(12);
+      for (int j = 0; j < length; j++) {
+        text.append("hesirx".charAt(random.nextInt(6)));
+      }
+      boolean[] found = new boolean[literals.length];
+      matcher.match(text.toString(), found);
+      for (int j = 0; j < literals.length; j++) {
+        assertEquals(text + " " + literals[j],
+                     text.indexOf(literals[j]) >= 0, found[j]);
+      }
+    }
+  }
+}
@@ -90,6 +90,17 @@ public class DOMContentUtils {
     }
 	this.ignoreNoFollow = conf.getBoolean("parser.html.outlinks.ignore_nofollow", false);
   }
+
+  /** Returns the link parameters of an element, or null if its links are
+   * not extracted. */
+  LinkParams getLinkParams(String elName) {
+    return (LinkParams) linkParams.get(elName);
+  }
+
+  /** Returns true if links marked nofollow are extracted anyway. */
+  boolean getIgnoreNoFollow() {
+    return ignoreNoFollow;
+  }
   
   /**
    * This method takes a {@link StringBuffer} and a DOM {@link Node},
@@ -318,7 +329,7 @@ public class DOMContentUtils {
    * 
    * @throws MalformedURLException If the url is not a well formed URL.
    */
-  private URL fixEmbeddedParams(URL base, String target) 
+  static URL fixEmbeddedParams(URL base, String target) 
     throws MalformedURLException{
     
     // the target contains params information or the base doesn't then no
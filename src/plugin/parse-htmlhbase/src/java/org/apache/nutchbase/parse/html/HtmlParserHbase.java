@@ -28,6 +28,7 @@ import java.io.*;
 import java.util.regex.*;
 
 import org.cyberneko.html.parsers.*;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.w3c.dom.*;
@@ -127,6 +128,8 @@ public class HtmlParserHbase implements ParserHbase {
 	
   private boolean ignoreNoFollow;
 
+  private boolean useDom;
+
   public ParseHbase getParse(String url, RowPart row) {
     HTMLMetaTags metaTags = new HTMLMetaTags();
 
@@ -143,8 +146,10 @@ public class HtmlParserHbase implements ParserHbase {
     Outlink[] outlinks = new Outlink[0];
     Metadata metadata = new Metadata();
 
-    // parse the content
-    DocumentFragment root;
+    // parse the content, into a DOM tree only if a filter needs one
+    DocumentFragment root = null;
+    SAXContentExtractor extractor = null;
+    ContentHandler[] handlers = null;
     try {
       byte[] contentInOctets = row.getContent();
       InputSource input = new InputSource(new ByteArrayInputStream(contentInOctets));
@@ -159,7 +164,13 @@ public class HtmlParserHbase implements ParserHbase {
 
       input.setEncoding(encoding);
       if (LOG.isTraceEnabled()) { LOG.trace("Parsing..."); }
-      root = parse(input);
+      if (useDom) {
+        root = parse(input);
+      } else {
+        handlers = htmlParseFilters.getContentHandlers(url);
+        extractor = new SAXContentExtractor(utils, metaTags, base, handlers);
+        parse(input, extractor);
+      }
     } catch (IOException e) {
       return new ParseStatus(e).getEmptyParseHbase(getConf());
     } catch (DOMException e) {
@@ -172,27 +183,38 @@ public class HtmlParserHbase implements ParserHbase {
     }
       
     // get meta directives
-    HTMLMetaProcessor.getMetaTags(metaTags, root, base);
+    if (root != null) {
+      HTMLMetaProcessor.getMetaTags(metaTags, root, base);
+    }
     if (LOG.isTraceEnabled()) {
       LOG.trace("Meta tags for " + base + ": " + metaTags.toString());
     }
     // check meta directives
     if (!metaTags.getNoIndex()) {               // okay to index
-      StringBuffer sb = new StringBuffer();
-      if (LOG.isTraceEnabled()) { LOG.trace("Getting text..."); }
-      utils.getText(sb, root);          // extract text
-      text = sb.toString();
-      sb.setLength(0);
-      if (LOG.isTraceEnabled()) { LOG.trace("Getting title..."); }
-      utils.getTitle(sb, root);         // extract title
-      title = sb.toString().trim();
+      if (extractor != null) {
+        text = extractor.getText();
+        title = extractor.getTitle();
+      } else {
+        StringBuffer sb = new StringBuffer();
+        if (LOG.isTraceEnabled()) { LOG.trace("Getting text..."); }
+        utils.getText(sb, root);          // extract text
+        text = sb.toString();
+        sb.setLength(0);
+        if (LOG.isTraceEnabled()) { LOG.trace("Getting title..."); }
+        utils.getTitle(sb, root);         // extract title
+        title = sb.toString().trim();
+      }
     }
       
     if (!metaTags.getNoFollow() || ignoreNoFollow) {              // okay to follow links
       ArrayList<Outlink> l = new ArrayList<Outlink>();   // extract outlinks
-      URL baseTag = utils.getBase(root);
+      URL baseTag = extractor != null ? extractor.getBase() : utils.getBase(root);
       if (LOG.isTraceEnabled()) { LOG.trace("Getting links..."); }
-      utils.getOutlinks(baseTag!=null?baseTag:base, l, root);
+      if (extractor != null) {
+        extractor.getOutlinks(baseTag!=null?baseTag:base, l);
+      } else {
+        utils.getOutlinks(baseTag!=null?baseTag:base, l, root);
+      }
       outlinks = l.toArray(new Outlink[l.size()]);
       if (LOG.isTraceEnabled()) {
         LOG.trace("found "+outlinks.length+" outlinks in "+ url);
@@ -207,7 +229,7 @@ public class HtmlParserHbase implements ParserHbase {
     }
     
     ParseHbase parse = new ParseHbase(text, title, outlinks, status);
-    parse = htmlParseFilters.filter(url, row, parse, metaTags, root);
+    parse = htmlParseFilters.filter(url, row, parse, metaTags, root, handlers);
     
     if (metaTags.getNoCache()) {             // not okay to cache
       row.putMeta(Nutch.CACHING_FORBIDDEN_KEY, Bytes.toBytes(cachingPolicy));
@@ -216,6 +238,38 @@ public class HtmlParserHbase implements ParserHbase {
     return parse;
   }
 
+  /** Streams the SAX events of the page to <code>handler</code>. */
+  private void parse(InputSource input, SAXContentExtractor handler)
+  throws Exception {
+    if (parserImpl.equalsIgnoreCase("tagsoup")) {
+      org.ccil.cowan.tagsoup.Parser reader = new org.ccil.cowan.tagsoup.Parser();
+      reader.setContentHandler(handler);
+      reader.setFeature(org.ccil.cowan.tagsoup.Parser.ignoreBogonsFeature, true);
+      reader.setFeature(org.ccil.cowan.tagsoup.Parser.bogonsEmptyFeature, false);
+      reader.setProperty("http://xml.org/sax/properties/lexical-handler", handler);
+      reader.parse(input);
+      return;
+    }
+    SAXParser parser = new SAXParser();
+    try {
+      parser.setProperty("http://cyberneko.org/html/properties/default-encoding",
+              defaultCharEncoding);
+      parser.setProperty("http://cyberneko.org/html/properties/names/elems",
+              "lower");
+      parser.setFeature("http://cyberneko.org/html/features/scanner/ignore-specified-charset",
+              true);
+      parser.setFeature("http://cyberneko.org/html/features/balance-tags/ignore-outside-content",
+              false);
+      parser.setFeature("http://cyberneko.org/html/features/balance-tags/document-fragment",
+              true);
+      parser.setFeature("http://cyberneko.org/html/features/report-errors",
+              LOG.isTraceEnabled());
+    } catch (SAXException e) {}
+    parser.setContentHandler(handler);
+    parser.setProperty("http://xml.org/sax/properties/lexical-handler", handler);
+    parser.parse(input);
+  }
+
   private DocumentFragment parse(InputSource input) throws Exception {
     if (parserImpl.equalsIgnoreCase("tagsoup"))
       return parseTagSoup(input);
@@ -283,6 +337,11 @@ public class HtmlParserHbase implements ParserHbase {
     this.cachingPolicy = getConf().get("parser.caching.forbidden.policy",
         Nutch.CACHING_FORBIDDEN_CONTENT);
 	this.ignoreNoFollow = conf.getBoolean("parser.html.outlinks.ignore_nofollow", false);
+    this.useDom = !conf.getBoolean("parser.html.streaming", true)
+      || htmlParseFilters.needsDom();
+    if (LOG.isInfoEnabled()) {
+      LOG.info("Extracting content from " + (useDom ? "a DOM tree" : "SAX events"));
+    }
   }
 
   public Configuration getConf() {
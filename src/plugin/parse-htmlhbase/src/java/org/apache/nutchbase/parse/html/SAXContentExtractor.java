@@ -0,0 +1,460 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutchbase.parse.html;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+
+import org.apache.nutch.parse.HTMLMetaTags;
+import org.apache.nutch.parse.Outlink;
+import org.apache.nutchbase.parse.html.DOMContentUtils.LinkParams;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Extracts the text, title, base URL, meta directives and outlinks of a page
+ * from SAX events, in a single pass and without building a DOM tree.
+ *
+ * <p>The results are those {@link DOMContentUtils} and
+ * {@link HTMLMetaProcessor} get from the DOM tree of the same events: text
+ * outside <code>script</code> and <code>style</code> elements, the first
+ * <code>title</code> and <code>base</code> before <code>body</code>, meta
+ * tags outside <code>body</code>, and the links of the elements configured
+ * in {@link DOMContentUtils}, with the same heuristics for empty links.
+ *
+ * <p>The element, text and document events are also passed on to the
+ * handlers of parse filters that work from SAX events.
+ *
+ * <p>An extractor handles a single document.
+ */
+public class SAXContentExtractor extends DefaultHandler
+implements LexicalHandler {
+
+  // children of a link, as far as shouldThrowAwayLink cares
+  private static final char SAME = 's';         // element named as the link
+  private static final char SPACE = 'w';        // whitespace-only text
+  private static final char OTHER = 'o';
+
+  /** A link element, open or closed. */
+  private static class Link {
+    final LinkParams params;
+    final int depth;
+    final StringBuilder text = new StringBuilder();
+    final char[] children = new char[3];
+    int childCount;
+    int anchors;
+    String target;
+    boolean noFollow;
+    boolean post;
+    boolean thrownAway;
+
+    Link(LinkParams params, int depth) {
+      this.params = params;
+      this.depth = depth;
+    }
+
+    void addChild(char kind) {
+      if (childCount < children.length) {
+        children[childCount] = kind;
+      }
+      childCount++;
+    }
+
+    // see DOMContentUtils.shouldThrowAwayLink
+    boolean shouldThrowAway() {
+      switch (childCount) {
+      case 0:
+        return params.childLen != 0;
+      case 1:
+        return children[0] == SAME;
+      case 2:
+        return (children[0] == SAME && children[1] == SPACE)
+          || (children[1] == SAME && children[0] == SPACE);
+      case 3:
+        return children[1] == SAME && children[0] == SPACE
+          && children[2] == SPACE;
+      default:
+        return false;
+      }
+    }
+  }
+
+  private final DOMContentUtils utils;
+  private final HTMLMetaTags metaTags;
+  private final URL currURL;
+  private final ContentHandler[] handlers;
+
+  private final StringBuilder chars = new StringBuilder();
+  private final StringBuilder text = new StringBuilder();
+  private final StringBuilder title = new StringBuilder();
+  private URL base;
+
+  private final ArrayList<Link> links = new ArrayList<Link>();
+  private final ArrayList<Link> openLinks = new ArrayList<Link>();
+
+  private int depth;                            // open elements
+  private int skipDepth;                        // open script and style
+  private int bodyDepth;                        // open body elements
+  private boolean bodySeen;
+  private int titleDepth;                       // open title, or 0
+  private boolean titleSeen;
+
+  /**
+   * @param metaTags meta directives found in the page are set here
+   * @param currURL URL of the page, to resolve relative meta refreshes
+   */
+  public SAXContentExtractor(DOMContentUtils utils, HTMLMetaTags metaTags,
+      URL currURL) {
+    this(utils, metaTags, currURL, null);
+  }
+
+  /**
+   * @param handlers handlers the events are passed on to, or null; null
+   * entries are skipped
+   */
+  public SAXContentExtractor(DOMContentUtils utils, HTMLMetaTags metaTags,
+      URL currURL, ContentHandler[] handlers) {
+    this.utils = utils;
+    this.metaTags = metaTags;
+    this.currURL = currURL;
+    this.handlers = handlers;
+    metaTags.reset();
+  }
+
+  /** Returns the text of the page. */
+  public String getText() {
+    return text.toString();
+  }
+
+  /** Returns the title of the page. */
+  public String getTitle() {
+    return title.toString().trim();
+  }
+
+  /** Returns the HREF of the BASE tag of the page, or null. */
+  public URL getBase() {
+    return base;
+  }
+
+  /**
+   * Adds the outlinks of the page to <code>outlinks</code>, resolved
+   * against <code>base</code>.
+   */
+  public void getOutlinks(URL base, ArrayList<Outlink> outlinks) {
+    final boolean fixParams = base.toString().indexOf(';') > 0;
+    final boolean ignoreNoFollow = utils.getIgnoreNoFollow();
+    for (final Link link : links) {
+      if (link.thrownAway || link.target == null || link.post
+          || (link.noFollow && !ignoreNoFollow)) {
+        continue;
+      }
+      try {
+        final URL url = fixParams
+          ? DOMContentUtils.fixEmbeddedParams(base, link.target)
+          : new URL(base, link.target);
+        outlinks.add(new Outlink(url.toString(), link.text.toString().trim()));
+      } catch (final MalformedURLException e) {
+        // don't care
+      }
+    }
+  }
+
+  @Override
+  public void startDocument() throws SAXException {
+    if (handlers != null) {
+      for (final ContentHandler handler : handlers) {
+        if (handler != null) {
+          handler.startDocument();
+        }
+      }
+    }
+  }
+
+  @Override
+  public void startElement(String uri, String localName, String qName,
+      Attributes attrs) throws SAXException {
+    if (handlers != null) {
+      for (final ContentHandler handler : handlers) {
+        if (handler != null) {
+          handler.startElement(uri, localName, qName, attrs);
+        }
+      }
+    }
+    flushText();
+    final String name = qName.toLowerCase();
+    final Link parent = getParentLink();
+    if (parent != null) {
+      parent.addChild(name.equals(parent.params.elName) ? SAME : OTHER);
+    }
+    depth++;
+
+    if (skipDepth > 0 || "script".equals(name) || "style".equals(name)) {
+      skipDepth++;
+    }
+    if ("a".equals(name)) {
+      for (final Link link : openLinks) {
+        link.anchors++;
+      }
+    }
+    if ("body".equals(name)) {
+      bodySeen = true;
+      bodyDepth++;
+    } else if (bodyDepth == 0) {
+      if ("meta".equals(name)) {
+        HTMLMetaProcessor.processMeta(metaTags, getValue(attrs, "name"),
+            getValue(attrs, "http-equiv"), getValue(attrs, "content"),
+            currURL);
+      } else if ("base".equals(name)) {
+        final String href = getValue(attrs, "href");
+        if (href != null) {
+          HTMLMetaProcessor.processBase(metaTags, href, currURL);
+        }
+      }
+    }
+    if (!bodySeen) {
+      if ("title".equals(name) && !titleSeen) {
+        titleSeen = true;
+        titleDepth = depth;
+      } else if ("base".equals(name) && base == null) {
+        base = getBaseHref(attrs);
+      }
+    }
+
+    final LinkParams params = utils.getLinkParams(name);
+    if (params != null) {
+      final Link link = new Link(params, depth);
+      link.anchors = "a".equals(name) ? 1 : 0;
+      for (int i = 0; i < attrs.getLength(); i++) {
+        final String attrName = attrs.getQName(i);
+        final String value = attrs.getValue(i);
+        if (params.attrName.equalsIgnoreCase(attrName)) {
+          link.target = value;
+        } else if ("rel".equalsIgnoreCase(attrName)
+                   && "nofollow".equalsIgnoreCase(value)) {
+          link.noFollow = true;
+        } else if ("method".equalsIgnoreCase(attrName)
+                   && "post".equalsIgnoreCase(value)) {
+          link.post = true;
+        }
+      }
+      links.add(link);
+      openLinks.add(link);
+    }
+  }
+
+  @Override
+  public void endElement(String uri, String localName, String qName)
+  throws SAXException {
+    if (handlers != null) {
+      for (final ContentHandler handler : handlers) {
+        if (handler != null) {
+          handler.endElement(uri, localName, qName);
+        }
+      }
+    }
+    flushText();
+    final String name = qName.toLowerCase();
+    if (skipDepth > 0) {
+      skipDepth--;
+    }
+    if ("body".equals(name) && bodyDepth > 0) {
+      bodyDepth--;
+    }
+    if (titleDepth == depth) {
+      titleDepth = 0;
+    }
+    final int last = openLinks.size() - 1;
+    if (last >= 0 && openLinks.get(last).depth == depth) {
+      final Link link = openLinks.remove(last);
+      link.thrownAway = link.shouldThrowAway();
+    }
+    depth--;
+  }
+
+  @Override
+  public void characters(char[] ch, int start, int length)
+  throws SAXException {
+    if (handlers != null) {
+      for (final ContentHandler handler : handlers) {
+        if (handler != null) {
+          handler.characters(ch, start, length);
+        }
+      }
+    }
+    chars.append(ch, start, length);
+  }
+
+  @Override
+  public void ignorableWhitespace(char[] ch, int start, int length)
+  throws SAXException {
+    if (handlers != null) {
+      for (final ContentHandler handler : handlers) {
+        if (handler != null) {
+          handler.ignorableWhitespace(ch, start, length);
+        }
+      }
+    }
+    chars.append(ch, start, length);
+  }
+
+  @Override
+  public void endDocument() throws SAXException {
+    if (handlers != null) {
+      for (final ContentHandler handler : handlers) {
+        if (handler != null) {
+          handler.endDocument();
+        }
+      }
+    }
+    flushText();
+    for (final Link link : openLinks) {
+      link.thrownAway = link.shouldThrowAway();
+    }
+    openLinks.clear();
+  }
+
+  public void comment(char[] ch, int start, int length) {
+    flushText();
+    final Link parent = getParentLink();
+    if (parent != null) {
+      parent.addChild(OTHER);
+    }
+  }
+
+  public void startCDATA() {
+  }
+
+  public void endCDATA() {
+  }
+
+  public void startDTD(String name, String publicId, String systemId) {
+  }
+
+  public void endDTD() {
+  }
+
+  public void startEntity(String name) {
+  }
+
+  public void endEntity(String name) {
+  }
+
+  /** Returns the link that is the current element, or null. */
+  private Link getParentLink() {
+    final int last = openLinks.size() - 1;
+    if (last >= 0 && openLinks.get(last).depth == depth) {
+      return openLinks.get(last);
+    }
+    return null;
+  }
+
+  /** Handles the text node made of the characters since the last tag. */
+  private void flushText() {
+    if (chars.length() == 0) {
+      return;
+    }
+    final Link parent = getParentLink();
+    if (parent != null) {
+      parent.addChild(isWhitespace(chars) ? SPACE : OTHER);
+    }
+    if (skipDepth == 0) {
+      final String normalized = normalize(chars);
+      if (normalized.length() > 0) {
+        append(text, normalized);
+        if (titleDepth > 0) {
+          append(title, normalized);
+        }
+        for (final Link link : openLinks) {
+          if (link.anchors <= 1) {              // no nested anchors yet
+            append(link.text, normalized);
+          }
+        }
+      }
+    }
+    chars.setLength(0);
+  }
+
+  private static void append(StringBuilder sb, String text) {
+    if (sb.length() > 0) {
+      sb.append(' ');
+    }
+    sb.append(text);
+  }
+
+  private static boolean isWhitespace(CharSequence s) {
+    for (int i = 0; i < s.length(); i++) {
+      if (!Character.isWhitespace(s.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // same as the \s of regular expressions
+  private static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B'
+      || c == '\f' || c == '\r';
+  }
+
+  /**
+   * Returns <code>s</code> with runs of whitespace replaced by a single
+   * space, and trimmed, as <code>s.replaceAll("\\s+", " ").trim()</code>.
+   */
+  static String normalize(CharSequence s) {
+    final StringBuilder sb = new StringBuilder(s.length());
+    boolean space = false;
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      if (isSpace(c)) {
+        space = true;
+      } else {
+        if (space && sb.length() > 0) {
+          sb.append(' ');
+        }
+        space = false;
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String getValue(Attributes attrs, String name) {
+    for (int i = 0; i < attrs.getLength(); i++) {
+      if (name.equalsIgnoreCase(attrs.getQName(i))) {
+        return attrs.getValue(i);
+      }
+    }
+    return null;
+  }
+
+  // see DOMContentUtils.getBase
+  private static URL getBaseHref(Attributes attrs) {
+    for (int i = 0; i < attrs.getLength(); i++) {
+      if ("href".equalsIgnoreCase(attrs.getQName(i))) {
+        try {
+          return new URL(attrs.getValue(i));
+        } catch (final MalformedURLException e) {}
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,194 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutchbase.parse.html;
+
+import java.io.ByteArrayInputStream;
+import java.net.URL;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.html.dom.HTMLDocumentImpl;
+import org.apache.nutch.parse.HTMLMetaTags;
+import org.apache.nutch.parse.Outlink;
+import org.apache.nutch.util.NutchConfiguration;
+import org.cyberneko.html.parsers.DOMFragmentParser;
+import org.cyberneko.html.parsers.SAXParser;
+import org.w3c.dom.DocumentFragment;
+import org.xml.sax.InputSource;
+
+/**
+ * Checks that {@link SAXContentExtractor} finds what {@link DOMContentUtils}
+ * and {@link HTMLMetaProcessor} find in the DOM tree of the same page.
+ */
+public class TestSAXContentExtractor extends TestCase {
+
+  private static final String[] PAGES = {
+    "<html><head><title> title </title><script> script </script>"
+      + "</head><body> body <a href=\"http://www.nutch.org\">"
+      + " anchor </a><!--comment--></body></html>",
+    "<html><head><title> title </title><script> script </script>"
+      + "</head><body> body <a href=\"/\"> home </a><!--comment-->"
+      + "<style> style </style> <a href=\"bot.html\"> bots </a>"
+      + "</body></html>",
+    "<html><head><title> </title></head><body> "
+      + "<a href=\"/\"> separate this <a href=\"ok\"> from this</a></a>"
+      + "</body></html>",
+    "<html><head><title> my title </title></head><body> body <ul>"
+      + "<li> <a href=\"/\"> home<li> <a href=\"1\"> 1<li> <a href=\"2\"> 2"
+      + "</ul></body></html>",
+    "<html><head><title> my title </title></head><frameset rows=\"20,*\"> "
+      + "<frame src=\"top.html\"></frame><frameset cols=\"20,*\">"
+      + "<frame src=\"left.html\"><frame src=\"invalid.html\"/></frame>"
+      + "<frame src=\"right.html\"></frame></frameset></frameset>"
+      + "</body></html>",
+    "<html><head><title> my title </title></head><body>"
+      + "<img src=\"logo.gif\" usemap=\"#green\" border=\"0\">"
+      + "<map name=\"green\">"
+      + "<area shape=\"polygon\" coords=\"19,44,45\" href=\"../index.html\">"
+      + "<area shape=\"rect\" coords=\"128,132,241\" href=\"#bottom\">"
+      + "</map><a name=\"bottom\"/><h1> the bottom </h1> "
+      + "<iframe src=\"../docs/index.html\"/></body></html>",
+    "<html><head>\n <title> my\t\n  title\r\n </title>\n </head>\n <body>\n"
+      + "    <h1> Whitespace\ttest  </h1> \n"
+      + "\t<a href=\"../index.html\">\n  \twhitespace  test\r\n\t</a>  \t\n"
+      + "    <p> This is<span> a whitespace<span></span> test</span>.\n"
+      + "    This\t<b>is a</b> break -&gt;<br>and the line after<i> break</i>."
+      + "<table><tr><td>one\r\ntwo</td><td>two\tthree</td></tr>\n</table>"
+      + "</body>  </html>",
+    "<html><head></head><body>"
+      + "<a href=\"http://www.nutch.org\" rel=\"nofollow\"> ignore </a>"
+      + "<a href=\" <a href=\"x\"> <a href=\"y\">y</a> </a>"
+      + "<a href=\"z\"><a href=\"zz\">zz</a></a>"
+      + "<form method='POST' action='/search.jsp'><input type=text>"
+      + "<p>test1</p></form><form method='GET' action='/dummy.jsp'>"
+      + "<input type=text><p>test2</p></form></body></html>",
+    "<html><head><title> title </title><base href=\"http://a.b/c/\">"
+      + "</head><body><a href=\";x\">anchor1</a><a href=\"g;x\">anchor2</a>"
+      + "<a href=\"g;x?y#s\">anchor3</a></body></html>",
+    "<html><head><title>first</title>"
+      + "<meta name=\"Robots\" content=\"NOFOLLOW,noarchive\">"
+      + "<meta name=\"description\" content=\"a page\">"
+      + "<meta http-equiv=\"refresh\" content=\"5; url=next.html\">"
+      + "<meta http-equiv=\"Pragma\" content=\"no-cache\">"
+      + "</head><body><title>second</title>"
+      + "<meta name=\"robots\" content=\"noindex\"> text</body></html>",
+  };
+
+  private static final String BASE = "http://www.nutch.org/docs/;p";
+
+  private Configuration conf;
+  private DOMContentUtils utils;
+
+  @Override
+  protected void setUp() throws Exception {
+    conf = NutchConfiguration.create();
+    utils = new DOMContentUtils(conf);
+  }
+
+  private static InputSource input(String page) {
+    return new InputSource(new ByteArrayInputStream(page.getBytes()));
+  }
+
+  private DocumentFragment parseDom(String page) throws Exception {
+    DOMFragmentParser parser = new DOMFragmentParser();
+    parser.setFeature("http://cyberneko.org/html/features/balance-tags/ignore-outside-content",
+                      false);
+    parser.setFeature("http://cyberneko.org/html/features/balance-tags/document-fragment",
+                      true);
+    HTMLDocumentImpl doc = new HTMLDocumentImpl();
+    doc.setErrorChecking(false);
+    DocumentFragment frag = doc.createDocumentFragment();
+    parser.parse(input(page), frag);
+    return frag;
+  }
+
+  private SAXContentExtractor parseSax(String page, HTMLMetaTags metaTags,
+      URL base) throws Exception {
+    SAXContentExtractor extractor =
+      new SAXContentExtractor(utils, metaTags, base);
+    SAXParser parser = new SAXParser();
+    parser.setFeature("http://cyberneko.org/html/features/balance-tags/ignore-outside-content",
+                      false);
+    parser.setFeature("http://cyberneko.org/html/features/balance-tags/document-fragment",
+                      true);
+    parser.setProperty("http://cyberneko.org/html/properties/names/elems",
+                       "lower");
+    parser.setContentHandler(extractor);
+    parser.setProperty("http://xml.org/sax/properties/lexical-handler",
+                       extractor);
+    parser.parse(input(page));
+    return extractor;
+  }
+
+  public void testSameAsDom() throws Exception {
+    URL base = new URL(BASE);
+    for (int i = 0; i < PAGES.length; i++) {
+      String page = PAGES[i];
+      DocumentFragment root = parseDom(page);
+      HTMLMetaTags domTags = new HTMLMetaTags();
+      HTMLMetaProcessor.getMetaTags(domTags, root, base);
+      StringBuffer sb = new StringBuffer();
+      utils.getText(sb, root);
+      String domText = sb.toString();
+      sb.setLength(0);
+      utils.getTitle(sb, root);
+      String domTitle = sb.toString().trim();
+      URL domBase = utils.getBase(root);
+      ArrayList<Outlink> domLinks = new ArrayList<Outlink>();
+      utils.getOutlinks(domBase != null ? domBase : base, domLinks, root);
+
+      HTMLMetaTags saxTags = new HTMLMetaTags();
+      SAXContentExtractor extractor = parseSax(page, saxTags, base);
+      ArrayList<Outlink> saxLinks = new ArrayList<Outlink>();
+      URL saxBase = extractor.getBase();
+      extractor.getOutlinks(saxBase != null ? saxBase : base, saxLinks);
+
+      String msg = "page " + i;
+      assertEquals(msg, domText, extractor.getText());
+      assertEquals(msg, domTitle, extractor.getTitle());
+      assertEquals(msg, domBase, saxBase);
+      assertEquals(msg, domLinks.toString(), saxLinks.toString());
+      assertEquals(msg, domTags.toString(), saxTags.toString());
+    }
+  }
+
+  public void testMetaTags() throws Exception {
+    HTMLMetaTags metaTags = new HTMLMetaTags();
+    URL base = new URL(BASE);
+    SAXContentExtractor extractor =
+      parseSax(PAGES[PAGES.length - 1], metaTags, base);
+    assertEquals("first", extractor.getTitle());
+    assertTrue(metaTags.getNoFollow());
+    assertTrue(metaTags.getNoCache());
+    assertFalse(metaTags.getNoIndex());               // found in body
+    assertTrue(metaTags.getRefresh());
+    assertEquals(5, metaTags.getRefreshTime());
+    assertEquals(new URL(base, "next.html"), metaTags.getRefreshHref());
+    assertEquals("a page",
+                 metaTags.getGeneralTags().getProperty("description"));
+  }
+
+  public void testNormalize() {
+    assertEquals("", SAXContentExtractor.normalize(" \t\r\n "));
+    assertEquals("a b c", SAXContentExtractor.normalize("\n a \t\tb\r\nc  "));
+    // no-break spaces are not whitespace for regular expressions either
+    assertEquals("\u00a0a", SAXContentExtractor.normalize(" \u00a0a"));
+  }
+}
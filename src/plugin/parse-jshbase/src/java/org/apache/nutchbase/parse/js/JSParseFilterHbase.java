@@ -35,9 +35,9 @@ import org.apache.nutch.parse.HTMLMetaTags;
 import org.apache.nutch.parse.Outlink;
 import org.apache.nutch.parse.ParseStatus;
 import org.apache.nutch.util.NutchConfiguration;
-import org.apache.nutchbase.parse.HtmlParseFilterHbase;
 import org.apache.nutchbase.parse.ParseHbase;
 import org.apache.nutchbase.parse.ParserHbase;
+import org.apache.nutchbase.parse.StreamingHtmlParseFilterHbase;
 import org.apache.nutchbase.util.hbase.RowPart;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.oro.text.regex.MatchResult;
@@ -52,6 +52,9 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * This class is a heuristic link extractor for JavaScript files and
@@ -61,19 +64,94 @@ import org.w3c.dom.NodeList;
  *
  * @author Andrzej Bialecki &lt;ab@getopt.org&gt;
  */
-public class JSParseFilterHbase implements HtmlParseFilterHbase, ParserHbase {
+public class JSParseFilterHbase
+implements StreamingHtmlParseFilterHbase, ParserHbase {
   public static final Log LOG = LogFactory.getLog(JSParseFilterHbase.class);
 
   private static final int MAX_TITLE_LEN = 80;
 
   private Configuration conf;
   
+  /**
+   * Finds the same links as {@link #walk} in the SAX events of a page: in
+   * the text of <code>script</code> elements, and in the event handler
+   * and <code>javascript:</code> attributes of other elements.
+   */
+  private class ScriptHandler extends DefaultHandler {
+    private final String base;
+    private final List<Outlink> outlinks = new ArrayList<Outlink>();
+    private final StringBuilder script = new StringBuilder();
+    private int scriptDepth;                    // open script elements
+
+    ScriptHandler(String base) {
+      this.base = base;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName,
+        Attributes attrs) {
+      if (scriptDepth > 0) {
+        scriptDepth++;                          // not looked into
+      } else if (qName.equalsIgnoreCase("script")) {
+        scriptDepth = 1;
+        script.setLength(0);
+      } else {
+        for (int i = 0; i < attrs.getLength(); i++) {
+          String name = attrs.getQName(i);
+          String val = attrs.getValue(i);
+          if (name.startsWith("on")) {
+            addLinks(val);
+          } else if (name.equalsIgnoreCase("href") && val != null
+                     && val.toLowerCase().indexOf("javascript:") != -1) {
+            addLinks(val);
+          }
+        }
+      }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+      if (scriptDepth == 1) {
+        script.append(ch, start, length);
+      }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+      if (scriptDepth > 0 && --scriptDepth == 0 && script.length() > 0) {
+        addLinks(script.toString());
+      }
+    }
+
+    private void addLinks(String js) {
+      Outlink[] links = getJSLinks(js, "", base);
+      if (links != null && links.length > 0) outlinks.addAll(Arrays.asList(links));
+    }
+  }
+
+  public ContentHandler getContentHandler(String url) {
+    return new ScriptHandler(url);
+  }
+
+  public ParseHbase filter(String url, RowPart row, ParseHbase parse,
+    HTMLMetaTags metaTags, ContentHandler handler) {
+    return addOutlinks(parse, ((ScriptHandler) handler).outlinks);
+  }
+
   public ParseHbase filter(String url, RowPart row, ParseHbase parse,
     HTMLMetaTags metaTags, DocumentFragment doc) {
 
+    if (doc == null) {
+      return parse;
+    }
     ArrayList<Outlink> outlinks = new ArrayList<Outlink>();
     walk(doc, parse, metaTags, url, outlinks);
-    if (outlinks.size() > 0) {
+    return addOutlinks(parse, outlinks);
+  }
+
+  private ParseHbase addOutlinks(ParseHbase parse, List<Outlink> found) {
+    if (found.size() > 0) {
+      ArrayList<Outlink> outlinks = new ArrayList<Outlink>(found);
       Outlink[] old = parse.getOutlinks();
       String title = parse.getTitle();
       List<Outlink> list = Arrays.asList(old);
@@ -274,4 +352,9 @@ public class JSParseFilterHbase implements HtmlParseFilterHbase, ParserHbase {
   public Set<String> getColumnSet() {
     return new HashSet<String>();
   }
+
+  /** Scripts and event handlers are found in the SAX events as well. */
+  public boolean needsDom() {
+    return false;
+  }
 }
@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nutchbase.parse.js;
+
+import java.io.StringReader;
+import java.util.Arrays;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
+
+import junit.framework.TestCase;
+
+import org.apache.nutch.parse.Outlink;
+import org.apache.nutch.parse.ParseStatus;
+import org.apache.nutchbase.parse.ParseHbase;
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentFragment;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Checks that {@link JSParseFilterHbase} finds the same links in the SAX
+ * events of a page as in its DOM tree.
+ */
+public class TestJSParseFilterHbase extends TestCase {
+
+  private static final String BASE = "http://www.example.com/dir/";
+
+  private static final String PAGE =
+    "<html><head><script language=\"javascript\">"
+    + "var a = 'scripted.html'; var b = \"/top/page.html\";</script>"
+    + "<script src=\"lib.js\"></script></head>"
+    + "<body onload=\"go('loaded.html')\">"
+    + "<a href=\"javascript:open('popup.html')\">popup</a>"
+    + "<a href=\"plain.html\" onclick=\"return 'clicked.html'\">plain</a>"
+    + "<p>'not/a/script.html'</p></body></html>";
+
+  private static final ParseHbase PARSE = new ParseHbase("text", "title",
+      new Outlink[] { new Outlink("http://www.example.com/dir/plain.html",
+                                  "plain") },
+      ParseStatus.STATUS_SUCCESS);
+
+  public void testSameLinks() throws Exception {
+    JSParseFilterHbase filter = new JSParseFilterHbase();
+
+    Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+      .parse(new InputSource(new StringReader(PAGE)));
+    DocumentFragment frag = doc.createDocumentFragment();
+    frag.appendChild(doc.getDocumentElement());
+    Outlink[] domLinks =
+      filter.filter(BASE, null, PARSE, null, frag).getOutlinks();
+
+    ContentHandler handler = filter.getContentHandler(BASE);
+    SAXParserFactory.newInstance().newSAXParser().parse(
+        new InputSource(new StringReader(PAGE)), (DefaultHandler) handler);
+    Outlink[] saxLinks =
+      filter.filter(BASE, null, PARSE, null, handler).getOutlinks();
+
+    assertEquals(Arrays.asList(domLinks).toString(),
+                 Arrays.asList(saxLinks).toString());
+    String links = Arrays.asList(saxLinks).toString();
+    assertTrue(links, links.indexOf(BASE + "scripted.html") >= 0);
+    assertTrue(links, links.indexOf("http://www.example.com/top/page.html") >= 0);
+    assertTrue(links, links.indexOf(BASE + "loaded.html") >= 0);
+    assertTrue(links, links.indexOf(BASE + "popup.html") >= 0);
+    assertTrue(links, links.indexOf(BASE + "clicked.html") >= 0);
+    assertTrue(links, links.indexOf("not/a/script.html") < 0);
+    assertEquals(6, saxLinks.length);
+  }
+}
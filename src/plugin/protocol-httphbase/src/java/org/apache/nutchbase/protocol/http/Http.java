@@ -46,6 +46,7 @@ public class Http extends HttpBase {
   
   static {
     COLUMNS.add(TableColumns.MODIFIED_TIME_STR);
+    COLUMNS.add(TableColumns.HEADERS_STR);
   }
   
   public Http() {
@@ -31,14 +31,12 @@ import java.net.URL;
 // Nutch imports
 import org.apache.nutch.metadata.Metadata;
 import org.apache.nutch.metadata.SpellCheckedMetadata;
-import org.apache.nutch.net.protocols.HttpDateFormat;
 import org.apache.nutch.net.protocols.Response;
 import org.apache.nutch.protocol.ProtocolException;
 import org.apache.nutch.util.LogUtil;
 import org.apache.nutchbase.protocol.http.api.HttpBase;
 import org.apache.nutchbase.protocol.http.api.HttpException;
 import org.apache.nutchbase.util.hbase.RowPart;
-import org.apache.nutchbase.util.hbase.TableColumns;
 
 
 /** An HTTP response. */
@@ -121,12 +119,20 @@ public class HttpResponse implements Response {
         reqStr.append("\r\n");
       }
 
-      reqStr.append("\r\n");
-      if (row.hasColumn(TableColumns.MODIFIED_TIME)) {
-        reqStr.append("If-Modified-Since: " +
-                      HttpDateFormat.toString(row.getModifiedTime()));
+      String ifModifiedSince = HttpBase.getIfModifiedSince(row);
+      if (ifModifiedSince != null) {
+        reqStr.append("If-Modified-Since: ");
+        reqStr.append(ifModifiedSince);
+        reqStr.append("\r\n");
+      }
+      String ifNoneMatch = HttpBase.getIfNoneMatch(row);
+      if (ifNoneMatch != null) {
+        reqStr.append("If-None-Match: ");
+        reqStr.append(ifNoneMatch);
         reqStr.append("\r\n");
       }
+
+      reqStr.append("\r\n");
       
       byte[] reqBytes= reqStr.toString().getBytes();
 
@@ -161,10 +167,7 @@ public class HttpResponse implements Response {
       }
       
       // add headers in metadata to row
-      row.deleteHeaders();
-      for (String key : headers.names()) {
-        row.addHeader(key, headers.get(key));
-      }
+      HttpBase.setHeaders(row, code, headers);
 
     } finally {
       if (socket != null)
@@ -0,0 +1,154 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutchbase.protocol.httpnio;
+
+// JDK imports
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes a gzip stream as its bytes arrive, instead of buffering the whole
+ * compressed body first. Like {@link org.apache.nutch.util.GZIPUtils#unzipBestEffort(byte[], int)},
+ * decoding stops quietly at corrupt data or at the size limit and keeps
+ * what was decoded so far; the trailer checksum is not verified.
+ */
+class GzipInflater {
+
+  private static final int FHCRC = 2;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+
+  private final Inflater inflater = new Inflater(true);
+  private final ByteArrayOutputStream out;
+  private final int limit;
+  private final byte[] buf = new byte[Http.BUFFER_SIZE];
+
+  /** Holds the start of the stream until the whole header is there. */
+  private ByteArrayOutputStream header = new ByteArrayOutputStream(32);
+  private boolean finished;
+
+  /**
+   * @param out Receives the decoded bytes
+   * @param limit Maximum size of <code>out</code>, or a negative value for
+   * no limit
+   */
+  GzipInflater(ByteArrayOutputStream out, int limit) {
+    this.out = out;
+    this.limit = limit;
+  }
+
+  /**
+   * Decodes the next <code>len</code> bytes of the stream.
+   * @return false if the size limit is reached
+   * @throws IOException if the stream is not in gzip format
+   */
+  boolean write(byte[] b, int off, int len) throws IOException {
+    if (finished) {
+      return true;
+    }
+    if (header != null) {
+      header.write(b, off, len);
+      final byte[] h = header.toByteArray();
+      final int headerLength = getHeaderLength(h);
+      if (headerLength < 0) {
+        return true;                            // wait for more
+      }
+      header = null;
+      b = h;
+      off = headerLength;
+      len = h.length - headerLength;
+    }
+
+    inflater.setInput(b, off, len);
+    while (true) {
+      int n;
+      try {
+        n = inflater.inflate(buf);
+      } catch (final DataFormatException e) {
+        finished = true;                        // best effort
+        return true;
+      }
+      if (n > 0) {
+        if (limit >= 0 && out.size() + n > limit) {
+          out.write(buf, 0, limit - out.size());
+          finished = true;
+          return false;
+        }
+        out.write(buf, 0, n);
+      }
+      if (inflater.finished()) {
+        finished = true;
+        return true;
+      }
+      if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+        return true;
+      }
+    }
+  }
+
+  /** Releases the native resources of the inflater. */
+  void end() {
+    inflater.end();
+  }
+
+  /**
+   * Returns the length of the gzip header at the start of <code>h</code>,
+   * or -1 if <code>h</code> does not hold the whole header yet.
+   */
+  private static int getHeaderLength(byte[] h) throws IOException {
+    if (h.length < 10) {
+      return -1;
+    }
+    if (h[0] != (byte) 0x1f || h[1] != (byte) 0x8b || h[2] != 8) {
+      throw new IOException("Not in GZIP format");
+    }
+    final int flags = h[3];
+    int pos = 10;
+    if ((flags & FEXTRA) != 0) {
+      if (pos + 2 > h.length) {
+        return -1;
+      }
+      pos += 2 + ((h[pos] & 0xff) | ((h[pos + 1] & 0xff) << 8));
+    }
+    if ((flags & FNAME) != 0) {
+      pos = skipString(h, pos);
+    }
+    if ((flags & FCOMMENT) != 0) {
+      pos = skipString(h, pos);
+    }
+    if ((flags & FHCRC) != 0) {
+      pos += 2;
+    }
+    return pos > h.length || pos < 0 ? -1 : pos;
+  }
+
+  /** Skips a zero-terminated string, returns -1 if it is not complete. */
+  private static int skipString(byte[] h, int pos) {
+    if (pos < 0) {
+      return -1;
+    }
+    for (int i = pos; i < h.length; i++) {
+      if (h[i] == 0) {
+        return i + 1;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutchbase.protocol.httpnio;
+
+// JDK imports
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+
+// Commons Logging imports
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+// Hadoop imports
+import org.apache.hadoop.conf.Configuration;
+
+// Nutch imports
+import org.apache.nutch.net.protocols.Response;
+import org.apache.nutch.protocol.ProtocolException;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.nutchbase.protocol.http.api.HttpBase;
+import org.apache.nutchbase.util.hbase.RowPart;
+import org.apache.nutchbase.util.hbase.TableColumns;
+
+/**
+ * Http protocol plugin that fetches over persistent connections with
+ * non-blocking I/O. All the fetcher threads that use an instance share its
+ * {@link NioHttpClient}, so connections to a host are reused across the
+ * items of its fetch queue.
+ */
+public class Http extends HttpBase {
+
+  public static final Log LOG = LogFactory.getLog(Http.class);
+
+  private static final Set<String> COLUMNS = new HashSet<String>();
+
+  static {
+    COLUMNS.add(TableColumns.MODIFIED_TIME_STR);
+    COLUMNS.add(TableColumns.HEADERS_STR);
+  }
+
+  private NioHttpClient client;
+
+  public Http() {
+    super(LOG);
+  }
+
+  public synchronized void setConf(Configuration conf) {
+    super.setConf(conf);
+    if (client != null) {
+      client.close();
+      client = null;
+    }
+  }
+
+  /** Returns the client used by this plugin, starting it if needed, or
+   * again if its event loop failed. */
+  public synchronized NioHttpClient getClient() throws IOException {
+    if (client != null && !client.isRunning()) {
+      LOG.warn("NioHttpClient stopped, starting a new one");
+      client.close();
+      client = null;
+    }
+    if (client == null) {
+      client = new NioHttpClient(this, getConf());
+    }
+    return client;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Http http = new Http();
+    http.setConf(NutchConfiguration.create());
+    main(http, args);
+  }
+
+  protected Response getResponse(URL url, RowPart row, boolean redirect)
+    throws ProtocolException, IOException {
+    HttpResponse response = getClient().execute(url,
+        getIfModifiedSince(row), getIfNoneMatch(row), null).get(getTimeout());
+    // add headers in metadata to row
+    setHeaders(row, response.getCode(), response.getHeaders());
+    return response;
+  }
+
+  public Set<String> getColumnSet() {
+    return COLUMNS;
+  }
+
+}
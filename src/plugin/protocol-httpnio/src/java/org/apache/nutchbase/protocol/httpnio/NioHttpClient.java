@@ -0,0 +1,567 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutchbase.protocol.httpnio;
+
+// JDK imports
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Commons Logging imports
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+// Hadoop imports
+import org.apache.hadoop.conf.Configuration;
+
+// Nutch imports
+import org.apache.nutchbase.fetcher.HostResolver;
+import org.apache.nutchbase.protocol.http.api.HttpBase;
+
+/**
+ * An HTTP/1.1 client that runs all its connections on a single selector
+ * thread. Requests are queued by the calling threads and picked up by the
+ * event loop, which connects, writes the request and parses the response
+ * as the channels become ready. After a complete response, a persistent
+ * connection is kept open for the next request to the same host (or
+ * proxy), up to <code>http.nio.keepalive.timeout</code> milliseconds.
+ *
+ * <p>Callers either wait for the response with {@link Exchange#get()}, or
+ * pass a {@link Listener} and keep many requests in flight from a single
+ * thread. Host names are resolved by the calling thread through the
+ * {@link HostResolver} cache, never by the event loop.
+ */
+public class NioHttpClient implements Runnable {
+
+  public static final Log LOG = LogFactory.getLog(NioHttpClient.class);
+
+  /** Maximum time the event loop sleeps between timeout checks. */
+  private static final long SELECT_TIMEOUT = 250;
+
+  /** Receives the result of an asynchronous request. */
+  public interface Listener {
+    /** Called on the event loop thread once <code>exchange</code> is done,
+     * so it should return quickly. */
+    void completed(Exchange exchange);
+  }
+
+  /** A request and, once it is done, its response or failure. */
+  public static class Exchange {
+    private final URL url;
+    private final InetSocketAddress address;
+    private final String poolKey;
+    private final ByteBuffer request;
+    private final Listener listener;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private ResponseParser parser;
+    private boolean retried;
+    private volatile long deadline;
+    private volatile HttpResponse response;
+    private volatile IOException failure;
+
+    private Exchange(URL url, InetSocketAddress address, ByteBuffer request,
+        Listener listener) {
+      this.url = url;
+      this.address = address;
+      this.poolKey = address.getAddress().getHostAddress() + ":"
+        + address.getPort();
+      this.request = request;
+      this.listener = listener;
+    }
+
+    public URL getUrl() {
+      return url;
+    }
+
+    public boolean isDone() {
+      return done.getCount() == 0;
+    }
+
+    /**
+     * Waits for the exchange to be done.
+     * @return the response
+     * @throws IOException if the request failed
+     */
+    public HttpResponse get() throws IOException {
+      try {
+        done.await();
+      } catch (final InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while fetching " + url);
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      return response;
+    }
+
+    /**
+     * Waits for the exchange to be done, unless it makes no progress for
+     * <code>timeout</code> milliseconds after its own deadline, e.g.
+     * because the event loop stopped.
+     * @return the response
+     * @throws IOException if the request failed or timed out
+     */
+    public HttpResponse get(long timeout) throws IOException {
+      try {
+        while (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+          if (System.currentTimeMillis() > deadline + timeout) {
+            throw new IOException("Timed out waiting for " + url);
+          }
+        }
+      } catch (final InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while fetching " + url);
+      }
+      return get();
+    }
+
+    private void finish(HttpResponse response, IOException failure) {
+      if (parser != null) {
+        parser.end();
+      }
+      this.response = response;
+      this.failure = failure;
+      done.countDown();
+      if (listener != null) {
+        try {
+          listener.completed(this);
+        } catch (final Throwable t) {
+          LOG.warn("Listener failed for " + url + ": " + t);
+        }
+      }
+    }
+  }
+
+  /** An open channel, with the exchange it is serving, if any. */
+  private static class Connection {
+    final SocketChannel channel;
+    final String poolKey;
+    SelectionKey key;
+    Exchange exchange;
+    long idleSince;
+    int requests;
+
+    Connection(SocketChannel channel, String poolKey) {
+      this.channel = channel;
+      this.poolKey = poolKey;
+    }
+  }
+
+  private final HttpBase http;
+  private final long keepAliveTimeout;
+  private final int maxIdlePerHost;
+
+  private final Selector selector;
+  private final Thread thread;
+  private volatile boolean running = true;
+  private final ConcurrentLinkedQueue<Exchange> pending =
+    new ConcurrentLinkedQueue<Exchange>();
+
+  // only used by the event loop thread
+  private final Set<Connection> connections = new HashSet<Connection>();
+  private final Map<String, LinkedList<Connection>> idle =
+    new HashMap<String, LinkedList<Connection>>();
+  private final ByteBuffer readBuffer = ByteBuffer.allocate(Http.BUFFER_SIZE);
+
+  private final AtomicLong opened = new AtomicLong();
+  private final AtomicLong reused = new AtomicLong();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  /**
+   * Starts a client that uses the timeout, content limit, agent and proxy
+   * settings of <code>http</code>.
+   */
+  public NioHttpClient(HttpBase http, Configuration conf) throws IOException {
+    this.http = http;
+    this.keepAliveTimeout = conf.getLong("http.nio.keepalive.timeout", 15000L);
+    this.maxIdlePerHost = conf.getInt("http.nio.max.idle.per.host", 2);
+    this.selector = Selector.open();
+    this.thread = new Thread(this, "NioHttpClient");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * Queues a GET request for <code>url</code>.
+   * @param ifModifiedSince If not null, the request is conditional on the
+   * page having changed since this HTTP date
+   * @param ifNoneMatch If not null, the request is conditional on the page
+   * not matching this entity tag
+   * @param listener If not null, called when the request is done
+   */
+  public Exchange execute(URL url, String ifModifiedSince, String ifNoneMatch,
+      Listener listener)
+  throws IOException {
+    if (!"http".equals(url.getProtocol())) {
+      throw new IOException("Not an HTTP url:" + url);
+    }
+    if (!running) {
+      throw new IOException("Client is closed");
+    }
+    final String host = url.getHost();
+    final int port = url.getPort() == -1 ? 80 : url.getPort();
+    final String sockHost = http.useProxy() ? http.getProxyHost() : host;
+    final int sockPort = http.useProxy() ? http.getProxyPort() : port;
+    final InetSocketAddress address = new InetSocketAddress(
+        HostResolver.get(http.getConf()).resolve(sockHost), sockPort);
+
+    final Exchange exchange = new Exchange(url, address,
+        makeRequest(url, ifModifiedSince, ifNoneMatch), listener);
+    exchange.deadline = System.currentTimeMillis() + http.getTimeout();
+    pending.add(exchange);
+    selector.wakeup();
+    // the event loop may have stopped, and drained the pending exchanges,
+    // since running was checked
+    if (!running && pending.remove(exchange)) {
+      exchange.finish(null, new IOException("Client is closed"));
+    }
+    return exchange;
+  }
+
+  private ByteBuffer makeRequest(URL url, String ifModifiedSince,
+      String ifNoneMatch)
+  throws UnsupportedEncodingException {
+    final String path = "".equals(url.getFile()) ? "/" : url.getFile();
+    // some servers will redirect a request with a host line like
+    // "Host: <hostname>:80" to "http://<hostname>/<orig_path>"- they
+    // don't want the :80...
+    final String portString = url.getPort() == -1 ? "" : ":" + url.getPort();
+
+    final StringBuilder req = new StringBuilder("GET ");
+    if (http.useProxy()) {
+      req.append(url.getProtocol()).append("://").append(url.getHost())
+         .append(portString);
+    }
+    req.append(path).append(" HTTP/1.1\r\n");
+    req.append("Host: ").append(url.getHost()).append(portString)
+       .append("\r\n");
+    req.append("Accept-Encoding: x-gzip, gzip\r\n");
+    final String userAgent = http.getUserAgent();
+    if (userAgent != null && userAgent.length() > 0) {
+      req.append("User-Agent: ").append(userAgent).append("\r\n");
+    }
+    if (ifModifiedSince != null) {
+      req.append("If-Modified-Since: ").append(ifModifiedSince).append("\r\n");
+    }
+    if (ifNoneMatch != null) {
+      req.append("If-None-Match: ").append(ifNoneMatch).append("\r\n");
+    }
+    req.append("\r\n");
+    return ByteBuffer.wrap(req.toString().getBytes("ISO-8859-1"));
+  }
+
+  /** Returns the number of connections opened so far. */
+  public long getOpenedCount() {
+    return opened.get();
+  }
+
+  /** Returns the number of requests sent over an already used connection. */
+  public long getReusedCount() {
+    return reused.get();
+  }
+
+  public long getCompletedCount() {
+    return completed.get();
+  }
+
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  /** Returns false once the client is closed or its event loop failed. */
+  public boolean isRunning() {
+    return running;
+  }
+
+  /** Stops the event loop; requests in flight fail. */
+  public void close() {
+    running = false;
+    selector.wakeup();
+    try {
+      thread.join(SELECT_TIMEOUT * 4);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public void run() {
+    long nextTimeoutCheck = 0;
+    try {
+      while (running) {
+        selector.select(SELECT_TIMEOUT);
+        final long now = System.currentTimeMillis();
+
+        Exchange exchange;
+        while ((exchange = pending.poll()) != null) {
+          start(exchange, now);
+        }
+
+        final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          final SelectionKey key = it.next();
+          it.remove();
+          final Connection conn = (Connection) key.attachment();
+          try {
+            if (key.isValid() && key.isConnectable()) {
+              finishConnect(conn, now);
+            }
+            if (key.isValid() && key.isWritable()) {
+              write(conn, now);
+            }
+            if (key.isValid() && key.isReadable()) {
+              read(conn, now);
+            }
+          } catch (final IOException e) {
+            fail(conn, e);
+          }
+        }
+
+        if (now >= nextTimeoutCheck) {
+          checkTimeouts(now);
+          nextTimeoutCheck = now + SELECT_TIMEOUT;
+        }
+      }
+    } catch (final Throwable t) {
+      LOG.fatal("NioHttpClient event loop failed: " + t, t);
+    } finally {
+      running = false;
+      final IOException closed = new IOException("Client is closed");
+      for (final Connection conn : new ArrayList<Connection>(connections)) {
+        fail(conn, closed);
+      }
+      Exchange exchange;
+      while ((exchange = pending.poll()) != null) {
+        exchange.finish(null, closed);
+      }
+      try {
+        selector.close();
+      } catch (final IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  private void start(Exchange exchange, long now) {
+    exchange.parser = new ResponseParser(http.getMaxContent());
+    exchange.request.rewind();
+    exchange.deadline = now + http.getTimeout();
+
+    final Connection conn = takeIdle(exchange.poolKey, now);
+    if (conn != null) {
+      reused.incrementAndGet();
+      conn.exchange = exchange;
+      conn.key.interestOps(SelectionKey.OP_WRITE);
+      return;
+    }
+
+    SocketChannel channel = null;
+    try {
+      channel = SocketChannel.open();
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      final Connection newConn = new Connection(channel, exchange.poolKey);
+      newConn.exchange = exchange;
+      final boolean connected = channel.connect(exchange.address);
+      newConn.key = channel.register(selector,
+          connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, newConn);
+      connections.add(newConn);
+      opened.incrementAndGet();
+    } catch (final IOException e) {
+      closeQuietly(channel);
+      failed.incrementAndGet();
+      exchange.finish(null, e);
+    }
+  }
+
+  private Connection takeIdle(String poolKey, long now) {
+    final LinkedList<Connection> pool = idle.get(poolKey);
+    if (pool == null) {
+      return null;
+    }
+    Connection conn = null;
+    while (conn == null && !pool.isEmpty()) {
+      final Connection c = pool.removeLast();
+      if (c.channel.isOpen() && now - c.idleSince < keepAliveTimeout) {
+        conn = c;
+      } else {
+        close(c);
+      }
+    }
+    if (pool.isEmpty()) {
+      idle.remove(poolKey);
+    }
+    return conn;
+  }
+
+  private void finishConnect(Connection conn, long now) throws IOException {
+    conn.channel.finishConnect();
+    conn.exchange.deadline = now + http.getTimeout();
+    conn.key.interestOps(SelectionKey.OP_WRITE);
+  }
+
+  private void write(Connection conn, long now) throws IOException {
+    final ByteBuffer request = conn.exchange.request;
+    if (conn.channel.write(request) > 0) {
+      conn.exchange.deadline = now + http.getTimeout();
+    }
+    if (!request.hasRemaining()) {
+      conn.key.interestOps(SelectionKey.OP_READ);
+    }
+  }
+
+  private void read(Connection conn, long now) throws IOException {
+    readBuffer.clear();
+    final int n = conn.channel.read(readBuffer);
+    final Exchange exchange = conn.exchange;
+    if (exchange == null) {
+      // an idle connection was closed by the server, or sent junk
+      close(conn);
+      return;
+    }
+
+    final ResponseParser parser = exchange.parser;
+    if (n < 0) {
+      if (parser.endOfStream()) {
+        complete(conn, false, now);
+      } else if (!parser.hasReceived() && conn.requests > 0
+                 && !exchange.retried) {
+        // the server dropped a kept-alive connection, try a new one
+        exchange.retried = true;
+        conn.exchange = null;
+        close(conn);
+        start(exchange, now);
+      } else {
+        throw new EOFException("Connection closed before end of response: "
+                               + exchange.url);
+      }
+      return;
+    }
+    if (n == 0) {
+      return;
+    }
+
+    exchange.deadline = now + http.getTimeout();
+    readBuffer.flip();
+    if (parser.parse(readBuffer)) {
+      // anything after the response means the connection is out of sync
+      complete(conn, !readBuffer.hasRemaining(), now);
+    }
+  }
+
+  private void complete(Connection conn, boolean reusable, long now) {
+    final Exchange exchange = conn.exchange;
+    final ResponseParser parser = exchange.parser;
+    conn.exchange = null;
+    conn.requests++;
+
+    final HttpResponse response = new HttpResponse(exchange.url,
+        parser.getCode(), parser.getHeaders(), parser.getContent());
+    if (parser.isTruncated() && LOG.isTraceEnabled()) {
+      LOG.trace("Content of " + exchange.url + " truncated at "
+                + http.getMaxContent() + " bytes");
+    }
+
+    if (reusable && parser.isKeepAlive() && running) {
+      LinkedList<Connection> pool = idle.get(conn.poolKey);
+      if (pool == null) {
+        pool = new LinkedList<Connection>();
+        idle.put(conn.poolKey, pool);
+      }
+      if (pool.size() < maxIdlePerHost) {
+        conn.idleSince = now;
+        conn.key.interestOps(SelectionKey.OP_READ);
+        pool.addLast(conn);
+      } else {
+        close(conn);
+      }
+    } else {
+      close(conn);
+    }
+
+    completed.incrementAndGet();
+    exchange.finish(response, null);
+  }
+
+  private void fail(Connection conn, IOException e) {
+    final Exchange exchange = conn.exchange;
+    conn.exchange = null;
+    close(conn);
+    if (exchange != null) {
+      failed.incrementAndGet();
+      exchange.finish(null, e);
+    }
+  }
+
+  private void checkTimeouts(long now) {
+    for (final Connection conn : new ArrayList<Connection>(connections)) {
+      if (conn.exchange != null) {
+        if (now > conn.exchange.deadline) {
+          fail(conn, new SocketTimeoutException("Timed out"));
+        }
+      } else if (now - conn.idleSince >= keepAliveTimeout) {
+        close(conn);
+      }
+    }
+  }
+
+  private void close(Connection conn) {
+    if (!connections.remove(conn)) {
+      return;
+    }
+    if (conn.exchange == null) {
+      final LinkedList<Connection> pool = idle.get(conn.poolKey);
+      if (pool != null && pool.remove(conn) && pool.isEmpty()) {
+        idle.remove(conn.poolKey);
+      }
+    }
+    if (conn.key != null) {
+      conn.key.cancel();
+    }
+    closeQuietly(conn.channel);
+  }
+
+  private static void closeQuietly(SocketChannel channel) {
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.close();
+    } catch (final IOException e) {
+      // ignore
+    }
+  }
+}
@@ -0,0 +1,359 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutchbase.protocol.httpnio;
+
+// JDK imports
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Nutch imports
+import org.apache.nutch.metadata.Metadata;
+import org.apache.nutch.metadata.SpellCheckedMetadata;
+import org.apache.nutch.net.protocols.Response;
+
+/**
+ * Parses an HTTP response incrementally, as the bytes arrive from a
+ * non-blocking channel. The status line and the headers are parsed as soon
+ * as they are complete, and the body is decoded (de-chunked and
+ * un-gzipped) while it is read, so no read ever blocks and no complete
+ * copy of the raw body is kept.
+ */
+class ResponseParser {
+
+  private static final int STATUS = 0;
+  private static final int HEADERS = 1;
+  private static final int BODY = 2;
+  private static final int CHUNK_SIZE = 3;
+  private static final int CHUNK_DATA = 4;
+  private static final int CHUNK_END = 5;
+  private static final int TRAILERS = 6;
+  private static final int DONE = 7;
+
+  private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+  private final int maxContent;
+  private int state = STATUS;
+
+  private final StringBuilder line = new StringBuilder();
+  private boolean lineComplete;
+  private final List<String> headerLines = new ArrayList<String>();
+  private String version;
+  private int code;
+  private Metadata headers = new SpellCheckedMetadata();
+
+  /** Body or chunk bytes left to read, -1 if the body ends at close. */
+  private long remaining;
+  private boolean keepAlive;
+  private boolean received;
+
+  private final ByteArrayOutputStream content =
+    new ByteArrayOutputStream(Http.BUFFER_SIZE);
+  private GzipInflater inflater;
+  private boolean truncated;
+
+  /**
+   * @param maxContent Maximum size of the decoded content, or a negative
+   * value for no limit
+   */
+  ResponseParser(int maxContent) {
+    this.maxContent = maxContent;
+  }
+
+  /**
+   * Consumes bytes of the response from <code>buf</code>.
+   * @return true if the response is complete. Bytes after the end of the
+   * response are left in <code>buf</code>.
+   */
+  boolean parse(ByteBuffer buf) throws IOException {
+    if (buf.hasRemaining()) {
+      received = true;
+    }
+    while (state != DONE && buf.hasRemaining()) {
+      switch (state) {
+      case STATUS:
+        if (readLine(buf)) {
+          if (line.length() > 0) {              // skip leading blank lines
+            parseStatusLine();
+            state = HEADERS;
+          }
+        }
+        break;
+
+      case HEADERS:
+        if (readLine(buf)) {
+          if (line.length() > 0) {
+            headerLines.add(line.toString());
+          } else {
+            endOfHeaders();
+          }
+        }
+        break;
+
+      case BODY:
+      case CHUNK_DATA:
+        readBody(buf);
+        break;
+
+      case CHUNK_SIZE:
+        if (readLine(buf)) {
+          parseChunkSize();
+        }
+        break;
+
+      case CHUNK_END:
+        if (readLine(buf)) {
+          state = CHUNK_SIZE;
+        }
+        break;
+
+      case TRAILERS:
+        if (readLine(buf) && line.length() == 0) {
+          state = DONE;
+        }
+        break;
+      }
+    }
+    if (state == DONE) {
+      end();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Signals the end of the stream.
+   * @return true if the response is complete, false if it was cut short
+   */
+  boolean endOfStream() {
+    if (state == BODY && remaining < 0) {
+      state = DONE;
+      end();
+    }
+    return state == DONE;
+  }
+
+  /** Returns true if any byte of the response was received. */
+  boolean hasReceived() {
+    return received;
+  }
+
+  /** Returns true if the connection may be used for another request. */
+  boolean isKeepAlive() {
+    return keepAlive;
+  }
+
+  boolean isTruncated() {
+    return truncated;
+  }
+
+  int getCode() {
+    return code;
+  }
+
+  Metadata getHeaders() {
+    return headers;
+  }
+
+  byte[] getContent() {
+    return content.toByteArray();
+  }
+
+  /** Releases the resources of the parser. */
+  void end() {
+    if (inflater != null) {
+      inflater.end();
+      inflater = null;
+    }
+  }
+
+  /**
+   * Reads up to the end of a line into {@link #line}, which holds the line
+   * until the next call.
+   * @return true if the line is complete
+   */
+  private boolean readLine(ByteBuffer buf) throws IOException {
+    if (lineComplete) {
+      line.setLength(0);
+      lineComplete = false;
+    }
+    while (buf.hasRemaining()) {
+      final char c = (char) (buf.get() & 0xff);
+      if (c == '\n') {
+        final int last = line.length() - 1;
+        if (last >= 0 && line.charAt(last) == '\r') {
+          line.setLength(last);
+        }
+        lineComplete = true;
+        return true;
+      }
+      if (line.length() >= MAX_LINE_LENGTH) {
+        throw new IOException("Line too long: " + line.substring(0, 80));
+      }
+      line.append(c);
+    }
+    return false;
+  }
+
+  private void parseStatusLine() throws IOException {
+    final String statusLine = line.toString();
+    if (!statusLine.startsWith("HTTP/")) {
+      throw new IOException("bad status line '" + statusLine + "'");
+    }
+    final int codeStart = statusLine.indexOf(' ');
+    int codeEnd = statusLine.indexOf(' ', codeStart + 1);
+    // handle lines with no plaintext result code, ie:
+    // "HTTP/1.1 200" vs "HTTP/1.1 200 OK"
+    if (codeEnd == -1) {
+      codeEnd = statusLine.length();
+    }
+    try {
+      version = statusLine.substring(0, codeStart);
+      code = Integer.parseInt(statusLine.substring(codeStart + 1, codeEnd));
+    } catch (final RuntimeException e) {
+      throw new IOException("bad status line '" + statusLine
+                            + "': " + e.getMessage());
+    }
+  }
+
+  private void endOfHeaders() throws IOException {
+    // unfold continued lines
+    final List<String> lines = new ArrayList<String>();
+    for (final String headerLine : headerLines) {
+      final char first = headerLine.charAt(0);
+      if ((first == ' ' || first == '\t') && !lines.isEmpty()) {
+        final int last = lines.size() - 1;
+        lines.set(last, lines.get(last) + " " + headerLine.trim());
+      } else {
+        lines.add(headerLine);
+      }
+    }
+    headerLines.clear();
+    for (final String headerLine : lines) {
+      processHeaderLine(headerLine);
+    }
+
+    if (code >= 100 && code < 200) {            // 100 is "Continue"
+      headers = new SpellCheckedMetadata();
+      state = STATUS;
+      return;
+    }
+
+    final String connection = headers.get("Connection");
+    if ("HTTP/1.1".equals(version)) {
+      keepAlive = !"close".equalsIgnoreCase(connection);
+    } else {
+      keepAlive = "keep-alive".equalsIgnoreCase(connection);
+    }
+
+    final String contentEncoding = headers.get(Response.CONTENT_ENCODING);
+    if ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) {
+      inflater = new GzipInflater(content, maxContent);
+    }
+
+    if (code == 204 || code == 304) {           // no body
+      state = DONE;
+      return;
+    }
+    final String transferEncoding = headers.get("Transfer-Encoding");
+    if (transferEncoding != null
+        && transferEncoding.toLowerCase().indexOf("chunked") != -1) {
+      state = CHUNK_SIZE;
+      return;
+    }
+    final String contentLength = headers.get(Response.CONTENT_LENGTH);
+    if (contentLength != null) {
+      try {
+        remaining = Long.parseLong(contentLength.trim());
+      } catch (final NumberFormatException e) {
+        throw new IOException("bad content length: " + contentLength);
+      }
+      state = remaining > 0 ? BODY : DONE;
+    } else {
+      // the body ends when the server closes the connection
+      remaining = -1;
+      keepAlive = false;
+      state = BODY;
+    }
+  }
+
+  private void processHeaderLine(String headerLine) throws IOException {
+    final int colonIndex = headerLine.indexOf(':');  // key is up to colon
+    if (colonIndex == -1) {
+      if (headerLine.trim().length() == 0) {
+        return;
+      }
+      throw new IOException("No colon in header:" + headerLine);
+    }
+    final String key = headerLine.substring(0, colonIndex).trim();
+    final String value = headerLine.substring(colonIndex + 1).trim();
+    headers.set(key, value);
+  }
+
+  private void parseChunkSize() throws IOException {
+    String size = line.toString();
+    final int extension = size.indexOf(';');
+    if (extension != -1) {
+      size = size.substring(0, extension);
+    }
+    try {
+      remaining = Long.parseLong(size.trim(), 16);
+    } catch (final NumberFormatException e) {
+      throw new IOException("bad chunk size: " + size);
+    }
+    state = remaining > 0 ? CHUNK_DATA : TRAILERS;
+  }
+
+  private void readBody(ByteBuffer buf) throws IOException {
+    int n = buf.remaining();
+    if (remaining >= 0 && remaining < n) {
+      n = (int) remaining;
+    }
+    final byte[] b = buf.array();
+    final int off = buf.arrayOffset() + buf.position();
+    buf.position(buf.position() + n);
+    if (remaining >= 0) {
+      remaining -= n;
+    }
+
+    boolean full;
+    if (inflater != null) {
+      full = !inflater.write(b, off, n);
+    } else {
+      int room = n;
+      if (maxContent >= 0 && content.size() + n > maxContent) {
+        room = maxContent - content.size();
+      }
+      content.write(b, off, room);
+      full = room < n;
+    }
+    if (full) {
+      // the rest of the body is not read, so the connection can not be
+      // used again
+      truncated = true;
+      keepAlive = false;
+      state = DONE;
+      return;
+    }
+
+    if (remaining == 0) {
+      state = state == CHUNK_DATA ? CHUNK_END : DONE;
+    }
+  }
+}
@@ -0,0 +1,281 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nutchbase.protocol.httpnio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.protocol.Protocol;
+import org.apache.nutch.protocol.ProtocolOutput;
+import org.apache.nutch.protocol.ProtocolStatus;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.nutchbase.util.hbase.RowPart;
+import org.mortbay.http.HttpContext;
+import org.mortbay.http.HttpRequest;
+import org.mortbay.http.SocketListener;
+import org.mortbay.http.handler.AbstractHttpHandler;
+import org.mortbay.jetty.Server;
+
+/**
+ * Test cases for protocol-httpnio, against an embedded Jetty server.
+ */
+public class TestProtocolHttpNio extends TestCase {
+
+  private static final int PORT = 47510;
+
+  private static final String TEXT = makeText();
+
+  private static final String ETAG = "\"v1\"";
+  private static final String LAST_MODIFIED = "Tue, 15 Nov 1994 12:45:26 GMT";
+
+  private Server server;
+  private Configuration conf;
+  private Http http;
+
+  private static String makeText() {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      text.append("line ").append(i).append(" of the test page\n");
+    }
+    return text.toString();
+  }
+
+  private static byte[] gzip(byte[] b) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    GZIPOutputStream out = new GZIPOutputStream(bytes);
+    out.write(b);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  /** Serves /plain with a content length, /chunked-gzip chunked and
+   * gzipped, /etag with validators, and 404 for anything else. */
+  private static class TestHandler extends AbstractHttpHandler {
+    public void handle(String pathInContext, String pathParams,
+        HttpRequest request, org.mortbay.http.HttpResponse response)
+      throws IOException {
+      byte[] body = TEXT.getBytes("UTF-8");
+      if ("/plain".equals(pathInContext)) {
+        response.setContentType("text/plain");
+        response.setContentLength(body.length);
+      } else if ("/chunked-gzip".equals(pathInContext)) {
+        response.setContentType("text/plain");
+        response.setField("Content-Encoding", "gzip");
+        body = gzip(body);
+      } else if ("/etag".equals(pathInContext)) {
+        if (ETAG.equals(request.getField("If-None-Match"))) {
+          response.setField("ETag", ETAG);
+          response.setStatus(304);
+          request.setHandled(true);
+          return;
+        }
+        response.setContentType("text/plain");
+        response.setField("ETag", ETAG);
+        response.setField("Last-Modified", LAST_MODIFIED);
+        response.setContentLength(body.length);
+      } else {
+        response.sendError(404);
+        request.setHandled(true);
+        return;
+      }
+      OutputStream out = response.getOutputStream();
+      // several writes, so that the response is sent in chunks
+      for (int i = 0; i < body.length; i += 1000) {
+        out.write(body, i, Math.min(1000, body.length - i));
+        out.flush();
+      }
+      request.setHandled(true);
+    }
+  }
+
+  protected void setUp() throws Exception {
+    server = new Server();
+    SocketListener listener = new SocketListener();
+    listener.setHost("127.0.0.1");
+    listener.setPort(PORT);
+    server.addListener(listener);
+    HttpContext context = new HttpContext();
+    context.setContextPath("/");
+    context.addHandler(new TestHandler());
+    server.addContext(context);
+    server.start();
+
+    conf = NutchConfiguration.create();
+    conf.set("http.agent.name", "test");
+    conf.setBoolean(Protocol.CHECK_BLOCKING, false);
+    conf.setBoolean(Protocol.CHECK_ROBOTS, false);
+    conf.setInt("http.content.limit", -1);
+    http = new Http();
+    http.setConf(conf);
+  }
+
+  protected void tearDown() throws Exception {
+    http.getClient().close();
+    server.stop();
+  }
+
+  private ProtocolOutput fetch(String path) {
+    return http.getProtocolOutput("http://127.0.0.1:" + PORT + path,
+                                  new RowPart());
+  }
+
+  public void testKeepAlive() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      ProtocolOutput out = fetch("/plain");
+      assertEquals(ProtocolStatus.SUCCESS, out.getStatus().getCode());
+      assertEquals(TEXT, new String(out.getContent().getContent(), "UTF-8"));
+    }
+    // robots.txt is fetched too, over the same connection
+    NioHttpClient client = http.getClient();
+    assertEquals(1, client.getOpenedCount());
+    assertEquals(client.getCompletedCount() - 1, client.getReusedCount());
+  }
+
+  public void testStoppedClient() throws Exception {
+    NioHttpClient client = http.getClient();
+    client.close();
+    assertFalse(client.isRunning());
+    // requests to a stopped client fail instead of waiting forever
+    URL url = new URL("http://127.0.0.1:" + PORT + "/plain");
+    try {
+      client.execute(url, null, null, null).get(1000);
+      fail("no exception");
+    } catch (IOException e) {
+      // expected
+    }
+    // the plugin starts a new client
+    assertNotSame(client, http.getClient());
+    assertTrue(http.getClient().isRunning());
+    ProtocolOutput out = fetch("/plain");
+    assertEquals(ProtocolStatus.SUCCESS, out.getStatus().getCode());
+  }
+
+  public void testChunkedGzip() throws Exception {
+    ProtocolOutput out = fetch("/chunked-gzip");
+    assertEquals(ProtocolStatus.SUCCESS, out.getStatus().getCode());
+    assertEquals(TEXT, new String(out.getContent().getContent(), "UTF-8"));
+  }
+
+  public void testNotFound() throws Exception {
+    ProtocolOutput out = fetch("/missing");
+    assertEquals(ProtocolStatus.NOTFOUND, out.getStatus().getCode());
+    // the connection is still usable
+    out = fetch("/plain");
+    assertEquals(ProtocolStatus.SUCCESS, out.getStatus().getCode());
+    assertEquals(1, http.getClient().getOpenedCount());
+  }
+
+  public void testConditionalGet() throws Exception {
+    RowPart row = new RowPart();
+    String url = "http://127.0.0.1:" + PORT + "/etag";
+    ProtocolOutput out = http.getProtocolOutput(url, row);
+    assertEquals(ProtocolStatus.SUCCESS, out.getStatus().getCode());
+    assertEquals(ETAG, row.getHeader("ETag"));
+
+    out = http.getProtocolOutput(url, row);
+    assertEquals(ProtocolStatus.NOTMODIFIED, out.getStatus().getCode());
+    // validators of the stored page are kept
+    assertEquals(ETAG, row.getHeader("ETag"));
+    assertEquals(LAST_MODIFIED, row.getHeader("Last-Modified"));
+    assertEquals("text/plain", row.getHeader("Content-Type"));
+  }
+
+  public void testContentLimit() throws Exception {
+    conf.setInt("http.content.limit", 100);
+    http.setConf(conf);
+    for (String path : new String[] { "/plain", "/chunked-gzip" }) {
+      ProtocolOutput out = fetch(path);
+      assertEquals(ProtocolStatus.SUCCESS, out.getStatus().getCode());
+      assertEquals(TEXT.substring(0, 100),
+                   new String(out.getContent().getContent(), "UTF-8"));
+    }
+  }
+
+  public void testAsync() throws Exception {
+    final int n = 100;
+    final CountDownLatch done = new CountDownLatch(n);
+    final AtomicInteger ok = new AtomicInteger();
+    NioHttpClient.Listener listener = new NioHttpClient.Listener() {
+      public void completed(NioHttpClient.Exchange exchange) {
+        try {
+          if (exchange.get().getContent().length == TEXT.length()) {
+            ok.incrementAndGet();
+          }
+        } catch (IOException e) {
+          // counted as not ok
+        }
+        done.countDown();
+      }
+    };
+    URL url = new URL("http://127.0.0.1:" + PORT + "/plain");
+    for (int i = 0; i < n; i++) {
+      http.getClient().execute(url, null, null, listener);
+    }
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    assertEquals(n, ok.get());
+  }
+
+  /** Feeds a response to the parser one byte at a time. */
+  public void testIncrementalParse() throws Exception {
+    byte[] body = gzip(TEXT.getBytes("UTF-8"));
+    ByteArrayOutputStream raw = new ByteArrayOutputStream();
+    raw.write(("HTTP/1.1 100 Continue\r\n\r\n"
+        + "HTTP/1.1 200 OK\r\n"
+        + "Content-Type: text/plain\r\n"
+        + "X-Folded: first\r\n  second\r\n"
+        + "Content-Encoding: gzip\r\n"
+        + "Transfer-Encoding: chunked\r\n\r\n").getBytes("ISO-8859-1"));
+    for (int i = 0; i < body.length; i += 700) {
+      int len = Math.min(700, body.length - i);
+      raw.write((Integer.toHexString(len) + ";ext=1\r\n")
+                .getBytes("ISO-8859-1"));
+      raw.write(body, i, len);
+      raw.write("\r\n".getBytes("ISO-8859-1"));
+    }
+    raw.write("0\r\nX-Trailer: yes\r\n\r\n".getBytes("ISO-8859-1"));
+    byte[] bytes = raw.toByteArray();
+
+    ResponseParser parser = new ResponseParser(-1);
+    for (int i = 0; i < bytes.length; i++) {
+      boolean complete = parser.parse(ByteBuffer.wrap(bytes, i, 1));
+      assertEquals(i == bytes.length - 1, complete);
+    }
+    assertEquals(200, parser.getCode());
+    assertTrue(parser.isKeepAlive());
+    assertEquals("first second", parser.getHeaders().get("X-Folded"));
+    assertEquals(TEXT, new String(parser.getContent(), "UTF-8"));
+  }
+
+  public void testBodyUntilClose() throws Exception {
+    ResponseParser parser = new ResponseParser(-1);
+    assertFalse(parser.parse(ByteBuffer.wrap(
+        "HTTP/1.0 200 OK\r\n\r\nsome content".getBytes("ISO-8859-1"))));
+    assertTrue(parser.endOfStream());
+    assertFalse(parser.isKeepAlive());
+    assertEquals("some content", new String(parser.getContent(), "UTF-8"));
+  }
+}
@@ -19,12 +19,15 @@ package org.apache.nutch.urlfilter.automaton;
 // JDK imports
 import java.io.Reader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.PatternSyntaxException;
 
 // Hadoop imports
 import org.apache.hadoop.conf.Configuration;
 
 // Automaton imports
+import dk.brics.automaton.Automaton;
 import dk.brics.automaton.RegExp;
 import dk.brics.automaton.RunAutomaton;
 import org.apache.nutch.net.*;
@@ -70,6 +73,25 @@ public class AutomatonURLFilter extends RegexURLFilterBase {
   protected RegexRule createRule(boolean sign, String regex) {
     return new Rule(sign, regex);
   }
+
+  /**
+   * Merges rules into a single automaton accepting the union of their
+   * languages, so that a run of rules is checked in one pass over the url.
+   */
+  protected RegexRule mergeRules(boolean sign, List<RegexRule> rules) {
+    List<Automaton> automata = new ArrayList<Automaton>(rules.size());
+    StringBuilder regex = new StringBuilder();
+    for (RegexRule rule : rules) {
+      automata.add(((Rule) rule).automaton);
+      if (regex.length() > 0) {
+        regex.append('|');
+      }
+      regex.append('(').append(rule.getRegex()).append(')');
+    }
+    Automaton union = Automaton.union(automata);
+    union.minimize();
+    return new Rule(sign, regex.toString(), union);
+  }
   
   /* ------------------------------------ *
    * </implementation:RegexURLFilterBase> *
@@ -83,15 +105,21 @@ public class AutomatonURLFilter extends RegexURLFilterBase {
 
   private class Rule extends RegexRule {
     
-    private RunAutomaton automaton;
+    private Automaton automaton;
+    private RunAutomaton runAutomaton;
     
     Rule(boolean sign, String regex) {
+      this(sign, regex, new RegExp(regex, RegExp.ALL).toAutomaton());
+    }
+
+    Rule(boolean sign, String regex, Automaton automaton) {
       super(sign, regex);
-      automaton = new RunAutomaton(new RegExp(regex, RegExp.ALL).toAutomaton());
+      this.automaton = automaton;
+      runAutomaton = new RunAutomaton(automaton);
     }
 
     protected boolean match(String url) {
-      return automaton.run(url);
+      return runAutomaton.run(url);
     }
   }
   
@@ -25,6 +25,7 @@ import java.util.regex.PatternSyntaxException;
 // Hadoop imports
 import org.apache.hadoop.conf.Configuration;
 import org.apache.nutch.net.*;
+import org.apache.nutch.urlfilter.api.RegexLiterals;
 import org.apache.nutch.urlfilter.api.RegexRule;
 import org.apache.nutch.urlfilter.api.RegexURLFilterBase;
 import org.apache.nutch.util.NutchConfiguration;
@@ -80,15 +81,21 @@ public class RegexURLFilter extends RegexURLFilterBase {
   private class Rule extends RegexRule {
     
     private Pattern pattern;
+    private String[] literals;
     
     Rule(boolean sign, String regex) {
       super(sign, regex);
       pattern = Pattern.compile(regex);
+      literals = RegexLiterals.find(regex);
     }
 
     protected boolean match(String url) {
       return pattern.matcher(url).find();
     }
+
+    protected String[] getLiterals() {
+      return literals;
+    }
   }
   
 }
@@ -0,0 +1,164 @@
+package org.apache.nutch.parse;
+
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.oro.text.regex.Pattern;
+import org.apache.oro.text.regex.PatternMatcherInput;
+import org.apache.oro.text.regex.Perl5Compiler;
+import org.apache.oro.text.regex.Perl5Matcher;
+
+/**
+ * Compares the throughput of {@link OutlinkExtractor} with the regular
+ * expression matcher it replaces (ORO, compiling the pattern on each call),
+ * on large plain text and JavaScript inputs. Each input is extracted a few
+ * times to warm up, then timed.
+ *
+ * <p>Usage: OutlinkExtractorBenchmark [-size bytes] [-iterations n]
+ * [-threads n]
+ */
+public class OutlinkExtractorBenchmark {
+
+  private static final String[] WORDS = {
+    "the", "crawler", "fetches", "pages", "and", "parses", "them", "into",
+    "text", "with", "links", "to", "other", "hosts", "e.g.", "note:",
+    "ratio", "1:2", "time", "12:30", "a+b", "x-y", "(see", "below)",
+  };
+
+  private static String url(Random r) {
+    return (r.nextInt(4) == 0 ? "https" : "http") + "://www.site"
+      + r.nextInt(1000) + ".com/path/" + r.nextInt(100000)
+      + (r.nextBoolean() ? ".html?q=a%20b&n=" + r.nextInt(100) : "/")
+      + (r.nextInt(5) == 0 ? "#top" : "");
+  }
+
+  /** Prose, with a URL now and then. */
+  private static String makeText(int size, Random r) {
+    final StringBuilder sb = new StringBuilder(size + 200);
+    while (sb.length() < size) {
+      if (r.nextInt(40) == 0) {
+        sb.append(url(r));
+      } else {
+        sb.append(WORDS[r.nextInt(WORDS.length)]);
+      }
+      sb.append(r.nextInt(15) == 0 ? ".\n" : " ");
+    }
+    return sb.toString();
+  }
+
+  /** Minified JavaScript, with URLs in string literals. */
+  private static String makeScript(int size, Random r) {
+    final StringBuilder sb = new StringBuilder(size + 200);
+    while (sb.length() < size) {
+      switch (r.nextInt(5)) {
+      case 0:
+        sb.append("var u").append(r.nextInt(100)).append("=\"")
+          .append(url(r)).append("\";");
+        break;
+      case 1:
+        sb.append("a=b?c:d+e.f(g,h);");
+        break;
+      case 2:
+        sb.append("x={k:1,v:\"s\",w:[1,2,3]};");
+        break;
+      case 3:
+        sb.append("if(o.t===1&&p.q){r.s(t:u)}");
+        break;
+      default:
+        sb.append("function f").append(r.nextInt(100))
+          .append("(a,b){return a.c+b.d||e:f}");
+      }
+    }
+    return sb.toString();
+  }
+
+  private static int regex(String text) throws Exception {
+    final Pattern pattern = new Perl5Compiler().compile(
+        OutlinkExtractor.URL_PATTERN,
+        Perl5Compiler.CASE_INSENSITIVE_MASK | Perl5Compiler.READ_ONLY_MASK
+        | Perl5Compiler.MULTILINE_MASK);
+    final Perl5Matcher matcher = new Perl5Matcher();
+    final PatternMatcherInput input = new PatternMatcherInput(text);
+    int links = 0;
+    while (matcher.contains(input, pattern)) {
+      matcher.getMatch();
+      links++;
+    }
+    return links;
+  }
+
+  private static void run(final String name, final String text,
+      final int iterations, int threadCount, final Configuration conf)
+  throws Exception {
+    // warm up, and check that both find the same links
+    int links = 0;
+    for (int i = 0; i < 3; i++) {
+      links = OutlinkExtractor.getOutlinks(text, conf).length;
+      if (regex(text) != links) {
+        throw new IllegalStateException(name + ": different links");
+      }
+    }
+    for (final boolean scanner : new boolean[] { false, true }) {
+      final Thread[] threads = new Thread[threadCount];
+      final Exception[] error = new Exception[1];
+      final long start = System.nanoTime();
+      for (int t = 0; t < threads.length; t++) {
+        threads[t] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              for (int i = 0; i < iterations; i++) {
+                if (scanner) {
+                  OutlinkExtractor.getOutlinks(text, conf);
+                } else {
+                  regex(text);
+                }
+              }
+            } catch (final Exception e) {
+              error[0] = e;
+            }
+          }
+        };
+        threads[t].start();
+      }
+      for (final Thread thread : threads) {
+        thread.join();
+      }
+      if (error[0] != null) {
+        throw error[0];
+      }
+      final double secs = (System.nanoTime() - start) / 1e9;
+      final double mb = (double) text.length() * iterations * threadCount
+        / (1024 * 1024);
+      System.out.println(String.format(
+          "%-6s %-7s %8d chars %6d links %8.1f ms/doc %8.1f MB/s",
+          name, scanner ? "scanner" : "regex", text.length(), links,
+          secs * 1000 / iterations,
+          mb / secs));
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int size = 1024 * 1024;
+    int iterations = 10;
+    int threads = 1;
+    for (int i = 0; i < args.length; i++) {
+      if ("-size".equals(args[i])) {
+        size = Integer.parseInt(args[++i]);
+      } else if ("-iterations".equals(args[i])) {
+        iterations = Integer.parseInt(args[++i]);
+      } else if ("-threads".equals(args[i])) {
+        threads = Integer.parseInt(args[++i]);
+      } else {
+        System.err.println("Usage: OutlinkExtractorBenchmark [-size bytes]"
+                           + " [-iterations n] [-threads n]");
+        System.exit(-1);
+      }
+    }
+    final Configuration conf = NutchConfiguration.create();
+    final Random r = new Random(1);
+    run("text", makeText(size, r), iterations, threads, conf);
+    run("script", makeScript(size, r), iterations, threads, conf);
+  }
+}
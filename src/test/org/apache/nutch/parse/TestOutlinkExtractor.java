@@ -17,10 +17,18 @@
  
 package org.apache.nutch.parse;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 import org.apache.nutch.parse.Outlink;
 import org.apache.nutch.parse.OutlinkExtractor;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.nutch.util.NutchConfiguration;
+import org.apache.oro.text.regex.Pattern;
+import org.apache.oro.text.regex.PatternMatcherInput;
+import org.apache.oro.text.regex.Perl5Compiler;
+import org.apache.oro.text.regex.Perl5Matcher;
 
 import junit.framework.TestCase;
 
@@ -78,4 +86,67 @@ public class TestOutlinkExtractor extends TestCase {
     assertEquals("Wrong URL", "ftp://www.nutch.org", outlinks[0].getToUrl());
     assertEquals("Wrong URL", "ftp://www.google.de", outlinks[1].getToUrl());
   }
+
+  /** Returns the URLs the regular expression finds in a text. */
+  private static List<String> getRegexUrls(String text) throws Exception {
+    Pattern pattern = new Perl5Compiler().compile(OutlinkExtractor.URL_PATTERN,
+        Perl5Compiler.CASE_INSENSITIVE_MASK | Perl5Compiler.READ_ONLY_MASK
+            | Perl5Compiler.MULTILINE_MASK);
+    Perl5Matcher matcher = new Perl5Matcher();
+    PatternMatcherInput input = new PatternMatcherInput(text);
+    List<String> urls = new ArrayList<String>();
+    while (matcher.contains(input, pattern)) {
+      urls.add(matcher.getMatch().group(0));
+    }
+    return urls;
+  }
+
+  private static List<String> getUrls(String text) {
+    List<String> urls = new ArrayList<String>();
+    for (Outlink outlink : OutlinkExtractor.getOutlinks(text, conf)) {
+      urls.add(outlink.getToUrl());
+    }
+    return urls;
+  }
+
+  private static String repeat(String s, int n) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < n; i++) {
+      sb.append(s);
+    }
+    return sb.toString();
+  }
+
+  public void testSameAsRegex() throws Exception {
+    String[] texts = {
+      "mailto:a@b.c, 1http://x.y/%41%4g#f%20 +ftp:/ a:b:c js:%zz x.y-z:/#a",
+      "see <http://a.b/c?d=e&f=g#h>; (https://x.y/z).",
+      repeat("a", 130) + "://long.scheme/ " + repeat("b1", 70) + ":x",
+      "http://a/" + repeat("p", 400) + "#" + repeat("f", 1200),
+      "http://a/" + repeat("%20", 340) + " and x:%41" + repeat("/", 500),
+      "\u00e9http://caf\u00e9.fr/ \u0000a:b",
+    };
+    for (String text : texts) {
+      assertEquals(text, getRegexUrls(text), getUrls(text));
+    }
+    String alphabet = "aZ9:/%fG#.-+ @?=\u00e9\n";
+    Random random = new Random(1);
+    for (int i = 0; i < 1000; i++) {
+      StringBuilder sb = new StringBuilder();
+      int length = random.nextInt(300);
+      for (int j = 0; j < length; j++) {
+        sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+      }
+      String text = sb.toString();
+      assertEquals(text, getRegexUrls(text), getUrls(text));
+    }
+  }
+
+  public void testLinearTime() {
+    // parasitic for a backtracking matcher
+    String text = repeat("a+", 200000) + repeat(":a%4", 100000);
+    long start = System.currentTimeMillis();
+    assertEquals(0, OutlinkExtractor.getOutlinks(text, conf).length);
+    assertTrue(System.currentTimeMillis() - start < 5000);
+  }
 }
@@ -0,0 +1,140 @@
+package org.apache.nutchbase.crawl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.io.BatchOperation;
+import org.apache.hadoop.hbase.io.BatchUpdate;
+import org.apache.hadoop.hbase.io.Cell;
+import org.apache.hadoop.hbase.io.HbaseMapWritable;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.io.RowResult;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.nutch.crawl.Inlink;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.nutchbase.util.hbase.RowPart;
+import org.apache.nutchbase.util.hbase.TableColumns;
+
+import junit.framework.TestCase;
+
+public class TestCrawlCycleHbase extends TestCase {
+
+  private static final String A = "http://a.com/";
+  private static final String OLD = "http://old.com/";
+  private static final byte[] B = Bytes.toBytes("com.b:http/");
+  private static final byte[] C = Bytes.toBytes("com.c:http/");
+
+  /** Reads the stored rows from a map instead of the webtable, with the
+   * columns the reducer asks the webtable for. */
+  private static class CrawlCycle extends CrawlCycleHbase {
+    final Map<String, RowResult> stored = new HashMap<String, RowResult>();
+
+    @Override
+    protected RowResult[] getRows(List<ImmutableBytesWritable> keys) {
+      RowResult[] rows = new RowResult[keys.size()];
+      for (int i = 0; i < rows.length; i++) {
+        RowResult row = stored.get(Bytes.toString(keys.get(i).get()));
+        if (row == null) {
+          continue;
+        }
+        HbaseMapWritable<byte[], Cell> cells =
+          new HbaseMapWritable<byte[], Cell>();
+        for (Map.Entry<byte[], Cell> e : row.entrySet()) {
+          String family = Bytes.toString(e.getKey());
+          family = family.substring(0, family.indexOf(':') + 1);
+          if (UpdateTable.DeltaUpdateMapReduce.ROW_COLUMNS.contains(family)) {
+            cells.put(e.getKey(), e.getValue());
+          }
+        }
+        rows[i] = new RowResult(row.getRow(), cells);
+      }
+      return rows;
+    }
+  }
+
+  private static class Collector
+  implements OutputCollector<ImmutableBytesWritable, BatchUpdate> {
+    final Map<String, BatchUpdate> updates =
+      new HashMap<String, BatchUpdate>();
+
+    public void collect(ImmutableBytesWritable key, BatchUpdate value) {
+      updates.put(Bytes.toString(key.get()), value);
+    }
+  }
+
+  /** A row fetched in an earlier round. */
+  private static RowResult fetchedRow(byte[] rowId) {
+    HbaseMapWritable<byte[], Cell> cells = new HbaseMapWritable<byte[], Cell>();
+    cells.put(TableColumns.STATUS,
+              new Cell(new byte[] { CrawlDatumHbase.STATUS_FETCHED }, 1L));
+    cells.put(TableColumns.FETCH_TIME, new Cell(Bytes.toBytes(1000L), 1L));
+    cells.put(TableColumns.FETCH_INTERVAL, new Cell(Bytes.toBytes(3600), 1L));
+    cells.put(TableColumns.SCORE, new Cell(Bytes.toBytes(5f), 1L));
+    cells.put(Bytes.toBytes(TableColumns.INLINKS_STR + OLD),
+              new Cell(Bytes.toBytes("old"), 1L));
+    return new RowResult(rowId, cells);
+  }
+
+  private static RowPart inlinkFrom(byte[] rowId, String url) {
+    RowPart row = new RowPart(rowId);
+    row.addInlink(new Inlink(url, "anchor"));
+    return row;
+  }
+
+  private static Map<String, BatchOperation> ops(BatchUpdate update) {
+    Map<String, BatchOperation> ops = new HashMap<String, BatchOperation>();
+    for (BatchOperation op : update) {
+      ops.put(Bytes.toString(op.getColumn()), op);
+    }
+    return ops;
+  }
+
+  public void testSecondRound() throws Exception {
+    CrawlCycle cycle = new CrawlCycle();
+    cycle.configure(new JobConf(NutchConfiguration.create()));
+    cycle.stored.put(Bytes.toString(B), fetchedRow(B));
+    Collector output = new Collector();
+
+    reduce(cycle, B, inlinkFrom(B, A), output);
+    reduce(cycle, C, inlinkFrom(C, A), output);
+    // the rows are only read and written in batches
+    assertTrue(output.updates.isEmpty());
+    cycle.close();
+
+    // the stored row is kept, the inlink is added to the stored ones
+    Map<String, BatchOperation> ops = ops(output.updates.get(Bytes.toString(B)));
+    assertFalse(ops.containsKey(TableColumns.STATUS_STR));
+    assertFalse(ops.containsKey(TableColumns.FETCH_TIME_STR));
+    assertFalse(ops.containsKey(TableColumns.FETCH_INTERVAL_STR));
+    assertFalse(ops.containsKey(TableColumns.SCORE_STR));
+    assertFalse(ops.containsKey(TableColumns.INLINKS_STR + OLD));
+    for (Map.Entry<String, BatchOperation> e : ops.entrySet()) {
+      if (e.getKey().startsWith(TableColumns.INLINKS_STR)) {
+        assertTrue(e.getKey(), e.getValue().isPut());
+      }
+    }
+    assertTrue(ops.containsKey(TableColumns.INLINKS_STR + A));
+
+    // the absent row is created
+    ops = ops(output.updates.get(Bytes.toString(C)));
+    BatchOperation status = ops.get(TableColumns.STATUS_STR);
+    assertNotNull(status);
+    assertEquals(CrawlDatumHbase.STATUS_UNFETCHED, status.getValue()[0]);
+    assertTrue(ops.containsKey(TableColumns.INLINKS_STR + A));
+  }
+
+  private static void reduce(CrawlCycleHbase cycle, byte[] rowId,
+                             RowPart value, Collector output)
+  throws IOException {
+    List<RowPart> values = new ArrayList<RowPart>(Collections.singleton(value));
+    cycle.reduce(new ImmutableBytesWritable(rowId), values.iterator(), output,
+                 Reporter.NULL);
+  }
+}
@@ -0,0 +1,38 @@
+package org.apache.nutchbase.crawl;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.nutchbase.crawl.GeneratorHbase.Candidate;
+import org.apache.nutchbase.crawl.GeneratorHbase.CandidateHeap;
+import org.apache.nutchbase.crawl.GeneratorHbase.SelectorEntryHbase;
+import org.apache.nutchbase.util.hbase.RowPart;
+
+import junit.framework.TestCase;
+
+public class TestGeneratorHbase extends TestCase {
+
+  private static Candidate candidate(float score) {
+    return new Candidate(new SelectorEntryHbase("com.a", score),
+                         new RowPart(Bytes.toBytes("com.a:http/")));
+  }
+
+  public void testLimit() throws Exception {
+    // topN smaller than the number of reducers
+    assertEquals(1, GeneratorHbase.getLimit(3, 10));
+    assertEquals(2, GeneratorHbase.getLimit(15, 10));
+    assertEquals(10, GeneratorHbase.getLimit(100, 10));
+    assertEquals(Long.MAX_VALUE, GeneratorHbase.getLimit(Long.MAX_VALUE, 10));
+  }
+
+  public void testEmptyHeap() throws Exception {
+    CandidateHeap heap = new CandidateHeap(0);
+    assertFalse(heap.accepts(candidate(1f)));
+
+    heap = new CandidateHeap(1);
+    assertTrue(heap.accepts(candidate(1f)));
+    Candidate c = candidate(1f);
+    heap.queue.add(c);
+    heap.live++;
+    assertFalse(heap.accepts(candidate(0.5f)));
+    assertTrue(heap.accepts(candidate(2f)));
+  }
+}
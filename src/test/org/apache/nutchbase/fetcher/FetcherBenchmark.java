@@ -0,0 +1,337 @@
+package org.apache.nutchbase.fetcher;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.io.Cell;
+import org.apache.hadoop.hbase.io.HbaseMapWritable;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.hbase.io.RowResult;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.nutch.crawl.CrawlDatum;
+import org.apache.nutch.crawl.NutchWritable;
+import org.apache.nutch.fetcher.Fetcher;
+import org.apache.nutch.metadata.Nutch;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.nutchbase.crawl.CrawlDatumHbase;
+import org.apache.nutchbase.crawl.GeneratorHbase;
+import org.apache.nutchbase.util.hbase.RowPart;
+import org.apache.nutchbase.util.hbase.TableColumns;
+import org.apache.nutchbase.util.hbase.TableUtil;
+
+/**
+ * Measures the throughput of a fetcher against a {@link SimulatedWeb}. The
+ * map task of {@link FetcherHbase}, or of the Nutch {@link Fetcher}, is run
+ * in-process on generated urls of the simulated hosts, with the queueing,
+ * politeness and protocol plugin of a real fetch; only the input and output
+ * of the task are simulated. The same options and seed give the same urls
+ * and answers, so that runs before and after a change can be compared.
+ *
+ * <p>Reported are pages and bytes per second, the utilization of the
+ * fetcher threads (the time they spent waiting for the server, over their
+ * total time) and the politeness as seen by the server. The protocol plugin
+ * must be built, and reachable through <code>plugin.folders</code>.
+ *
+ * <p>Usage: FetcherBenchmark [-fetcher hbase|nutch] [-protocol plugin]
+ * [-hosts n] [-pages n] [-threads n] [-threadsPerHost n] [-latency ms]
+ * [-distribution constant|uniform|exponential] [-pageSize bytes] [-robots f]
+ * [-redirects f] [-errors f] [-gzip f] [-delay seconds] [-seed n] [-port n]
+ */
+public class FetcherBenchmark {
+
+  /** Keeps the counters and the last status of the task. */
+  private static class BenchmarkReporter implements Reporter {
+    final Counters counters = new Counters();
+    volatile String status = "";
+
+    public void setStatus(String status) {
+      this.status = status;
+    }
+
+    public Counters.Counter getCounter(String group, String name) {
+      return counters.findCounter(group, name);
+    }
+
+    public void incrCounter(Enum key, long amount) {
+      counters.incrCounter(key, amount);
+    }
+
+    public void incrCounter(String group, String name, long amount) {
+      counters.incrCounter(group, name, amount);
+    }
+
+    public InputSplit getInputSplit() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void progress() {
+    }
+  }
+
+  /** Counts the records written by the task. */
+  private static class CountingCollector<K, V>
+  implements OutputCollector<K, V> {
+    final AtomicLong records = new AtomicLong();
+
+    public void collect(K key, V value) {
+      records.incrementAndGet();
+    }
+  }
+
+  /** Reads urls as rows marked for fetching by the generator. */
+  private static class RowReader
+  implements RecordReader<ImmutableBytesWritable, RowResult> {
+    private final Iterator<String> urls;
+    private final DataOutputBuffer out = new DataOutputBuffer();
+    private final DataInputBuffer in = new DataInputBuffer();
+    private int pos;
+
+    RowReader(List<String> urls) {
+      this.urls = urls.iterator();
+    }
+
+    public synchronized boolean next(ImmutableBytesWritable key,
+        RowResult value) throws IOException {
+      if (!urls.hasNext()) {
+        return false;
+      }
+      final byte[] row = Bytes.toBytes(TableUtil.reverseUrl(urls.next()));
+      final HbaseMapWritable<byte[], Cell> cells =
+        new HbaseMapWritable<byte[], Cell>();
+      final long now = System.currentTimeMillis();
+      cells.put(TableColumns.STATUS,
+                new Cell(new byte[] { CrawlDatumHbase.STATUS_UNFETCHED }, now));
+      cells.put(TableColumns.FETCH_TIME, new Cell(Bytes.toBytes(now), now));
+      cells.put(Bytes.toBytes(TableColumns.METADATA_STR
+                              + GeneratorHbase.TMP_FETCH_MARK),
+                new Cell(TableUtil.YES_VAL, now));
+      // RowResult has no setters, it is filled the way the framework does
+      out.reset();
+      new RowResult(row, cells).write(out);
+      in.reset(out.getData(), out.getLength());
+      value.readFields(in);
+      key.set(row);
+      pos++;
+      return true;
+    }
+
+    public ImmutableBytesWritable createKey() {
+      return new ImmutableBytesWritable();
+    }
+
+    public RowResult createValue() {
+      return new RowResult();
+    }
+
+    public synchronized long getPos() {
+      return pos;
+    }
+
+    public void close() {
+    }
+
+    public float getProgress() {
+      return 0;
+    }
+  }
+
+  /** Reads urls as CrawlDatum-s of the Nutch fetch list. */
+  private static class DatumReader implements RecordReader<Text, CrawlDatum> {
+    private final Iterator<String> urls;
+    private int pos;
+
+    DatumReader(List<String> urls) {
+      this.urls = urls.iterator();
+    }
+
+    public synchronized boolean next(Text key, CrawlDatum value) {
+      if (!urls.hasNext()) {
+        return false;
+      }
+      key.set(urls.next());
+      value.set(new CrawlDatum(CrawlDatum.STATUS_DB_UNFETCHED, 2592000));
+      pos++;
+      return true;
+    }
+
+    public Text createKey() {
+      return new Text();
+    }
+
+    public CrawlDatum createValue() {
+      return new CrawlDatum();
+    }
+
+    public synchronized long getPos() {
+      return pos;
+    }
+
+    public void close() {
+    }
+
+    public float getProgress() {
+      return 0;
+    }
+  }
+
+  private static void usage() {
+    System.err.println("Usage: FetcherBenchmark [-fetcher hbase|nutch] "
+        + "[-protocol plugin] [-hosts n] [-pages n] [-threads n] "
+        + "[-threadsPerHost n] [-latency ms] [-distribution constant|uniform|exponential] "
+        + "[-pageSize bytes] [-robots f] [-redirects f] [-errors f] "
+        + "[-gzip f] [-delay seconds] [-seed n] [-port n]");
+    System.exit(-1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    final SimulatedWeb.Profile profile = new SimulatedWeb.Profile();
+    String fetcherName = "hbase";
+    String protocol = null;
+    int pagesPerHost = 5;
+    int threads = 100;
+    int threadsPerHost = 1;
+    float delay = 1.0f;
+    int port = 47520;
+    for (int i = 0; i < args.length; i++) {
+      if (i == args.length - 1) {
+        usage();
+      }
+      if ("-fetcher".equals(args[i])) {
+        fetcherName = args[++i];
+      } else if ("-protocol".equals(args[i])) {
+        protocol = args[++i];
+      } else if ("-hosts".equals(args[i])) {
+        profile.hosts = Integer.parseInt(args[++i]);
+      } else if ("-pages".equals(args[i])) {
+        pagesPerHost = Integer.parseInt(args[++i]);
+      } else if ("-threads".equals(args[i])) {
+        threads = Integer.parseInt(args[++i]);
+      } else if ("-threadsPerHost".equals(args[i])) {
+        threadsPerHost = Integer.parseInt(args[++i]);
+      } else if ("-latency".equals(args[i])) {
+        profile.latency = Long.parseLong(args[++i]);
+      } else if ("-distribution".equals(args[i])) {
+        profile.latencyDistribution =
+          SimulatedWeb.Distribution.valueOf(args[++i].toUpperCase());
+      } else if ("-pageSize".equals(args[i])) {
+        profile.pageSize = Integer.parseInt(args[++i]);
+      } else if ("-robots".equals(args[i])) {
+        profile.robots = Double.parseDouble(args[++i]);
+      } else if ("-redirects".equals(args[i])) {
+        profile.redirects = Double.parseDouble(args[++i]);
+      } else if ("-errors".equals(args[i])) {
+        profile.errors = Double.parseDouble(args[++i]);
+      } else if ("-gzip".equals(args[i])) {
+        profile.gzip = Double.parseDouble(args[++i]);
+      } else if ("-delay".equals(args[i])) {
+        delay = Float.parseFloat(args[++i]);
+      } else if ("-seed".equals(args[i])) {
+        profile.seed = Long.parseLong(args[++i]);
+      } else if ("-port".equals(args[i])) {
+        port = Integer.parseInt(args[++i]);
+      } else {
+        usage();
+      }
+    }
+    final boolean hbase = "hbase".equals(fetcherName);
+    if (protocol == null) {
+      protocol = hbase ? "protocol-httphbase" : "protocol-http";
+    }
+
+    final Configuration conf = NutchConfiguration.create();
+    conf.set("plugin.includes", protocol);
+    conf.set("http.agent.name", "FetcherBenchmark");
+    conf.set("http.robots.agents", "FetcherBenchmark,*");
+    conf.set("http.proxy.host", "127.0.0.1");
+    conf.setInt("http.proxy.port", port);
+    conf.setInt("fetcher.threads.fetch", threads);
+    conf.setInt("fetcher.threads.per.host", threadsPerHost);
+    // simulated hosts are only known to the proxy
+    conf.setBoolean("fetcher.threads.per.host.by.ip", false);
+    conf.set("fetcher.server.delay", Float.toString(delay));
+    conf.setBoolean("fetcher.parse", false);
+
+    if (hbase && PolitenessController.isEnabled(conf)) {
+      threadsPerHost = Math.min(threadsPerHost,
+          conf.getInt(PolitenessController.MAX_THREADS, 4));
+    }
+
+    final SimulatedWeb web = new SimulatedWeb(profile, port, threads + 16);
+    web.setExpectedPoliteness((long) (delay * 1000), threadsPerHost);
+    final List<String> urls = web.getUrls(pagesPerHost);
+    web.start();
+
+    final BenchmarkReporter reporter = new BenchmarkReporter();
+    final long output;
+    final long start = System.currentTimeMillis();
+    try {
+      if (hbase) {
+        final FetcherHbase fetcher = new FetcherHbase();
+        fetcher.setConf(conf);
+        final CountingCollector<ImmutableBytesWritable, RowPart> collector =
+          new CountingCollector<ImmutableBytesWritable, RowPart>();
+        fetcher.run(new RowReader(urls), collector, reporter);
+        output = collector.records.get();
+      } else {
+        final JobConf job = new JobConf(conf);
+        job.set(Nutch.SEGMENT_NAME_KEY, "benchmark");
+        final Fetcher fetcher = new Fetcher();
+        fetcher.configure(job);
+        final CountingCollector<Text, NutchWritable> collector =
+          new CountingCollector<Text, NutchWritable>();
+        fetcher.run(new DatumReader(urls), collector, reporter);
+        output = collector.records.get();
+      }
+    } finally {
+      web.stop();
+    }
+    final long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+
+    final Map<String, String> report = new TreeMap<String, String>();
+    System.out.println("fetcher: " + fetcherName + ", protocol: " + protocol
+        + ", threads: " + threads + ", hosts: " + profile.hosts
+        + ", urls: " + urls.size() + ", latency: " + profile.latency
+        + "ms " + profile.latencyDistribution.toString().toLowerCase()
+        + ", delay: " + delay + "s, seed: " + profile.seed);
+    System.out.println("server:      " + web);
+    System.out.println("time:        " + elapsed + " ms, "
+        + (urls.size() * 1000L / elapsed) + " urls/s, "
+        + (web.getPageCount() * 1000L / elapsed) + " pages/s, "
+        + (web.getBytes() * 1000L / elapsed / 1024) + " KB/s");
+    System.out.println("threads:     "
+        + (100L * web.getBusyTime() / ((long) threads * elapsed))
+        + "% utilization (time waiting for the server)");
+    System.out.println("politeness:  " + web.getConcurrencyViolations()
+        + " hosts with more than " + threadsPerHost + " requests at once "
+        + "(max " + web.getMaxConcurrency() + "), "
+        + web.getDelayViolations() + " requests too soon (min gap "
+        + web.getMinGap() + " ms), " + web.getDisallowedCount()
+        + " disallowed pages fetched");
+    System.out.println("task:        " + output + " records written, status: "
+        + reporter.status);
+    for (final Counters.Group group : reporter.counters) {
+      for (final Counters.Counter counter : group) {
+        report.put(group.getDisplayName() + "." + counter.getDisplayName(),
+                   Long.toString(counter.getCounter()));
+      }
+    }
+    for (final Map.Entry<String, String> e : report.entrySet()) {
+      System.out.println("counter:     " + e.getKey() + " = " + e.getValue());
+    }
+    System.exit(0);
+  }
+}
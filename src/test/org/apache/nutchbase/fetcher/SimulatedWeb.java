@@ -0,0 +1,472 @@
+package org.apache.nutchbase.fetcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.mortbay.http.HttpContext;
+import org.mortbay.http.HttpRequest;
+import org.mortbay.http.HttpResponse;
+import org.mortbay.http.SocketListener;
+import org.mortbay.http.handler.AbstractHttpHandler;
+import org.mortbay.jetty.Server;
+
+/**
+ * Simulates a web of many hosts with an embedded Jetty server, to measure
+ * fetchers without crawling the live web. The server is an HTTP proxy on
+ * the loopback interface: a fetcher that uses it as its proxy may fetch
+ * <code>http://host<i>N</i>.sim/...</code> for any host number below
+ * {@link Profile#hosts}, without resolving host names.
+ *
+ * <p>What a host serves is drawn from a {@link Profile}: latency, page
+ * sizes, robots.txt with a disallowed <code>/private/</code> directory and
+ * a Crawl-Delay, redirects, server errors, missing pages and gzip. Every
+ * draw is a function of the seed, the host and the path, so that the same
+ * urls get the same answers in every run, whatever the order of the
+ * requests.
+ *
+ * <p>The server also checks the politeness of the fetcher: it records for
+ * each host how many requests were in progress at once, and how many
+ * started sooner after the previous one than the expected delay. Requests
+ * of robots.txt are not checked, they are made right before a fetch.
+ */
+public class SimulatedWeb {
+
+  /** Host name suffix of the simulated hosts. */
+  public static final String DOMAIN = ".sim";
+
+  /** Directory disallowed by the robots.txt of hosts that have one. */
+  public static final String PRIVATE_DIR = "/private/";
+
+  /** How the latency of requests is distributed around its mean. */
+  public enum Distribution { CONSTANT, UNIFORM, EXPONENTIAL }
+
+  /** What the simulated hosts serve. */
+  public static class Profile {
+    /** Number of hosts. */
+    public int hosts = 1000;
+    /** Mean time to answer a request, in milliseconds. */
+    public long latency = 100;
+    public Distribution latencyDistribution = Distribution.EXPONENTIAL;
+    /** Fraction of hosts that are slower than the others ... */
+    public double slowHosts = 0.05;
+    /** ... by this factor. */
+    public double slowFactor = 10;
+    /** Mean page size, in bytes. Sizes are exponentially distributed. */
+    public int pageSize = 16384;
+    /** Fraction of hosts with a robots.txt. */
+    public double robots = 0.5;
+    /** Fraction of the hosts with a robots.txt that set a Crawl-Delay. */
+    public double crawlDelayHosts = 0.1;
+    /** Crawl-Delay of those hosts, in seconds. */
+    public int crawlDelay = 2;
+    /** Fraction of pages redirected to another page of their host. */
+    public double redirects = 0.05;
+    /** Fraction of requests answered with a server error. */
+    public double errors = 0.02;
+    /** Fraction of pages that do not exist. */
+    public double notFound = 0.03;
+    /** Fraction of hosts that gzip their pages when allowed to. */
+    public double gzip = 0.3;
+    public long seed = 0;
+  }
+
+  /** Politeness of the fetcher towards a host, as seen by the server. */
+  private static class HostStats {
+    int inProgress;
+    int maxInProgress;
+    long lastEnd;
+    long minGap = Long.MAX_VALUE;
+    int tooSoon;
+    int requests;
+  }
+
+  private final Profile profile;
+  private final int port;
+  private final Server server;
+  private final HostStats[] hostStats;
+  private final byte[] text;
+
+  private volatile long expectedDelay;
+  private volatile int expectedThreads = 1;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong robotsRequests = new AtomicLong();
+  private final AtomicLong pages = new AtomicLong();
+  private final AtomicLong redirected = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong missing = new AtomicLong();
+  private final AtomicLong disallowed = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong busyTime = new AtomicLong();
+
+  /**
+   * @param profile What hosts serve
+   * @param port Port of the proxy, on 127.0.0.1
+   * @param threads Maximum number of requests served at once
+   */
+  public SimulatedWeb(Profile profile, int port, int threads)
+  throws IOException {
+    this.profile = profile;
+    this.port = port;
+    hostStats = new HostStats[profile.hosts];
+    for (int i = 0; i < hostStats.length; i++) {
+      hostStats[i] = new HostStats();
+    }
+    text = makeText(new Random(profile.seed), 64 * 1024);
+
+    server = new Server();
+    final SocketListener listener = new SocketListener();
+    listener.setHost("127.0.0.1");
+    listener.setPort(port);
+    listener.setMinThreads(Math.min(threads, 8));
+    listener.setMaxThreads(threads);
+    server.addListener(listener);
+    final HttpContext context = new HttpContext();
+    context.setContextPath("/");
+    context.addHandler(new Handler());
+    server.addContext(context);
+  }
+
+  private static byte[] makeText(Random r, int length) {
+    final String[] words = { "fetch", "crawl", "page", "host", "link",
+        "table", "row", "queue", "thread", "delay", "robots", "index" };
+    final StringBuilder buf = new StringBuilder(length + 16);
+    while (buf.length() < length) {
+      buf.append(words[r.nextInt(words.length)]);
+      buf.append(r.nextInt(10) == 0 ? ".\n" : " ");
+    }
+    return buf.toString().getBytes();
+  }
+
+  public void start() throws Exception {
+    server.start();
+  }
+
+  public void stop() throws Exception {
+    server.stop();
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  /**
+   * Sets the politeness the fetcher is expected to keep: the delay between
+   * the requests to a host, in milliseconds, when it uses a single thread
+   * per host, and the number of threads per host.
+   */
+  public void setExpectedPoliteness(long delay, int threads) {
+    expectedDelay = delay;
+    expectedThreads = threads;
+  }
+
+  public static String getHostName(int host) {
+    return "host" + host + DOMAIN;
+  }
+
+  /**
+   * Returns <code>pagesPerHost</code> urls of every host, in the order of
+   * the pages: the first page of all hosts, then the second, and so on.
+   * Every tenth page is in {@link #PRIVATE_DIR}.
+   */
+  public List<String> getUrls(int pagesPerHost) {
+    final List<String> urls = new ArrayList<String>();
+    for (int page = 0; page < pagesPerHost; page++) {
+      for (int host = 0; host < profile.hosts; host++) {
+        urls.add("http://" + getHostName(host)
+                 + (page % 10 == 9 ? PRIVATE_DIR : "/") + "page" + page
+                 + ".html");
+      }
+    }
+    return urls;
+  }
+
+  /** Returns a number in [0, 1) that depends on its arguments only. */
+  private double draw(long host, String path, int salt) {
+    long h = profile.seed * 0x9E3779B97F4A7C15L + host;
+    h = h * 31 + path.hashCode();
+    h = h * 31 + salt;
+    // finalizer of MurmurHash3
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb93e185a63b9L;
+    h ^= h >>> 33;
+    return (h >>> 11) * 0x1.0p-53;
+  }
+
+  private boolean hasRobots(int host) {
+    return draw(host, "", 1) < profile.robots;
+  }
+
+  /** Returns the Crawl-Delay of a host, in milliseconds, or 0. */
+  public long getCrawlDelay(int host) {
+    if (hasRobots(host) && draw(host, "", 2) < profile.crawlDelayHosts) {
+      return profile.crawlDelay * 1000L;
+    }
+    return 0;
+  }
+
+  private long getLatency(int host, String path) {
+    double latency = profile.latency;
+    if (draw(host, "", 3) < profile.slowHosts) {
+      latency *= profile.slowFactor;
+    }
+    final double d = draw(host, path, 4);
+    switch (profile.latencyDistribution) {
+    case UNIFORM:
+      return (long) (2 * latency * d);
+    case EXPONENTIAL:
+      return (long) (-latency * Math.log(1 - d));
+    default:
+      return (long) latency;
+    }
+  }
+
+  private int getPageSize(int host, String path) {
+    final double d = draw(host, path, 5);
+    final long size = (long) (-profile.pageSize * Math.log(1 - d));
+    return (int) Math.max(256, Math.min(size, 16L * profile.pageSize));
+  }
+
+  /** Returns the host number of a host name, or -1. */
+  private int getHost(String name) {
+    if (name == null || !name.startsWith("host") || !name.endsWith(DOMAIN)) {
+      return -1;
+    }
+    try {
+      final int host = Integer.parseInt(
+          name.substring(4, name.length() - DOMAIN.length()));
+      return host < profile.hosts ? host : -1;
+    } catch (final NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private void started(int host, long now) {
+    final HostStats stats = hostStats[host];
+    synchronized (stats) {
+      stats.requests++;
+      stats.inProgress++;
+      stats.maxInProgress = Math.max(stats.maxInProgress, stats.inProgress);
+      if (stats.lastEnd > 0) {
+        final long gap = now - stats.lastEnd;
+        stats.minGap = Math.min(stats.minGap, gap);
+        long delay = expectedThreads > 1 ? 0 : expectedDelay;
+        delay = Math.max(delay, getCrawlDelay(host));
+        if (stats.inProgress == 1 && gap < delay) {
+          stats.tooSoon++;
+        }
+      }
+    }
+  }
+
+  private void ended(int host, long now) {
+    final HostStats stats = hostStats[host];
+    synchronized (stats) {
+      stats.inProgress--;
+      stats.lastEnd = now;
+    }
+  }
+
+  private class Handler extends AbstractHttpHandler {
+    public void handle(String pathInContext, String pathParams,
+        HttpRequest request, HttpResponse response) throws IOException {
+      requests.incrementAndGet();
+      final int host = getHost(request.getHost());
+      if (host < 0) {
+        response.sendError(HttpResponse.__502_Bad_Gateway);
+        request.setHandled(true);
+        return;
+      }
+      final String path = request.getPath();
+      final boolean isRobots = "/robots.txt".equals(path);
+      final long start = System.currentTimeMillis();
+      if (isRobots) {
+        robotsRequests.incrementAndGet();
+      } else {
+        started(host, start);
+      }
+      try {
+        Thread.sleep(getLatency(host, path));
+        serve(host, path, isRobots, request, response);
+      } catch (final InterruptedException e) {
+        response.sendError(HttpResponse.__503_Service_Unavailable);
+      } finally {
+        final long end = System.currentTimeMillis();
+        busyTime.addAndGet(end - start);
+        if (!isRobots) {
+          ended(host, end);
+        }
+        request.setHandled(true);
+      }
+    }
+
+    private void serve(int host, String path, boolean isRobots,
+        HttpRequest request, HttpResponse response) throws IOException {
+      if (isRobots) {
+        if (!hasRobots(host)) {
+          missing.incrementAndGet();
+          response.sendError(HttpResponse.__404_Not_Found);
+          return;
+        }
+        String robots = "User-agent: *\nDisallow: " + PRIVATE_DIR + "\n";
+        final long crawlDelay = getCrawlDelay(host);
+        if (crawlDelay > 0) {
+          robots += "Crawl-delay: " + (crawlDelay / 1000) + "\n";
+        }
+        write(response, "text/plain", robots.getBytes(), false);
+        return;
+      }
+
+      if (path.startsWith(PRIVATE_DIR) && hasRobots(host)) {
+        disallowed.incrementAndGet();
+      }
+      if (draw(host, path, 6) < profile.errors) {
+        failed.incrementAndGet();
+        response.sendError(HttpResponse.__500_Internal_Server_Error);
+        return;
+      }
+      if (draw(host, path, 7) < profile.notFound) {
+        missing.incrementAndGet();
+        response.sendError(HttpResponse.__404_Not_Found);
+        return;
+      }
+      if (!path.endsWith("-r") && draw(host, path, 8) < profile.redirects) {
+        redirected.incrementAndGet();
+        response.setStatus(HttpResponse.__302_Moved_Temporarily);
+        response.setField("Location",
+                          "http://" + getHostName(host) + path + "-r");
+        response.setContentLength(0);
+        return;
+      }
+
+      final int size = getPageSize(host, path);
+      final ByteArrayOutputStream page = new ByteArrayOutputStream(size + 64);
+      page.write(("<html><head><title>" + path
+                  + "</title></head><body><p>").getBytes());
+      final int offset = (int) (draw(host, path, 9) * text.length);
+      for (int left = size; left > 0; ) {
+        final int start = (offset + size - left) % text.length;
+        final int n = Math.min(left, text.length - start);
+        page.write(text, start, n);
+        left -= n;
+      }
+      page.write("</p></body></html>".getBytes());
+
+      final String accept = request.getField("Accept-Encoding");
+      final boolean gzip = accept != null && accept.indexOf("gzip") >= 0
+        && draw(host, "", 10) < profile.gzip;
+      pages.incrementAndGet();
+      write(response, "text/html", page.toByteArray(), gzip);
+    }
+
+    private void write(HttpResponse response, String contentType,
+        byte[] body, boolean gzip) throws IOException {
+      if (gzip) {
+        final ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+        final GZIPOutputStream out = new GZIPOutputStream(zipped);
+        out.write(body);
+        out.close();
+        body = zipped.toByteArray();
+        response.setField("Content-Encoding", "gzip");
+      }
+      response.setContentType(contentType);
+      response.setContentLength(body.length);
+      final OutputStream out = response.getOutputStream();
+      out.write(body);
+      out.flush();
+      bytes.addAndGet(body.length);
+    }
+  }
+
+  /** Returns the number of requests, robots.txt included. */
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  public long getRobotsRequestCount() {
+    return robotsRequests.get();
+  }
+
+  /** Returns the number of pages served with their content. */
+  public long getPageCount() {
+    return pages.get();
+  }
+
+  /** Returns the number of bytes of content served. */
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  /** Returns the total time spent serving requests, in milliseconds. */
+  public long getBusyTime() {
+    return busyTime.get();
+  }
+
+  /** Returns the number of requests of pages disallowed by robots.txt. */
+  public long getDisallowedCount() {
+    return disallowed.get();
+  }
+
+  /** Returns the number of hosts that served too many requests at once. */
+  public int getConcurrencyViolations() {
+    int violations = 0;
+    for (final HostStats stats : hostStats) {
+      synchronized (stats) {
+        if (stats.maxInProgress > expectedThreads) {
+          violations++;
+        }
+      }
+    }
+    return violations;
+  }
+
+  /** Returns the number of requests that came too soon after the
+   * previous one of their host. */
+  public int getDelayViolations() {
+    int violations = 0;
+    for (final HostStats stats : hostStats) {
+      synchronized (stats) {
+        violations += stats.tooSoon;
+      }
+    }
+    return violations;
+  }
+
+  /** Returns the highest number of requests a host served at once. */
+  public int getMaxConcurrency() {
+    int max = 0;
+    for (final HostStats stats : hostStats) {
+      synchronized (stats) {
+        max = Math.max(max, stats.maxInProgress);
+      }
+    }
+    return max;
+  }
+
+  /** Returns the shortest time between two requests of a host, in
+   * milliseconds, or -1 if no host was requested twice. */
+  public long getMinGap() {
+    long min = Long.MAX_VALUE;
+    for (final HostStats stats : hostStats) {
+      synchronized (stats) {
+        min = Math.min(min, stats.minGap);
+      }
+    }
+    return min == Long.MAX_VALUE ? -1 : min;
+  }
+
+  @Override
+  public String toString() {
+    return "requests=" + requests + " (robots.txt " + robotsRequests
+      + "), pages=" + pages + ", redirects=" + redirected + ", errors="
+      + failed + ", notFound=" + missing + ", bytes=" + bytes;
+  }
+}
@@ -0,0 +1,133 @@
+package org.apache.nutchbase.fetcher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.nutch.util.NutchConfiguration;
+
+import junit.framework.TestCase;
+
+public class TestAsyncOutputCollector extends TestCase {
+
+  /** Collects into a list, slowly. */
+  private static class SlowCollector
+  implements OutputCollector<Integer, String> {
+    final List<Integer> keys =
+      Collections.synchronizedList(new ArrayList<Integer>());
+    int failAt = -1;
+    int crashAt = -1;
+
+    public void collect(Integer key, String value) throws IOException {
+      if (key.intValue() == failAt) {
+        throw new IOException("failed at " + key);
+      }
+      if (key.intValue() == crashAt) {
+        throw new IllegalStateException("crashed at " + key);
+      }
+      try {
+        Thread.sleep(1);
+      } catch (InterruptedException e) {
+        throw new IOException(e.toString());
+      }
+      keys.add(key);
+    }
+  }
+
+  private Configuration conf;
+
+  protected void setUp() {
+    conf = NutchConfiguration.create();
+    conf.setInt(AsyncOutputCollector.QUEUE_SIZE, 10);
+    conf.setInt(AsyncOutputCollector.BATCH_SIZE, 4);
+  }
+
+  public void testCollect() throws Exception {
+    final SlowCollector slow = new SlowCollector();
+    final AsyncOutputCollector<Integer, String> out =
+      new AsyncOutputCollector<Integer, String>(slow, conf);
+    final int producers = 4;
+    final int records = 50;
+    Thread[] threads = new Thread[producers];
+    for (int p = 0; p < producers; p++) {
+      final int base = p * records;
+      threads[p] = new Thread() {
+        public void run() {
+          try {
+            for (int i = 0; i < records; i++) {
+              out.collect(base + i, "value");
+            }
+          } catch (IOException e) {
+            fail(e.toString());
+          }
+        }
+      };
+      threads[p].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    out.close();
+
+    assertEquals(producers * records, slow.keys.size());
+    assertEquals(producers * records, out.getWrittenCount());
+    // records of a producer keep their order
+    int[] last = new int[producers];
+    java.util.Arrays.fill(last, -1);
+    for (int key : slow.keys) {
+      assertTrue(key > last[key / records]);
+      last[key / records] = key;
+    }
+    // the writer is slower than the producers
+    assertTrue(out.getBlockedCount() > 0);
+    assertTrue(out.getMaxQueueDepth() <= 10);
+    assertTrue(out.getBatchCount() < producers * records);
+  }
+
+  public void testError() throws Exception {
+    final SlowCollector slow = new SlowCollector();
+    slow.failAt = 5;
+    final AsyncOutputCollector<Integer, String> out =
+      new AsyncOutputCollector<Integer, String>(slow, conf);
+    try {
+      for (int i = 0; i < 1000; i++) {
+        out.collect(i, "value");
+      }
+      fail("no exception");
+    } catch (IOException e) {
+      assertEquals("failed at 5", e.getMessage());
+    }
+    try {
+      out.close();
+      fail("no exception");
+    } catch (IOException e) {
+      assertEquals("failed at 5", e.getMessage());
+    }
+  }
+
+  public void testRuntimeError() throws Exception {
+    final SlowCollector slow = new SlowCollector();
+    slow.crashAt = 5;
+    final AsyncOutputCollector<Integer, String> out =
+      new AsyncOutputCollector<Integer, String>(slow, conf);
+    // more records than the queue holds: the producer must not hang
+    try {
+      for (int i = 0; i < 1000; i++) {
+        out.collect(i, "value");
+      }
+      fail("no exception");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+      assertEquals("crashed at 5", e.getCause().getMessage());
+    }
+    try {
+      out.close();
+      fail("no exception");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+}
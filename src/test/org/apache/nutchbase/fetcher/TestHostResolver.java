@@ -0,0 +1,101 @@
+package org.apache.nutchbase.fetcher;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.util.NutchConfiguration;
+
+import junit.framework.TestCase;
+
+public class TestHostResolver extends TestCase {
+
+  private static final AtomicInteger calls = new AtomicInteger();
+
+  /** Resolves "*.good" hosts to 10.0.0.1, after a short delay. */
+  public static class StubResolver implements Resolver {
+    public InetAddress resolve(String host) throws UnknownHostException {
+      calls.incrementAndGet();
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        throw new UnknownHostException(host);
+      }
+      if (!host.endsWith(".good")) {
+        throw new UnknownHostException(host);
+      }
+      return InetAddress.getByAddress(host, new byte[] { 10, 0, 0, 1 });
+    }
+  }
+
+  private Configuration conf;
+
+  protected void setUp() {
+    calls.set(0);
+    conf = NutchConfiguration.create();
+    conf.setClass(HostResolver.RESOLVER_CLASS, StubResolver.class,
+                  Resolver.class);
+  }
+
+  public void testCache() throws Exception {
+    HostResolver resolver = new HostResolver(conf);
+    assertEquals("10.0.0.1",
+                 resolver.resolve("a.good").getHostAddress());
+    assertEquals("10.0.0.1",
+                 resolver.resolve("a.good").getHostAddress());
+    assertEquals(1, calls.get());
+    assertEquals(1, resolver.getHits());
+    assertEquals(1, resolver.getMisses());
+    assertTrue(resolver.getMeanLookupTime() >= 40);
+  }
+
+  public void testNegativeCache() throws Exception {
+    HostResolver resolver = new HostResolver(conf);
+    for (int i = 0; i < 2; i++) {
+      try {
+        resolver.resolve("a.bad");
+        fail();
+      } catch (UnknownHostException e) {
+        // expected
+      }
+    }
+    assertEquals(1, calls.get());
+    assertEquals(1, resolver.getNegativeHits());
+    assertEquals(1, resolver.getFailures());
+  }
+
+  public void testExpiry() throws Exception {
+    conf.setLong(HostResolver.CACHE_TTL, 0L);
+    HostResolver resolver = new HostResolver(conf);
+    resolver.resolve("a.good");
+    resolver.resolve("a.good");
+    assertEquals(2, calls.get());
+  }
+
+  public void testPrefetch() throws Exception {
+    conf.setInt(HostResolver.THREADS, 20);
+    HostResolver resolver = new HostResolver(conf);
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 20; i++) {
+      resolver.prefetch("h" + i + ".good");
+    }
+    for (int i = 0; i < 20; i++) {
+      resolver.resolve("h" + i + ".good");
+    }
+    // lookups ran in parallel
+    assertTrue(System.currentTimeMillis() - start < 20 * 50);
+    assertEquals(20, calls.get());
+  }
+
+  public void testBounded() throws Exception {
+    conf.setInt(HostResolver.CACHE_SIZE, 2);
+    HostResolver resolver = new HostResolver(conf);
+    resolver.resolve("a.good");
+    resolver.resolve("b.good");
+    resolver.resolve("c.good");
+    assertEquals(2, resolver.getCacheSize());
+    resolver.resolve("a.good");
+    assertEquals(4, calls.get());
+  }
+}
@@ -0,0 +1,63 @@
+package org.apache.nutchbase.fetcher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.nutchbase.crawl.CrawlDatumHbase;
+import org.apache.nutchbase.util.hbase.RowPart;
+import org.apache.nutchbase.util.hbase.TableUtil;
+
+import junit.framework.TestCase;
+
+public class TestParserPool extends TestCase {
+
+  private static class ListCollector
+  implements OutputCollector<ImmutableBytesWritable, RowPart> {
+    final List<RowPart> rows =
+      Collections.synchronizedList(new ArrayList<RowPart>());
+
+    public void collect(ImmutableBytesWritable key, RowPart row) {
+      rows.add(row);
+    }
+  }
+
+  private Configuration conf;
+
+  protected void setUp() {
+    conf = NutchConfiguration.create();
+    conf.setInt(ParserPool.THREADS, 2);
+    conf.setInt(ParserPool.QUEUE_SIZE, 2);
+  }
+
+  private static RowPart row(String url, byte status)
+  throws IOException {
+    final RowPart row = new RowPart(TableUtil.reverseUrl(url).getBytes());
+    row.setStatus(status);
+    row.setContent("<html></html>".getBytes());
+    row.setContentType("application/x-unknown");
+    return row;
+  }
+
+  private static void collect(ParserPool pool, RowPart row)
+  throws IOException {
+    pool.collect(new ImmutableBytesWritable(row.getRowId()), row);
+  }
+
+  public void testPassThrough() throws Exception {
+    final ListCollector out = new ListCollector();
+    final ParserPool pool = new ParserPool(out, conf);
+    collect(pool, row("http://a.com/", CrawlDatumHbase.STATUS_GONE));
+    collect(pool, row("http://b.com/", CrawlDatumHbase.STATUS_FETCHED));
+    // unmarked rows need no parse and are written by the calling thread
+    assertEquals(2, out.rows.size());
+    pool.close();
+    assertEquals(2, pool.getPassedCount());
+    assertEquals(0, pool.getParsedCount());
+  }
+}
@@ -0,0 +1,91 @@
+package org.apache.nutchbase.fetcher;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.util.NutchConfiguration;
+
+import junit.framework.TestCase;
+
+public class TestPolitenessController extends TestCase {
+
+  private PolitenessController controller;
+
+  protected void setUp() {
+    Configuration conf = NutchConfiguration.create();
+    conf.setInt(PolitenessController.MAX_THREADS, 4);
+    conf.setLong(PolitenessController.MAX_DELAY, 8000L);
+    conf.setLong(PolitenessController.TARGET_LATENCY, 1000L);
+    conf.setInt(PolitenessController.WINDOW, 5);
+    controller = new PolitenessController(conf);
+  }
+
+  private void fetch(PolitenessController.HostState state, int n,
+      boolean error, long time) {
+    for (int i = 0; i < n; i++) {
+      controller.record(state, error, time);
+    }
+  }
+
+  public void testRaiseUpToCap() {
+    PolitenessController.HostState state =
+      controller.newHostState(50, 1000L);
+    assertEquals(1, state.getThreads());
+    fetch(state, 5, false, 100L);
+    assertEquals(2, state.getThreads());
+    fetch(state, 100, false, 100L);
+    assertEquals(4, state.getThreads());
+    assertEquals(1000L, state.getDelay());
+
+    // never more than the fetcher allows
+    state = controller.newHostState(2, 1000L);
+    fetch(state, 100, false, 100L);
+    assertEquals(2, state.getThreads());
+  }
+
+  public void testBackOff() {
+    PolitenessController.HostState state =
+      controller.newHostState(50, 1000L);
+    fetch(state, 100, false, 100L);
+    assertEquals(4, state.getThreads());
+
+    // errors halve the threads, then double the delay up to the cap
+    fetch(state, 1, true, 100L);
+    assertEquals(2, state.getThreads());
+    fetch(state, 1, true, 100L);
+    assertEquals(1, state.getThreads());
+    fetch(state, 1, true, 100L);
+    assertEquals(2000L, state.getDelay());
+    fetch(state, 10, true, 100L);
+    assertEquals(8000L, state.getDelay());
+
+    // slow responses back off too
+    state = controller.newHostState(50, 0L);
+    fetch(state, 1, false, 5000L);
+    assertEquals(1000L, state.getDelay());
+  }
+
+  public void testRecovery() {
+    PolitenessController.HostState state =
+      controller.newHostState(50, 1000L);
+    fetch(state, 5, true, 100L);
+    assertEquals(8000L, state.getDelay());
+
+    // no speed up while the recent error rate is high
+    fetch(state, 5, false, 100L);
+    assertEquals(8000L, state.getDelay());
+
+    // then the delay comes down first, and the threads go up
+    fetch(state, 100, false, 100L);
+    assertEquals(1000L, state.getDelay());
+    assertTrue(state.getThreads() > 1);
+    assertTrue(controller.getSpedUpCount() > 0);
+  }
+
+  public void testCrawlDelay() {
+    PolitenessController.HostState state =
+      controller.newHostState(50, 1000L);
+    controller.setCrawlDelay(state, 5000L);
+    fetch(state, 100, false, 100L);
+    assertEquals(1, state.getThreads());
+    assertEquals(5000L, state.getDelay());
+  }
+}
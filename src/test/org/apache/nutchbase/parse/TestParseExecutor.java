@@ -0,0 +1,159 @@
+package org.apache.nutchbase.parse;
+
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.nutch.parse.Outlink;
+import org.apache.nutch.parse.ParseStatus;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.nutchbase.util.hbase.RowPart;
+
+import junit.framework.TestCase;
+
+public class TestParseExecutor extends TestCase {
+
+  /** A parser that sleeps for a while, and may ignore interrupts. */
+  private static class SleepingParser implements ParserHbase {
+    private final long sleep;
+    private final boolean stubborn;
+
+    SleepingParser(long sleep, boolean stubborn) {
+      this.sleep = sleep;
+      this.stubborn = stubborn;
+    }
+
+    public ParseHbase getParse(String url, RowPart row) {
+      row.putMeta("parsed", Bytes.toBytes("before"));
+      final long end = System.currentTimeMillis() + sleep;
+      long now;
+      while ((now = System.currentTimeMillis()) < end) {
+        try {
+          Thread.sleep(end - now);
+        } catch (InterruptedException e) {
+          if (!stubborn) {
+            return new ParseStatus(e).getEmptyParseHbase(null);
+          }
+        }
+      }
+      row.putMeta("parsed", Bytes.toBytes("after"));
+      return new ParseHbase("text", "title", new Outlink[0],
+                            ParseStatus.STATUS_SUCCESS);
+    }
+
+    public Set<String> getColumnSet() {
+      return EMPTY_COLUMNS;
+    }
+
+    public Configuration getConf() {
+      return null;
+    }
+
+    public void setConf(Configuration conf) {
+    }
+  }
+
+  private Configuration conf;
+  private RowPart row;
+
+  @Override
+  protected void setUp() throws Exception {
+    conf = NutchConfiguration.create();
+    conf.setInt(ParseExecutor.TIMEOUT, 1);
+    conf.setInt(ParseExecutor.THREADS, 1);
+    row = new RowPart(Bytes.toBytes("com.a:http/"));
+  }
+
+  public void testSuccess() throws Exception {
+    ParseExecutor executor = new ParseExecutor(conf);
+    ParseHbase parse = executor.parse(new SleepingParser(10, false),
+                                      "http://a.com/", row);
+    assertTrue(parse.getParseStatus().isSuccess());
+    assertEquals("text", parse.getText());
+    assertEquals(0, executor.getTimeoutCount());
+    // changes of the parser to its copy of the row are kept
+    assertEquals("after", row.getMetaAsString("parsed"));
+  }
+
+  /** Time spent waiting for a thread does not count against the budget. */
+  public void testWaitForThread() throws Exception {
+    final ParseExecutor executor = new ParseExecutor(conf);
+    final ParseHbase[] other = new ParseHbase[1];
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        other[0] = executor.parse(new SleepingParser(700, false),
+            "http://b.com/", new RowPart(Bytes.toBytes("com.b:http/")));
+      }
+    };
+    thread.start();
+    Thread.sleep(100);
+    ParseHbase parse = executor.parse(new SleepingParser(700, false),
+                                      "http://a.com/", row);
+    thread.join();
+    assertTrue(other[0].getParseStatus().isSuccess());
+    assertTrue(parse.getParseStatus().isSuccess());
+    assertEquals(0, executor.getTimeoutCount());
+  }
+
+  public void testMinThreads() throws Exception {
+    ParseExecutor.setMinThreads(conf, 4);
+    assertEquals(4, conf.getInt(ParseExecutor.THREADS, 0));
+    ParseExecutor.setMinThreads(conf, 2);
+    assertEquals(4, conf.getInt(ParseExecutor.THREADS, 0));
+  }
+
+  public void testTimeout() throws Exception {
+    ParseExecutor executor = new ParseExecutor(conf);
+    long start = System.currentTimeMillis();
+    ParseHbase parse = executor.parse(new SleepingParser(60000, false),
+                                      "http://a.com/", row);
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    assertEquals(ParseStatus.FAILED, parse.getParseStatus().getMajorCode());
+    assertEquals(ParseStatus.FAILED_TIMEOUT,
+                 parse.getParseStatus().getMinorCode());
+    assertEquals(1, executor.getTimeoutCount());
+    assertEquals(0, executor.getAbandonedCount());
+
+    // the interrupted parser gave its thread back
+    parse = executor.parse(new SleepingParser(10, false), "http://a.com/", row);
+    assertTrue(parse.getParseStatus().isSuccess());
+  }
+
+  public void testAbandoned() throws Exception {
+    ParseExecutor executor = new ParseExecutor(conf);
+    ParserHbase stuck = new SleepingParser(8000, true);
+    ParseHbase parse = executor.parse(stuck, "http://a.com/", row);
+    assertEquals(ParseStatus.FAILED_TIMEOUT,
+                 parse.getParseStatus().getMinorCode());
+    assertEquals(1, executor.getAbandonedCount());
+    assertEquals(1, executor.getCapacity());
+    assertTrue(executor.isAbandoned(stuck));
+    // the abandoned parser does not change the row of the caller
+    assertNull(row.getMeta("parsed"));
+
+    // the thread of the first stuck parser is replaced
+    parse = executor.parse(new SleepingParser(10, false), "http://a.com/", row);
+    assertTrue(parse.getParseStatus().isSuccess());
+
+    // the second one holds the only thread
+    parse = executor.parse(new SleepingParser(8000, true),
+                           "http://a.com/", row);
+    assertEquals(2, executor.getAbandonedCount());
+    assertEquals(0, executor.getCapacity());
+    parse = executor.parse(new SleepingParser(10, false), "http://a.com/", row);
+    assertEquals(ParseStatus.FAILED_NO_THREAD,
+                 parse.getParseStatus().getMinorCode());
+    assertEquals(2, executor.getTimeoutCount());
+    assertEquals(1, executor.getNoThreadCount());
+  }
+
+  public void testDisabled() throws Exception {
+    conf.setInt(ParseExecutor.TIMEOUT, 0);
+    ParseExecutor executor = new ParseExecutor(conf);
+    assertFalse(executor.isEnabled());
+    ParseHbase parse = executor.parse(new SleepingParser(10, false),
+                                      "http://a.com/", row);
+    assertTrue(parse.getParseStatus().isSuccess());
+  }
+}
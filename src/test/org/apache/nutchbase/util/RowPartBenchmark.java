@@ -0,0 +1,185 @@
+package org.apache.nutchbase.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.hadoop.hbase.io.Cell;
+import org.apache.hadoop.hbase.io.HbaseMapWritable;
+import org.apache.hadoop.hbase.io.RowResult;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.nutchbase.util.hbase.RowPart;
+import org.apache.nutchbase.util.hbase.TableColumns;
+import org.apache.nutchbase.util.hbase.TableUtil;
+
+/**
+ * Compares the size and the serialization time of the {@link RowPart} wire
+ * format with the previous one (a plain {@link RowResult} followed by the
+ * uncoded op map), with and without deflate compression of the stream.
+ *
+ * <p>Usage: RowPartBenchmark [-rows n] [-links n] [-content bytes]
+ */
+public class RowPartBenchmark {
+
+  private static final long NOW = System.currentTimeMillis();
+
+  private static void put(HbaseMapWritable<byte[], Cell> cells, byte[] col,
+                          byte[] val, Random r) {
+    cells.put(col, new Cell(val, NOW - r.nextInt(1000000)));
+  }
+
+  private static void op(Map<byte[], byte[]> ops, String col, byte[] val) {
+    ops.put(Bytes.toBytes(col), val);
+  }
+
+  private static RowResult makeRowResult(int n, int links, Random r)
+  throws IOException {
+    final HbaseMapWritable<byte[], Cell> cells =
+      new HbaseMapWritable<byte[], Cell>();
+    put(cells, TableColumns.STATUS, new byte[] { 1 }, r);
+    put(cells, TableColumns.FETCH_TIME, Bytes.toBytes(NOW), r);
+    put(cells, TableColumns.FETCH_INTERVAL, Bytes.toBytes(2592000), r);
+    put(cells, TableColumns.RETRIES, Bytes.toBytes(0), r);
+    put(cells, TableColumns.SCORE, TableUtil.toBytes(r.nextFloat()), r);
+    put(cells, TableColumns.SIGNATURE, new byte[16], r);
+    put(cells, Bytes.toBytes(TableColumns.METADATA_STR + "_ftcmrk_"),
+        TableUtil.YES_VAL, r);
+    for (int i = 0; i < links; i++) {
+      put(cells, Bytes.toBytes(TableColumns.INLINKS_STR + "http://www.site"
+          + r.nextInt(1000) + ".com/path/to/page" + i + ".html"),
+          Bytes.toBytes("anchor " + i), r);
+    }
+    final String url = "http://www.example.com/dir/page" + n + ".html";
+    return new RowResult(Bytes.toBytes(TableUtil.reverseUrl(url)), cells);
+  }
+
+  /** Creates the changes made by the fetcher to a row. */
+  private static Map<byte[], byte[]> makeOps(int n, int links,
+      int contentLength, Random r) {
+    final Map<byte[], byte[]> ops =
+      new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+    final byte[] content = new byte[contentLength];
+    for (int i = 0; i < content.length; i++) {
+      // text-like content
+      content[i] = (byte) ('a' + r.nextInt(8));
+    }
+    op(ops, TableColumns.CONTENT_STR, content);
+    op(ops, TableColumns.CONTENT_TYPE_STR, Bytes.toBytes("text/html"));
+    op(ops, TableColumns.STATUS_STR, new byte[] { 2 });
+    op(ops, TableColumns.FETCH_TIME_STR, Bytes.toBytes(NOW));
+    op(ops, TableColumns.PREV_FETCH_TIME_STR,
+       Bytes.toBytes(NOW - 2592000000L));
+    op(ops, TableColumns.BASE_URL_STR,
+       Bytes.toBytes("http://www.example.com/dir/page" + n + ".html"));
+    op(ops, TableColumns.HEADERS_STR + "Content-Type",
+       Bytes.toBytes("text/html; charset=utf-8"));
+    op(ops, TableColumns.HEADERS_STR + "Server", Bytes.toBytes("Apache"));
+    op(ops, TableColumns.HEADERS_STR + "Date",
+       Bytes.toBytes("Mon, 01 Jan 2009 00:00:00 GMT"));
+    op(ops, TableColumns.METADATA_STR + "_ftcmrk_", null);
+    op(ops, TableColumns.METADATA_STR + "_tmp_parse_mark_", TableUtil.YES_VAL);
+    for (int i = 0; i < links; i++) {
+      op(ops, TableColumns.OUTLINKS_STR + "http://www.example.com/dir/page"
+         + r.nextInt(100000) + ".html", Bytes.toBytes("link " + i));
+    }
+    return ops;
+  }
+
+  /** The previous wire format of {@link RowPart}. */
+  private static void writeLegacy(RowResult rowResult,
+      Map<byte[], byte[]> ops, DataOutput out) throws IOException {
+    rowResult.write(out);
+    out.writeInt(ops.size());
+    for (final Map.Entry<byte[], byte[]> op : ops.entrySet()) {
+      Bytes.writeByteArray(out, op.getKey());
+      final byte[] val = op.getValue();
+      if (val == null) {
+        out.writeBoolean(false);
+      } else {
+        out.writeBoolean(true);
+        Bytes.writeByteArray(out, val);
+      }
+    }
+  }
+
+  private static long deflatedSize(byte[] b, int length) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DeflaterOutputStream deflater = new DeflaterOutputStream(bytes);
+    deflater.write(b, 0, length);
+    deflater.close();
+    return bytes.size();
+  }
+
+  public static void main(String[] args) throws Exception {
+    int numRows = 10000;
+    int links = 50;
+    int contentLength = 8192;
+    for (int i = 0; i < args.length; i++) {
+      if ("-rows".equals(args[i])) {
+        numRows = Integer.parseInt(args[++i]);
+      } else if ("-links".equals(args[i])) {
+        links = Integer.parseInt(args[++i]);
+      } else if ("-content".equals(args[i])) {
+        contentLength = Integer.parseInt(args[++i]);
+      } else {
+        System.err.println(
+            "Usage: RowPartBenchmark [-rows n] [-links n] [-content bytes]");
+        System.exit(-1);
+      }
+    }
+
+    final Random r = new Random(0);
+    final RowResult[] rowResults = new RowResult[numRows];
+    final List<Map<byte[], byte[]>> ops = new ArrayList<Map<byte[], byte[]>>();
+    final RowPart[] rows = new RowPart[numRows];
+    for (int i = 0; i < numRows; i++) {
+      rowResults[i] = makeRowResult(i, links, r);
+      ops.add(makeOps(i, links, contentLength, r));
+      rows[i] = new RowPart(rowResults[i]);
+      for (final Map.Entry<byte[], byte[]> op : ops.get(i).entrySet()) {
+        rows[i].putColumn(op.getKey(), op.getValue());
+      }
+    }
+
+    final DataOutputBuffer legacy = new DataOutputBuffer();
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < numRows; i++) {
+      writeLegacy(rowResults[i], ops.get(i), legacy);
+    }
+    final long legacyWriteTime = System.currentTimeMillis() - start;
+
+    final DataOutputBuffer compact = new DataOutputBuffer();
+    start = System.currentTimeMillis();
+    for (int i = 0; i < numRows; i++) {
+      rows[i].write(compact);
+    }
+    final long compactWriteTime = System.currentTimeMillis() - start;
+
+    final DataInputBuffer in = new DataInputBuffer();
+    in.reset(compact.getData(), compact.getLength());
+    final RowPart row = new RowPart();
+    start = System.currentTimeMillis();
+    for (int i = 0; i < numRows; i++) {
+      row.readFields(in);
+    }
+    final long compactReadTime = System.currentTimeMillis() - start;
+
+    System.out.println("rows: " + numRows + ", links: " + links
+        + ", content bytes: " + contentLength);
+    System.out.println("legacy:  " + legacy.getLength() + " bytes, "
+        + deflatedSize(legacy.getData(), legacy.getLength())
+        + " deflated, write " + legacyWriteTime + " ms");
+    System.out.println("compact: " + compact.getLength() + " bytes, "
+        + deflatedSize(compact.getData(), compact.getLength())
+        + " deflated, write " + compactWriteTime + " ms, read "
+        + compactReadTime + " ms");
+  }
+}
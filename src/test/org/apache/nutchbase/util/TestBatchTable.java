@@ -0,0 +1,37 @@
+package org.apache.nutchbase.util;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.nutchbase.util.hbase.BatchTable;
+
+import junit.framework.TestCase;
+
+public class TestBatchTable extends TestCase {
+
+  String batchId = BatchTable.newBatchId(1234567890L);
+  String reversedUrl = "com.foo-bar:http/a-b/index.html";
+
+  public void testKey() throws Exception {
+    byte[] key = BatchTable.makeKey(batchId, 12, reversedUrl);
+    assertEquals(12, BatchTable.getPartition(key));
+    assertEquals(reversedUrl, BatchTable.getReversedUrl(key));
+  }
+
+  public void testRanges() throws Exception {
+    byte[] key = BatchTable.makeKey(batchId, 3, reversedUrl);
+    assertInRange(key, BatchTable.getStartRow(batchId),
+                  BatchTable.getStopRow(batchId));
+    assertInRange(key, BatchTable.getStartRow(batchId, 3),
+                  BatchTable.getStopRow(batchId, 3));
+    assertTrue(Bytes.compareTo(key, BatchTable.getStartRow(batchId, 4)) < 0);
+    assertTrue(Bytes.compareTo(key, BatchTable.getStopRow(batchId, 2)) > 0);
+
+    // other batches are out of range
+    byte[] other = BatchTable.makeKey(batchId + "0", 3, reversedUrl);
+    assertTrue(Bytes.compareTo(other, BatchTable.getStopRow(batchId)) >= 0);
+  }
+
+  private static void assertInRange(byte[] key, byte[] start, byte[] stop) {
+    assertTrue(Bytes.compareTo(key, start) >= 0);
+    assertTrue(Bytes.compareTo(key, stop) < 0);
+  }
+}
@@ -0,0 +1,101 @@
+package org.apache.nutchbase.util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.io.BatchOperation;
+import org.apache.hadoop.hbase.io.BatchUpdate;
+import org.apache.hadoop.hbase.io.Cell;
+import org.apache.hadoop.hbase.io.HbaseMapWritable;
+import org.apache.hadoop.hbase.io.RowResult;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.nutchbase.util.hbase.ColumnCompression;
+import org.apache.nutchbase.util.hbase.RowPart;
+import org.apache.nutchbase.util.hbase.TableColumns;
+
+import junit.framework.TestCase;
+
+public class TestColumnCompression extends TestCase {
+
+  private static byte[] page() {
+    StringBuilder buf = new StringBuilder("<html><body>");
+    for (int i = 0; i < 200; i++) {
+      buf.append("<p>paragraph ").append(i).append(" of the page</p>\n");
+    }
+    return Bytes.toBytes(buf.append("</body></html>").toString());
+  }
+
+  public void testCodecs() throws Exception {
+    byte[] page = page();
+    for (String name : new String[] { "deflate", "gzip", "fast" }) {
+      byte codec = ColumnCompression.getCodec(name);
+      byte[] stored = ColumnCompression.compress(codec, page);
+      assertTrue(name, stored.length < page.length);
+      assertEquals(name, codec, ColumnCompression.getCodec(stored));
+      assertTrue(name, Arrays.equals(page, ColumnCompression.decode(stored)));
+    }
+    // values written without compression are read as they are
+    assertFalse(ColumnCompression.isCompressed(page));
+    assertSame(page, ColumnCompression.decode(page));
+    byte[] random = new byte[64];
+    new Random(1).nextBytes(random);
+    assertSame(random,
+               ColumnCompression.compress(ColumnCompression.DEFLATE, random));
+  }
+
+  public void testMagicRawValue() throws Exception {
+    // a binary value that starts like a compressed one, and has a codec id
+    byte[] raw = new byte[300];
+    new Random(2).nextBytes(raw);
+    raw[0] = (byte) 0xc0;
+    raw[1] = (byte) 0xde;
+    raw[2] = ColumnCompression.DEFLATE;
+    for (String name : new String[] { "none", "deflate", "gzip", "fast" }) {
+      byte[] stored = ColumnCompression.compress(
+          ColumnCompression.getCodec(name), raw);
+      assertEquals(name, ColumnCompression.NONE,
+                   ColumnCompression.getCodec(stored));
+      assertTrue(name, Arrays.equals(raw, ColumnCompression.decode(stored)));
+    }
+
+    // also below the minimum size, and without a codec
+    Configuration conf = NutchConfiguration.create();
+    byte[] small = new byte[] { (byte) 0xc0, (byte) 0xde, 1, 2 };
+    ColumnCompression compression = new ColumnCompression(conf);
+    for (byte[] value : new byte[][] { raw, small }) {
+      byte[] stored = compression.encode(TableColumns.CONTENT, value);
+      assertTrue(Arrays.equals(value, ColumnCompression.decode(stored)));
+    }
+  }
+
+  public void testBatchUpdate() throws Exception {
+    Configuration conf = NutchConfiguration.create();
+    conf.set(ColumnCompression.CONTENT_CODEC, "fast");
+    conf.set(ColumnCompression.TEXT_CODEC, "deflate");
+    ColumnCompression compression = new ColumnCompression(conf);
+
+    byte[] page = page();
+    String text = Bytes.toString(page);
+    RowPart row = new RowPart(Bytes.toBytes("com.a:http/"));
+    row.setContent(page);
+    row.setText(text);
+    row.setTitle("title");
+
+    HbaseMapWritable<byte[], Cell> cells = new HbaseMapWritable<byte[], Cell>();
+    BatchUpdate bu = row.makeBatchUpdate(compression);
+    for (BatchOperation op : bu) {
+      cells.put(op.getColumn(), new Cell(op.getValue(), 1L));
+    }
+    assertTrue(ColumnCompression.isCompressed(
+        cells.get(TableColumns.CONTENT).getValue()));
+    assertTrue(ColumnCompression.isCompressed(
+        cells.get(TableColumns.TEXT).getValue()));
+    assertEquals("title", Bytes.toString(cells.get(TableColumns.TITLE).getValue()));
+
+    RowPart read = new RowPart(new RowResult(row.getRowId(), cells));
+    assertTrue(Arrays.equals(page, read.getContent()));
+    assertEquals(text, read.getText());
+  }
+}
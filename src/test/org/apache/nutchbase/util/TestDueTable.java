@@ -0,0 +1,39 @@
+package org.apache.nutchbase.util;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.nutchbase.util.hbase.DueTable;
+
+import junit.framework.TestCase;
+
+public class TestDueTable extends TestCase {
+
+  long bucketSize = 3600000L;
+  String reversedUrl = "com.foo-bar:http/a-b/index.html";
+
+  public void testKey() throws Exception {
+    byte[] key = DueTable.makeKey(1234567890123L, bucketSize, reversedUrl);
+    assertEquals(reversedUrl, DueTable.getReversedUrl(key));
+  }
+
+  public void testRange() throws Exception {
+    long curTime = 1234567890123L;
+    byte[] stopRow = DueTable.getStopRow(curTime, bucketSize);
+
+    // due rows, including the ones in the bucket of curTime
+    assertTrue(Bytes.compareTo(
+        DueTable.makeKey(0L, bucketSize, reversedUrl), stopRow) < 0);
+    assertTrue(Bytes.compareTo(
+        DueTable.makeKey(curTime - bucketSize, bucketSize, reversedUrl),
+        stopRow) < 0);
+    assertTrue(Bytes.compareTo(
+        DueTable.makeKey(curTime, bucketSize, "zzz"), stopRow) < 0);
+
+    // rows in later buckets
+    assertTrue(Bytes.compareTo(
+        DueTable.makeKey(curTime + bucketSize, bucketSize, reversedUrl),
+        stopRow) > 0);
+    assertTrue(Bytes.compareTo(
+        DueTable.makeKey(curTime * 10, bucketSize, reversedUrl),
+        stopRow) > 0);
+  }
+}
@@ -0,0 +1,65 @@
+package org.apache.nutchbase.util;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.nutch.util.NutchConfiguration;
+import org.apache.nutchbase.util.hbase.HostTable;
+import org.apache.nutchbase.util.hbase.TableUtil;
+
+import junit.framework.TestCase;
+
+public class TestHostTable extends TestCase {
+
+  public void testReverseHost() throws Exception {
+    String reversedUrl = TableUtil.reverseUrl("http://bar.baz.com:8983/a");
+    assertEquals(TableUtil.getReversedHost(reversedUrl),
+                 TableUtil.reverseHost("bar.baz.com"));
+    assertEquals("localhost", TableUtil.reverseHost("localhost"));
+  }
+
+  public void testHealth() throws Exception {
+    HostTable.HostInfo info = new HostTable.HostInfo();
+    // the first fetches are averaged evenly
+    info.recordFetch(false, 100, 0.1f);
+    info.recordFetch(true, 300, 0.1f);
+    assertEquals(0.5f, info.getErrorRate(), 1e-6f);
+    assertEquals(200f, info.getResponseTime(), 1e-3f);
+    // too few fetches to judge
+    assertTrue(info.isHealthy(0.2f));
+
+    for (int i = 0; i < HostTable.MIN_FETCHES; i++) {
+      info.recordFetch(true, 1000, 0.1f);
+    }
+    assertEquals(HostTable.MIN_FETCHES + 1, info.getErrors());
+    assertFalse(info.isHealthy(0.5f));
+
+    // recent successes win over older errors
+    for (int i = 0; i < 50; i++) {
+      info.recordFetch(false, 100, 0.1f);
+    }
+    assertTrue(info.getErrorRate() < 0.01f);
+    assertTrue(info.getResponseTime() < 110f);
+    assertTrue(info.isHealthy(0.1f));
+  }
+
+  public void testRobotsExpiry() throws Exception {
+    HostTable.HostInfo info = new HostTable.HostInfo();
+    assertFalse(info.hasRobotsRules(0L));
+    info.setRobotsRules(new byte[] { 1 }, 5000L, 1000L, 2000L);
+    assertTrue(info.hasRobotsRules(1500L));
+    assertFalse(info.hasRobotsRules(2000L));
+    assertEquals(5000L, info.getCrawlDelay());
+  }
+
+  public void testSetTableName() throws Exception {
+    Configuration conf = NutchConfiguration.create();
+    conf.setBoolean(HostTable.HOST_TABLE_ENABLED, false);
+    assertNull(HostTable.setTableName(conf, "webtable"));
+    assertNull(conf.get(HostTable.HOST_TABLE));
+    assertNull(HostTable.get(conf));
+
+    // as set up by the fetcher, the generator and the crawl cycle
+    conf.setBoolean(HostTable.HOST_TABLE_ENABLED, true);
+    assertEquals("webtable_host", HostTable.setTableName(conf, "webtable"));
+    assertEquals("webtable_host", conf.get(HostTable.HOST_TABLE));
+  }
+}
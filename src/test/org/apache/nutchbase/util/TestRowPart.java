@@ -0,0 +1,159 @@
+package org.apache.nutchbase.util;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.hadoop.hbase.io.BatchOperation;
+import org.apache.hadoop.hbase.io.BatchUpdate;
+import org.apache.hadoop.hbase.io.Cell;
+import org.apache.hadoop.hbase.io.HbaseMapWritable;
+import org.apache.hadoop.hbase.io.RowResult;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.nutch.crawl.Inlink;
+import org.apache.nutch.parse.Outlink;
+import org.apache.nutch.protocol.ProtocolStatus;
+import org.apache.nutchbase.util.hbase.ImmutableRowPart;
+import org.apache.nutchbase.util.hbase.RowPart;
+import org.apache.nutchbase.util.hbase.TableColumns;
+import org.apache.nutchbase.util.hbase.TableUtil;
+
+import junit.framework.TestCase;
+
+public class TestRowPart extends TestCase {
+
+  private RowPart makeRow() {
+    HbaseMapWritable<byte[], Cell> cells = new HbaseMapWritable<byte[], Cell>();
+    put(cells, TableColumns.INLINKS_STR + "http://a.com/", "a");
+    put(cells, TableColumns.INLINKS_STR + "http://b.com/", "b");
+    put(cells, TableColumns.OUTLINKS_STR + "http://c.com/", "c");
+    // families sorting right before and after inlinks:
+    put(cells, "inlinkr:x", "x");
+    put(cells, "inlinks;", "y");
+    put(cells, TableColumns.HEADERS_STR + "Server", "foo");
+    return new RowPart(new RowResult(Bytes.toBytes("com.a:http/"), cells));
+  }
+
+  private static void put(HbaseMapWritable<byte[], Cell> cells,
+                          String col, String val) {
+    cells.put(Bytes.toBytes(col), new Cell(val, 1L));
+  }
+
+  public void testLinks() throws Exception {
+    RowPart row = makeRow();
+    Collection<Inlink> inlinks = row.getInlinks();
+    assertEquals(2, inlinks.size());
+    Collection<Outlink> outlinks = row.getOutlinks();
+    assertEquals(1, outlinks.size());
+    assertEquals("http://c.com/", outlinks.iterator().next().getToUrl());
+
+    row.addInlink(new Inlink("http://d.com/", "d"));
+    assertEquals(3, row.getInlinks().size());
+  }
+
+  public void testDeleteAllInlinks() throws Exception {
+    RowPart row = makeRow();
+    row.addInlink(new Inlink("http://d.com/", "d"));
+    row.deleteAllInlinks();
+    assertEquals(0, row.getInlinks().size());
+    row.addInlink(new Inlink("http://e.com/", "e"));
+    Collection<Inlink> inlinks = row.getInlinks();
+    assertEquals(1, inlinks.size());
+    assertEquals("http://e.com/", inlinks.iterator().next().getFromUrl());
+
+    // only the existing inlinks are deleted, the new one is put
+    Set<String> deleted = new HashSet<String>();
+    Set<String> put = new HashSet<String>();
+    BatchUpdate bu = row.makeBatchUpdate();
+    for (BatchOperation op : bu) {
+      (op.isPut() ? put : deleted).add(Bytes.toString(op.getColumn()));
+    }
+    assertEquals(2, deleted.size());
+    assertTrue(deleted.contains(TableColumns.INLINKS_STR + "http://a.com/"));
+    assertTrue(deleted.contains(TableColumns.INLINKS_STR + "http://b.com/"));
+    assertEquals(1, put.size());
+    assertTrue(put.contains(TableColumns.INLINKS_STR + "http://e.com/"));
+  }
+
+  public void testDeleteHeaders() throws Exception {
+    RowPart row = makeRow();
+    assertEquals("foo", row.getHeader("Server"));
+    row.deleteHeaders();
+    assertNull(row.getHeader("Server"));
+    assertEquals(1, row.getOutlinks().size());
+  }
+
+  private static RowPart roundTrip(RowPart row) throws Exception {
+    DataOutputBuffer out = new DataOutputBuffer();
+    row.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    RowPart copy = new RowPart();
+    copy.readFields(in);
+    assertEquals(in.getLength(), in.getPosition());
+    return copy;
+  }
+
+  public void testWritable() throws Exception {
+    RowPart row = makeRow();
+    row.setStatus((byte) 3);
+    row.putMeta("_foo_", Bytes.toBytes("bar"));
+    row.addHeader("Server", "bar");
+    row.deleteAllOutlinks();
+    row.addInlink(new Inlink("http://d.com/", ""));
+
+    RowPart copy = roundTrip(row);
+    assertTrue(Bytes.equals(row.getRowId(), copy.getRowId()));
+    assertEquals(3, copy.getStatus());
+    assertEquals("bar", copy.getMetaAsString("_foo_"));
+    assertEquals("bar", copy.getHeader("Server"));
+    assertEquals(0, copy.getOutlinks().size());
+    assertEquals(3, copy.getInlinks().size());
+    assertEquals("x", copy.getColumnAsString("inlinkr:x"));
+
+    // an empty row
+    copy = roundTrip(new RowPart(Bytes.toBytes("com.b:http/")));
+    assertEquals(0, copy.getColumns().size());
+  }
+
+  public void testImmutableWritable() throws Exception {
+    HbaseMapWritable<byte[], Cell> cells = new HbaseMapWritable<byte[], Cell>();
+    cells.put(TableColumns.STATUS, new Cell(new byte[] { 2 }, 5L));
+    cells.put(TableColumns.SCORE,
+        new Cell(new byte[][] { TableUtil.toBytes(1.0f), TableUtil.toBytes(2.0f) },
+                 new long[] { 7L, 3L }));
+    ImmutableRowPart row =
+      new ImmutableRowPart(new RowResult(Bytes.toBytes("com.c:http/"), cells));
+    DataOutputBuffer out = new DataOutputBuffer();
+    row.write(out);
+    DataInputBuffer in = new DataInputBuffer();
+    in.reset(out.getData(), out.getLength());
+    ImmutableRowPart copy = new ImmutableRowPart();
+    copy.readFields(in);
+    assertEquals(2, copy.getStatus());
+    assertEquals(1.0f, copy.getScore());
+  }
+
+  public void testDecodedValues() throws Exception {
+    RowPart row = makeRow();
+    Collection<Inlink> inlinks = row.getInlinks();
+    assertSame(inlinks, row.getInlinks());
+    try {
+      inlinks.clear();
+      fail("inlinks should be read-only");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+
+    row.addInlink(new Inlink("http://d.com/", "d"));
+    assertEquals(2, inlinks.size());
+    assertEquals(3, row.getInlinks().size());
+
+    row.setProtocolStatus(ProtocolStatus.STATUS_SUCCESS);
+    assertEquals(ProtocolStatus.SUCCESS, row.getProtocolStatus().getCode());
+    row.setProtocolStatus(ProtocolStatus.STATUS_NOTMODIFIED);
+    assertEquals(ProtocolStatus.NOTMODIFIED, row.getProtocolStatus().getCode());
+  }
+}